@@ -0,0 +1,72 @@
+package helipilot50.orientdb.recommendation.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares JMH results in JSON (-rf json) with a baseline in the same format,
+ * benchmark by benchmark and parameters by parameters. A change counts when the
+ * confidence intervals of the two scores do not overlap.
+ *
+ * usage: CompareWithBaseline [baseline.json] [target/results.json]
+ */
+public class CompareWithBaseline {
+
+	public static void main(String[] args) throws IOException {
+		File baselineFile = new File(args.length > 0 ? args[0] : "baseline.json");
+		File resultsFile = new File(args.length > 1 ? args[1] : "target/results.json");
+		Map<String, JsonNode> baseline = read(baselineFile);
+		Map<String, JsonNode> results = read(resultsFile);
+		int changes = 0;
+		System.out.println(String.format("%-70s %14s %14s %8s", "benchmark", "baseline", "now", "change"));
+		for (Map.Entry<String, JsonNode> entry : results.entrySet()) {
+			JsonNode now = entry.getValue().get("primaryMetric");
+			JsonNode before = baseline.containsKey(entry.getKey()) ? baseline.get(entry.getKey()).get("primaryMetric") : null;
+			if (before == null) {
+				System.out.println(String.format("%-70s %14s %14.3f %8s", entry.getKey(), "-", now.get("score").asDouble(), "new"));
+				continue;
+			}
+			if (!before.get("scoreUnit").asText().equals(now.get("scoreUnit").asText())) {
+				System.out.println(String.format("%-70s units differ: %s and %s", entry.getKey(),
+						before.get("scoreUnit").asText(), now.get("scoreUnit").asText()));
+				continue;
+			}
+			double b = before.get("score").asDouble();
+			double n = now.get("score").asDouble();
+			boolean significant = n - now.get("scoreError").asDouble() > b + before.get("scoreError").asDouble()
+					|| n + now.get("scoreError").asDouble() < b - before.get("scoreError").asDouble();
+			if (significant)
+				changes++;
+			System.out.println(String.format("%-70s %14.3f %14.3f %+7.1f%%%s", entry.getKey(), b, n,
+					100 * (n - b) / b, significant ? " *" : ""));
+		}
+		System.out.println(String.format("%d of %d benchmarks changed beyond their error (*)", changes, results.size()));
+	}
+
+	/*
+	 * results by benchmark name and parameters
+	 */
+	private static Map<String, JsonNode> read(File file) throws IOException {
+		Map<String, JsonNode> results = new LinkedHashMap<String, JsonNode>();
+		for (JsonNode result : new ObjectMapper().readTree(file)) {
+			String name = result.get("benchmark").asText();
+			StringBuilder key = new StringBuilder(name.substring(name.lastIndexOf('.', name.lastIndexOf('.') - 1) + 1));
+			JsonNode params = result.get("params");
+			if (params != null) {
+				Iterator<Map.Entry<String, JsonNode>> fields = params.fields();
+				while (fields.hasNext()) {
+					Map.Entry<String, JsonNode> param = fields.next();
+					key.append(' ').append(param.getKey()).append('=').append(param.getValue().asText());
+				}
+			}
+			results.put(key.toString(), result);
+		}
+		return results;
+	}
+}
@@ -0,0 +1,36 @@
+package helipilot50.orientdb.recommendation.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import com.tinkerpop.blueprints.Vertex;
+
+import helipilot50.orientdb.recommendation.SparseVector;
+
+/**
+ * The graph reads of FineFoodsService, per sample user
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FineFoodsServiceBenchmark {
+
+	@Benchmark
+	public SparseVector makeVectorForUser(ReviewGraphState state, ReviewGraphState.Turn turn) {
+		return state.service.makeVectorForUser(state.sampleUsers[turn.next()]);
+	}
+
+	@Benchmark
+	public List<Vertex> productsForUser(ReviewGraphState state, ReviewGraphState.Turn turn) {
+		return state.service.productsForUser(state.sampleUsers[turn.next()]);
+	}
+
+	@Benchmark
+	public List<Vertex> similarUsers(ReviewGraphState state, ReviewGraphState.Turn turn) {
+		return state.service.similarUsers(state.sampleUsers[turn.next()]);
+	}
+}
@@ -0,0 +1,89 @@
+package helipilot50.orientdb.recommendation.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+/**
+ * An in-memory OrientDB seeded by SyntheticReviews, shared by the benchmarks of
+ * a trial, with a fixed sample of the users that wrote reviews to take turns on.
+ */
+@State(Scope.Benchmark)
+public class ReviewGraphState {
+	public static final int SAMPLE_SIZE = 256;
+
+	@Param({ "5000" })
+	public int users;
+
+	@Param({ "1000" })
+	public int products;
+
+	@Param({ "50000" })
+	public int reviews;
+
+	@Param({ "1.0" })
+	public double exponent;
+
+	public OrientGraphFactory factory;
+	public OrientGraphNoTx graph;
+	public FineFoodsService service;
+	public Vertex[] sampleUsers;
+	public String[] sampleUserIds;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		factory = new OrientGraphFactory("memory:benchmark" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+		new SyntheticReviews(users, products, reviews, exponent, 42).load(service);
+
+		Random random = new Random(7);
+		List<Vertex> sample = new ArrayList<Vertex>(SAMPLE_SIZE);
+		while (sample.size() < SAMPLE_SIZE) {
+			Vertex vUser = service.findUserById(SyntheticReviews.userId(random.nextInt(users)));
+			if (vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED).iterator().hasNext())
+				sample.add(vUser);
+		}
+		sampleUsers = sample.toArray(new Vertex[SAMPLE_SIZE]);
+		sampleUserIds = new String[SAMPLE_SIZE];
+		for (int i = 0; i < SAMPLE_SIZE; i++)
+			sampleUserIds[i] = sampleUsers[i].getProperty(Constants.USER_ID);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		graph.drop();
+		factory.close();
+	}
+
+	/**
+	 * Which sample user a benchmark thread takes next
+	 */
+	@State(Scope.Thread)
+	public static class Turn {
+		private int next;
+
+		public int next() {
+			int i = next;
+			next = (next + 1) % SAMPLE_SIZE;
+			return i;
+		}
+	}
+}
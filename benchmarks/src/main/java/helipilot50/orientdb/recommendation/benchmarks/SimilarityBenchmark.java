@@ -0,0 +1,45 @@
+package helipilot50.orientdb.recommendation.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.rest.CosineSimilarity;
+
+/**
+ * CosineSimilarity between the rating vectors of pairs of sample users, which
+ * are built once so only the arithmetic is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SimilarityBenchmark {
+	private SparseVector[] vectors;
+
+	@Setup(Level.Trial)
+	public void setUp(ReviewGraphState state) {
+		vectors = new SparseVector[ReviewGraphState.SAMPLE_SIZE];
+		for (int i = 0; i < vectors.length; i++)
+			vectors[i] = state.service.makeVectorForUser(state.sampleUsers[i]);
+	}
+
+	@Benchmark
+	public double cosineSimilarity(ReviewGraphState.Turn turn) {
+		int i = turn.next();
+		return CosineSimilarity.cosineSimilarity(vectors[i], vectors[(i * 31 + 7) % vectors.length]);
+	}
+
+	@Benchmark
+	public double dotProduct(ReviewGraphState.Turn turn) {
+		int i = turn.next();
+		return CosineSimilarity.dotProduct(vectors[i], vectors[(i * 31 + 7) % vectors.length]);
+	}
+}
@@ -0,0 +1,116 @@
+package helipilot50.orientdb.recommendation.benchmarks;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.Vertex;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+
+/**
+ * Generates a review graph shaped like the fine foods reviews: a few users write
+ * most of the reviews and a few products get most of them.
+ *
+ * The author and the product of every review are drawn from power-law (Zipf)
+ * distributions over user and product rank, so the degrees follow a power law
+ * with the given exponent, and the scores lean towards 5 like the real ones.
+ * The same sizes and seed always give the same graph: user i is
+ * "A" followed by i in 13 digits, product i is "B" followed by i in 9 digits,
+ * both ranked by popularity, so product 0 is the biggest hub.
+ */
+public class SyntheticReviews {
+	private static final Logger log = LoggerFactory.getLogger(SyntheticReviews.class);
+	/*
+	 * the share of each score, 1 to 5, in the fine foods reviews
+	 */
+	private static final double[] SCORE_SHARES = { 0.09, 0.05, 0.08, 0.14, 0.64 };
+
+	private final int users;
+	private final int products;
+	private final int reviews;
+	private final double exponent;
+	private final long seed;
+
+	/**
+	 * @param users
+	 * @param products
+	 * @param reviews
+	 * @param exponent of the power laws, about 1 for the fine foods reviews
+	 * @param seed
+	 */
+	public SyntheticReviews(int users, int products, int reviews, double exponent, long seed) {
+		super();
+		this.users = users;
+		this.products = products;
+		this.reviews = reviews;
+		this.exponent = exponent;
+		this.seed = seed;
+	}
+
+	public static String userId(int user) {
+		return String.format("A%013d", user);
+	}
+
+	public static String productId(int product) {
+		return String.format("B%09d", product);
+	}
+
+	/**
+	 * Write the users, products and reviews through the service
+	 * @param service
+	 */
+	public void load(FineFoodsService service) {
+		long start = System.currentTimeMillis();
+		Random random = new Random(seed);
+		double[] userWeights = zipf(users, exponent);
+		double[] productWeights = zipf(products, exponent);
+		double[] scoreWeights = cumulative(SCORE_SHARES);
+		Vertex[] vUsers = new Vertex[users];
+		Vertex[] vProducts = new Vertex[products];
+		for (int u = 0; u < users; u++)
+			vUsers[u] = service.createUser(userId(u), "user" + u);
+		for (int p = 0; p < products; p++)
+			vProducts[p] = service.createProduct(productId(p));
+		Map<String, Object> review = new HashMap<String, Object>();
+		for (int r = 0; r < reviews; r++) {
+			int u = draw(userWeights, random);
+			int p = draw(productWeights, random);
+			review.put("score", (double) (draw(scoreWeights, random) + 1));
+			review.put("time", 1300000000L + r);
+			service.createReview(vUsers[u], vProducts[p], review);
+		}
+		log.info(String.format("Generated %d reviews of %d products by %d users, exponent %.2f, in %d ms",
+				reviews, products, users, exponent, System.currentTimeMillis() - start));
+	}
+
+	/*
+	 * cumulative weights of ranks 1 to n, weight 1/rank^exponent
+	 */
+	private static double[] zipf(int n, double exponent) {
+		double[] weights = new double[n];
+		for (int k = 0; k < n; k++)
+			weights[k] = 1d / Math.pow(k + 1, exponent);
+		return cumulative(weights);
+	}
+
+	private static double[] cumulative(double[] weights) {
+		double[] sums = new double[weights.length];
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i];
+			sums[i] = sum;
+		}
+		return sums;
+	}
+
+	private static int draw(double[] cumulative, Random random) {
+		double x = random.nextDouble() * cumulative[cumulative.length - 1];
+		int at = Arrays.binarySearch(cumulative, x);
+		return at < 0 ? -at - 1 : at;
+	}
+}
@@ -0,0 +1,98 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.benchmarks.ReviewGraphState;
+
+/**
+ * RESTController.getRecommendationFor end to end, short of HTTP: wired by hand
+ * like Spring would with the defaults, metrics included, minus the cache and
+ * the deadline, and computing on the calling thread, but for the scoring of
+ * parallelThreshold candidates or more. It lives in the rest package to set
+ * the controller's fields.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RecommendationBenchmark {
+	@Param({ "sample" })
+	public String hubPolicy;
+
+	@Param({ "true" })
+	public boolean detailedMetrics;
+
+	/*
+	 * 0 scores on the calling thread only
+	 */
+	@Param({ "0", "256" })
+	public int parallelThreshold;
+
+	@Param({ "0" })
+	public int scoringThreads;
+
+	private RESTController controller;
+
+	@Setup(Level.Trial)
+	public void setUp(ReviewGraphState state) {
+		controller = new RESTController();
+		controller.metrics = new RecommendationMetrics();
+		controller.metrics.detailed = detailedMetrics;
+		controller.sessions = new GraphSessionPool();
+		controller.sessions.graphFactory = state.factory;
+		controller.sessions.metrics = controller.metrics;
+		controller.sessions.minSize = 1;
+		controller.sessions.maxSize = 4 + (scoringThreads > 0 ? scoringThreads : Runtime.getRuntime().availableProcessors());
+		controller.sessions.waitMillis = 500;
+		controller.sessions.start();
+		controller.snapshots = new SnapshotManager();
+		controller.cache = new RecommendationCache(0, 0);
+		controller.coOccurrence = new CoOccurrenceManager();
+		controller.minHash = new MinHashManager();
+		controller.factors = new LatentFactorStore();
+		controller.features = new FeatureStoreManager();
+		controller.precomputed = new PrecomputedRecommendationStore();
+		controller.recent = new RecentReviews(60);
+		controller.precomputed.recent = controller.recent;
+		controller.ingester = new ReviewIngester();
+		controller.knownIds = new KnownIdsManager();
+		controller.dictionary = new IdDictionaryManager();
+		controller.neighbours = Recommender.DEFAULT_NEIGHBOURS;
+		controller.maxResults = Recommender.DEFAULT_MAX_RESULTS;
+		controller.hubMode = hubPolicy;
+		controller.hubThreshold = 1000;
+		controller.hubSampleSize = 100;
+		controller.candidates = "graph";
+		controller.batchThreads = 1;
+		controller.batchMaxUsers = 10000;
+		controller.async = false;
+		controller.asyncThreads = 1;
+		controller.asyncQueueSize = 1;
+		controller.deadlineMillis = 0;
+		controller.parallelThreshold = parallelThreshold;
+		controller.scoringThreads = scoringThreads;
+		controller.init();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		controller.stop();
+	}
+
+	@Benchmark
+	public Recommendation getRecommendationFor(ReviewGraphState state, ReviewGraphState.Turn turn) throws Exception {
+		return (Recommendation) controller.getRecommendationFor(state.sampleUserIds[turn.next()], null).getResult();
+	}
+}
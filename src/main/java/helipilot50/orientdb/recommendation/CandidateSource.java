@@ -0,0 +1,21 @@
+package helipilot50.orientdb.recommendation;
+
+/**
+ * Where a recommendation finds the users to compare with: every co-reviewer,
+ * walking the graph from the user's products to their reviewers (GRAPH), or the
+ * users that share the most MinHash buckets with the user (LSH), a bounded set
+ * read from memory that may miss some of the co-reviewers. COOCCURRENCE compares
+ * no users: the products reviewed with the user's own are ranked from the counts
+ * of the co-occurrence index, which follow every new review.
+ */
+public enum CandidateSource {
+	GRAPH, LSH, COOCCURRENCE;
+
+	/**
+	 * @param source graph, lsh or cooccurrence, in any case
+	 * @return
+	 */
+	public static CandidateSource parse(String source) {
+		return valueOf(source.trim().toUpperCase());
+	}
+}
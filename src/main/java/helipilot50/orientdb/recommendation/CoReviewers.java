@@ -0,0 +1,78 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.Arrays;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+
+/**
+ * The distinct users that reviewed any of the products a user reviewed, each
+ * with the number of those reviews, their overlap with the user.
+ *
+ * Users are held by RID, so they are only loaded by whoever scores them.
+ */
+public class CoReviewers {
+	private final IntIntHashMap slots = new IntIntHashMap();
+	private OIdentifiable[] users = new OIdentifiable[16];
+	private int[] overlap = new int[16];
+	private int size;
+	private boolean truncated;
+	private final FanOut fanOut = new FanOut();
+
+	/**
+	 * Count one review by a user
+	 * @param user the user vertex or its RID
+	 */
+	public void add(OIdentifiable user) {
+		int slot = slots.putIfAbsent(FineFoodsService.userKey(user), size);
+		if (slot == size) {
+			if (size == users.length) {
+				users = Arrays.copyOf(users, size * 2);
+				overlap = Arrays.copyOf(overlap, size * 2);
+			}
+			users[size++] = user.getIdentity();
+		}
+		overlap[slot]++;
+	}
+
+	/**
+	 * @return how far the walk fanned out, and how much was cut
+	 */
+	public FanOut getFanOut() {
+		fanOut.setCandidates(size);
+		return fanOut;
+	}
+
+	/**
+	 * @return true if the walk stopped at a deadline before reading the
+	 *         reviewers of every product
+	 */
+	public boolean isTruncated() {
+		return truncated;
+	}
+
+	public void setTruncated(boolean truncated) {
+		this.truncated = truncated;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param i 0 until size
+	 * @return the RID of the i-th co-reviewer
+	 */
+	public OIdentifiable user(int i) {
+		return users[i];
+	}
+
+	/**
+	 * @param i 0 until size
+	 * @return how many of the user's products the i-th co-reviewer reviewed
+	 */
+	public int overlap(int i) {
+		return overlap[i];
+	}
+}
@@ -6,5 +6,12 @@ public class Constants {
 	public static final String PROFILE_NAME = "profileName";
 	public static final String USER_ID = "userId";
 	public static final String EDGE_REVIEWED = "reviewed";
+	public static final String EDGE_RECOMMENDED = "recommended";
+	public static final String RECOMMENDED_AT = "recommendedAt";
+	public static final String USER_CLASS = "User";
+	public static final String PRODUCT_CLASS = "Product";
+	public static final String REVIEW_COUNT = "reviewCount";
+	public static final String REVIEW_TEXT_CLASS = "ReviewText";
+	public static final String REVIEW_TEXT = "reviewText";
 	
 }
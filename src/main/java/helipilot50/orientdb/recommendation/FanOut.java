@@ -0,0 +1,67 @@
+package helipilot50.orientdb.recommendation;
+
+/**
+ * How far candidate generation fanned out for a recommendation, and how much
+ * of that the HubPolicy cut
+ */
+public class FanOut {
+	int products;
+	int hubProducts;
+	long reviewsRead;
+	long reviewsCut;
+	int candidates;
+
+	public FanOut() {
+		super();
+	}
+
+	/**
+	 * Count a product of the user
+	 * @param reviewCount its reviews
+	 * @param read how many of them were read
+	 * @param hub
+	 */
+	public void product(int reviewCount, int read, boolean hub) {
+		products++;
+		if (hub)
+			hubProducts++;
+		reviewsRead += read;
+		reviewsCut += reviewCount - read;
+	}
+
+	/**
+	 * @return the distinct products of the user visited
+	 */
+	public int getProducts() {
+		return products;
+	}
+
+	/**
+	 * @return the products above the hub threshold
+	 */
+	public int getHubProducts() {
+		return hubProducts;
+	}
+
+	public long getReviewsRead() {
+		return reviewsRead;
+	}
+
+	/**
+	 * @return the reviews of hub products not read
+	 */
+	public long getReviewsCut() {
+		return reviewsCut;
+	}
+
+	/**
+	 * @return the distinct co-reviewers found
+	 */
+	public int getCandidates() {
+		return candidates;
+	}
+
+	public void setCandidates(int candidates) {
+		this.candidates = candidates;
+	}
+}
@@ -1,146 +1,691 @@
 package helipilot50.orientdb.recommendation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-import org.junit.Assert;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORecordId;
+import com.orientechnologies.orient.core.record.impl.ODocument;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientEdge;
-import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
+
+import helipilot50.orientdb.recommendation.lsh.MinHashIndex;
+import helipilot50.orientdb.recommendation.metrics.Metrics;
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+import helipilot50.orientdb.recommendation.util.TopK;
 
 public class FineFoodsService {
-	private OrientGraphNoTx  graph;
+	/*
+	 * "Class.property" keys make the lookups use the
+	 * indexes created by SchemaManager
+	 */
+	private static final String PRODUCT_BY_ID = SchemaManager.indexName(Constants.PRODUCT_CLASS, Constants.PRODUCT_ID);
+	private static final String USER_BY_ID = SchemaManager.indexName(Constants.USER_CLASS, Constants.USER_ID);
+	private static final String USER_BY_PROFILE_NAME = SchemaManager.indexName(Constants.USER_CLASS, Constants.PROFILE_NAME);
+	/*
+	 * the review properties kept on the "reviewed" edge, all
+	 * that the recommendations read
+	 */
+	public static final Set<String> EDGE_PROPERTIES = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList("score", "time", "helpfulness")));
+	/*
+	 * the review properties the User and Product vertices hold
+	 */
+	public static final Set<String> VERTEX_PROPERTIES = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(Constants.USER_ID, Constants.PRODUCT_ID, Constants.PROFILE_NAME)));
+	private OrientBaseGraph  graph;
+	private List<ReviewListener> reviewListeners = Collections.emptyList();
+	private KnownIds knownIds;
+	private IdDictionary dictionary;
+	private int productCluster = -1;
+	private int userCluster = -1;
+	/*
+	 * what this service read, a service is used by
+	 * one thread at a time like its graph
+	 */
+	private Metrics metrics;
+	private long verticesLoaded;
+	private long edgesRead;
 	private static final Logger log = LoggerFactory.getLogger(FineFoodsService.class);
-	public FineFoodsService(OrientGraphNoTx graph) {
+	public FineFoodsService(OrientBaseGraph graph) {
 		super();
 		this.graph = graph;
 	}
+
+	/**
+	 * @return the graph this service reads and writes
+	 */
+	public OrientBaseGraph getGraph() {
+		return graph;
+	}
+
+	/**
+	 * @param reviewListeners told about every review createReview adds
+	 */
+	public void setReviewListeners(List<ReviewListener> reviewListeners) {
+		this.reviewListeners = reviewListeners;
+	}
+
+	/**
+	 * @param knownIds answers the lookups of ids that are not in the graph,
+	 *        and is told the ids of the users and products created; none if null
+	 */
+	public void setKnownIds(KnownIds knownIds) {
+		this.knownIds = knownIds;
+	}
+
+	/**
+	 * @param dictionary to decode product keys and find users by key from, and
+	 *        to add the ids read from the graph to; none if null
+	 */
+	public void setIdDictionary(IdDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	/**
+	 * @return the dictionary, or null if the service has none
+	 */
+	public IdDictionary getIdDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @param metrics where to time the graph operations, as "finefoods." and
+	 *        the method name, and count the vertices and edges read; none if null
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @return the vertices this service loaded so far
+	 */
+	public long getVerticesLoaded() {
+		return verticesLoaded;
+	}
+
+	/**
+	 * @return the edges this service read so far
+	 */
+	public long getEdgesRead() {
+		return edgesRead;
+	}
+
+	private void timed(String operation, long start, long vertices, long edges) {
+		verticesLoaded += vertices;
+		edgesRead += edges;
+		if (metrics != null) {
+			metrics.time(operation, start);
+			if (vertices > 0)
+				metrics.add("finefoods.vertices", vertices);
+			if (edges > 0)
+				metrics.add("finefoods.edges", edges);
+		}
+	}
+
+	/**
+	 * @param productId
+	 * @return the product
+	 * @throws ProductNotFound if there is none
+	 */
 	public Vertex findProduct(String productId){
-		Vertex vProduct = null;
-		Iterable<Vertex> products = graph.getVertices(Constants.PRODUCT_ID, productId);
-		if (products.iterator().hasNext()) {
-			vProduct = products.iterator().next();
-		} else {
+		Vertex vProduct = lookupProduct(productId);
+		if (vProduct == null)
 			throw new ProductNotFound(productId);
-		}
 		return vProduct;
+	}
 
+	/**
+	 * Like findProduct, for when a missing product is expected
+	 * @param productId
+	 * @return the product, or null if there is none
+	 */
+	public Vertex lookupProduct(String productId){
+		if (knownIds != null && !knownIds.mightBeProduct(productId)) {
+			knownIds.productsRejected.incrementAndGet();
+			return null;
+		}
+		long start = System.nanoTime();
+		Iterator<Vertex> products = graph.getVertices(PRODUCT_BY_ID, productId).iterator();
+		if (!products.hasNext()) {
+			timed("finefoods.findProduct", start, 0, 0);
+			return null;
+		}
+		Vertex vProduct = products.next();
+		timed("finefoods.findProduct", start, 1, 0);
+		return vProduct;
 	}
 	public Vertex findUserByProfileName(String profileName){
-		Vertex vUser = null;
-		Iterable<Vertex> users = graph.getVertices(Constants.PROFILE_NAME, profileName);
-		if (users.iterator().hasNext()) {
-			vUser = users.iterator().next();
-		} else {
+		long start = System.nanoTime();
+		Iterator<Vertex> users = graph.getVertices(USER_BY_PROFILE_NAME, profileName).iterator();
+		if (!users.hasNext()) {
+			timed("finefoods.findUserByProfileName", start, 0, 0);
 			throw new UserNotFound(profileName);
 		}
+		Vertex vUser = users.next();
+		timed("finefoods.findUserByProfileName", start, 1, 0);
 		return vUser;
 	}
+
+	/**
+	 * @param userId
+	 * @return the user
+	 * @throws UserNotFound if there is none
+	 */
 	public Vertex findUserById(String userId){
-		Vertex vUser = null;
-		Iterable<Vertex> users = graph.getVertices(Constants.USER_ID, userId);
-		if (users.iterator().hasNext()) {
-			vUser = users.iterator().next();
-		} else {
+		Vertex vUser = lookupUserById(userId);
+		if (vUser == null)
 			throw new UserNotFound(userId);
+		return vUser;
+	}
+
+	/**
+	 * Like findUserById, for when a missing user is expected
+	 * @param userId
+	 * @return the user, or null if there is none
+	 */
+	public Vertex lookupUserById(String userId){
+		if (knownIds != null && !knownIds.mightBeUser(userId)) {
+			knownIds.usersRejected.incrementAndGet();
+			return null;
+		}
+		long start = System.nanoTime();
+		int userKey = dictionary != null ? dictionary.userKey(userId) : -1;
+		if (userKey >= 0) {
+			/*
+			 * by RID, without reading the index
+			 */
+			Vertex vUser = graph.getVertex(userIdentity(userKey));
+			if (vUser != null) {
+				timed("finefoods.findUserById", start, 1, 0);
+				return vUser;
+			}
 		}
+		Iterator<Vertex> users = graph.getVertices(USER_BY_ID, userId).iterator();
+		if (!users.hasNext()) {
+			timed("finefoods.findUserById", start, 0, 0);
+			return null;
+		}
+		Vertex vUser = users.next();
+		if (dictionary != null && ((OIdentifiable) vUser).getIdentity().isPersistent())
+			dictionary.addUser(userKey((OIdentifiable) vUser), userId);
+		timed("finefoods.findUserById", start, 1, 0);
 		return vUser;
 	}
 
 	public Vertex createUser(String userId, String profileName){
-		Vertex vUser = null;
-		try {
-			vUser = findUserById(userId);
-		} catch (UserNotFound e) {
+		Vertex vUser = lookupUserById(userId);
+		if (vUser == null) {
 			/*
 			 * create a new user 
 			 */
-			vUser = graph.addVertex("class:User");
+			vUser = graph.addVertex("class:" + Constants.USER_CLASS);
 			vUser.setProperty(Constants.USER_ID, userId);
-			vUser.setProperty(Constants.PROFILE_NAME, profileName);
+			if (profileName != null)
+				vUser.setProperty(Constants.PROFILE_NAME, profileName);
+			if (knownIds != null)
+				knownIds.addUser(userId);
 		}
 		return vUser;
 
 	}
 
-	public List<Double> makeVectorForUser(Vertex vUser){
-		List<Double> reviewVector = new ArrayList<Double>();
+	/**
+	 * The key of a product in a rating vector: the cluster position of its vertex.
+	 * All products live in the single cluster of the Product class, which
+	 * SchemaManager.ensureSchema checks.
+	 * @param product the product vertex or its RID
+	 * @return
+	 */
+	public static int productKey(OIdentifiable product){
+		return (int) product.getIdentity().getClusterPosition();
+	}
+
+	/**
+	 * The key of a user, the cluster position of its vertex like productKey.
+	 * All users live in the single cluster of the User class.
+	 * @param user the user vertex or its RID
+	 * @return
+	 */
+	public static int userKey(OIdentifiable user){
+		return (int) user.getIdentity().getClusterPosition();
+	}
+
+	/**
+	 * Load a vertex by RID
+	 * @param id
+	 * @return the vertex, or null if it does not exist
+	 */
+	public Vertex getVertex(OIdentifiable id){
+		verticesLoaded++;
+		return graph.getVertex(id);
+	}
+
+	public SparseVector makeVectorForUser(Vertex vUser){
+		long start = System.nanoTime();
+		SparseVector.Builder reviewVector = new SparseVector.Builder();
+		int edges = 0;
 		Iterable<Edge> reviewEdges = vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED);
 		for (Edge review : reviewEdges){
-			Vertex vProduct = review.getVertex(Direction.OUT);
-			String productVertexPostfix = vProduct.getId().toString();
-			productVertexPostfix = productVertexPostfix.substring(productVertexPostfix.lastIndexOf(':')+1);
-			reviewVector.add(Double.parseDouble(productVertexPostfix));
-			Double score = review.getProperty("score");
-			reviewVector.add(score);
+			/*
+			 * the RID of the product is read from the edge, 
+			 * the product vertex itself is not loaded
+			 */
+			OIdentifiable product = ((OrientEdge) review).getInVertex();
+			Number score = review.getProperty("score");
+			if (score != null)
+				reviewVector.add(productKey(product), score.floatValue());
+			edges++;
 		}
-		return reviewVector;
+		SparseVector vector = reviewVector.build();
+		timed("finefoods.makeVectorForUser", start, 0, edges);
+		return vector;
 	}
 
-	public boolean vectorContains(Vertex vert, List<Double> vector){
-		String vertexPostfix = vert.getId().toString();
-		vertexPostfix = vertexPostfix.substring(vertexPostfix.lastIndexOf(':')+1);
-		Double postfix = Double.parseDouble(vertexPostfix);
-		return vector.contains(postfix);
+	public boolean vectorContains(Vertex vert, SparseVector vector){
+		return vector.contains(productKey((OIdentifiable) vert));
 	}
 
 	public Vertex createProduct(String productId){
-		Vertex vProduct = null;
-		try {
-			vProduct = findProduct(productId);
-		} catch (ProductNotFound e){
-			vProduct = graph.addVertex("class:Product");
+		Vertex vProduct = lookupProduct(productId);
+		if (vProduct == null) {
+			vProduct = graph.addVertex("class:" + Constants.PRODUCT_CLASS);
 			vProduct.setProperty(Constants.PRODUCT_ID, productId);
+			if (knownIds != null)
+				knownIds.addProduct(productId);
 		}
 		return vProduct;
 	}
 
+	/**
+	 * Add a review of a product by a user. Only the EDGE_PROPERTIES of the
+	 * review are set on the edge the recommendations walk; the ids the vertices
+	 * already hold are dropped, and the rest, the summary and text, is saved in
+	 * a ReviewText record the edge links to, read by reviewText when needed.
+	 * @param vUser
+	 * @param vProduct
+	 * @param review
+	 * @return the edge
+	 */
 	public Edge createReview(Vertex vUser, Vertex vProduct, Map<String, Object> review){
+		long start = System.nanoTime();
 		Edge toProduct = graph.addEdge(null, vUser, vProduct, Constants.EDGE_REVIEWED);
+		ODocument text = null;
 		for (Map.Entry<String, Object> entry : review.entrySet()) {
 			String key = entry.getKey();
 			Object value = entry.getValue();
-			toProduct.setProperty(key, value);
+			if (EDGE_PROPERTIES.contains(key))
+				toProduct.setProperty(key, value);
+			else if (!VERTEX_PROPERTIES.contains(key) && value != null) {
+				if (text == null)
+					text = new ODocument(Constants.REVIEW_TEXT_CLASS);
+				text.field(key, value);
+			}
 		}
+		if (text != null) {
+			graph.getRawGraph().save(text);
+			toProduct.setProperty(Constants.REVIEW_TEXT, text);
+		}
+		/*
+		 * keep the degree of the product current, products
+		 * loaded before there was a count get it from the edges
+		 */
+		Number count = vProduct.getProperty(Constants.REVIEW_COUNT);
+		vProduct.setProperty(Constants.REVIEW_COUNT, count == null
+				? (int) ((OrientVertex) vProduct).countEdges(Direction.IN, Constants.EDGE_REVIEWED)
+				: count.intValue() + 1);
+		timed("finefoods.createReview", start, 0, 0);
+		for (ReviewListener listener : reviewListeners)
+			listener.reviewCreated(vUser, vProduct);
 		return toProduct;
 	}
 
+	/**
+	 * Whether the user already has this review of the product, the same
+	 * review sent again: a "reviewed" edge to it with the same time and score
+	 * @param vUser
+	 * @param vProduct
+	 * @param review as for createReview
+	 * @return
+	 */
+	public boolean hasReview(Vertex vUser, Vertex vProduct, Map<String, Object> review){
+		long start = System.nanoTime();
+		int edges = 0;
+		try {
+			for (Edge existing : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+				edges++;
+				if (((OrientEdge) existing).getInVertex().getIdentity().equals(((OrientVertex) vProduct).getIdentity())
+						&& sameValue(existing.getProperty("time"), review.get("time"))
+						&& sameValue(existing.getProperty("score"), review.get("score")))
+					return true;
+			}
+			return false;
+		} finally {
+			timed("finefoods.hasReview", start, 0, edges);
+		}
+	}
+
+	/*
+	 * numbers by value, as a long read back may be an int
+	 */
+	private static boolean sameValue(Object a, Object b){
+		if (a instanceof Number && b instanceof Number)
+			return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * The text of a review, loaded only now
+	 * @param review a "reviewed" edge
+	 * @return the properties of the review that are not on the edge, empty if
+	 *         it had none; read from the edge itself if LeanEdgeMigration has
+	 *         not moved them yet
+	 */
+	public Map<String, Object> reviewText(Edge review){
+		long start = System.nanoTime();
+		Map<String, Object> text = new HashMap<String, Object>();
+		OIdentifiable link = review.getProperty(Constants.REVIEW_TEXT);
+		if (link != null) {
+			ODocument record = link.getRecord();
+			for (String field : record.fieldNames())
+				text.put(field, record.field(field));
+		} else {
+			for (String key : review.getPropertyKeys()) {
+				if (!EDGE_PROPERTIES.contains(key) && !VERTEX_PROPERTIES.contains(key))
+					text.put(key, review.getProperty(key));
+			}
+		}
+		timed("finefoods.reviewText", start, 0, 0);
+		return text;
+	}
+
+	/**
+	 * Materialise a recommendation as "recommended" edges from the user to the
+	 * products, ranked, replacing those of the previous one, and the time it
+	 * was computed on the user
+	 * @param vUser
+	 * @param rec
+	 * @param computedAt
+	 */
+	public void saveRecommendation(Vertex vUser, Recommendation rec, long computedAt){
+		long start = System.nanoTime();
+		for (Edge previous : vUser.getEdges(Direction.OUT, Constants.EDGE_RECOMMENDED))
+			graph.removeEdge(previous);
+		int rank = 0;
+		for (RankedProduct product : rec.getRankedProducts()) {
+			Edge recommended = graph.addEdge(null, vUser, findProduct(product.getProductId()), Constants.EDGE_RECOMMENDED);
+			recommended.setProperty("rank", rank++);
+			recommended.setProperty("score", product.getScore());
+		}
+		vUser.setProperty(Constants.RECOMMENDED_AT, computedAt);
+		timed("finefoods.saveRecommendation", start, rank, 0);
+	}
+
+	/**
+	 * The recommendation saveRecommendation materialised for a user
+	 * @param vUser
+	 * @param notBefore the oldest computation time to accept
+	 * @return the recommendation, or null if none was materialised since
+	 */
+	public Recommendation materialisedRecommendation(Vertex vUser, long notBefore){
+		long start = System.nanoTime();
+		Number computedAt = vUser.getProperty(Constants.RECOMMENDED_AT);
+		if (computedAt == null || computedAt.longValue() < notBefore) {
+			timed("finefoods.materialisedRecommendation", start, 0, 0);
+			return null;
+		}
+		Set<String> reviewed = new HashSet<String>();
+		int edges = 0;
+		for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+			reviewed.add(productId(productKey(((OrientEdge) review).getInVertex())));
+			edges++;
+		}
+		List<RankedProduct> found = new ArrayList<RankedProduct>();
+		final List<Integer> ranks = new ArrayList<Integer>();
+		for (Edge recommended : vUser.getEdges(Direction.OUT, Constants.EDGE_RECOMMENDED)) {
+			Number rank = recommended.getProperty("rank");
+			Number score = recommended.getProperty("score");
+			String productId = recommended.getVertex(Direction.IN).getProperty(Constants.PRODUCT_ID);
+			found.add(new RankedProduct(productId, score.doubleValue()));
+			ranks.add(rank.intValue());
+			edges++;
+		}
+		/*
+		 * saveRecommendation numbers the products from 0, but edges
+		 * written another way may leave gaps, so sort by rank
+		 */
+		Integer[] order = new Integer[found.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(ranks.get(a), ranks.get(b));
+			}
+		});
+		List<RankedProduct> ranked = new ArrayList<RankedProduct>(order.length);
+		for (int i : order)
+			ranked.add(found.get(i));
+		Recommendation rec = new Recommendation((String) vUser.getProperty(Constants.USER_ID), reviewed);
+		Set<String> recommended = new LinkedHashSet<String>();
+		for (RankedProduct product : ranked)
+			recommended.add(product.getProductId());
+		rec.setRecommendedProducts(recommended);
+		rec.setRankedProducts(ranked);
+		timed("finefoods.materialisedRecommendation", start, ranked.size(), edges);
+		return rec;
+	}
+
 	public List<Vertex> productsForUser(Vertex vUser){
+		long start = System.nanoTime();
 		List<Vertex> products = new ArrayList<Vertex>();
 		Iterable<Edge> reviewEdges = vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED);
 		for (Edge review : reviewEdges){
 			Vertex vProduct = review.getVertex(Direction.IN);
 			products.add(vProduct);
 		}
+		timed("finefoods.productsForUser", start, products.size(), products.size());
 		return products;
 	}
 	public List<Vertex> usersForProduct(Vertex vProduct){
+		long start = System.nanoTime();
 		List<Vertex> users = new ArrayList<Vertex>();
 		Iterable<Edge> reviewEdges = vProduct.getEdges(Direction.IN, Constants.EDGE_REVIEWED);
 		for (Edge review : reviewEdges){
 			Vertex vUser = review.getVertex(Direction.OUT);
 			users.add(vUser);
 		}
+		timed("finefoods.usersForProduct", start, users.size(), users.size());
 		return users;
 	}
 
+	/**
+	 * The number of reviews of a product, kept by createReview
+	 * @param vProduct
+	 * @return
+	 */
+	public int reviewCount(Vertex vProduct){
+		Number count = vProduct.getProperty(Constants.REVIEW_COUNT);
+		if (count != null)
+			return count.intValue();
+		return (int) ((OrientVertex) vProduct).countEdges(Direction.IN, Constants.EDGE_REVIEWED);
+	}
+
+	/**
+	 * The users, other than vUser, that reviewed a product vUser reviewed,
+	 * each once
+	 * @param vUser
+	 * @return
+	 */
 	public List<Vertex> similarUsers(Vertex vUser){
-		
-		List<Vertex> users = new ArrayList<Vertex>();
-		List<Vertex> products = productsForUser(vUser);
-		for (Vertex product : products){
-			List<Vertex> similarUsers = usersForProduct(product);
-			for (Vertex  user : similarUsers){
-				users.add(user);
+		long start = System.nanoTime();
+		CoReviewers coReviewers = coReviewers(vUser);
+		List<Vertex> users = new ArrayList<Vertex>(coReviewers.size());
+		for (int i = 0; i < coReviewers.size(); i++)
+			users.add(graph.getVertex(coReviewers.user(i)));
+		timed("finefoods.similarUsers", start, users.size(), 0);
+		return users;
+	}
+
+	public CoReviewers coReviewers(Vertex vUser){
+		return coReviewers(vUser, HubPolicy.KEEP_ALL);
+	}
+
+	/**
+	 * The distinct users, other than vUser, that reviewed a product vUser
+	 * reviewed, with their overlap. Only the products are loaded, and of
+	 * hub products only the reviewers the policy allows are read.
+	 * @param vUser
+	 * @param hubPolicy
+	 * @return
+	 */
+	public CoReviewers coReviewers(Vertex vUser, HubPolicy hubPolicy){
+		return coReviewers(vUser, hubPolicy, Long.MAX_VALUE);
+	}
+
+	/**
+	 * The co-reviewers as far as they are read by the deadline
+	 * @param vUser
+	 * @param hubPolicy
+	 * @param deadline System.currentTimeMillis() after which no more products
+	 *        are read, the result is then truncated
+	 * @return
+	 */
+	public CoReviewers coReviewers(Vertex vUser, HubPolicy hubPolicy, long deadline){
+		long start = System.nanoTime();
+		CoReviewers coReviewers = new CoReviewers();
+		int edges = 0;
+		IntIntHashMap seenProducts = new IntIntHashMap();
+		Object self = vUser.getId();
+		for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)){
+			edges++;
+			OIdentifiable product = ((OrientEdge) review).getInVertex();
+			int key = productKey(product);
+			if (seenProducts.containsKey(key))
+				continue;
+			seenProducts.put(key, 1);
+			if (deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline){
+				coReviewers.setTruncated(true);
+				break;
+			}
+			ProductReviewers reviewers = reviewersOf(product, hubPolicy);
+			for (int i = 0; i < reviewers.size(); i++){
+				OIdentifiable coReviewer = reviewers.reviewer(i);
+				if (!coReviewer.getIdentity().equals(self))
+					coReviewers.add(coReviewer);
 			}
+			int reviewCount = reviewers.getReviewCount();
+			coReviewers.getFanOut().product(Math.max(reviewCount, reviewers.size()), reviewers.size(), hubPolicy.isHub(reviewCount));
 		}
-		return users;
+		timed("finefoods.coReviewers", start, 0, edges);
+		return coReviewers;
+	}
+
+	/**
+	 * The users that share the most MinHash buckets with vUser, instead of
+	 * every co-reviewer; nothing is read from the graph. The overlap of each
+	 * is 1, the index does not know it.
+	 * @param vUser
+	 * @param ratings the ratings of vUser, signed if the index does not know it
+	 * @param index
+	 * @param maxCandidates
+	 * @return
+	 */
+	public CoReviewers coReviewers(Vertex vUser, SparseVector ratings, MinHashIndex index, int maxCandidates){
+		long start = System.nanoTime();
+		CoReviewers coReviewers = new CoReviewers();
+		TopK candidates = index.candidates(userKey((OIdentifiable) vUser), ratings, maxCandidates);
+		for (int i = 0; i < candidates.size(); i++)
+			coReviewers.add(userIdentity(candidates.id(i)));
+		timed("finefoods.lshCandidates", start, 0, 0);
+		return coReviewers;
+	}
+
+	/**
+	 * The reviewers of a product the policy allows to read. Only the
+	 * product is loaded, the reviewers are read from the edges.
+	 * @param product the product vertex or its RID
+	 * @param hubPolicy
+	 * @return
+	 */
+	public ProductReviewers reviewersOf(OIdentifiable product, HubPolicy hubPolicy){
+		long start = System.nanoTime();
+		Vertex vProduct = graph.getVertex(product);
+		int reviewCount = reviewCount(vProduct);
+		int toRead = hubPolicy.reviewersToRead(reviewCount);
+		List<OIdentifiable> reviewers = new ArrayList<OIdentifiable>(Math.min(toRead, 1024));
+		if (toRead > 0) {
+			/*
+			 * a sample is the oldest reviews, the edges come in the
+			 * order they were added
+			 */
+			for (Edge review : vProduct.getEdges(Direction.IN, Constants.EDGE_REVIEWED)){
+				reviewers.add(((OrientEdge) review).getOutVertex().getIdentity());
+				if (reviewers.size() == toRead)
+					break;
+			}
+		}
+		timed("finefoods.reviewersOf", start, 1, reviewers.size());
+		return new ProductReviewers(reviewCount, reviewers.toArray(new OIdentifiable[reviewers.size()]));
+	}
+
+	/**
+	 * The rating vector of a user by RID, see makeVectorForUser
+	 * @param user the user vertex or its RID
+	 * @return
+	 */
+	public SparseVector vectorForUser(OIdentifiable user){
+		return makeVectorForUser(graph.getVertex(user));
+	}
+
+	/**
+	 * The RID of a user by its key, see userKey
+	 * @param userKey
+	 * @return
+	 */
+	public OIdentifiable userIdentity(int userKey){
+		if (userCluster < 0)
+			userCluster = graph.getRawGraph().getMetadata().getSchema().getClass(Constants.USER_CLASS).getDefaultClusterId();
+		return new ORecordId(userCluster, userKey);
+	}
+
+	/**
+	 * The id of a product by its key, see productKey
+	 * @param productKey
+	 * @return
+	 */
+	public String productId(int productKey){
+		if (dictionary != null) {
+			String productId = dictionary.productId(productKey);
+			if (productId != null)
+				return productId;
+		}
+		long start = System.nanoTime();
+		if (productCluster < 0)
+			productCluster = graph.getRawGraph().getMetadata().getSchema().getClass(Constants.PRODUCT_CLASS).getDefaultClusterId();
+		Vertex vProduct = graph.getVertex(new ORecordId(productCluster, productKey));
+		if (vProduct == null)
+			throw new ProductNotFound(String.valueOf(productKey));
+		timed("finefoods.productId", start, 1, 0);
+		String productId = vProduct.getProperty(Constants.PRODUCT_ID);
+		if (dictionary != null)
+			dictionary.addProduct(productKey, productId);
+		return productId;
 	}
-	
 }
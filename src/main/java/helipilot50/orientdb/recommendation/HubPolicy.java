@@ -0,0 +1,66 @@
+package helipilot50.orientdb.recommendation;
+
+/**
+ * What candidate generation does with hub products, the ones reviewed by more
+ * than threshold users: read all their reviewers (KEEP), none of them (SKIP),
+ * or only the first sampleSize (SAMPLE). Sampling always picks the same
+ * reviewers for a product, so recommendations stay repeatable, and bounds the
+ * reviews read per product of the user by max(threshold, sampleSize).
+ */
+public class HubPolicy {
+	public enum Mode { KEEP, SKIP, SAMPLE }
+
+	public static final HubPolicy KEEP_ALL = new HubPolicy(Mode.KEEP, Integer.MAX_VALUE, 0);
+
+	private final Mode mode;
+	private final int threshold;
+	private final int sampleSize;
+
+	public HubPolicy(Mode mode, int threshold, int sampleSize) {
+		super();
+		this.mode = mode;
+		this.threshold = threshold;
+		this.sampleSize = sampleSize;
+	}
+
+	/**
+	 * @param mode keep, skip or sample, in any case
+	 * @param threshold
+	 * @param sampleSize
+	 * @return
+	 */
+	public static HubPolicy parse(String mode, int threshold, int sampleSize) {
+		return new HubPolicy(Mode.valueOf(mode.trim().toUpperCase()), threshold, sampleSize);
+	}
+
+	public boolean isHub(int reviewCount) {
+		return mode != Mode.KEEP && reviewCount > threshold;
+	}
+
+	/**
+	 * @param reviewCount the number of reviews of a product
+	 * @return how many of its reviewers candidate generation reads
+	 */
+	public int reviewersToRead(int reviewCount) {
+		if (!isHub(reviewCount))
+			return reviewCount;
+		return mode == Mode.SKIP ? 0 : Math.min(sampleSize, reviewCount);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	@Override
+	public String toString() {
+		return mode + " above " + threshold + (mode == Mode.SAMPLE ? ", sample " + sampleSize : "");
+	}
+}
@@ -0,0 +1,204 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.index.OIndex;
+import com.orientechnologies.orient.core.index.OIndexKeyCursor;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+
+/**
+ * The userIds and productIds by key and the keys by id, where the key is the
+ * cluster position of the vertex, see FineFoodsService.productKey and userKey.
+ * The keys are dense ints that the database keeps, so the dictionary is read
+ * from the indexes rather than saved, and stays valid as long as the graph.
+ *
+ * Services sharing one decode the product keys of a recommendation to ids from
+ * it instead of loading the product vertices, and find users by key instead of
+ * through the index. Ids the dictionary does not hold yet are read from the
+ * graph and added by the service that read them; one added by another thread
+ * may not be seen at once, which costs a read, not a wrong answer.
+ */
+public class IdDictionary {
+	private final Ids users = new Ids();
+	private final Ids products = new Ids();
+
+	/**
+	 * Add every userId and productId with its key, from their indexes without
+	 * loading the vertices
+	 * @param graph
+	 * @return the number of ids added
+	 */
+	public long load(OrientBaseGraph graph) {
+		return load(graph, Constants.USER_CLASS, Constants.USER_ID, users)
+				+ load(graph, Constants.PRODUCT_CLASS, Constants.PRODUCT_ID, products);
+	}
+
+	private static long load(OrientBaseGraph graph, String className, String property, Ids ids) {
+		OIndex<?> index = graph.getRawGraph().getMetadata().getIndexManager()
+				.getIndex(SchemaManager.indexName(className, property));
+		if (index == null)
+			throw new IllegalStateException("No index on " + className + "." + property);
+		long loaded = 0;
+		/*
+		 * a hash index has no entry cursor, so each key's
+		 * RID is read from the index by the key
+		 */
+		OIndexKeyCursor keys = index.keyCursor();
+		for (Object key = keys.next(1000); key != null; key = keys.next(1000)) {
+			Object rid = index.get(key);
+			if (rid instanceof OIdentifiable) {
+				ids.put((int) ((OIdentifiable) rid).getIdentity().getClusterPosition(), key.toString());
+				loaded++;
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * @param productKey
+	 * @return the productId, or null if it is not in the dictionary
+	 */
+	public String productId(int productKey) {
+		return products.id(productKey);
+	}
+
+	/**
+	 * @param productId
+	 * @return the product key, or -1 if it is not in the dictionary
+	 */
+	public int productKey(String productId) {
+		return products.key(productId);
+	}
+
+	public void addProduct(int productKey, String productId) {
+		products.put(productKey, productId);
+	}
+
+	/**
+	 * @param userKey
+	 * @return the userId, or null if it is not in the dictionary
+	 */
+	public String userId(int userKey) {
+		return users.id(userKey);
+	}
+
+	/**
+	 * @param userId
+	 * @return the user key, or -1 if it is not in the dictionary
+	 */
+	public int userKey(String userId) {
+		return users.key(userId);
+	}
+
+	public void addUser(int userKey, String userId) {
+		users.put(userKey, userId);
+	}
+
+	public int userCount() {
+		return users.keys.size();
+	}
+
+	public int productCount() {
+		return products.keys.size();
+	}
+
+	/**
+	 * The productIds of product keys, decoded when read, as a set that holds
+	 * an int per product where a HashSet holds an entry and a string
+	 * @param productKeys sorted ascending, duplicate free, not copied
+	 * @return
+	 * @throws IllegalArgumentException if a key is not in the dictionary, so
+	 *         the set cannot fail when it is read later
+	 */
+	public ProductIds productIds(int[] productKeys) {
+		for (int key : productKeys) {
+			if (products.id(key) == null)
+				throw new IllegalArgumentException("No productId for product key " + key);
+		}
+		return new ProductIds(productKeys);
+	}
+
+	/**
+	 * A read only set of productIds kept as their keys
+	 */
+	public final class ProductIds extends AbstractSet<String> {
+		private final int[] keys;
+
+		private ProductIds(int[] keys) {
+			this.keys = keys;
+		}
+
+		@Override
+		public int size() {
+			return keys.length;
+		}
+
+		@Override
+		public boolean contains(Object productId) {
+			if (!(productId instanceof String))
+				return false;
+			int key = products.key((String) productId);
+			return key >= 0 && Arrays.binarySearch(keys, key) >= 0;
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			return new Iterator<String>() {
+				private int next;
+
+				@Override
+				public boolean hasNext() {
+					return next < keys.length;
+				}
+
+				@Override
+				public String next() {
+					if (next == keys.length)
+						throw new NoSuchElementException();
+					return products.id(keys[next++]);
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/*
+	 * ids by key in an array that is replaced when it grows, and
+	 * keys by id; a racing reader sees an id or null, both safe
+	 */
+	private static final class Ids {
+		private volatile String[] ids = new String[1024];
+		private final ConcurrentMap<String, Integer> keys = new ConcurrentHashMap<String, Integer>();
+
+		String id(int key) {
+			String[] current = ids;
+			return key >= 0 && key < current.length ? current[key] : null;
+		}
+
+		int key(String id) {
+			Integer key = keys.get(id);
+			return key == null ? -1 : key;
+		}
+
+		synchronized void put(int key, String id) {
+			String[] current = ids;
+			if (key >= current.length) {
+				current = Arrays.copyOf(current, Math.max(key + 1, current.length * 2));
+				current[key] = id;
+				ids = current;
+			} else
+				current[key] = id;
+			keys.put(id, key);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.orientechnologies.orient.core.index.OIndex;
+import com.orientechnologies.orient.core.index.OIndexKeyCursor;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+
+import helipilot50.orientdb.recommendation.util.BloomFilter;
+
+/**
+ * Bloom filters of the userIds and productIds in the graph, so a
+ * FineFoodsService answers a lookup of an id that is not there without reading
+ * the index. Services sharing one add the users and products they create to it.
+ *
+ * Until load completes every id might be known, so lookups read the graph as
+ * without filters; ids added meanwhile are kept. Ids written to the graph by
+ * anything that does not share the filters, another process for one, are not
+ * in them and are not found until new filters are loaded. Filters being
+ * replaced pass the ids added to them on to their successor, so services that
+ * still hold them do not lose an id to the reload.
+ */
+public class KnownIds {
+	private final BloomFilter users;
+	private final BloomFilter products;
+	private volatile boolean loaded;
+	private volatile KnownIds successor;
+	final AtomicLong usersRejected = new AtomicLong();
+	final AtomicLong productsRejected = new AtomicLong();
+
+	/**
+	 * @param expectedUsers
+	 * @param expectedProducts
+	 * @param falsePositiveRate the share of unknown ids that read the graph
+	 *        anyway, at the expected sizes
+	 */
+	public KnownIds(long expectedUsers, long expectedProducts, double falsePositiveRate) {
+		super();
+		users = new BloomFilter(expectedUsers, falsePositiveRate);
+		products = new BloomFilter(expectedProducts, falsePositiveRate);
+	}
+
+	/**
+	 * Put every userId and productId of the graph, from the keys of their
+	 * indexes without loading the vertices
+	 * @param graph
+	 * @return the number of ids put
+	 */
+	public long load(OrientBaseGraph graph) {
+		long ids = load(graph, Constants.USER_CLASS, Constants.USER_ID, users)
+				+ load(graph, Constants.PRODUCT_CLASS, Constants.PRODUCT_ID, products);
+		loaded = true;
+		return ids;
+	}
+
+	private static long load(OrientBaseGraph graph, String className, String property, BloomFilter filter) {
+		OIndex<?> index = graph.getRawGraph().getMetadata().getIndexManager()
+				.getIndex(SchemaManager.indexName(className, property));
+		if (index == null)
+			throw new IllegalStateException("No index on " + className + "." + property);
+		long ids = 0;
+		OIndexKeyCursor keys = index.keyCursor();
+		for (Object key = keys.next(1000); key != null; key = keys.next(1000)) {
+			filter.put(key.toString());
+			ids++;
+		}
+		return ids;
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @param userId
+	 * @return false only if there is no such user
+	 */
+	public boolean mightBeUser(String userId) {
+		return !loaded || users.mightContain(userId);
+	}
+
+	/**
+	 * @param productId
+	 * @return false only if there is no such product
+	 */
+	public boolean mightBeProduct(String productId) {
+		return !loaded || products.mightContain(productId);
+	}
+
+	public void addUser(String userId) {
+		users.put(userId);
+		KnownIds next = successor;
+		if (next != null)
+			next.addUser(userId);
+	}
+
+	public void addProduct(String productId) {
+		products.put(productId);
+		KnownIds next = successor;
+		if (next != null)
+			next.addProduct(productId);
+	}
+
+	/**
+	 * @param successor the filters replacing these, to add the ids added to
+	 *        these from now on to
+	 */
+	public void replaceWith(KnownIds successor) {
+		this.successor = successor;
+	}
+
+	/**
+	 * @return the lookups of users answered without reading the graph
+	 */
+	public long getUsersRejected() {
+		return usersRejected.get();
+	}
+
+	public long getProductsRejected() {
+		return productsRejected.get();
+	}
+
+	public BloomFilter getUsers() {
+		return users;
+	}
+
+	public BloomFilter getProducts() {
+		return products;
+	}
+}
@@ -0,0 +1,83 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.concurrent.Callable;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+
+/**
+ * A FineFoodsService that reads the reviewers of products, the rating vectors
+ * of users and the ids of products through a ReviewMemo, so each is read from
+ * the graph once for all the services sharing the memo.
+ *
+ * Two workers missing the same entry at the same time read it once: the second
+ * waits for the first.
+ */
+public class MemoizedFineFoodsService extends FineFoodsService {
+	private final ReviewMemo memo;
+
+	public MemoizedFineFoodsService(OrientBaseGraph graph, ReviewMemo memo) {
+		super(graph);
+		this.memo = memo;
+	}
+
+	/**
+	 * @param product
+	 * @param hubPolicy must be the policy of the memo
+	 */
+	@Override
+	public ProductReviewers reviewersOf(final OIdentifiable product, final HubPolicy hubPolicy) {
+		if (hubPolicy != memo.getHubPolicy())
+			throw new IllegalArgumentException("The memo holds reviewers read under " + memo.getHubPolicy());
+		final Integer key = productKey(product);
+		ProductReviewers reviewers = memo.reviewers.get(key);
+		if (reviewers != null) {
+			memo.hits.incrementAndGet();
+			return reviewers;
+		}
+		memo.misses.incrementAndGet();
+		return memo.reviewerReads.execute(key, new Callable<ProductReviewers>() {
+			@Override
+			public ProductReviewers call() {
+				ProductReviewers reviewers = memo.reviewers.get(key);
+				if (reviewers == null) {
+					reviewers = MemoizedFineFoodsService.super.reviewersOf(product, hubPolicy);
+					memo.reviewers.put(key, reviewers);
+				}
+				return reviewers;
+			}
+		});
+	}
+
+	@Override
+	public SparseVector vectorForUser(final OIdentifiable user) {
+		final Integer key = userKey(user);
+		SparseVector vector = memo.vectors.get(key);
+		if (vector != null) {
+			memo.hits.incrementAndGet();
+			return vector;
+		}
+		memo.misses.incrementAndGet();
+		return memo.vectorReads.execute(key, new Callable<SparseVector>() {
+			@Override
+			public SparseVector call() {
+				SparseVector vector = memo.vectors.get(key);
+				if (vector == null) {
+					vector = MemoizedFineFoodsService.super.vectorForUser(user);
+					memo.vectors.put(key, vector);
+				}
+				return vector;
+			}
+		});
+	}
+
+	@Override
+	public String productId(int productKey) {
+		String productId = memo.productIds.get(productKey);
+		if (productId == null) {
+			productId = super.productId(productKey);
+			memo.productIds.putIfAbsent(productKey, productId);
+		}
+		return productId;
+	}
+}
@@ -1,5 +1,13 @@
 package helipilot50.orientdb.recommendation;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * No product has the id; without a stack trace and answered with 404, like
+ * UserNotFound.
+ */
+@ResponseStatus(HttpStatus.NOT_FOUND)
 public class ProductNotFound extends RuntimeException {
 	/**
 	 * 
@@ -8,18 +16,18 @@ public class ProductNotFound extends RuntimeException {
 	private String productId;
 
 	public ProductNotFound() {
-		super();
+		super(null, null, false, false);
 	}
 
 
 	public ProductNotFound(String productId, Throwable cause) {
-		super("Product not found: " + productId, cause);
+		super("Product not found: " + productId, cause, false, false);
 		this.productId = productId;
 	}
 
 
 	public ProductNotFound(String productId) {
-		super("Product not found: " + productId);
+		super("Product not found: " + productId, null, false, false);
 		this.productId = productId;
 	}
 
@@ -0,0 +1,40 @@
+package helipilot50.orientdb.recommendation;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+
+/**
+ * The reviewers of a product that candidate generation reads, as allowed by a
+ * HubPolicy, and the number of reviews the product has in all.
+ *
+ * Reviewers are held by RID, not loaded, so the same instance can be shared
+ * between graphs.
+ */
+public class ProductReviewers {
+	private final int reviewCount;
+	private final OIdentifiable[] reviewers;
+
+	public ProductReviewers(int reviewCount, OIdentifiable[] reviewers) {
+		super();
+		this.reviewCount = reviewCount;
+		this.reviewers = reviewers;
+	}
+
+	public int getReviewCount() {
+		return reviewCount;
+	}
+
+	/**
+	 * @return how many reviewers were read
+	 */
+	public int size() {
+		return reviewers.length;
+	}
+
+	/**
+	 * @param i 0 until size
+	 * @return the RID of the i-th reviewer, in the order the reviews were added
+	 */
+	public OIdentifiable reviewer(int i) {
+		return reviewers[i];
+	}
+}
@@ -0,0 +1,25 @@
+package helipilot50.orientdb.recommendation;
+
+public class RankedProduct {
+	String productId;
+	double score;
+
+	public RankedProduct(String productId, double score) {
+		super();
+		this.productId = productId;
+		this.score = score;
+	}
+
+	public String getProductId() {
+		return productId;
+	}
+
+	public double getScore() {
+		return score;
+	}
+
+	@Override
+	public String toString() {
+		return productId + "=" + score;
+	}
+}
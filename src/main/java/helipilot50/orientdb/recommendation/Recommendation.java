@@ -1,12 +1,16 @@
 package helipilot50.orientdb.recommendation;
 
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class Recommendation {
 	String userId;
 	Set<String> reviewedProducts;
 	Set<String> recommendedProducts;
+	List<RankedProduct> rankedProducts;
+	FanOut fanOut;
+	boolean partial;
 	public Set<String> getReviewedProducts() {
 		return reviewedProducts;
 	}
@@ -19,6 +23,34 @@ public class Recommendation {
 	public void setRecommendedProducts(Set<String> recommendedProducts) {
 		this.recommendedProducts = recommendedProducts;
 	}
+	/**
+	 * @return the recommended products with their scores, best first
+	 */
+	public List<RankedProduct> getRankedProducts() {
+		return rankedProducts;
+	}
+	public void setRankedProducts(List<RankedProduct> rankedProducts) {
+		this.rankedProducts = rankedProducts;
+	}
+	/**
+	 * @return how many candidates were considered, and how many hub products cut
+	 */
+	public FanOut getFanOut() {
+		return fanOut;
+	}
+	public void setFanOut(FanOut fanOut) {
+		this.fanOut = fanOut;
+	}
+	/**
+	 * @return true if the deadline cut the search short, so the recommendation
+	 *         is ranked from only part of the candidates
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+	public void setPartial(boolean partial) {
+		this.partial = partial;
+	}
 	
 	public String getUserId() {
 		return userId;
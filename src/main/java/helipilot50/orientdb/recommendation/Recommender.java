@@ -0,0 +1,498 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+
+import helipilot50.orientdb.recommendation.cooccurrence.CoOccurrenceIndex;
+import helipilot50.orientdb.recommendation.lsh.MinHashIndex;
+import helipilot50.orientdb.recommendation.metrics.Metrics;
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * User based collaborative filtering over the review graph.
+ *
+ * The co-reviewers of the user are collected once each, scored once each by
+ * cosine similarity of their ratings, and the k most similar of those that
+ * have something to recommend are kept. Every
+ * product those neighbours reviewed and the user did not scores the sum of
+ * similarity times rating over the neighbours that reviewed it, so the work
+ * grows with the number of distinct co-reviewers, not with their reviews.
+ * With a candidate index the co-reviewers are replaced by the users most
+ * likely to share products with the user, at most a fixed number of them.
+ * Many co-reviewers can be scored in parallel, see setParallelScoring.
+ *
+ * With a co-occurrence index no users are compared at all: the products
+ * reviewed together with the user's score from the index, see setCoOccurrence.
+ */
+public class Recommender {
+	public static final int DEFAULT_NEIGHBOURS = 20;
+	public static final int DEFAULT_MAX_RESULTS = 100;
+
+	private final FineFoodsService service;
+	private final int neighbours;
+	private final int maxResults;
+	private final HubPolicy hubPolicy;
+	private Metrics metrics;
+	private MinHashIndex candidateIndex;
+	private CoOccurrenceIndex coOccurrence;
+	private int maxCandidates;
+	private ForkJoinPool scoringPool;
+	private int parallelThreshold;
+	private ServiceSessions scoringSessions;
+
+	public Recommender(FineFoodsService service) {
+		this(service, DEFAULT_NEIGHBOURS, DEFAULT_MAX_RESULTS, HubPolicy.KEEP_ALL);
+	}
+
+	/**
+	 * @param service
+	 * @param neighbours how many of the most similar users to recommend from
+	 * @param maxResults how many products to recommend at most
+	 * @param hubPolicy which reviewers of hub products are candidates
+	 */
+	public Recommender(FineFoodsService service, int neighbours, int maxResults, HubPolicy hubPolicy) {
+		super();
+		this.service = service;
+		this.neighbours = neighbours;
+		this.maxResults = maxResults;
+		this.hubPolicy = hubPolicy;
+	}
+
+	/**
+	 * @param metrics where to time the stages of a recommendation, as
+	 *        "recommendation.stage." and the stage, and record what each
+	 *        recommendation read and scored; none if null
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param candidateIndex where to find the users to compare with, instead of
+	 *        walking every co-reviewer; the walk if null
+	 * @param maxCandidates how many users to take from the index at most
+	 */
+	public void setCandidateIndex(MinHashIndex candidateIndex, int maxCandidates) {
+		this.candidateIndex = candidateIndex;
+		this.maxCandidates = maxCandidates;
+	}
+
+	/**
+	 * Rank the products reviewed by the same users as the user's products,
+	 * from the counts kept review by review, so a review shows in the next
+	 * recommendation without a rebuild. Each of the user's products votes for
+	 * the others in proportion to the share of its co-occurrences they have,
+	 * weighted by the user's rating over the norm of the user's ratings.
+	 * @param coOccurrence the index to rank from instead of the neighbours;
+	 *        the neighbours if null
+	 */
+	public void setCoOccurrence(CoOccurrenceIndex coOccurrence) {
+		this.coOccurrence = coOccurrence;
+	}
+
+	/**
+	 * Score the candidates of a recommendation on a pool, in chunks each read
+	 * through a service of its own, once there are enough of them to repay the
+	 * forking; the neighbours found are the same as on one thread.
+	 * @param scoringPool where to score, on the calling thread only if null
+	 * @param parallelThreshold the fewest candidates to score on the pool
+	 * @param scoringSessions the services of the pool threads, each on a graph
+	 *        of its own and released once its chunk is scored; a chunk for
+	 *        which none is free is scored by the caller once the others are
+	 */
+	public void setParallelScoring(ForkJoinPool scoringPool, int parallelThreshold, ServiceSessions scoringSessions) {
+		this.scoringPool = scoringPool;
+		this.parallelThreshold = parallelThreshold;
+		this.scoringSessions = scoringSessions;
+	}
+
+	/**
+	 * @param userId
+	 * @return the products ranked for the user
+	 * @throws UserNotFound
+	 */
+	public Recommendation recommend(String userId) {
+		return recommend(userId, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param userId
+	 * @param deadline System.currentTimeMillis() by which to stop looking for
+	 *        neighbours and rank from those found so far
+	 * @return the products ranked for the user, partial if the deadline hit
+	 * @throws UserNotFound
+	 */
+	public Recommendation recommend(String userId, long deadline) {
+		long start = System.nanoTime();
+		Vertex vUser = service.findUserById(userId);
+		stage("recommendation.stage.userLookup", start);
+		return recommend(vUser, deadline);
+	}
+
+	public Recommendation recommend(Vertex vUser) {
+		return recommend(vUser, Long.MAX_VALUE);
+	}
+
+	public Recommendation recommend(Vertex vUser, long deadline) {
+		long verticesBefore = service.getVerticesLoaded();
+		long edgesBefore = service.getEdgesRead();
+		long start = System.nanoTime();
+		String userId = vUser.getProperty(Constants.USER_ID);
+		Recommendation rec = new Recommendation(userId, reviewedProducts(vUser));
+		SparseVector userVector = service.vectorForUser((OIdentifiable) vUser);
+		start = stage("recommendation.stage.userRatings", start);
+		if (coOccurrence != null)
+			return recommendCoOccurring(rec, FineFoodsService.userKey((OIdentifiable) vUser), userVector, start);
+		/*
+		 * score each distinct co-reviewer once, keep the best k of
+		 * those that reviewed something the user has not
+		 */
+		CoReviewers candidates = candidateIndex != null
+				? service.coReviewers(vUser, userVector, candidateIndex, maxCandidates)
+				: service.coReviewers(vUser, hubPolicy, deadline);
+		rec.setFanOut(candidates.getFanOut());
+		rec.setPartial(candidates.isTruncated());
+		start = stage("recommendation.stage.candidates", start);
+		SparseVector[] vectors = new SparseVector[candidates.size()];
+		Scores scores = scoringPool != null && candidates.size() >= parallelThreshold
+				? scoringPool.invoke(new ScoringTask(candidates, 0, candidates.size(), userVector, vectors, deadline,
+						Thread.currentThread(), chunkSize(candidates.size())))
+				: score(service, candidates, 0, candidates.size(), userVector, vectors, deadline);
+		/*
+		 * the chunks no session was free for, on the caller's
+		 */
+		for (int d = 0; d < scores.deferred.size(); d += 2) {
+			scores.merge(score(service, candidates, scores.deferred.get(d), scores.deferred.get(d + 1),
+					userVector, vectors, deadline));
+			if (metrics != null)
+				metrics.increment("recommendation.scoring.deferred");
+		}
+		if (scores.partial)
+			rec.setPartial(true);
+		TopK nearest = scores.nearest;
+		nearest.sort();
+		if (metrics != null) {
+			/*
+			 * the workers' time is summed over them, so split the
+			 * elapsed time in the same proportion
+			 */
+			long elapsed = System.nanoTime() - start;
+			long vectorNanos = scores.nanos == 0 ? 0 : (long) (elapsed * ((double) scores.vectorNanos / scores.nanos));
+			metrics.timer("recommendation.stage.vectors").record(vectorNanos);
+			metrics.timer("recommendation.stage.scoring").record(elapsed - vectorNanos);
+		}
+		start = System.nanoTime();
+		/*
+		 * similarity weighted votes for the products the user has not
+		 * reviewed, one vote per neighbour with the neighbour's average
+		 * score if the neighbour reviewed the product more than once
+		 */
+		IntIntHashMap productSlots = new IntIntHashMap();
+		int[] products = new int[16];
+		double[] votes = new double[16];
+		int size = 0;
+		for (int n = 0; n < nearest.size(); n++) {
+			SparseVector neighbourVector = vectors[nearest.id(n)];
+			double similarity = nearest.score(n);
+			for (int i = 0; i < neighbourVector.size(); i++) {
+				int key = neighbourVector.id(i);
+				if (userVector.contains(key))
+					continue;
+				int slot = productSlots.putIfAbsent(key, size);
+				if (slot == size) {
+					if (size == products.length) {
+						products = Arrays.copyOf(products, size * 2);
+						votes = Arrays.copyOf(votes, size * 2);
+					}
+					products[size++] = key;
+				}
+				votes[slot] += similarity * neighbourVector.score(i);
+			}
+		}
+		start = stage("recommendation.stage.voting", start);
+		int recommended = rank(rec, products, votes, size);
+		stage("recommendation.stage.ranking", start);
+		if (metrics != null) {
+			metrics.record("recommendation.candidates", candidates.size());
+			metrics.record("recommendation.scored", scores.scored);
+			metrics.record("recommendation.recommended", recommended);
+			metrics.record("recommendation.vertices", service.getVerticesLoaded() - verticesBefore + scores.vertices);
+			metrics.record("recommendation.edges", service.getEdgesRead() - edgesBefore + scores.edges);
+		}
+		return rec;
+	}
+
+	/*
+	 * votes from the co-occurrence index for the products the user
+	 * has not reviewed; the norm is the graph's for a user the index
+	 * has not counted yet
+	 */
+	private Recommendation recommendCoOccurring(Recommendation rec, int userKey, SparseVector userVector, long start) {
+		double norm = coOccurrence.userNorm(userKey);
+		if (norm == 0)
+			norm = userVector.magnitude();
+		IntIntHashMap productSlots = new IntIntHashMap();
+		int[] products = new int[16];
+		double[] votes = new double[16];
+		int size = 0;
+		int pairs = 0;
+		for (int i = 0; i < userVector.size() && norm > 0; i++) {
+			IntIntHashMap counts = coOccurrence.coOccurring(userVector.id(i));
+			int[] others = counts.keys();
+			long total = 0;
+			for (int other : others)
+				total += counts.get(other, 0);
+			if (total == 0)
+				continue;
+			pairs += others.length;
+			double weight = userVector.score(i) / norm / total;
+			for (int key : others) {
+				if (userVector.contains(key))
+					continue;
+				int slot = productSlots.putIfAbsent(key, size);
+				if (slot == size) {
+					if (size == products.length) {
+						products = Arrays.copyOf(products, size * 2);
+						votes = Arrays.copyOf(votes, size * 2);
+					}
+					products[size++] = key;
+				}
+				votes[slot] += weight * counts.get(key, 0);
+			}
+		}
+		start = stage("recommendation.stage.voting", start);
+		int recommended = rank(rec, products, votes, size);
+		stage("recommendation.stage.ranking", start);
+		if (metrics != null) {
+			metrics.record("recommendation.coOccurring", pairs);
+			metrics.record("recommendation.recommended", recommended);
+		}
+		return rec;
+	}
+
+	/*
+	 * the best voted products into the recommendation, ranked by
+	 * product key on a tie, so ties go to the older product
+	 */
+	private int rank(Recommendation rec, int[] products, double[] votes, int size) {
+		TopK ranking = new TopK(maxResults);
+		for (int slot = 0; slot < size; slot++)
+			ranking.offer(products[slot], votes[slot]);
+		ranking.sort();
+
+		Set<String> recommended = new LinkedHashSet<String>();
+		List<RankedProduct> ranked = new ArrayList<RankedProduct>(ranking.size());
+		for (int r = 0; r < ranking.size(); r++) {
+			String productId = service.productId(ranking.id(r));
+			recommended.add(productId);
+			ranked.add(new RankedProduct(productId, ranking.score(r)));
+		}
+		rec.setRecommendedProducts(recommended);
+		rec.setRankedProducts(ranked);
+		return ranked.size();
+	}
+
+	/*
+	 * time a stage that began at start, and return the time it ended
+	 */
+	private long stage(String name, long start) {
+		long end = System.nanoTime();
+		if (metrics != null)
+			metrics.timer(name).record(end - start);
+		return end;
+	}
+
+	/*
+	 * read and score candidates from until to with the service given,
+	 * keeping the vectors of those similar to the user
+	 */
+	private Scores score(FineFoodsService service, CoReviewers candidates, int from, int to,
+			SparseVector userVector, SparseVector[] vectors, long deadline) {
+		long start = System.nanoTime();
+		Scores scores = new Scores(new TopK(neighbours));
+		for (int i = from; i < to; i++) {
+			/*
+			 * past the deadline, rank from what was found so far,
+			 * but from no fewer than the first 64 candidates
+			 */
+			if (i > from && ((i - from) & 63) == 0 && deadline != Long.MAX_VALUE && System.currentTimeMillis() > deadline) {
+				scores.partial = true;
+				break;
+			}
+			long vectorStart = System.nanoTime();
+			SparseVector candidateVector = service.vectorForUser(candidates.user(i));
+			scores.vectorNanos += System.nanoTime() - vectorStart;
+			if (!reviewedOthers(candidateVector, userVector))
+				continue;
+			scores.scored++;
+			double similarity = userVector.cosine(candidateVector);
+			if (similarity > 0) {
+				scores.nearest.offer(i, similarity);
+				vectors[i] = candidateVector;
+			}
+		}
+		scores.nanos = System.nanoTime() - start;
+		return scores;
+	}
+
+	/*
+	 * about four chunks per worker, so a slow one can be
+	 * balanced by the others, and none smaller than 64
+	 */
+	private int chunkSize(int candidates) {
+		return Math.max(64, candidates / (4 * scoringPool.getParallelism()));
+	}
+
+	/*
+	 * what scoring a range of the candidates found
+	 */
+	private static class Scores {
+		final TopK nearest;
+		int scored;
+		long nanos;
+		long vectorNanos;
+		long vertices;
+		long edges;
+		boolean partial;
+		/*
+		 * from and to of the ranges left to the caller
+		 */
+		final List<Integer> deferred = new ArrayList<Integer>(0);
+
+		Scores(TopK nearest) {
+			this.nearest = nearest;
+		}
+
+		/*
+		 * the k best of both are the k best of their union, whatever
+		 * order the ranges completed in, as TopK breaks ties by id
+		 */
+		Scores merge(Scores other) {
+			TopK best = other.nearest.sort();
+			for (int n = 0; n < best.size(); n++)
+				nearest.offer(best.id(n), best.score(n));
+			scored += other.scored;
+			nanos += other.nanos;
+			vectorNanos += other.vectorNanos;
+			vertices += other.vertices;
+			edges += other.edges;
+			partial |= other.partial;
+			deferred.addAll(other.deferred);
+			return this;
+		}
+	}
+
+	/*
+	 * scores a range of the candidates, split in halves down to chunkSize;
+	 * a chunk run by a pool thread reads through a service of its own, one
+	 * run by the caller through the caller's, as a thread has one session;
+	 * a pool thread that finds no service free leaves its chunk to the caller
+	 * rather than wait for one, as the caller holds a session already
+	 */
+	private class ScoringTask extends RecursiveTask<Scores> {
+		private static final long serialVersionUID = 1L;
+		private final CoReviewers candidates;
+		private final int from;
+		private final int to;
+		private final SparseVector userVector;
+		private final SparseVector[] vectors;
+		private final long deadline;
+		private final Thread caller;
+		private final int chunkSize;
+
+		ScoringTask(CoReviewers candidates, int from, int to, SparseVector userVector, SparseVector[] vectors,
+				long deadline, Thread caller, int chunkSize) {
+			this.candidates = candidates;
+			this.from = from;
+			this.to = to;
+			this.userVector = userVector;
+			this.vectors = vectors;
+			this.deadline = deadline;
+			this.caller = caller;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		protected Scores compute() {
+			if (to - from > chunkSize) {
+				int middle = (from + to) >>> 1;
+				ScoringTask second = new ScoringTask(candidates, middle, to, userVector, vectors, deadline, caller, chunkSize);
+				second.fork();
+				Scores first = new ScoringTask(candidates, from, middle, userVector, vectors, deadline, caller, chunkSize).compute();
+				return first.merge(second.join());
+			}
+			if (Thread.currentThread() == caller)
+				return score(service, candidates, from, to, userVector, vectors, deadline);
+			FineFoodsService worker = scoringSessions.acquire();
+			if (worker == null) {
+				Scores left = new Scores(new TopK(neighbours));
+				left.deferred.add(from);
+				left.deferred.add(to);
+				return left;
+			}
+			try {
+				long verticesBefore = worker.getVerticesLoaded();
+				long edgesBefore = worker.getEdgesRead();
+				Scores scores = score(worker, candidates, from, to, userVector, vectors, deadline);
+				scores.vertices = worker.getVerticesLoaded() - verticesBefore;
+				scores.edges = worker.getEdgesRead() - edgesBefore;
+				return scores;
+			} finally {
+				scoringSessions.release(worker);
+			}
+		}
+	}
+
+	private static boolean reviewedOthers(SparseVector candidate, SparseVector user) {
+		for (int i = 0; i < candidate.size(); i++) {
+			if (!user.contains(candidate.id(i)))
+				return true;
+		}
+		return false;
+	}
+
+	/*
+	 * with a dictionary, kept as the product keys and decoded
+	 * when the recommendation is written out
+	 */
+	private Set<String> reviewedProducts(Vertex vUser) {
+		IdDictionary dictionary = service.getIdDictionary();
+		if (dictionary == null) {
+			Set<String> reviewed = new HashSet<String>();
+			for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED))
+				reviewed.add(service.productId(FineFoodsService.productKey(((OrientEdge) review).getInVertex())));
+			return reviewed;
+		}
+		int[] keys = new int[16];
+		int size = 0;
+		for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+			if (size == keys.length)
+				keys = Arrays.copyOf(keys, size * 2);
+			keys[size] = FineFoodsService.productKey(((OrientEdge) review).getInVertex());
+			/*
+			 * puts a product read from the graph in the dictionary
+			 */
+			service.productId(keys[size++]);
+		}
+		Arrays.sort(keys, 0, size);
+		int distinct = 0;
+		for (int i = 0; i < size; i++) {
+			if (distinct == 0 || keys[i] != keys[distinct - 1])
+				keys[distinct++] = keys[i];
+		}
+		return dictionary.productIds(Arrays.copyOf(keys, distinct));
+	}
+}
@@ -0,0 +1,18 @@
+package helipilot50.orientdb.recommendation;
+
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Told by FineFoodsService about every review it adds to the graph
+ */
+public interface ReviewListener {
+
+	/**
+	 * Called after the "reviewed" edge from the user to the product is added,
+	 * on the thread that added it and before any transaction is committed;
+	 * for the reviews ReviewIngester writes, once their batch has committed
+	 * @param vUser
+	 * @param vProduct
+	 */
+	void reviewCreated(Vertex vUser, Vertex vProduct);
+}
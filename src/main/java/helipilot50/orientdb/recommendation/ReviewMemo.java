@@ -0,0 +1,60 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import helipilot50.orientdb.recommendation.util.SingleFlight;
+
+/**
+ * What a batch of recommendations reads from the graph more than once: the
+ * reviewers of products, the rating vectors of users and the ids of products,
+ * by key. Nothing in it refers to a graph, so the workers of a batch, each with
+ * a graph of its own, share one through MemoizedFineFoodsService.
+ *
+ * A worker missing an entry another worker is reading waits for that read
+ * instead of repeating it.
+ *
+ * A memo lives as long as its batch and is not told about new reviews; it holds
+ * the reviewers read under one HubPolicy.
+ */
+public class ReviewMemo {
+	private final HubPolicy hubPolicy;
+	final ConcurrentMap<Integer, ProductReviewers> reviewers = new ConcurrentHashMap<Integer, ProductReviewers>();
+	final ConcurrentMap<Integer, SparseVector> vectors = new ConcurrentHashMap<Integer, SparseVector>();
+	final ConcurrentMap<Integer, String> productIds = new ConcurrentHashMap<Integer, String>();
+	final SingleFlight<Integer, ProductReviewers> reviewerReads = new SingleFlight<Integer, ProductReviewers>();
+	final SingleFlight<Integer, SparseVector> vectorReads = new SingleFlight<Integer, SparseVector>();
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+
+	public ReviewMemo(HubPolicy hubPolicy) {
+		super();
+		this.hubPolicy = hubPolicy;
+	}
+
+	public HubPolicy getHubPolicy() {
+		return hubPolicy;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the misses that waited for another worker's read
+	 */
+	public long getShared() {
+		return reviewerReads.getShared() + vectorReads.getShared();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d products, %d users, %d hits, %d misses, %d shared",
+				reviewers.size(), vectors.size(), hits.get(), misses.get(), getShared());
+	}
+}
@@ -0,0 +1,136 @@
+package helipilot50.orientdb.recommendation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientElementType;
+
+/**
+ * Creates the classes and indexes that FineFoodsService relies on.
+ *
+ * Every step checks what is already there first, so it is safe to run at each
+ * start of the service and the importers. Schema changes cannot run inside a
+ * transaction, so pass a non transactional graph.
+ */
+public class SchemaManager {
+	private static final Logger log = LoggerFactory.getLogger(SchemaManager.class);
+
+	/*
+	 * the lookups FineFoodsService makes
+	 */
+	private static final Lookup[] LOOKUPS = {
+		new Lookup(Constants.USER_CLASS, Constants.USER_ID, OClass.INDEX_TYPE.UNIQUE_HASH_INDEX),
+		new Lookup(Constants.PRODUCT_CLASS, Constants.PRODUCT_ID, OClass.INDEX_TYPE.UNIQUE_HASH_INDEX),
+		new Lookup(Constants.USER_CLASS, Constants.PROFILE_NAME, OClass.INDEX_TYPE.NOTUNIQUE),
+	};
+
+	/**
+	 * Create the User and Product vertex classes, the "reviewed" and
+	 * "recommended" edge classes, the ReviewText class of the review texts and the indexes for the
+	 * lookups, where they are missing
+	 * @param graph
+	 * @throws IllegalStateException if User or Product has more than one
+	 *         cluster, see FineFoodsService.productKey
+	 */
+	public static void ensureSchema(OrientBaseGraph graph) {
+		if (graph.getVertexType(Constants.USER_CLASS) == null) {
+			graph.createVertexType(Constants.USER_CLASS);
+			log.info("Created vertex class " + Constants.USER_CLASS);
+		}
+		if (graph.getVertexType(Constants.PRODUCT_CLASS) == null) {
+			graph.createVertexType(Constants.PRODUCT_CLASS);
+			log.info("Created vertex class " + Constants.PRODUCT_CLASS);
+		}
+		if (graph.getEdgeType(Constants.EDGE_REVIEWED) == null) {
+			graph.createEdgeType(Constants.EDGE_REVIEWED);
+			log.info("Created edge class " + Constants.EDGE_REVIEWED);
+		}
+		if (graph.getEdgeType(Constants.EDGE_RECOMMENDED) == null) {
+			graph.createEdgeType(Constants.EDGE_RECOMMENDED);
+			log.info("Created edge class " + Constants.EDGE_RECOMMENDED);
+		}
+		OSchema schema = graph.getRawGraph().getMetadata().getSchema();
+		if (!schema.existsClass(Constants.REVIEW_TEXT_CLASS)) {
+			schema.createClass(Constants.REVIEW_TEXT_CLASS);
+			log.info("Created document class " + Constants.REVIEW_TEXT_CLASS);
+		}
+		for (Lookup lookup : LOOKUPS)
+			ensureIndex(graph.getVertexType(lookup.className), lookup.property, lookup.indexType);
+		ensureSingleCluster(graph.getVertexType(Constants.USER_CLASS));
+		ensureSingleCluster(graph.getVertexType(Constants.PRODUCT_CLASS));
+	}
+
+	/*
+	 * users and products are keyed by cluster position alone, so the
+	 * vertices of two clusters, or of a subclass, would share keys
+	 */
+	private static void ensureSingleCluster(OrientElementType type) {
+		int clusters = type.getPolymorphicClusterIds().length;
+		if (clusters != 1)
+			throw new IllegalStateException(String.format(
+					"Class %s has %d clusters, the service keys its vertices by cluster position and needs one",
+					type.getName(), clusters));
+	}
+
+	/**
+	 * Log every lookup that would not be answered from an index
+	 * @param graph
+	 * @return true if all the lookups are index backed
+	 */
+	public static boolean verifyIndexes(OrientBaseGraph graph) {
+		boolean indexed = true;
+		for (Lookup lookup : LOOKUPS) {
+			OrientElementType type = graph.getVertexType(lookup.className);
+			if (type == null || type.getInvolvedIndexes(lookup.property).isEmpty()) {
+				log.warn(String.format("Lookup of %s by %s is not index backed and will scan the class", lookup.className, lookup.property));
+				indexed = false;
+			}
+		}
+		return indexed;
+	}
+
+	/**
+	 * The name of the index on a property, which is also the key
+	 * FineFoodsService looks vertices up with
+	 * @param className
+	 * @param property
+	 * @return
+	 */
+	public static String indexName(String className, String property) {
+		return className + "." + property;
+	}
+
+	private static void ensureIndex(OrientElementType type, String property, OClass.INDEX_TYPE indexType) {
+		if (type.getProperty(property) == null)
+			type.createProperty(property, OType.STRING);
+		if (!type.getInvolvedIndexes(property).isEmpty())
+			return;
+		String name = indexName(type.getName(), property);
+		try {
+			type.createIndex(name, indexType, property);
+			log.info(String.format("Created %s index %s", indexType, name));
+		} catch (RuntimeException e) {
+			/*
+			 * e.g. duplicate values already in the class, the
+			 * service still works but this lookup will scan
+			 */
+			log.error(String.format("Cannot create %s index %s", indexType, name), e);
+		}
+	}
+
+	private static class Lookup {
+		final String className;
+		final String property;
+		final OClass.INDEX_TYPE indexType;
+
+		Lookup(String className, String property, OClass.INDEX_TYPE indexType) {
+			this.className = className;
+			this.property = property;
+			this.indexType = indexType;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package helipilot50.orientdb.recommendation;
+
+/**
+ * Hands out FineFoodsServices to threads that read the graph on behalf of
+ * another, each service on a graph of its own and used by one thread until it
+ * is released.
+ */
+public interface ServiceSessions {
+
+	/**
+	 * @return a service on a graph no other thread is using, or null if none
+	 *         is free now, without waiting
+	 */
+	FineFoodsService acquire();
+
+	/**
+	 * @param service from acquire, called in a finally block
+	 */
+	void release(FineFoodsService service);
+}
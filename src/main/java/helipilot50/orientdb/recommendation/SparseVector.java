@@ -0,0 +1,267 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.Arrays;
+
+/**
+ * A sparse rating vector: the ids of the reviewed products, sorted ascending,
+ * and the score given to each of them. The magnitude is computed once when
+ * the vector is built.
+ *
+ * Dot product and cosine similarity are computed with a merge join over the
+ * two sorted id arrays, so scoring a pair of vectors costs O(nnz) and does
+ * not allocate.
+ */
+public final class SparseVector {
+	public static final SparseVector EMPTY = new SparseVector(new int[0], new float[0], 0, 0, 0d);
+
+	/*
+	 * when one vector is this many times longer than the other
+	 * the dot product probes the longer one by binary search
+	 * instead of walking it
+	 */
+	private static final int GALLOP_RATIO = 16;
+
+	private final int[] ids;
+	private final float[] scores;
+	private final int offset;
+	private final int size;
+	private final double magnitude;
+
+	/**
+	 * Wraps a slice of already sorted, duplicate free arrays without copying them.
+	 * @param ids product ids, ascending from offset
+	 * @param scores score for each product id
+	 * @param offset first element of the slice
+	 * @param size number of elements in the slice
+	 * @param magnitude the Euclidean norm of the scores in the slice
+	 */
+	public SparseVector(int[] ids, float[] scores, int offset, int size, double magnitude) {
+		super();
+		this.ids = ids;
+		this.scores = scores;
+		this.offset = offset;
+		this.size = size;
+		this.magnitude = magnitude;
+	}
+
+	/**
+	 * Builds a vector from unsorted (id, score) pairs. The arrays are sorted in place
+	 * and duplicate ids are collapsed to their average score.
+	 * @param ids product ids
+	 * @param scores score for each product id
+	 * @param size number of pairs to use
+	 * @return the vector
+	 */
+	public static SparseVector of(int[] ids, float[] scores, int size) {
+		sort(ids, scores, 0, size - 1);
+		int out = 0;
+		int i = 0;
+		while (i < size) {
+			int id = ids[i];
+			float sum = scores[i];
+			int count = 1;
+			i++;
+			while (i < size && ids[i] == id) {
+				sum += scores[i];
+				count++;
+				i++;
+			}
+			ids[out] = id;
+			scores[out] = sum / count;
+			out++;
+		}
+		return new SparseVector(ids, scores, 0, out, magnitude(scores, 0, out));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int id(int index) {
+		return ids[offset + index];
+	}
+
+	public float score(int index) {
+		return scores[offset + index];
+	}
+
+	public double magnitude() {
+		return magnitude;
+	}
+
+	public boolean contains(int id) {
+		return Arrays.binarySearch(ids, offset, offset + size, id) >= 0;
+	}
+
+	/**
+	 * @param id a product id
+	 * @return the score for the product, or 0 if it is not in the vector
+	 */
+	public float scoreOf(int id) {
+		int index = Arrays.binarySearch(ids, offset, offset + size, id);
+		return index < 0 ? 0f : scores[index];
+	}
+
+	public double dot(SparseVector other) {
+		return dot(ids, scores, offset, offset + size,
+				other.ids, other.scores, other.offset, other.offset + other.size);
+	}
+
+	/**
+	 * Cosine similarity
+	 * @param other
+	 * @return the similarity, 0 if either vector is empty
+	 */
+	public double cosine(SparseVector other) {
+		if (magnitude == 0d || other.magnitude == 0d)
+			return 0d;
+		return dot(other) / (magnitude * other.magnitude);
+	}
+
+	/**
+	 * Dot product of two sorted slices, matched by id.
+	 */
+	public static double dot(int[] aIds, float[] aScores, int aFrom, int aTo,
+			int[] bIds, float[] bScores, int bFrom, int bTo) {
+		int aLength = aTo - aFrom;
+		int bLength = bTo - bFrom;
+		if (aLength == 0 || bLength == 0)
+			return 0d;
+		if (aLength * GALLOP_RATIO < bLength)
+			return probe(aIds, aScores, aFrom, aTo, bIds, bScores, bFrom, bTo);
+		if (bLength * GALLOP_RATIO < aLength)
+			return probe(bIds, bScores, bFrom, bTo, aIds, aScores, aFrom, aTo);
+		double sum = 0;
+		int i = aFrom;
+		int j = bFrom;
+		while (i < aTo && j < bTo) {
+			int a = aIds[i];
+			int b = bIds[j];
+			if (a == b) {
+				sum += aScores[i] * (double) bScores[j];
+				i++;
+				j++;
+			} else if (a < b) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return sum;
+	}
+
+	public static double magnitude(float[] scores, int from, int to) {
+		double sum_mag = 0;
+		for (int i = from; i < to; i++) {
+			sum_mag += scores[i] * (double) scores[i];
+		}
+		return Math.sqrt(sum_mag);
+	}
+
+	/*
+	 * looks up each element of the short slice in the long one
+	 */
+	private static double probe(int[] shortIds, float[] shortScores, int shortFrom, int shortTo,
+			int[] longIds, float[] longScores, int longFrom, int longTo) {
+		double sum = 0;
+		int from = longFrom;
+		for (int i = shortFrom; i < shortTo && from < longTo; i++) {
+			int index = Arrays.binarySearch(longIds, from, longTo, shortIds[i]);
+			if (index >= 0) {
+				sum += shortScores[i] * (double) longScores[index];
+				from = index + 1;
+			} else {
+				from = -index - 1;
+			}
+		}
+		return sum;
+	}
+
+	/*
+	 * quicksort of the ids, moving the scores along with them
+	 */
+	private static void sort(int[] ids, float[] scores, int low, int high) {
+		while (high - low > 16) {
+			int pivot = ids[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (ids[i] < pivot)
+					i++;
+				while (ids[j] > pivot)
+					j--;
+				if (i <= j) {
+					swap(ids, scores, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (j - low < high - i) {
+				sort(ids, scores, low, j);
+				low = i;
+			} else {
+				sort(ids, scores, i, high);
+				high = j;
+			}
+		}
+		for (int i = low + 1; i <= high; i++) {
+			for (int j = i; j > low && ids[j - 1] > ids[j]; j--)
+				swap(ids, scores, j, j - 1);
+		}
+	}
+
+	private static void swap(int[] ids, float[] scores, int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		float score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < size; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(id(i)).append('=').append(score(i));
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * Collects (id, score) pairs in any order
+	 */
+	public static class Builder {
+		private int[] ids;
+		private float[] scores;
+		private int size;
+
+		public Builder() {
+			this(16);
+		}
+
+		public Builder(int capacity) {
+			ids = new int[Math.max(capacity, 1)];
+			scores = new float[ids.length];
+		}
+
+		public Builder add(int id, float score) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+			}
+			ids[size] = id;
+			scores[size] = score;
+			size++;
+			return this;
+		}
+
+		public SparseVector build() {
+			if (size == 0)
+				return EMPTY;
+			return SparseVector.of(ids, scores, size);
+		}
+	}
+}
@@ -1,5 +1,13 @@
 package helipilot50.orientdb.recommendation;
 
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * No user has the id. Clients ask for users that do not exist all the time, so
+ * this is not a fault and captures no stack trace. Answered with 404.
+ */
+@ResponseStatus(HttpStatus.NOT_FOUND)
 public class UserNotFound extends RuntimeException {
 	/**
 	 * 
@@ -8,18 +16,18 @@ public class UserNotFound extends RuntimeException {
 	private String provileName;
 
 	public UserNotFound() {
-		super();
+		super(null, null, false, false);
 	}
 
 
 	public UserNotFound(String user, Throwable cause) {
-		super("User not found: " + user, cause);
+		super("User not found: " + user, cause, false, false);
 		this.provileName = user;
 	}
 
 
 	public UserNotFound(String user) {
-		super("User not found: " + user);
+		super("User not found: " + user, null, false, false);
 		this.provileName = user;
 	}
 
@@ -0,0 +1,441 @@
+package helipilot50.orientdb.recommendation.cooccurrence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+
+/**
+ * How many users reviewed each pair of products, and the norm of each user's
+ * ratings, kept current review by review.
+ *
+ * Products and users are keyed like rating vectors, by FineFoodsService.productKey
+ * and userKey. The counts live in an immutable base, built by a full rebuild or by
+ * the last compaction, plus a delta of the changes since. A new review only adds to
+ * the delta rows of the products involved, each guarded by its own lock, so writers
+ * of different products do not contend and readers take no lock but a row's. The
+ * norms are replaced, not added, so they go in a concurrent map.
+ *
+ * Compaction folds the delta into a new base. Writers keep going meanwhile: the
+ * delta being folded is frozen, new changes go to a fresh one, and readers see
+ * base + frozen + fresh until the new base is published in one step.
+ */
+public class CoOccurrenceIndex {
+	private static final Logger log = LoggerFactory.getLogger(CoOccurrenceIndex.class);
+
+	private volatile State state;
+	/*
+	 * writers share the read lock, compaction takes the write
+	 * lock only to swap the delta they write to
+	 */
+	private final ReadWriteLock swap = new ReentrantReadWriteLock();
+
+	public CoOccurrenceIndex() {
+		this(Base.EMPTY);
+	}
+
+	private CoOccurrenceIndex(Base base) {
+		this.state = new State(base, null, new Delta());
+	}
+
+	/**
+	 * Counts every review in the graph
+	 * @param graph
+	 * @return
+	 */
+	public static CoOccurrenceIndex rebuild(OrientBaseGraph graph) {
+		long start = System.currentTimeMillis();
+		FineFoodsService service = new FineFoodsService(graph);
+		Builder builder = new Builder();
+		if (graph.getVertexType(Constants.USER_CLASS) != null) {
+			for (Vertex vUser : graph.getVerticesOfClass(Constants.USER_CLASS))
+				builder.addUser(FineFoodsService.userKey((OIdentifiable) vUser), service.makeVectorForUser(vUser));
+		}
+		Base base = builder.build();
+		log.info(String.format("Rebuilt co-occurrence of %d products and %d pairs from %d users in %d ms",
+				base.productCount(), base.pairCount(), base.userCount(), System.currentTimeMillis() - start));
+		return new CoOccurrenceIndex(base);
+	}
+
+	/**
+	 * Count a review that was just added
+	 * @param user the user's key
+	 * @param product the product's key
+	 * @param ratings the user's ratings including the new review
+	 * @param repeat true if the user had reviewed the product before, which
+	 *        changes the norm but not the co-occurrence
+	 */
+	public void reviewAdded(int user, int product, SparseVector ratings, boolean repeat) {
+		swap.readLock().lock();
+		try {
+			Delta delta = state.current;
+			delta.norms.put(user, ratings.magnitude());
+			if (repeat)
+				return;
+			Row row = delta.row(product);
+			synchronized (row) {
+				for (int i = 0; i < ratings.size(); i++) {
+					if (ratings.id(i) != product)
+						row.counts.addTo(ratings.id(i), 1);
+				}
+			}
+			for (int i = 0; i < ratings.size(); i++) {
+				int other = ratings.id(i);
+				if (other == product)
+					continue;
+				Row otherRow = delta.row(other);
+				synchronized (otherRow) {
+					otherRow.counts.addTo(product, 1);
+				}
+			}
+		} finally {
+			swap.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param product
+	 * @param other
+	 * @return how many users reviewed both products
+	 */
+	public int count(int product, int other) {
+		State s = state;
+		int count = s.base.count(product, other);
+		if (s.frozen != null)
+			count += s.frozen.count(product, other);
+		return count + s.current.count(product, other);
+	}
+
+	/**
+	 * @param product
+	 * @return the products reviewed by a user that reviewed this one, with
+	 *         the number of such users
+	 */
+	public IntIntHashMap coOccurring(int product) {
+		State s = state;
+		IntIntHashMap counts = new IntIntHashMap();
+		s.base.addRow(product, counts);
+		if (s.frozen != null)
+			s.frozen.addRow(product, counts);
+		s.current.addRow(product, counts);
+		return counts;
+	}
+
+	/**
+	 * @param user
+	 * @return the norm of the user's ratings, 0 if the user has none
+	 */
+	public double userNorm(int user) {
+		State s = state;
+		Double norm = s.current.norms.get(user);
+		if (norm == null && s.frozen != null)
+			norm = s.frozen.norms.get(user);
+		return norm != null ? norm : s.base.userNorm(user);
+	}
+
+	/**
+	 * Fold the changes since the last compaction into the base
+	 * @return the number of products whose delta was folded
+	 */
+	public synchronized int compact() {
+		long start = System.currentTimeMillis();
+		State before;
+		swap.writeLock().lock();
+		try {
+			before = state;
+			state = new State(before.base, before.current, new Delta());
+		} finally {
+			swap.writeLock().unlock();
+		}
+		Delta frozen = before.current;
+		Builder builder = new Builder(before.base);
+		for (Map.Entry<Integer, Row> entry : frozen.rows.entrySet())
+			builder.addRow(entry.getKey(), entry.getValue().counts);
+		for (Map.Entry<Integer, Double> entry : frozen.norms.entrySet())
+			builder.setNorm(entry.getKey(), entry.getValue());
+		Base base = builder.build();
+		swap.writeLock().lock();
+		try {
+			state = new State(base, null, state.current);
+		} finally {
+			swap.writeLock().unlock();
+		}
+		log.info(String.format("Compacted %d changed products into %d products and %d pairs in %d ms",
+				frozen.rows.size(), base.productCount(), base.pairCount(), System.currentTimeMillis() - start));
+		return frozen.rows.size();
+	}
+
+	/**
+	 * Compare with an index counted from scratch, e.g. a rebuild. Reviews
+	 * written while the two are taken show up as differences.
+	 * @param expected
+	 * @return
+	 */
+	public ConsistencyReport check(CoOccurrenceIndex expected) {
+		ConsistencyReport report = new ConsistencyReport();
+		State mine = state;
+		State theirs = expected.state;
+		IntIntHashMap products = new IntIntHashMap();
+		mine.productKeys(products);
+		theirs.productKeys(products);
+		for (int product : products.keys()) {
+			IntIntHashMap actual = coOccurring(product);
+			IntIntHashMap wanted = expected.coOccurring(product);
+			IntIntHashMap others = new IntIntHashMap();
+			for (int other : actual.keys())
+				others.put(other, 1);
+			for (int other : wanted.keys())
+				others.put(other, 1);
+			for (int other : others.keys())
+				report.pair(actual.get(other, 0) == wanted.get(other, 0));
+		}
+		IntIntHashMap users = new IntIntHashMap();
+		mine.userKeys(users);
+		theirs.userKeys(users);
+		for (int user : users.keys())
+			report.user(Math.abs(userNorm(user) - expected.userNorm(user)) < 1e-4);
+		return report;
+	}
+
+	public int productCount() {
+		State s = state;
+		IntIntHashMap products = new IntIntHashMap();
+		s.productKeys(products);
+		return products.size();
+	}
+
+	/**
+	 * @return products with changes not yet compacted
+	 */
+	public int pendingProducts() {
+		State s = state;
+		return s.current.rows.size() + (s.frozen != null ? s.frozen.rows.size() : 0);
+	}
+
+	private static class State {
+		final Base base;
+		final Delta frozen;
+		final Delta current;
+
+		State(Base base, Delta frozen, Delta current) {
+			this.base = base;
+			this.frozen = frozen;
+			this.current = current;
+		}
+
+		void productKeys(IntIntHashMap keys) {
+			for (int product : base.products.keys())
+				keys.put(product, 1);
+			for (Delta delta : new Delta[] { frozen, current }) {
+				if (delta != null) {
+					for (Integer product : delta.rows.keySet())
+						keys.put(product, 1);
+				}
+			}
+		}
+
+		void userKeys(IntIntHashMap keys) {
+			for (int user : base.users.keys())
+				keys.put(user, 1);
+			for (Delta delta : new Delta[] { frozen, current }) {
+				if (delta != null) {
+					for (Integer user : delta.norms.keySet())
+						keys.put(user, 1);
+				}
+			}
+		}
+	}
+
+	/*
+	 * the changes since the last compaction
+	 */
+	private static class Delta {
+		final ConcurrentMap<Integer, Row> rows = new ConcurrentHashMap<Integer, Row>();
+		final ConcurrentMap<Integer, Double> norms = new ConcurrentHashMap<Integer, Double>();
+
+		Row row(int product) {
+			Row row = rows.get(product);
+			if (row == null) {
+				Row created = new Row();
+				row = rows.putIfAbsent(product, created);
+				if (row == null)
+					row = created;
+			}
+			return row;
+		}
+
+		int count(int product, int other) {
+			Row row = rows.get(product);
+			if (row == null)
+				return 0;
+			synchronized (row) {
+				return row.counts.get(other, 0);
+			}
+		}
+
+		void addRow(int product, IntIntHashMap into) {
+			Row row = rows.get(product);
+			if (row == null)
+				return;
+			synchronized (row) {
+				for (int other : row.counts.keys())
+					into.addTo(other, row.counts.get(other, 0));
+			}
+		}
+	}
+
+	private static class Row {
+		final IntIntHashMap counts = new IntIntHashMap(8);
+	}
+
+	/*
+	 * immutable rows in CSR form, sorted by the other product
+	 */
+	private static class Base {
+		static final Base EMPTY = new Builder().build();
+
+		final IntIntHashMap products;
+		final int[] offsets;
+		final int[] others;
+		final int[] counts;
+		final IntIntHashMap users;
+		final double[] norms;
+
+		Base(IntIntHashMap products, int[] offsets, int[] others, int[] counts, IntIntHashMap users, double[] norms) {
+			this.products = products;
+			this.offsets = offsets;
+			this.others = others;
+			this.counts = counts;
+			this.users = users;
+			this.norms = norms;
+		}
+
+		int count(int product, int other) {
+			int row = products.get(product, -1);
+			if (row < 0)
+				return 0;
+			int at = Arrays.binarySearch(others, offsets[row], offsets[row + 1], other);
+			return at < 0 ? 0 : counts[at];
+		}
+
+		void addRow(int product, IntIntHashMap into) {
+			int row = products.get(product, -1);
+			if (row < 0)
+				return;
+			for (int i = offsets[row]; i < offsets[row + 1]; i++)
+				into.addTo(others[i], counts[i]);
+		}
+
+		double userNorm(int user) {
+			int at = users.get(user, -1);
+			return at < 0 ? 0d : norms[at];
+		}
+
+		int productCount() {
+			return products.size();
+		}
+
+		int pairCount() {
+			return others.length;
+		}
+
+		int userCount() {
+			return users.size();
+		}
+	}
+
+	private static class Builder {
+		final Map<Integer, IntIntHashMap> rows = new HashMap<Integer, IntIntHashMap>();
+		final Map<Integer, Double> norms = new HashMap<Integer, Double>();
+
+		Builder() {
+		}
+
+		Builder(Base base) {
+			for (int product : base.products.keys()) {
+				int row = base.products.get(product, -1);
+				IntIntHashMap counts = row(product);
+				for (int i = base.offsets[row]; i < base.offsets[row + 1]; i++)
+					counts.put(base.others[i], base.counts[i]);
+			}
+			for (int user : base.users.keys())
+				norms.put(user, base.norms[base.users.get(user, -1)]);
+		}
+
+		void addUser(int user, SparseVector ratings) {
+			norms.put(user, ratings.magnitude());
+			for (int i = 0; i < ratings.size(); i++) {
+				IntIntHashMap counts = row(ratings.id(i));
+				for (int j = 0; j < ratings.size(); j++) {
+					if (i != j)
+						counts.addTo(ratings.id(j), 1);
+				}
+			}
+		}
+
+		void addRow(int product, IntIntHashMap delta) {
+			IntIntHashMap counts = row(product);
+			for (int other : delta.keys())
+				counts.addTo(other, delta.get(other, 0));
+		}
+
+		void setNorm(int user, double norm) {
+			norms.put(user, norm);
+		}
+
+		IntIntHashMap row(int product) {
+			IntIntHashMap counts = rows.get(product);
+			if (counts == null) {
+				counts = new IntIntHashMap(8);
+				rows.put(product, counts);
+			}
+			return counts;
+		}
+
+		Base build() {
+			IntIntHashMap products = new IntIntHashMap(rows.size());
+			int[] offsets = new int[rows.size() + 1];
+			int pairs = 0;
+			for (IntIntHashMap counts : rows.values())
+				pairs += counts.size();
+			int[] others = new int[pairs];
+			int[] counts = new int[pairs];
+			int row = 0;
+			for (Map.Entry<Integer, IntIntHashMap> entry : rows.entrySet()) {
+				products.put(entry.getKey(), row);
+				int[] keys = entry.getValue().keys();
+				Arrays.sort(keys);
+				int at = offsets[row];
+				for (int other : keys) {
+					others[at] = other;
+					counts[at] = entry.getValue().get(other, 0);
+					at++;
+				}
+				offsets[++row] = at;
+			}
+			IntIntHashMap users = new IntIntHashMap(norms.size());
+			double[] userNorms = new double[norms.size()];
+			int u = 0;
+			for (Map.Entry<Integer, Double> entry : norms.entrySet()) {
+				users.put(entry.getKey(), u);
+				userNorms[u++] = entry.getValue();
+			}
+			return new Base(products, offsets, others, counts, users, userNorms);
+		}
+	}
+}
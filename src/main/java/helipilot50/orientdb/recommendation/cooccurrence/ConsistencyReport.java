@@ -0,0 +1,58 @@
+package helipilot50.orientdb.recommendation.cooccurrence;
+
+/**
+ * The differences between the incrementally kept co-occurrence and a full rebuild
+ */
+public class ConsistencyReport {
+	long pairsChecked;
+	long pairMismatches;
+	long usersChecked;
+	long normMismatches;
+	long checkMillis;
+
+	void pair(boolean matches) {
+		pairsChecked++;
+		if (!matches)
+			pairMismatches++;
+	}
+
+	void user(boolean matches) {
+		usersChecked++;
+		if (!matches)
+			normMismatches++;
+	}
+
+	public boolean isConsistent() {
+		return pairMismatches == 0 && normMismatches == 0;
+	}
+
+	public long getPairsChecked() {
+		return pairsChecked;
+	}
+
+	public long getPairMismatches() {
+		return pairMismatches;
+	}
+
+	public long getUsersChecked() {
+		return usersChecked;
+	}
+
+	public long getNormMismatches() {
+		return normMismatches;
+	}
+
+	public long getCheckMillis() {
+		return checkMillis;
+	}
+
+	public void setCheckMillis(long checkMillis) {
+		this.checkMillis = checkMillis;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d of %d pairs and %d of %d user norms differ",
+				pairMismatches, pairsChecked, normMismatches, usersChecked);
+	}
+}
@@ -0,0 +1,325 @@
+package helipilot50.orientdb.recommendation.dataimport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.common.concur.ONeedRetryException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.intent.OIntentMassiveInsert;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+/**
+ * Loads review files with one parsing thread and several writer threads.
+ *
+ * Reviews are routed to a writer by userId, so each User vertex is only ever
+ * created by one writer, inside that writer's transaction. Products are shared
+ * between writers: a missing Product is created straight away, outside the
+ * batch, under a lock striped by productId. The RIDs of the vertices that have
+ * been seen are kept in memory so each one is only looked up in the database
+ * once. Writers commit once per batch and retry a batch that fails on a
+ * concurrent update of a shared Product vertex.
+ */
+public class BulkImporter {
+	private static final Logger log = LoggerFactory.getLogger(BulkImporter.class);
+	public static final int DEFAULT_BATCH_SIZE = 200;
+	private static final int MAX_RETRIES = 10;
+	private static final int PROGRESS_SECONDS = 10;
+	private static final Map<String, Object> END = new HashMap<String, Object>();
+
+	private final OrientGraphFactory factory;
+	private final int workers;
+	private final int batchSize;
+
+	private final ConcurrentMap<String, ORID> userRids = new ConcurrentHashMap<String, ORID>();
+	private final ConcurrentMap<String, ORID> productRids = new ConcurrentHashMap<String, ORID>();
+	private final Object[] productLocks = new Object[64];
+
+	private final AtomicLong parsed = new AtomicLong();
+	private final AtomicLong imported = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	public BulkImporter(OrientGraphFactory factory, int workers, int batchSize) {
+		super();
+		this.factory = factory;
+		this.workers = Math.max(workers, 1);
+		this.batchSize = Math.max(batchSize, 1);
+		for (int i = 0; i < productLocks.length; i++)
+			productLocks[i] = new Object();
+	}
+
+	/**
+	 * Import all the reviews in the files
+	 * @param files
+	 * @return the number of reviews imported
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long importFiles(List<File> files) throws IOException, InterruptedException {
+		return importFiles(files, 0);
+	}
+
+	/**
+	 * Import the reviews in the files
+	 * @param files
+	 * @param limit stop after this many reviews from each file, 0 for no limit
+	 * @return the number of reviews imported
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public long importFiles(List<File> files, int limit) throws IOException, InterruptedException {
+		final long start = System.currentTimeMillis();
+		/*
+		 * open (or create) the database and its classes once
+		 * before the writers connect to it
+		 */
+		OrientGraphNoTx schemaGraph = factory.getNoTx();
+		try {
+			SchemaManager.ensureSchema(schemaGraph);
+			SchemaManager.verifyIndexes(schemaGraph);
+		} finally {
+			schemaGraph.shutdown();
+		}
+		List<BlockingQueue<Map<String, Object>>> queues = new ArrayList<BlockingQueue<Map<String, Object>>>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < workers; i++) {
+			BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<Map<String, Object>>(batchSize * 4);
+			Thread thread = new Thread(new Writer(queue), "bulk-import-" + i);
+			queues.add(queue);
+			threads.add(thread);
+			thread.start();
+		}
+		ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+		progress.scheduleAtFixedRate(new Runnable() {
+			long lastCount;
+			long lastTime = start;
+
+			@Override
+			public void run() {
+				long now = System.currentTimeMillis();
+				long count = imported.get();
+				log.info(String.format("Imported %d of %d parsed reviews, %.1f records/s (%.1f records/s overall)",
+						count, parsed.get(), (count - lastCount) * 1000.0 / Math.max(now - lastTime, 1),
+						count * 1000.0 / Math.max(now - start, 1)));
+				lastCount = count;
+				lastTime = now;
+			}
+		}, PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+		try {
+			for (File file : files)
+				parse(file, queues, limit);
+		} finally {
+			for (BlockingQueue<Map<String, Object>> queue : queues)
+				queue.put(END);
+			for (Thread thread : threads)
+				thread.join();
+			progress.shutdownNow();
+		}
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		log.info(String.format("Imported %d reviews (%d failed, %d batches retried) from %d files in %d ms with %d writers, %.1f records/s",
+				imported.get(), failed.get(), retries.get(), files.size(), elapsed, workers, imported.get() * 1000.0 / elapsed));
+		return imported.get();
+	}
+
+	private void parse(File inputFile, List<BlockingQueue<Map<String, Object>>> queues, int limit) throws IOException, InterruptedException {
+		ReviewReader reader = ReviewReader.open(inputFile);
+		int count = 0;
+		try {
+			while (reader.next()) {
+				dispatch(reader.current().toMap(), queues);
+				if (++count == limit)
+					break;
+			}
+		} finally {
+			reader.close();
+		}
+		log.info(String.format("Parsed %d reviews, finished file: %s", parsed.get(), inputFile.getName()));
+	}
+
+	private void dispatch(Map<String, Object> review, List<BlockingQueue<Map<String, Object>>> queues) throws InterruptedException {
+		String userId = (String) review.get(Constants.USER_ID);
+		int worker = (userId.hashCode() & Integer.MAX_VALUE) % queues.size();
+		queues.get(worker).put(review);
+		parsed.incrementAndGet();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return how many times a batch was written again after a concurrent update
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+
+	/*
+	 * commit a writer's batch
+	 */
+	void commit(OrientGraph graph) {
+		graph.commit();
+	}
+
+	/**
+	 * Writes the reviews of its share of the users, a batch per transaction
+	 */
+	private class Writer implements Runnable {
+		private final BlockingQueue<Map<String, Object>> queue;
+		/*
+		 * users created in the open transaction, their RIDs
+		 * are temporary until it commits
+		 */
+		private final Map<String, Vertex> pendingUsers = new HashMap<String, Vertex>();
+		private OrientGraph graph;
+		private FineFoodsService service;
+		private OrientGraphNoTx productGraph;
+		private FineFoodsService productService;
+
+		Writer(BlockingQueue<Map<String, Object>> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(batchSize);
+			try {
+				graph = factory.getTx();
+				graph.declareIntent(new OIntentMassiveInsert());
+				service = new FineFoodsService(graph);
+				productGraph = factory.getNoTx();
+				productGraph.declareIntent(new OIntentMassiveInsert());
+				productService = new FineFoodsService(productGraph);
+				boolean done = false;
+				while (!done) {
+					done = take(batch);
+					if (!batch.isEmpty())
+						write(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (RuntimeException e) {
+				log.error("Writer failed, discarding its remaining reviews", e);
+				discard(batch);
+			} finally {
+				if (productGraph != null) {
+					productGraph.declareIntent(null);
+					productGraph.shutdown();
+				}
+				if (graph != null) {
+					graph.declareIntent(null);
+					graph.shutdown();
+				}
+			}
+		}
+
+		/*
+		 * the next batch, true once the end of the input is reached
+		 */
+		private boolean take(List<Map<String, Object>> batch) throws InterruptedException {
+			batch.add(queue.take());
+			queue.drainTo(batch, batchSize - 1);
+			if (batch.get(batch.size() - 1) == END) {
+				batch.remove(batch.size() - 1);
+				return true;
+			}
+			return false;
+		}
+
+		/*
+		 * keep the parser from blocking on a writer that has failed
+		 */
+		private void discard(List<Map<String, Object>> batch) {
+			try {
+				boolean done = false;
+				while (!done) {
+					failed.addAndGet(batch.size());
+					batch.clear();
+					done = take(batch);
+				}
+				failed.addAndGet(batch.size());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void write(List<Map<String, Object>> batch) {
+			for (int attempt = 1; ; attempt++) {
+				try {
+					for (Map<String, Object> review : batch) {
+						Vertex vUser = user((String) review.get(Constants.USER_ID), (String) review.get(Constants.PROFILE_NAME));
+						Vertex vProduct = graph.getVertex(product((String) review.get(Constants.PRODUCT_ID)));
+						service.createReview(vUser, vProduct, review);
+					}
+					commit(graph);
+					for (Map.Entry<String, Vertex> entry : pendingUsers.entrySet())
+						userRids.put(entry.getKey(), (ORID) entry.getValue().getId());
+					pendingUsers.clear();
+					imported.addAndGet(batch.size());
+					return;
+				} catch (RuntimeException e) {
+					graph.rollback();
+					pendingUsers.clear();
+					if (!(e instanceof ONeedRetryException) || attempt == MAX_RETRIES) {
+						log.error(String.format("Failed to import a batch of %d reviews", batch.size()), e);
+						failed.addAndGet(batch.size());
+						return;
+					}
+					retries.incrementAndGet();
+				}
+			}
+		}
+
+		private Vertex user(String userId, String profileName) {
+			Vertex vUser = pendingUsers.get(userId);
+			if (vUser != null)
+				return vUser;
+			ORID rid = userRids.get(userId);
+			if (rid != null)
+				return graph.getVertex(rid);
+			vUser = service.createUser(userId, profileName);
+			if (((ORID) vUser.getId()).isPersistent())
+				userRids.put(userId, (ORID) vUser.getId());
+			else
+				pendingUsers.put(userId, vUser);
+			return vUser;
+		}
+
+		private ORID product(String productId) {
+			ORID rid = productRids.get(productId);
+			if (rid != null)
+				return rid;
+			synchronized (productLocks[(productId.hashCode() & Integer.MAX_VALUE) % productLocks.length]) {
+				rid = productRids.get(productId);
+				if (rid == null) {
+					rid = (ORID) productService.createProduct(productId).getId();
+					productRids.put(productId, rid);
+				}
+			}
+			return rid;
+		}
+	}
+}
@@ -1,18 +1,24 @@
 package helipilot50.orientdb.recommendation.dataimport;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.tinkerpop.blueprints.Direction;
-import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.impls.orient.OrientEdge;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
@@ -20,6 +26,7 @@ import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
 
 import helipilot50.orientdb.recommendation.Constants;
 import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SchemaManager;
 
 
 public class DataLoad{
@@ -32,45 +39,98 @@ public class DataLoad{
 	
 
 	public DataLoad() {
-		factory = new OrientGraphFactory(Constants.DEFAULT_DB);
+		this(Constants.DEFAULT_DB);
+	}
+
+	public DataLoad(String dbURL) {
+		factory = new OrientGraphFactory(dbURL);
 		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		SchemaManager.verifyIndexes(graph);
 		service = new FineFoodsService(graph);
 	}
-	public static void main(String[] args) throws FileNotFoundException, IOException {
 
-		DataLoad dl = new DataLoad();
-		dl.processFile(new File("data/finefoodsaa"));
+	public static void main(String[] args) throws ParseException, IOException, InterruptedException {
+
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("bulk", "bulk", false, "Bulk import: parse on one thread and write on several workers");
+		options.addOption("w", "workers", true, "Bulk import writer threads, default: number of cores");
+		options.addOption("b", "batch", true, "Bulk import reviews per commit, default: " + BulkImporter.DEFAULT_BATCH_SIZE);
+		options.addOption("l", "limit", true, "Stop after this many reviews from each file, default: no limit");
+		options.addOption("u", "usage", false, "Print usage.");
 
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
 
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		List<File> files = new ArrayList<File>();
+		for (String name : cl.getArgs())
+			files.add(new File(name));
+		if (files.isEmpty())
+			files.add(new File("data/finefoodsaa"));
+		for (File file : files) {
+			if (!checkFileExists(file)) {
+				log.error("File not found: " + file);
+				return;
+			}
+		}
+		log.info("Database: " + db);
+
+		int limit = Integer.parseInt(cl.getOptionValue("l", "0"));
+		if (cl.hasOption("bulk")) {
+			int workers = Integer.parseInt(cl.getOptionValue("w", String.valueOf(Runtime.getRuntime().availableProcessors())));
+			int batchSize = Integer.parseInt(cl.getOptionValue("b", String.valueOf(BulkImporter.DEFAULT_BATCH_SIZE)));
+			OrientGraphFactory factory = new OrientGraphFactory(db);
+			try {
+				new BulkImporter(factory, workers, batchSize).importFiles(files, limit);
+			} finally {
+				factory.close();
+			}
+		} else {
+			DataLoad dl = new DataLoad(db);
+			for (File file : files)
+				dl.processFile(file, limit);
+			dl.factory.close();
+		}
 	}
+
 	public void processFile(File inputFile) throws FileNotFoundException, IOException{
-		int lineNumber = 0;
-		int recordCount = 0;
-		BufferedReader br = new BufferedReader(new FileReader(inputFile));
-		String line;
-		Map<String,Object> review = new HashMap<String, Object>();
-		while((line = br.readLine()) != null) {
-			lineNumber++;
+		processFile(inputFile, 0);
+	}
 
-			if (line.trim().isEmpty()) { 
-				
+	/**
+	 * Load the reviews in a file, one at a time
+	 * @param inputFile
+	 * @param limit stop after this many reviews, 0 for no limit
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public void processFile(File inputFile, int limit) throws FileNotFoundException, IOException{
+		long start = System.currentTimeMillis();
+		int recordCount = 0;
+		ReviewReader reader = ReviewReader.open(inputFile);
+		try {
+			while (reader.next()) {
+				ReviewRecord review = reader.current();
 				/*
 				 * Find or create a user
 				 */
-				String userId = (String) review.get(Constants.USER_ID);
-				String profileName = (String) review.get(Constants.PROFILE_NAME);
-				Vertex vUser = service.createUser(userId, profileName);
+				Vertex vUser = service.createUser(review.getUserId(), review.getProfileName());
 				/*
 				 * Find or create a product
 				 */
-				String productId = (String) review.get(Constants.PRODUCT_ID);
-				Vertex vProduct = service.createProduct(productId);
+				Vertex vProduct = service.createProduct(review.getProductId());
 
 				/*
 				 * Create Edge from User to Product
 				 */
 				
-				Edge toProduct = service.createReview(vUser, vProduct, review);
+				service.createReview(vUser, vProduct, review.toMap());
 
 				graph.commit();
 
@@ -93,30 +153,19 @@ public class DataLoad{
 //						log.info(String.format("\t\ttext: %s", edge.getProperty("text")));
 //					}
 //				}
-				if (recordCount == 50000)
+				if (recordCount == limit)
 					break;
-				/*
-				 * start a new review
-				 */
-				review = new HashMap<String, Object>();
-			} else {
-
-				String[] elements = line.split(": ");
-				String key = elements[0].substring(elements[0].lastIndexOf('/')+1);
-				if (key.equalsIgnoreCase("score"))
-					review.put(key, Double.parseDouble(elements[1]));
-				else if (key.equalsIgnoreCase("time"))
-					review.put(key, Long.parseLong(elements[1]));
-				else
-					review.put(key, elements[1]);
-			}
 
-			if (lineNumber % 10000 == 0){
-				log.info(String.format("Processed %d records from %d lines from file: %s", recordCount, lineNumber, inputFile.getName()));
+				if (recordCount % 10000 == 0){
+					log.info(String.format("Processed %d records from file: %s", recordCount, inputFile.getName()));
+				}
 			}
+		} finally {
+			reader.close();
 		}
-		br.close();
-		log.info(String.format("Processed %d records from %d lines from file: %s", recordCount, lineNumber, inputFile.getName()));
+		log.info(String.format("Processed %d records from file: %s", recordCount, inputFile.getName()));
+		long elapsed = Math.max(System.currentTimeMillis() - start, 1);
+		log.info(String.format("Loaded %d records in %d ms, %.1f records/s", recordCount, elapsed, recordCount * 1000.0 / elapsed));
 
 	}
 
@@ -126,7 +175,16 @@ public class DataLoad{
 	}
 
 
-	private boolean checkFileExists(File file){
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = DataLoad.class.getName() + " [<options>] <file>...";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+
+	private static boolean checkFileExists(File file){
 		if (!file.exists()) {
 			return false;
 		}
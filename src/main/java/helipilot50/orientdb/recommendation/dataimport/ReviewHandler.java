@@ -0,0 +1,9 @@
+package helipilot50.orientdb.recommendation.dataimport;
+
+/**
+ * Receives the reviews read by a {@link ReviewReader}. The record is reused
+ * for the next review once the handler returns.
+ */
+public interface ReviewHandler {
+	void review(ReviewRecord review) throws Exception;
+}
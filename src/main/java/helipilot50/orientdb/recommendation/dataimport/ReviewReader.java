@@ -0,0 +1,450 @@
+package helipilot50.orientdb.recommendation.dataimport;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A streaming reader for the Fine Foods review format: blocks of
+ * "product/productId: ..." to "review/text: ..." lines separated by a blank line.
+ *
+ * The reader parses straight out of a memory-mapped window of a plain file, or out
+ * of a reusable buffer filled from a (gzip) stream. Each call to {@link #next()}
+ * overwrites the same {@link ReviewRecord}, so reading a whole dump allocates
+ * nothing per review until a string field is asked for.
+ *
+ * A line is split at its first ": ", so values may contain ": ". Lines that are
+ * not "key: value" and unknown keys are skipped.
+ */
+public class ReviewReader implements Closeable {
+	/*
+	 * ISO-8859-1 decodes every byte, whatever the dump contains
+	 */
+	public static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+	static final int MAP_WINDOW = 1 << 30;
+	private static final int STREAM_BUFFER = 1 << 16;
+
+	private static final byte[] KEY_PRODUCT_ID = ascii("productId");
+	private static final byte[] KEY_USER_ID = ascii("userId");
+	private static final byte[] KEY_PROFILE_NAME = ascii("profileName");
+	private static final byte[] KEY_HELPFULNESS = ascii("helpfulness");
+	private static final byte[] KEY_SCORE = ascii("score");
+	private static final byte[] KEY_TIME = ascii("time");
+	private static final byte[] KEY_SUMMARY = ascii("summary");
+	private static final byte[] KEY_TEXT = ascii("text");
+
+	private final Source source;
+	private final ReviewRecord record;
+	private ByteBuffer buffer;
+	private int position;
+	private long count;
+
+	ReviewReader(Source source, Charset charset) {
+		this.source = source;
+		this.record = new ReviewRecord(charset);
+		this.buffer = source.buffer();
+	}
+
+	/**
+	 * Opens a review file: gzip files are streamed, plain files are memory-mapped
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static ReviewReader open(File file) throws IOException {
+		return open(file, DEFAULT_CHARSET);
+	}
+
+	public static ReviewReader open(File file, Charset charset) throws IOException {
+		if (isGzip(file))
+			return new ReviewReader(new StreamSource(new GZIPInputStream(new FileInputStream(file), STREAM_BUFFER)), charset);
+		return new ReviewReader(new MappedSource(file, MAP_WINDOW), charset);
+	}
+
+	/**
+	 * Reads reviews from a stream, which is closed with the reader
+	 * @param in
+	 * @return
+	 */
+	public static ReviewReader fromStream(InputStream in) {
+		return new ReviewReader(new StreamSource(in), DEFAULT_CHARSET);
+	}
+
+	public static ReviewReader fromStream(InputStream in, Charset charset) {
+		return new ReviewReader(new StreamSource(in), charset);
+	}
+
+	/**
+	 * Advances to the next review
+	 * @return false at the end of the input
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int start = skipBlankLines(position);
+			if (start < 0) {
+				/*
+				 * ran out of input between reviews
+				 */
+				if (source.refill(buffer, position)) {
+					buffer = source.buffer();
+					position = 0;
+					continue;
+				}
+				return false;
+			}
+			int end = parseRecord(start, false);
+			if (end < 0) {
+				/*
+				 * the review runs past the end of the buffer,
+				 * refill from its start and parse it again
+				 */
+				if (source.refill(buffer, start)) {
+					buffer = source.buffer();
+					position = 0;
+					continue;
+				}
+				end = parseRecord(start, true);
+			}
+			position = end;
+			if (record.isEmpty())
+				continue;
+			count++;
+			return true;
+		}
+	}
+
+	/**
+	 * @return the review read by the last call to next(), overwritten by the next one
+	 */
+	public ReviewRecord current() {
+		return record;
+	}
+
+	/**
+	 * @return the number of reviews read so far
+	 */
+	public long count() {
+		return count;
+	}
+
+	/**
+	 * Passes every remaining review to the handler
+	 * @param handler
+	 * @return the number of reviews handled
+	 * @throws Exception whatever the handler throws
+	 */
+	public long forEach(ReviewHandler handler) throws Exception {
+		long handled = 0;
+		while (next()) {
+			handler.review(record);
+			handled++;
+		}
+		return handled;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	/*
+	 * the start of the next non blank line, -1 if the buffer ends first
+	 */
+	private int skipBlankLines(int from) {
+		int limit = buffer.limit();
+		int i = from;
+		while (i < limit) {
+			byte b = buffer.get(i);
+			if (b != '\n' && b != '\r' && b != ' ' && b != '\t')
+				return i;
+			i++;
+		}
+		return -1;
+	}
+
+	/*
+	 * parses the lines from start up to and including the blank line that ends
+	 * the review, returns the position after it or -1 if the buffer ends first;
+	 * at the end of the input the buffer end also ends the review
+	 */
+	private int parseRecord(int start, boolean endOfInput) {
+		record.reset(buffer);
+		int limit = buffer.limit();
+		int lineStart = start;
+		while (lineStart < limit) {
+			int lineEnd = lineStart;
+			while (lineEnd < limit && buffer.get(lineEnd) != '\n')
+				lineEnd++;
+			if (lineEnd == limit && !endOfInput)
+				return -1;
+			int contentEnd = lineEnd;
+			if (contentEnd > lineStart && buffer.get(contentEnd - 1) == '\r')
+				contentEnd--;
+			if (isBlank(lineStart, contentEnd))
+				return Math.min(lineEnd + 1, limit);
+			parseLine(lineStart, contentEnd);
+			lineStart = lineEnd + 1;
+		}
+		return endOfInput ? limit : -1;
+	}
+
+	private boolean isBlank(int from, int to) {
+		for (int i = from; i < to; i++) {
+			byte b = buffer.get(i);
+			if (b != ' ' && b != '\t')
+				return false;
+		}
+		return true;
+	}
+
+	private void parseLine(int from, int to) {
+		int separator = -1;
+		for (int i = from; i + 1 < to; i++) {
+			if (buffer.get(i) == ':' && buffer.get(i + 1) == ' ') {
+				separator = i;
+				break;
+			}
+		}
+		if (separator < 0)
+			return;
+		int keyStart = from;
+		for (int i = separator - 1; i >= from; i--) {
+			if (buffer.get(i) == '/') {
+				keyStart = i + 1;
+				break;
+			}
+		}
+		int valueStart = separator + 2;
+		int valueLength = to - valueStart;
+		if (keyEquals(keyStart, separator, KEY_PRODUCT_ID))
+			record.setField(ReviewRecord.PRODUCT_ID, valueStart, valueLength);
+		else if (keyEquals(keyStart, separator, KEY_USER_ID))
+			record.setField(ReviewRecord.USER_ID, valueStart, valueLength);
+		else if (keyEquals(keyStart, separator, KEY_PROFILE_NAME))
+			record.setField(ReviewRecord.PROFILE_NAME, valueStart, valueLength);
+		else if (keyEquals(keyStart, separator, KEY_SUMMARY))
+			record.setField(ReviewRecord.SUMMARY, valueStart, valueLength);
+		else if (keyEquals(keyStart, separator, KEY_TEXT))
+			record.setField(ReviewRecord.TEXT, valueStart, valueLength);
+		else if (keyEquals(keyStart, separator, KEY_SCORE))
+			record.setScore(parseDouble(valueStart, to));
+		else if (keyEquals(keyStart, separator, KEY_TIME))
+			record.setTime(parseLong(valueStart, to));
+		else if (keyEquals(keyStart, separator, KEY_HELPFULNESS))
+			parseHelpfulness(valueStart, to);
+	}
+
+	private boolean keyEquals(int from, int to, byte[] key) {
+		if (to - from != key.length)
+			return false;
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(from + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private long parseLong(int from, int to) {
+		long value = 0;
+		boolean negative = false;
+		int i = from;
+		if (i < to && buffer.get(i) == '-') {
+			negative = true;
+			i++;
+		}
+		for (; i < to; i++) {
+			byte b = buffer.get(i);
+			if (b < '0' || b > '9')
+				break;
+			value = value * 10 + (b - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	private double parseDouble(int from, int to) {
+		long whole = 0;
+		long fraction = 0;
+		long scale = 1;
+		boolean negative = false;
+		boolean inFraction = false;
+		int i = from;
+		if (i < to && buffer.get(i) == '-') {
+			negative = true;
+			i++;
+		}
+		for (; i < to; i++) {
+			byte b = buffer.get(i);
+			if (b == '.' && !inFraction) {
+				inFraction = true;
+			} else if (b >= '0' && b <= '9') {
+				if (inFraction) {
+					if (scale < 1000000000000L) {
+						fraction = fraction * 10 + (b - '0');
+						scale *= 10;
+					}
+				} else {
+					whole = whole * 10 + (b - '0');
+				}
+			} else {
+				break;
+			}
+		}
+		double value = whole + (double) fraction / scale;
+		return negative ? -value : value;
+	}
+
+	private void parseHelpfulness(int from, int to) {
+		int slash = -1;
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) == '/') {
+				slash = i;
+				break;
+			}
+		}
+		if (slash < 0)
+			return;
+		record.setHelpfulness((int) parseLong(from, slash), (int) parseLong(slash + 1, to));
+	}
+
+	private static boolean isGzip(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return in.read() == 0x1f && in.read() == 0x8b;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] ascii(String key) {
+		return key.getBytes(Charset.forName("US-ASCII"));
+	}
+
+	/**
+	 * Where the bytes come from
+	 */
+	interface Source extends Closeable {
+		/**
+		 * @return the current buffer, positions 0 until limit are readable
+		 */
+		ByteBuffer buffer();
+
+		/**
+		 * Moves the window on so that it starts with the byte at keepFrom of the
+		 * current buffer, followed by as much new input as fits.
+		 * @return false if there is no more input
+		 */
+		boolean refill(ByteBuffer current, int keepFrom) throws IOException;
+	}
+
+	/**
+	 * A window of a memory-mapped file, remapped when the parser reaches its end
+	 */
+	static class MappedSource implements Source {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		private int window;
+		private long windowStart;
+		private ByteBuffer mapped;
+
+		MappedSource(File file, int window) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+			this.channel = this.file.getChannel();
+			this.size = channel.size();
+			this.window = window;
+			map(0);
+		}
+
+		private void map(long start) throws IOException {
+			windowStart = start;
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(window, size - start));
+		}
+
+		@Override
+		public ByteBuffer buffer() {
+			return mapped;
+		}
+
+		@Override
+		public boolean refill(ByteBuffer current, int keepFrom) throws IOException {
+			if (windowStart + mapped.limit() >= size)
+				return false;
+			if (keepFrom == 0) {
+				/*
+				 * a single review is bigger than the window
+				 */
+				if (window == Integer.MAX_VALUE)
+					throw new IOException("Review larger than " + window + " bytes");
+				window = (int) Math.min(window * 2L, Integer.MAX_VALUE);
+			}
+			map(windowStart + keepFrom);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mapped = null;
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * A reusable buffer filled from a stream
+	 */
+	static class StreamSource implements Source {
+		private final InputStream in;
+		private byte[] bytes = new byte[STREAM_BUFFER];
+		private ByteBuffer buffer;
+		private boolean eof;
+
+		StreamSource(InputStream in) {
+			this.in = in instanceof BufferedInputStream || in instanceof GZIPInputStream ? in : new BufferedInputStream(in, STREAM_BUFFER);
+			this.buffer = ByteBuffer.wrap(bytes);
+			this.buffer.limit(0);
+		}
+
+		@Override
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		@Override
+		public boolean refill(ByteBuffer current, int keepFrom) throws IOException {
+			if (eof)
+				return false;
+			int kept = buffer.limit() - keepFrom;
+			if (keepFrom == 0 && kept == bytes.length)
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			else
+				System.arraycopy(bytes, keepFrom, bytes, 0, kept);
+			int filled = kept;
+			while (filled < bytes.length) {
+				int read = in.read(bytes, filled, bytes.length - filled);
+				if (read < 0) {
+					eof = true;
+					break;
+				}
+				filled += read;
+			}
+			buffer = ByteBuffer.wrap(bytes);
+			buffer.limit(filled);
+			return filled > kept;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
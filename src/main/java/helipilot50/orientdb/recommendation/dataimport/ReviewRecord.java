@@ -0,0 +1,229 @@
+package helipilot50.orientdb.recommendation.dataimport;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import helipilot50.orientdb.recommendation.Constants;
+
+/**
+ * One review as read by a {@link ReviewReader}.
+ *
+ * The record is reused: the reader overwrites it with the next review, so it is
+ * only valid until then. Score, time and helpfulness are parsed into primitives;
+ * the string fields are kept as byte ranges of the reader's buffer and only
+ * decoded when they are asked for. Use {@link #copy()} to keep a review or hand
+ * it to another thread.
+ */
+public class ReviewRecord {
+	static final int PRODUCT_ID = 0;
+	static final int USER_ID = 1;
+	static final int PROFILE_NAME = 2;
+	static final int SUMMARY = 3;
+	static final int TEXT = 4;
+	private static final int FIELDS = 5;
+
+	private final Charset charset;
+	private ByteBuffer buffer;
+	private final int[] offsets = new int[FIELDS];
+	private final int[] lengths = new int[FIELDS];
+	private final String[] decoded = new String[FIELDS];
+	private byte[] scratch = new byte[256];
+
+	private double score;
+	private long time;
+	private int helpful;
+	private int helpfulTotal;
+	private boolean hasScore;
+	private boolean hasTime;
+	private boolean hasHelpfulness;
+
+	ReviewRecord(Charset charset) {
+		this.charset = charset;
+	}
+
+	void reset(ByteBuffer buffer) {
+		this.buffer = buffer;
+		for (int i = 0; i < FIELDS; i++) {
+			offsets[i] = -1;
+			lengths[i] = 0;
+			decoded[i] = null;
+		}
+		hasScore = false;
+		hasTime = false;
+		hasHelpfulness = false;
+	}
+
+	void setField(int field, int offset, int length) {
+		offsets[field] = offset;
+		lengths[field] = length;
+		decoded[field] = null;
+	}
+
+	void setScore(double score) {
+		this.score = score;
+		this.hasScore = true;
+	}
+
+	void setTime(long time) {
+		this.time = time;
+		this.hasTime = true;
+	}
+
+	void setHelpfulness(int helpful, int helpfulTotal) {
+		this.helpful = helpful;
+		this.helpfulTotal = helpfulTotal;
+		this.hasHelpfulness = true;
+	}
+
+	boolean isEmpty() {
+		for (int i = 0; i < FIELDS; i++)
+			if (offsets[i] >= 0)
+				return false;
+		return !hasScore && !hasTime && !hasHelpfulness;
+	}
+
+	public String getProductId() {
+		return field(PRODUCT_ID);
+	}
+
+	public String getUserId() {
+		return field(USER_ID);
+	}
+
+	public String getProfileName() {
+		return field(PROFILE_NAME);
+	}
+
+	public String getSummary() {
+		return field(SUMMARY);
+	}
+
+	public String getText() {
+		return field(TEXT);
+	}
+
+	/**
+	 * @return the length of the review text in bytes, without decoding it
+	 */
+	public int getTextLength() {
+		return lengths[TEXT];
+	}
+
+	public boolean hasScore() {
+		return hasScore;
+	}
+
+	public double getScore() {
+		return score;
+	}
+
+	public boolean hasTime() {
+		return hasTime;
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public boolean hasHelpfulness() {
+		return hasHelpfulness;
+	}
+
+	public int getHelpful() {
+		return helpful;
+	}
+
+	public int getHelpfulTotal() {
+		return helpfulTotal;
+	}
+
+	public String getHelpfulness() {
+		return hasHelpfulness ? helpful + "/" + helpfulTotal : null;
+	}
+
+	/**
+	 * The review as the map of properties that FineFoodsService.createReview stores
+	 * @return
+	 */
+	public Map<String, Object> toMap() {
+		Map<String, Object> review = new HashMap<String, Object>();
+		put(review, Constants.PRODUCT_ID, getProductId());
+		put(review, Constants.USER_ID, getUserId());
+		put(review, Constants.PROFILE_NAME, getProfileName());
+		put(review, "helpfulness", getHelpfulness());
+		if (hasScore)
+			review.put("score", score);
+		if (hasTime)
+			review.put("time", time);
+		put(review, "summary", getSummary());
+		put(review, "text", getText());
+		return review;
+	}
+
+	/**
+	 * @return a copy of this review that owns its bytes and stays valid after the reader moves on
+	 */
+	public ReviewRecord copy() {
+		int start = Integer.MAX_VALUE;
+		int end = 0;
+		for (int i = 0; i < FIELDS; i++) {
+			if (offsets[i] >= 0) {
+				start = Math.min(start, offsets[i]);
+				end = Math.max(end, offsets[i] + lengths[i]);
+			}
+		}
+		ReviewRecord copy = new ReviewRecord(charset);
+		byte[] bytes = new byte[Math.max(end - start, 0)];
+		if (bytes.length > 0) {
+			ByteBuffer source = buffer.duplicate();
+			source.position(start);
+			source.get(bytes);
+		}
+		copy.reset(ByteBuffer.wrap(bytes));
+		for (int i = 0; i < FIELDS; i++) {
+			if (offsets[i] >= 0)
+				copy.setField(i, offsets[i] - start, lengths[i]);
+		}
+		copy.score = score;
+		copy.hasScore = hasScore;
+		copy.time = time;
+		copy.hasTime = hasTime;
+		copy.helpful = helpful;
+		copy.helpfulTotal = helpfulTotal;
+		copy.hasHelpfulness = hasHelpfulness;
+		return copy;
+	}
+
+	private String field(int field) {
+		if (offsets[field] < 0)
+			return null;
+		String value = decoded[field];
+		if (value == null) {
+			value = decode(offsets[field], lengths[field]);
+			decoded[field] = value;
+		}
+		return value;
+	}
+
+	private String decode(int offset, int length) {
+		if (buffer.hasArray())
+			return new String(buffer.array(), buffer.arrayOffset() + offset, length, charset);
+		if (scratch.length < length)
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		for (int i = 0; i < length; i++)
+			scratch[i] = buffer.get(offset + i);
+		return new String(scratch, 0, length, charset);
+	}
+
+	private static void put(Map<String, Object> review, String key, String value) {
+		if (value != null)
+			review.put(key, value);
+	}
+
+	@Override
+	public String toString() {
+		return "ReviewRecord [productId=" + getProductId() + ", userId=" + getUserId() + ", score=" + score + ", time=" + time + "]";
+	}
+}
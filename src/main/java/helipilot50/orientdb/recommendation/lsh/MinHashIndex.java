@@ -0,0 +1,378 @@
+package helipilot50.orientdb.recommendation.lsh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * MinHash signatures of the sets of products the users reviewed, banded into
+ * locality sensitive hash buckets, to find the users likely to share many
+ * products with a user without reading the reviewers of each of its products.
+ *
+ * A signature holds the minimum of each of bands * rows hash functions over
+ * the user's product keys; two users agree on one of them with a probability
+ * equal to the Jaccard similarity of their sets. Users that agree on all the
+ * rows of a band share that band's bucket, so a pair with Jaccard s shares at
+ * least one bucket with probability 1 - (1 - s^rows)^bands. Candidates are
+ * ranked by the number of buckets they share with the user.
+ *
+ * Users and products are keyed like rating vectors, by FineFoodsService.userKey
+ * and productKey. A new review can only lower minimums, so the user moves only
+ * out of and into the buckets of the bands that changed, each bucket guarded by
+ * its own lock.
+ */
+public class MinHashIndex {
+	private static final Logger log = LoggerFactory.getLogger(MinHashIndex.class);
+	private static final long PRIME = (1L << 31) - 1;
+
+	private final int bands;
+	private final int rows;
+	private final long[] a;
+	private final long[] b;
+	private final ConcurrentMap<Integer, int[]> signatures = new ConcurrentHashMap<Integer, int[]>();
+	private final List<ConcurrentMap<Integer, Bucket>> buckets;
+
+	/**
+	 * @param bands
+	 * @param rows hash functions per band
+	 * @param seed of the hash functions, an index is only comparable with one
+	 *        of the same seed
+	 */
+	public MinHashIndex(int bands, int rows, long seed) {
+		super();
+		this.bands = bands;
+		this.rows = rows;
+		Random random = new Random(seed);
+		a = new long[bands * rows];
+		b = new long[bands * rows];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = 1 + (long) (random.nextDouble() * (PRIME - 1));
+			b[i] = (long) (random.nextDouble() * PRIME);
+		}
+		buckets = new ArrayList<ConcurrentMap<Integer, Bucket>>(bands);
+		for (int band = 0; band < bands; band++)
+			buckets.add(new ConcurrentHashMap<Integer, Bucket>());
+	}
+
+	/**
+	 * Signs the products of every user in the graph. The reviews are read on
+	 * the calling thread, the signatures computed on parallelism threads.
+	 * @param graph
+	 * @param bands
+	 * @param rows
+	 * @param seed
+	 * @param parallelism
+	 * @return
+	 */
+	public static MinHashIndex rebuild(OrientBaseGraph graph, int bands, int rows, long seed, int parallelism) {
+		long start = System.currentTimeMillis();
+		final MinHashIndex index = new MinHashIndex(bands, rows, seed);
+		int[] users = new int[1024];
+		int[][] products = new int[1024][];
+		int size = 0;
+		if (graph.getVertexType(Constants.USER_CLASS) != null) {
+			for (Vertex vUser : graph.getVerticesOfClass(Constants.USER_CLASS)) {
+				int[] keys = new int[8];
+				int count = 0;
+				for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+					if (count == keys.length)
+						keys = Arrays.copyOf(keys, count * 2);
+					keys[count++] = FineFoodsService.productKey(((OrientEdge) review).getInVertex());
+				}
+				if (count == 0)
+					continue;
+				if (size == users.length) {
+					users = Arrays.copyOf(users, size * 2);
+					products = Arrays.copyOf(products, size * 2);
+				}
+				users[size] = FineFoodsService.userKey((OIdentifiable) vUser);
+				products[size] = Arrays.copyOf(keys, count);
+				size++;
+			}
+		}
+		long read = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new Signing(index, users, products, 0, size, Math.max(1, size / (parallelism * 16))));
+		} finally {
+			pool.shutdown();
+		}
+		log.info(String.format("Rebuilt MinHash index of %d users, %d bands of %d rows, %d buckets, read in %d ms and signed in %d ms on %d threads",
+				size, bands, rows, index.bucketCount(), read - start, System.currentTimeMillis() - read, parallelism));
+		return index;
+	}
+
+	/**
+	 * Sign the products of a user, replacing what the index held for it; not
+	 * while reviews of the user are added
+	 * @param user
+	 * @param products the keys of the products, duplicates allowed
+	 */
+	public void put(int user, int[] products) {
+		int[] signature = signature(products);
+		int[] previous = signatures.put(user, signature);
+		for (int band = 0; band < bands; band++) {
+			if (previous != null && previous[band * rows] != Integer.MAX_VALUE)
+				bucket(band, bandKey(previous, band)).remove(user);
+			if (signature[band * rows] != Integer.MAX_VALUE)
+				bucket(band, bandKey(signature, band)).add(user);
+		}
+	}
+
+	/**
+	 * Sign a review that was just added
+	 * @param user the user's key
+	 * @param product the product's key
+	 */
+	public void reviewAdded(int user, int product) {
+		int[] signature = signatures.get(user);
+		if (signature == null) {
+			int[] created = new int[bands * rows];
+			Arrays.fill(created, Integer.MAX_VALUE);
+			signature = signatures.putIfAbsent(user, created);
+			if (signature == null)
+				signature = created;
+		}
+		synchronized (signature) {
+			for (int band = 0; band < bands; band++) {
+				int first = band * rows;
+				boolean signed = signature[first] != Integer.MAX_VALUE;
+				int before = signed ? bandKey(signature, band) : 0;
+				boolean changed = false;
+				for (int i = first; i < first + rows; i++) {
+					int h = hash(i, product);
+					if (h < signature[i]) {
+						signature[i] = h;
+						changed = true;
+					}
+				}
+				if (!changed)
+					continue;
+				if (signed)
+					bucket(band, before).remove(user);
+				bucket(band, bandKey(signature, band)).add(user);
+			}
+		}
+	}
+
+	/**
+	 * @param products the keys of the products, duplicates allowed
+	 * @return the signature of the set of products
+	 */
+	public int[] signature(int[] products) {
+		int[] signature = new int[bands * rows];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		for (int product : products) {
+			for (int i = 0; i < signature.length; i++) {
+				int h = hash(i, product);
+				if (h < signature[i])
+					signature[i] = h;
+			}
+		}
+		return signature;
+	}
+
+	/**
+	 * @param user
+	 * @return a copy of the user's signature, or null if the user is not indexed
+	 */
+	public int[] signatureOf(int user) {
+		int[] signature = signatures.get(user);
+		if (signature == null)
+			return null;
+		synchronized (signature) {
+			return signature.clone();
+		}
+	}
+
+	/**
+	 * The users that share the most buckets with a user
+	 * @param user the user's key
+	 * @param ratings the user's ratings, signed when the user is not indexed
+	 * @param max how many candidates at most
+	 * @return the keys of the candidates by the number of buckets shared
+	 */
+	public TopK candidates(int user, SparseVector ratings, int max) {
+		int[] signature = signatureOf(user);
+		if (signature == null) {
+			int[] products = new int[ratings.size()];
+			for (int i = 0; i < products.length; i++)
+				products[i] = ratings.id(i);
+			signature = signature(products);
+		}
+		IntIntHashMap shared = new IntIntHashMap();
+		for (int band = 0; band < bands; band++) {
+			if (signature[band * rows] == Integer.MAX_VALUE)
+				continue;
+			Bucket bucket = buckets.get(band).get(bandKey(signature, band));
+			if (bucket != null)
+				bucket.addTo(shared, user);
+		}
+		TopK top = new TopK(max);
+		for (int other : shared.keys())
+			top.offer(other, shared.get(other, 0));
+		return top.sort();
+	}
+
+	/**
+	 * @param user
+	 * @param other
+	 * @return the share of the hash functions on which the two users agree,
+	 *         an estimate of the Jaccard similarity of their products
+	 */
+	public double estimatedJaccard(int user, int other) {
+		int[] mine = signatureOf(user);
+		int[] theirs = signatureOf(other);
+		if (mine == null || theirs == null)
+			return 0d;
+		int agree = 0;
+		for (int i = 0; i < mine.length; i++) {
+			if (mine[i] == theirs[i])
+				agree++;
+		}
+		return (double) agree / mine.length;
+	}
+
+	/**
+	 * @return the keys of the indexed users
+	 */
+	public int[] userKeys() {
+		int[] keys = new int[signatures.size()];
+		int size = 0;
+		for (Integer user : signatures.keySet()) {
+			if (size == keys.length)
+				keys = Arrays.copyOf(keys, size * 2 + 1);
+			keys[size++] = user;
+		}
+		return Arrays.copyOf(keys, size);
+	}
+
+	public int userCount() {
+		return signatures.size();
+	}
+
+	public int bucketCount() {
+		int count = 0;
+		for (ConcurrentMap<Integer, Bucket> band : buckets)
+			count += band.size();
+		return count;
+	}
+
+	public int getBands() {
+		return bands;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/*
+	 * the i-th hash function, (a x + b) mod p over
+	 * the product key, below Integer.MAX_VALUE
+	 */
+	private int hash(int i, int product) {
+		return (int) ((a[i] * (product & 0x7fffffffL) + b[i]) % PRIME);
+	}
+
+	private int bandKey(int[] signature, int band) {
+		int key = 1;
+		for (int i = band * rows; i < (band + 1) * rows; i++)
+			key = 31 * key + signature[i];
+		return key;
+	}
+
+	private Bucket bucket(int band, int key) {
+		ConcurrentMap<Integer, Bucket> map = buckets.get(band);
+		Bucket bucket = map.get(key);
+		if (bucket == null) {
+			Bucket created = new Bucket();
+			bucket = map.putIfAbsent(key, created);
+			if (bucket == null)
+				bucket = created;
+		}
+		return bucket;
+	}
+
+	/*
+	 * the users of a bucket, an emptied bucket is
+	 * left in place for whoever joins it next
+	 */
+	private static class Bucket {
+		private int[] users = new int[4];
+		private int size;
+
+		synchronized void add(int user) {
+			if (size == users.length)
+				users = Arrays.copyOf(users, size * 2);
+			users[size++] = user;
+		}
+
+		synchronized void remove(int user) {
+			for (int i = 0; i < size; i++) {
+				if (users[i] == user) {
+					users[i] = users[--size];
+					return;
+				}
+			}
+		}
+
+		synchronized void addTo(IntIntHashMap shared, int self) {
+			for (int i = 0; i < size; i++) {
+				if (users[i] != self)
+					shared.addTo(users[i], 1);
+			}
+		}
+	}
+
+	private static class Signing extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final MinHashIndex index;
+		private final int[] users;
+		private final int[][] products;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		Signing(MinHashIndex index, int[] users, int[][] products, int from, int to, int grain) {
+			this.index = index;
+			this.users = users;
+			this.products = products;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				for (int u = from; u < to; u++)
+					index.put(users[u], products[u]);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Signing(index, users, products, from, mid, grain),
+					new Signing(index, users, products, mid, to, grain));
+		}
+	}
+}
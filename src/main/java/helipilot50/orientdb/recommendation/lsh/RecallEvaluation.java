@@ -0,0 +1,97 @@
+package helipilot50.orientdb.recommendation.lsh;
+
+import java.util.Random;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+
+import helipilot50.orientdb.recommendation.CoReviewers;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * Measures the recall of a MinHashIndex against exact Jaccard similarity.
+ *
+ * For a random sample of the indexed users, every co-reviewer is found by
+ * walking the graph and ranked by the Jaccard similarity of the products the two
+ * reviewed; the recall of a user is the share of the k highest of those that
+ * are among its MinHash candidates.
+ */
+public class RecallEvaluation {
+
+	/**
+	 * @param index
+	 * @param service reads the graph the index was built from
+	 * @param users how many users to sample
+	 * @param k how many of the most similar co-reviewers to look for
+	 * @param maxCandidates how many candidates to take from the index
+	 * @param seed of the sample
+	 * @return
+	 */
+	public static RecallReport evaluate(MinHashIndex index, FineFoodsService service, int users, int k,
+			int maxCandidates, long seed) {
+		RecallReport report = new RecallReport();
+		report.bands = index.getBands();
+		report.rows = index.getRows();
+		report.k = k;
+		report.maxCandidates = maxCandidates;
+		int[] userKeys = index.userKeys();
+		Random random = new Random(seed);
+		int sample = Math.min(users, userKeys.length);
+		for (int s = 0; s < sample; s++) {
+			/*
+			 * a partial shuffle, the first s are the sample
+			 */
+			int pick = s + random.nextInt(userKeys.length - s);
+			int user = userKeys[pick];
+			userKeys[pick] = userKeys[s];
+			userKeys[s] = user;
+
+			OIdentifiable identity = service.userIdentity(user);
+			Vertex vUser = service.getVertex(identity);
+			if (vUser == null)
+				continue;
+			SparseVector ratings = service.vectorForUser(identity);
+			long start = System.nanoTime();
+			CoReviewers exact = service.coReviewers(vUser);
+			long exactTime = System.nanoTime() - start;
+			if (exact.size() == 0)
+				continue;
+			start = System.nanoTime();
+			TopK candidates = index.candidates(user, ratings, maxCandidates);
+			long lshTime = System.nanoTime() - start;
+
+			TopK nearest = new TopK(k);
+			for (int i = 0; i < exact.size(); i++) {
+				OIdentifiable other = exact.user(i);
+				nearest.offer(FineFoodsService.userKey(other), jaccard(ratings, service.vectorForUser(other)));
+			}
+			nearest.sort();
+			IntIntHashMap found = new IntIntHashMap(candidates.size());
+			for (int i = 0; i < candidates.size(); i++)
+				found.put(candidates.id(i), 1);
+			int hits = 0;
+			for (int i = 0; i < nearest.size(); i++) {
+				if (found.containsKey(nearest.id(i)))
+					hits++;
+			}
+			report.user((double) hits / nearest.size(), exact.size(), candidates.size(), exactTime, lshTime);
+		}
+		return report;
+	}
+
+	/*
+	 * of the products two users reviewed
+	 */
+	static double jaccard(SparseVector mine, SparseVector theirs) {
+		int shared = 0;
+		for (int i = 0; i < mine.size(); i++) {
+			if (theirs.contains(mine.id(i)))
+				shared++;
+		}
+		int union = mine.size() + theirs.size() - shared;
+		return union == 0 ? 0d : (double) shared / union;
+	}
+}
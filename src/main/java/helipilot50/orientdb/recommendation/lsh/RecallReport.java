@@ -0,0 +1,93 @@
+package helipilot50.orientdb.recommendation.lsh;
+
+/**
+ * How well the MinHash candidates of a sample of users cover their most similar
+ * co-reviewers by exact Jaccard similarity, and what each way cost
+ */
+public class RecallReport {
+	int bands;
+	int rows;
+	int k;
+	int maxCandidates;
+	int usersEvaluated;
+	double recallSum;
+	long exactCandidates;
+	long lshCandidates;
+	long exactNanos;
+	long lshNanos;
+
+	void user(double recall, int exact, int lsh, long exactTime, long lshTime) {
+		usersEvaluated++;
+		recallSum += recall;
+		exactCandidates += exact;
+		lshCandidates += lsh;
+		exactNanos += exactTime;
+		lshNanos += lshTime;
+	}
+
+	public int getBands() {
+		return bands;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public int getMaxCandidates() {
+		return maxCandidates;
+	}
+
+	/**
+	 * @return the users with at least one co-reviewer, of those sampled
+	 */
+	public int getUsersEvaluated() {
+		return usersEvaluated;
+	}
+
+	/**
+	 * @return the mean share of the k co-reviewers of highest Jaccard
+	 *         similarity that are among the MinHash candidates
+	 */
+	public double getRecall() {
+		return usersEvaluated == 0 ? 0d : recallSum / usersEvaluated;
+	}
+
+	/**
+	 * @return the mean number of co-reviewers the graph walk finds
+	 */
+	public double getExactCandidates() {
+		return usersEvaluated == 0 ? 0d : (double) exactCandidates / usersEvaluated;
+	}
+
+	/**
+	 * @return the mean number of MinHash candidates
+	 */
+	public double getLshCandidates() {
+		return usersEvaluated == 0 ? 0d : (double) lshCandidates / usersEvaluated;
+	}
+
+	/**
+	 * @return the mean time of the graph walk
+	 */
+	public double getExactMillis() {
+		return usersEvaluated == 0 ? 0d : exactNanos / 1e6 / usersEvaluated;
+	}
+
+	/**
+	 * @return the mean time of the MinHash lookup
+	 */
+	public double getLshMillis() {
+		return usersEvaluated == 0 ? 0d : lshNanos / 1e6 / usersEvaluated;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("recall@%d %.3f over %d users with %d bands of %d rows, candidates %.1f exact and %.1f LSH (at most %d), %.3f ms exact and %.3f ms LSH",
+				k, getRecall(), usersEvaluated, bands, rows, getExactCandidates(), getLshCandidates(), maxCandidates,
+				getExactMillis(), getLshMillis());
+	}
+}
@@ -0,0 +1,131 @@
+package helipilot50.orientdb.recommendation.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The distribution of a non-negative value, e.g. a latency in nanoseconds or
+ * the vertices a request loaded, cheap enough to record on every request.
+ *
+ * Values go into log-linear buckets, 8 per power of two, so a percentile is off
+ * by at most an eighth of its value. Recording is two atomic increments and a
+ * compare-and-set for the maximum, with no lock and no allocation. The buckets
+ * cover the current window; rotate() closes it, and percentiles are read from
+ * the last closed window so they follow the recent load, while count and sum
+ * add up from the start.
+ */
+public final class Histogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private volatile Window current = new Window();
+	private volatile Window last = new Window();
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+		current.record(value);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+	}
+
+	/**
+	 * Close the current window, and start a new one
+	 */
+	public synchronized void rotate() {
+		last = current;
+		current = new Window();
+	}
+
+	/**
+	 * @return the values recorded since the start
+	 */
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * @return the sum of the values recorded since the start
+	 */
+	public long sum() {
+		return sum.get();
+	}
+
+	/**
+	 * @return the values recorded in the last closed window
+	 */
+	public long windowCount() {
+		return last.count();
+	}
+
+	/**
+	 * @return the largest value in the last closed window, 0 if it is empty
+	 */
+	public long windowMax() {
+		return last.max.get();
+	}
+
+	/**
+	 * @param quantile between 0 and 1
+	 * @return the value below which that share of the last closed window
+	 *         falls, 0 if it is empty
+	 */
+	public long percentile(double quantile) {
+		return last.percentile(quantile);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/*
+	 * the largest value in the bucket
+	 */
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		int magnitude = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (magnitude - SUB_BUCKET_BITS);
+		return base + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+	}
+
+	private static class Window {
+		final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		final AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			buckets.incrementAndGet(bucket(value));
+			long seen = max.get();
+			while (value > seen && !max.compareAndSet(seen, value))
+				seen = max.get();
+		}
+
+		long count() {
+			long count = 0;
+			for (int b = 0; b < BUCKETS; b++)
+				count += buckets.get(b);
+			return count;
+		}
+
+		long percentile(double quantile) {
+			long count = count();
+			if (count == 0)
+				return 0;
+			long rank = (long) Math.ceil(quantile * count);
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				seen += buckets.get(b);
+				if (seen >= rank && seen > 0)
+					return Math.min(upperBound(b), max.get());
+			}
+			return max.get();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package helipilot50.orientdb.recommendation.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named timers, histograms and counters, created on first use and shared by
+ * every thread.
+ *
+ * A timer is a Histogram of nanoseconds, kept apart from the histograms of
+ * counts so they can be published in their own unit.
+ */
+public class Metrics {
+	private final ConcurrentMap<String, Histogram> timers = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Record the time since start
+	 * @param name
+	 * @param start from System.nanoTime()
+	 */
+	public void time(String name, long start) {
+		timer(name).record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Record a value, e.g. the vertices one request loaded
+	 * @param name
+	 * @param value
+	 */
+	public void record(String name, long value) {
+		histogram(name).record(value);
+	}
+
+	public void increment(String name) {
+		counter(name).incrementAndGet();
+	}
+
+	public void add(String name, long delta) {
+		counter(name).addAndGet(delta);
+	}
+
+	public Histogram timer(String name) {
+		return get(timers, name);
+	}
+
+	public Histogram histogram(String name) {
+		return get(histograms, name);
+	}
+
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(name, created);
+			if (counter == null)
+				counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * Close the window of every timer and histogram
+	 */
+	public void rotate() {
+		for (Histogram timer : timers.values())
+			timer.rotate();
+		for (Histogram histogram : histograms.values())
+			histogram.rotate();
+	}
+
+	public Map<String, Histogram> getTimers() {
+		return timers;
+	}
+
+	public Map<String, Histogram> getHistograms() {
+		return histograms;
+	}
+
+	public Map<String, AtomicLong> getCounters() {
+		return counters;
+	}
+
+	private static Histogram get(ConcurrentMap<String, Histogram> histograms, String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null)
+				histogram = created;
+		}
+		return histogram;
+	}
+}
@@ -0,0 +1,380 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+/**
+ * Factorises the user x product matrix of review scores by alternating least
+ * squares, into the LatentFactors the service can recommend from.
+ *
+ * Each rating minus the mean of all ratings is approximated by the dot product
+ * of a user's and a product's factors. With the product factors fixed, the
+ * factors of each user are the solution of a small ridge regression over the
+ * products it reviewed, weighted by lambda times the number of those reviews;
+ * then the other way round, for iterations rounds. Each half solves its users or
+ * products independently, split into ranges across a fork/join pool.
+ *
+ * A share of the reviews, chosen by a hash of user and product so the choice
+ * does not depend on the order they are read in, is held out of training and
+ * scored after every iteration.
+ */
+public class AlsTrainer {
+	private static final Logger log = LoggerFactory.getLogger(AlsTrainer.class);
+	public static final int DEFAULT_FACTORS = 32;
+	public static final int DEFAULT_ITERATIONS = 10;
+	public static final double DEFAULT_LAMBDA = 0.1;
+	public static final double DEFAULT_HOLDOUT = 0.1;
+	public static final String DEFAULT_FILE = "data/latent-factors.bin";
+
+	private final int factors;
+	private final int iterations;
+	private final double lambda;
+	private final double holdout;
+	private final long seed;
+	private final int parallelism;
+
+	/**
+	 * @param factors per user and product
+	 * @param iterations
+	 * @param lambda regularisation
+	 * @param holdout the share of the reviews to hold out, 0 for none
+	 * @param seed of the initial factors and of the hold-out
+	 * @param parallelism worker threads
+	 */
+	public AlsTrainer(int factors, int iterations, double lambda, double holdout, long seed, int parallelism) {
+		super();
+		this.factors = factors;
+		this.iterations = iterations;
+		this.lambda = lambda;
+		this.holdout = holdout;
+		this.seed = seed;
+		this.parallelism = parallelism;
+	}
+
+	public static void main(String[] args) throws ParseException, IOException {
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("f", "factors", true, "Factors per user and product, default: " + DEFAULT_FACTORS);
+		options.addOption("i", "iterations", true, "Iterations, default: " + DEFAULT_ITERATIONS);
+		options.addOption("l", "lambda", true, "Regularisation, default: " + DEFAULT_LAMBDA);
+		options.addOption("h", "holdout", true, "Share of reviews held out to measure RMSE, default: " + DEFAULT_HOLDOUT);
+		options.addOption("p", "parallelism", true, "Worker threads, default: number of cores");
+		options.addOption("o", "output", true, "Model file, default: " + DEFAULT_FILE);
+		options.addOption("u", "usage", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		int factors = Integer.parseInt(cl.getOptionValue("f", String.valueOf(DEFAULT_FACTORS)));
+		int iterations = Integer.parseInt(cl.getOptionValue("i", String.valueOf(DEFAULT_ITERATIONS)));
+		double lambda = Double.parseDouble(cl.getOptionValue("l", String.valueOf(DEFAULT_LAMBDA)));
+		double holdout = Double.parseDouble(cl.getOptionValue("h", String.valueOf(DEFAULT_HOLDOUT)));
+		int parallelism = Integer.parseInt(cl.getOptionValue("p", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		File output = new File(cl.getOptionValue("o", DEFAULT_FILE));
+		log.info("Database: " + db);
+
+		ItemSimilarityJob.resetPeakHeap();
+		long start = System.currentTimeMillis();
+		ReviewGraphSnapshot snapshot;
+		OrientGraphFactory factory = new OrientGraphFactory(db);
+		try {
+			OrientGraphNoTx graph = factory.getNoTx();
+			try {
+				snapshot = ReviewGraphSnapshot.build(graph);
+			} finally {
+				graph.shutdown();
+			}
+		} finally {
+			factory.close();
+		}
+		LatentFactors model = new AlsTrainer(factors, iterations, lambda, holdout, 1, parallelism).run(snapshot);
+		model.write(output);
+		log.info(String.format("Wrote %d factors of %d users and %d products to %s, hold-out RMSE %.4f, %d ms in total, peak heap %d MB",
+				model.getFactors(), model.userCount(), model.productCount(), output, model.getHoldoutRmse(),
+				System.currentTimeMillis() - start, ItemSimilarityJob.peakHeap() >> 20));
+	}
+
+	/**
+	 * @param snapshot
+	 * @return the factors of every user and product in the snapshot
+	 */
+	public LatentFactors run(ReviewGraphSnapshot snapshot) {
+		long start = System.currentTimeMillis();
+		int userCount = snapshot.userCount();
+		int productCount = snapshot.productCount();
+		int[] userOffsets = snapshot.userOffsets();
+		int[] userProducts = snapshot.userProducts();
+		float[] userScores = snapshot.userScores();
+		double sum = 0;
+		long count = 0;
+		for (int u = 0; u < userCount; u++) {
+			for (int i = userOffsets[u]; i < userOffsets[u + 1]; i++) {
+				if (!heldOut(u, userProducts[i])) {
+					sum += userScores[i];
+					count++;
+				}
+			}
+		}
+		float mean = count == 0 ? 0f : (float) (sum / count);
+		float[] userFactors = new float[userCount * factors];
+		float[] productFactors = new float[productCount * factors];
+		Random random = new Random(seed);
+		for (int i = 0; i < productFactors.length; i++)
+			productFactors[i] = (float) (random.nextGaussian() * 0.1);
+
+		Context context = new Context(snapshot, mean, userFactors, productFactors);
+		double trainRmse = Double.NaN;
+		double holdoutRmse = Double.NaN;
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			for (int iteration = 1; iteration <= iterations; iteration++) {
+				long iterationStart = System.currentTimeMillis();
+				pool.invoke(new Solve(context, true, 0, userCount, Math.max(1, userCount / (parallelism * 16))));
+				pool.invoke(new Solve(context, false, 0, productCount, Math.max(1, productCount / (parallelism * 16))));
+				double[] rmse = rmse(context);
+				trainRmse = rmse[0];
+				holdoutRmse = rmse[1];
+				log.info(String.format("Iteration %d in %d ms, train RMSE %.4f, hold-out RMSE %.4f",
+						iteration, System.currentTimeMillis() - iterationStart, trainRmse, holdoutRmse));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		String[] userIds = new String[userCount];
+		for (int u = 0; u < userCount; u++)
+			userIds[u] = snapshot.userId(u);
+		String[] productIds = new String[productCount];
+		for (int p = 0; p < productCount; p++)
+			productIds[p] = snapshot.productId(p);
+		LatentFactors model = new LatentFactors(userIds, productIds, factors, mean, userFactors, productFactors,
+				userOffsets, userProducts, trainRmse, holdoutRmse, snapshot.getBuiltAt());
+		log.info(String.format("Trained %d factors of %d users and %d products from %d reviews in %d ms on %d threads, model %d bytes",
+				factors, userCount, productCount, count, System.currentTimeMillis() - start, parallelism, model.memoryFootprint()));
+		return model;
+	}
+
+	/*
+	 * a hash of the pair below the share held out
+	 */
+	boolean heldOut(int user, int product) {
+		if (holdout <= 0)
+			return false;
+		long h = seed ^ (user * 0x9E3779B97F4A7C15L) ^ (product * 0xC2B2AE3D27D4EB4FL);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (h >>> 11) * 0x1.0p-53 < holdout;
+	}
+
+	/*
+	 * of the training and of the held out reviews
+	 */
+	private double[] rmse(Context context) {
+		ReviewGraphSnapshot snapshot = context.snapshot;
+		int[] userOffsets = snapshot.userOffsets();
+		int[] userProducts = snapshot.userProducts();
+		float[] userScores = snapshot.userScores();
+		double train = 0, test = 0;
+		long trainCount = 0, testCount = 0;
+		for (int u = 0; u < snapshot.userCount(); u++) {
+			for (int i = userOffsets[u]; i < userOffsets[u + 1]; i++) {
+				int p = userProducts[i];
+				double error = userScores[i] - context.mean
+						- dot(context.userFactors, u, context.productFactors, p);
+				if (heldOut(u, p)) {
+					test += error * error;
+					testCount++;
+				} else {
+					train += error * error;
+					trainCount++;
+				}
+			}
+		}
+		return new double[] { trainCount == 0 ? Double.NaN : Math.sqrt(train / trainCount),
+				testCount == 0 ? Double.NaN : Math.sqrt(test / testCount) };
+	}
+
+	private double dot(float[] left, int l, float[] right, int r) {
+		double sum = 0;
+		for (int k = 0; k < factors; k++)
+			sum += left[l * factors + k] * right[r * factors + k];
+		return sum;
+	}
+
+	/*
+	 * the factors of one user, or of one product, from the
+	 * fixed factors of the other side
+	 */
+	private void solve(Context context, boolean users, int row, Scratch scratch) {
+		ReviewGraphSnapshot snapshot = context.snapshot;
+		int[] offsets = users ? snapshot.userOffsets() : snapshot.productOffsets();
+		int[] columns = users ? snapshot.userProducts() : snapshot.productUsers();
+		float[] scores = users ? snapshot.userScores() : snapshot.productScores();
+		float[] fixed = users ? context.productFactors : context.userFactors;
+		float[] solved = users ? context.userFactors : context.productFactors;
+		double[] a = scratch.a;
+		double[] b = scratch.b;
+		Arrays.fill(a, 0d);
+		Arrays.fill(b, 0d);
+		int n = 0;
+		for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+			int column = columns[i];
+			if (users ? heldOut(row, column) : heldOut(column, row))
+				continue;
+			int at = column * factors;
+			double rating = scores[i] - context.mean;
+			for (int j = 0; j < factors; j++) {
+				double yj = fixed[at + j];
+				b[j] += rating * yj;
+				for (int k = 0; k <= j; k++)
+					a[j * factors + k] += yj * fixed[at + k];
+			}
+			n++;
+		}
+		int out = row * factors;
+		if (n == 0) {
+			for (int j = 0; j < factors; j++)
+				solved[out + j] = 0f;
+			return;
+		}
+		for (int j = 0; j < factors; j++)
+			a[j * factors + j] += lambda * n;
+		choleskySolve(a, b, factors);
+		for (int j = 0; j < factors; j++)
+			solved[out + j] = (float) b[j];
+	}
+
+	/*
+	 * solves a x = b in place, x into b, for a symmetric positive
+	 * definite a of which the lower triangle is filled
+	 */
+	static void choleskySolve(double[] a, double[] b, int n) {
+		for (int j = 0; j < n; j++) {
+			double d = a[j * n + j];
+			for (int k = 0; k < j; k++)
+				d -= a[j * n + k] * a[j * n + k];
+			d = Math.sqrt(d);
+			a[j * n + j] = d;
+			for (int i = j + 1; i < n; i++) {
+				double s = a[i * n + j];
+				for (int k = 0; k < j; k++)
+					s -= a[i * n + k] * a[j * n + k];
+				a[i * n + j] = s / d;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			double s = b[i];
+			for (int k = 0; k < i; k++)
+				s -= a[i * n + k] * b[k];
+			b[i] = s / a[i * n + i];
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			double s = b[i];
+			for (int k = i + 1; k < n; k++)
+				s -= a[k * n + i] * b[k];
+			b[i] = s / a[i * n + i];
+		}
+	}
+
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = AlsTrainer.class.getName() + " [<options>]";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+
+	/*
+	 * what the tasks share; each task writes only the factors of its rows
+	 */
+	private class Context {
+		final ReviewGraphSnapshot snapshot;
+		final float mean;
+		final float[] userFactors;
+		final float[] productFactors;
+		final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch(factors);
+			}
+		};
+
+		Context(ReviewGraphSnapshot snapshot, float mean, float[] userFactors, float[] productFactors) {
+			this.snapshot = snapshot;
+			this.mean = mean;
+			this.userFactors = userFactors;
+			this.productFactors = productFactors;
+		}
+	}
+
+	private class Solve extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Context context;
+		private final boolean users;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		Solve(Context context, boolean users, int from, int to, int grain) {
+			this.context = context;
+			this.users = users;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				Scratch scratch = context.scratch.get();
+				for (int row = from; row < to; row++)
+					solve(context, users, row, scratch);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Solve(context, users, from, mid, grain), new Solve(context, users, mid, to, grain));
+		}
+	}
+
+	/*
+	 * the normal equations of one row
+	 */
+	private static class Scratch {
+		final double[] a;
+		final double[] b;
+
+		Scratch(int factors) {
+			a = new double[factors * factors];
+			b = new double[factors];
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+import helipilot50.orientdb.recommendation.store.FeatureStoreWriter;
+
+/**
+ * Snapshots the review graph once, trains its latent factors and computes its
+ * similar products from that snapshot, and writes the lot as a FeatureStore the
+ * service maps at startup or on a reload.
+ *
+ * The factors are trained on every review, none held out: run AlsTrainer to
+ * choose the factors and regularisation first.
+ */
+public class FeatureStoreJob {
+	private static final Logger log = LoggerFactory.getLogger(FeatureStoreJob.class);
+	public static final String DEFAULT_FILE = "data/features.fst";
+
+	public static void main(String[] args) throws ParseException, IOException {
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("f", "factors", true, "Factors per user and product, 0 for none, default: " + AlsTrainer.DEFAULT_FACTORS);
+		options.addOption("i", "iterations", true, "Iterations, default: " + AlsTrainer.DEFAULT_ITERATIONS);
+		options.addOption("l", "lambda", true, "Regularisation, default: " + AlsTrainer.DEFAULT_LAMBDA);
+		options.addOption("n", "neighbours", true, "Similar products per product, 0 for none, default: " + ItemSimilarityJob.DEFAULT_NEIGHBOURS);
+		options.addOption("p", "parallelism", true, "Worker threads, default: number of cores");
+		options.addOption("o", "output", true, "Store file, default: " + DEFAULT_FILE);
+		options.addOption("u", "usage", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		int factors = Integer.parseInt(cl.getOptionValue("f", String.valueOf(AlsTrainer.DEFAULT_FACTORS)));
+		int iterations = Integer.parseInt(cl.getOptionValue("i", String.valueOf(AlsTrainer.DEFAULT_ITERATIONS)));
+		double lambda = Double.parseDouble(cl.getOptionValue("l", String.valueOf(AlsTrainer.DEFAULT_LAMBDA)));
+		int neighbours = Integer.parseInt(cl.getOptionValue("n", String.valueOf(ItemSimilarityJob.DEFAULT_NEIGHBOURS)));
+		int parallelism = Integer.parseInt(cl.getOptionValue("p", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		File output = new File(cl.getOptionValue("o", DEFAULT_FILE));
+		log.info("Database: " + db);
+
+		ItemSimilarityJob.resetPeakHeap();
+		long start = System.currentTimeMillis();
+		ReviewGraphSnapshot snapshot;
+		OrientGraphFactory factory = new OrientGraphFactory(db);
+		try {
+			OrientGraphNoTx graph = factory.getNoTx();
+			try {
+				snapshot = ReviewGraphSnapshot.build(graph);
+			} finally {
+				graph.shutdown();
+			}
+		} finally {
+			factory.close();
+		}
+		LatentFactors model = factors > 0 ? new AlsTrainer(factors, iterations, lambda, 0, 1, parallelism).run(snapshot) : null;
+		ItemSimilarityTable similar = neighbours > 0 ? new ItemSimilarityJob(neighbours, parallelism).run(snapshot) : null;
+		File directory = output.getAbsoluteFile().getParentFile();
+		if (directory != null)
+			directory.mkdirs();
+		long version = FeatureStoreWriter.write(output, snapshot, model, similar);
+		log.info(String.format("Feature store version %d written to %s, %d ms in total, peak heap %d MB",
+				version, output, System.currentTimeMillis() - start, ItemSimilarityJob.peakHeap() >> 20));
+	}
+
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = FeatureStoreJob.class.getName() + " [<options>]";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+}
@@ -0,0 +1,317 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * Computes the top N most similar products of every product: the cosine
+ * similarity of the products' columns of ratings, over the users that reviewed
+ * both.
+ *
+ * The products are split into ranges across a fork/join pool. For a product p
+ * the dot products with every co-reviewed product are accumulated sparsely,
+ * walking the reviewers of p and their other reviews, into a dense scratch
+ * array per worker of which only the touched entries are read back and reset.
+ * The work is the number of co-review pairs, not the square of the catalogue.
+ */
+public class ItemSimilarityJob {
+	private static final Logger log = LoggerFactory.getLogger(ItemSimilarityJob.class);
+	public static final int DEFAULT_NEIGHBOURS = 20;
+	public static final String DEFAULT_FILE = "data/item-similarity.bin";
+
+	private final int neighbours;
+	private final int parallelism;
+
+	/**
+	 * @param neighbours how many similar products to keep per product
+	 * @param parallelism worker threads
+	 */
+	public ItemSimilarityJob(int neighbours, int parallelism) {
+		super();
+		this.neighbours = neighbours;
+		this.parallelism = parallelism;
+	}
+
+	public static void main(String[] args) throws ParseException, IOException {
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("n", "neighbours", true, "Similar products to keep per product, default: " + DEFAULT_NEIGHBOURS);
+		options.addOption("p", "parallelism", true, "Worker threads, default: number of cores");
+		options.addOption("o", "output", true, "Table file, default: " + DEFAULT_FILE);
+		options.addOption("u", "usage", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		int neighbours = Integer.parseInt(cl.getOptionValue("n", String.valueOf(DEFAULT_NEIGHBOURS)));
+		int parallelism = Integer.parseInt(cl.getOptionValue("p", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		File output = new File(cl.getOptionValue("o", DEFAULT_FILE));
+		log.info("Database: " + db);
+
+		resetPeakHeap();
+		long start = System.currentTimeMillis();
+		ReviewGraphSnapshot snapshot;
+		OrientGraphFactory factory = new OrientGraphFactory(db);
+		try {
+			OrientGraphNoTx graph = factory.getNoTx();
+			try {
+				snapshot = ReviewGraphSnapshot.build(graph);
+			} finally {
+				graph.shutdown();
+			}
+		} finally {
+			factory.close();
+		}
+		ItemSimilarityTable table = new ItemSimilarityJob(neighbours, parallelism).run(snapshot);
+		table.write(output);
+		log.info(String.format("Wrote %d similar product pairs of %d products to %s, %d ms in total, peak heap %d MB",
+				table.pairCount(), table.productCount(), output,
+				System.currentTimeMillis() - start, peakHeap() >> 20));
+	}
+
+	/**
+	 * @param snapshot
+	 * @return the top N similar products of every product in the snapshot
+	 */
+	public ItemSimilarityTable run(ReviewGraphSnapshot snapshot) {
+		long start = System.currentTimeMillis();
+		int productCount = snapshot.productCount();
+		double[] norms = new double[productCount];
+		float[] productScores = snapshot.productScores();
+		int[] productOffsets = snapshot.productOffsets();
+		for (int p = 0; p < productCount; p++) {
+			double sum = 0;
+			for (int i = productOffsets[p]; i < productOffsets[p + 1]; i++)
+				sum += productScores[i] * productScores[i];
+			norms[p] = Math.sqrt(sum);
+		}
+		/*
+		 * a fixed slot of N per product, filled in parallel
+		 * and compacted afterwards
+		 */
+		int[] counts = new int[productCount];
+		int[] slots = new int[productCount * neighbours];
+		float[] slotScores = new float[productCount * neighbours];
+		Context context = new Context(snapshot, norms, counts, slots, slotScores);
+		int grain = Math.max(1, productCount / (parallelism * 16));
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new Partition(context, 0, productCount, grain));
+		} finally {
+			pool.shutdown();
+		}
+
+		int[] offsets = new int[productCount + 1];
+		for (int p = 0; p < productCount; p++)
+			offsets[p + 1] = offsets[p] + counts[p];
+		int[] neighbourIds = new int[offsets[productCount]];
+		float[] scores = new float[offsets[productCount]];
+		for (int p = 0; p < productCount; p++) {
+			System.arraycopy(slots, p * neighbours, neighbourIds, offsets[p], counts[p]);
+			System.arraycopy(slotScores, p * neighbours, scores, offsets[p], counts[p]);
+		}
+		String[] productIds = new String[productCount];
+		for (int p = 0; p < productCount; p++)
+			productIds[p] = snapshot.productId(p);
+		ItemSimilarityTable table = new ItemSimilarityTable(productIds, offsets, neighbourIds, scores, System.currentTimeMillis());
+		log.info(String.format("Computed %d similar product pairs of %d products from %d co-review pairs in %d ms on %d threads, table %d bytes",
+				table.pairCount(), productCount, context.pairs(), System.currentTimeMillis() - start, parallelism, table.memoryFootprint()));
+		return table;
+	}
+
+	/*
+	 * the top N of product p into its slot
+	 */
+	private void similarTo(int p, Context context, Accumulator acc) {
+		ReviewGraphSnapshot snapshot = context.snapshot;
+		if (context.norms[p] == 0d)
+			return;
+		int[] productOffsets = snapshot.productOffsets();
+		int[] productUsers = snapshot.productUsers();
+		float[] productScores = snapshot.productScores();
+		int[] userOffsets = snapshot.userOffsets();
+		int[] userProducts = snapshot.userProducts();
+		float[] userScores = snapshot.userScores();
+		long pairs = 0;
+		for (int i = productOffsets[p]; i < productOffsets[p + 1]; i++) {
+			int user = productUsers[i];
+			float score = productScores[i];
+			for (int j = userOffsets[user]; j < userOffsets[user + 1]; j++) {
+				int q = userProducts[j];
+				if (q != p)
+					acc.add(q, score * userScores[j]);
+			}
+			pairs += userOffsets[user + 1] - userOffsets[user];
+		}
+		TopK top = new TopK(neighbours);
+		for (int t = 0; t < acc.touchedCount; t++) {
+			int q = acc.touched[t];
+			double cosine = acc.dot[q] / (context.norms[p] * context.norms[q]);
+			if (cosine > 0)
+				top.offer(q, cosine);
+		}
+		acc.reset();
+		top.sort();
+		int at = p * neighbours;
+		for (int r = 0; r < top.size(); r++) {
+			context.slots[at + r] = top.id(r);
+			context.slotScores[at + r] = (float) top.score(r);
+		}
+		context.counts[p] = top.size();
+		context.addPairs(pairs);
+	}
+
+	static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+		}
+	}
+
+	/*
+	 * the sum of the peaks of the heap pools since the last reset, an
+	 * upper bound of the peak heap as the pools peak at different times
+	 */
+	static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP)
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = ItemSimilarityJob.class.getName() + " [<options>]";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+
+	/*
+	 * what the tasks share; each task writes only the slots of its products
+	 */
+	private static class Context {
+		final ReviewGraphSnapshot snapshot;
+		final double[] norms;
+		final int[] counts;
+		final int[] slots;
+		final float[] slotScores;
+		final ThreadLocal<Accumulator> accumulators;
+		private long pairs;
+
+		Context(final ReviewGraphSnapshot snapshot, double[] norms, int[] counts, int[] slots, float[] slotScores) {
+			this.snapshot = snapshot;
+			this.norms = norms;
+			this.counts = counts;
+			this.slots = slots;
+			this.slotScores = slotScores;
+			this.accumulators = new ThreadLocal<Accumulator>() {
+				@Override
+				protected Accumulator initialValue() {
+					return new Accumulator(snapshot.productCount());
+				}
+			};
+		}
+
+		synchronized void addPairs(long count) {
+			pairs += count;
+		}
+
+		synchronized long pairs() {
+			return pairs;
+		}
+	}
+
+	private class Partition extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Context context;
+		private final int from;
+		private final int to;
+		private final int grain;
+
+		Partition(Context context, int from, int to, int grain) {
+			this.context = context;
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= grain) {
+				Accumulator acc = context.accumulators.get();
+				for (int p = from; p < to; p++)
+					similarTo(p, context, acc);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Partition(context, from, mid, grain), new Partition(context, mid, to, grain));
+		}
+	}
+
+	/*
+	 * dense scratch space for the dot products of one product,
+	 * with the list of entries to read back and clear
+	 */
+	private static class Accumulator {
+		final double[] dot;
+		final boolean[] seen;
+		int[] touched = new int[1024];
+		int touchedCount;
+
+		Accumulator(int productCount) {
+			dot = new double[productCount];
+			seen = new boolean[productCount];
+		}
+
+		void add(int q, double value) {
+			if (!seen[q]) {
+				seen[q] = true;
+				if (touchedCount == touched.length)
+					touched = Arrays.copyOf(touched, touchedCount * 2);
+				touched[touchedCount++] = q;
+			}
+			dot[q] += value;
+		}
+
+		void reset() {
+			for (int t = 0; t < touchedCount; t++) {
+				dot[touched[t]] = 0d;
+				seen[touched[t]] = false;
+			}
+			touchedCount = 0;
+		}
+	}
+}
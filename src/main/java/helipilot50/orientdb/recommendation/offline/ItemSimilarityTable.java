@@ -0,0 +1,148 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import helipilot50.orientdb.recommendation.RankedProduct;
+
+/**
+ * The most similar products of every product, as computed by ItemSimilarityJob.
+ *
+ * The neighbours of product p are the entries offsets[p] until offsets[p+1] of
+ * neighbours/scores, best first, with neighbours holding indexes into productIds.
+ * The table is written to and read from a file in the same layout, so the service
+ * can load what the job computed offline.
+ */
+public class ItemSimilarityTable {
+	private static final int MAGIC = 0x49534d31; // "ISM1"
+
+	private final String[] productIds;
+	private final Map<String, Integer> productIndex;
+	private final int[] offsets;
+	private final int[] neighbours;
+	private final float[] scores;
+	private final long builtAt;
+
+	public ItemSimilarityTable(String[] productIds, int[] offsets, int[] neighbours, float[] scores, long builtAt) {
+		super();
+		this.productIds = productIds;
+		this.offsets = offsets;
+		this.neighbours = neighbours;
+		this.scores = scores;
+		this.builtAt = builtAt;
+		this.productIndex = new HashMap<String, Integer>(productIds.length * 2);
+		for (int p = 0; p < productIds.length; p++)
+			productIndex.put(productIds[p], p);
+	}
+
+	/**
+	 * @param productId
+	 * @return the most similar products, best first, or null if the product
+	 *         is not in the table
+	 */
+	public List<RankedProduct> similarTo(String productId) {
+		Integer p = productIndex.get(productId);
+		if (p == null)
+			return null;
+		List<RankedProduct> similar = new ArrayList<RankedProduct>(offsets[p + 1] - offsets[p]);
+		for (int i = offsets[p]; i < offsets[p + 1]; i++)
+			similar.add(new RankedProduct(productIds[neighbours[i]], scores[i]));
+		return similar;
+	}
+
+	public int productCount() {
+		return productIds.length;
+	}
+
+	public int pairCount() {
+		return neighbours.length;
+	}
+
+	/**
+	 * @param product index into the product ids
+	 * @return the index of the first neighbour of the product, up to that of
+	 *         the next product
+	 */
+	public int offset(int product) {
+		return offsets[product];
+	}
+
+	public int neighbour(int i) {
+		return neighbours[i];
+	}
+
+	public float score(int i) {
+		return scores[i];
+	}
+
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	/**
+	 * An estimate of the heap used by the table, in bytes, counting the
+	 * product ids like ReviewGraphSnapshot does
+	 */
+	public long memoryFootprint() {
+		long bytes = 4L * (offsets.length + neighbours.length + scores.length) + 4L * productIds.length;
+		for (String id : productIds)
+			bytes += 40 + 2L * id.length();
+		return bytes + 48L * productIds.length;
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(builtAt);
+			out.writeInt(productIds.length);
+			out.writeInt(neighbours.length);
+			for (String id : productIds)
+				out.writeUTF(id);
+			for (int offset : offsets)
+				out.writeInt(offset);
+			for (int neighbour : neighbours)
+				out.writeInt(neighbour);
+			for (float score : scores)
+				out.writeFloat(score);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static ItemSimilarityTable read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not an item similarity table: " + file);
+			long builtAt = in.readLong();
+			int productCount = in.readInt();
+			int pairCount = in.readInt();
+			String[] productIds = new String[productCount];
+			for (int p = 0; p < productCount; p++)
+				productIds[p] = in.readUTF();
+			int[] offsets = new int[productCount + 1];
+			for (int p = 0; p <= productCount; p++)
+				offsets[p] = in.readInt();
+			int[] neighbours = new int[pairCount];
+			for (int i = 0; i < pairCount; i++)
+				neighbours[i] = in.readInt();
+			float[] scores = new float[pairCount];
+			for (int i = 0; i < pairCount; i++)
+				scores[i] = in.readFloat();
+			return new ItemSimilarityTable(productIds, offsets, neighbours, scores, builtAt);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * User and product factors as trained by AlsTrainer: the predicted rating of
+ * product p by user u is mean plus the dot product of their factors.
+ *
+ * The factors of user u are the entries u * factors until (u + 1) * factors of
+ * userFactors, and likewise for products. The products each user had reviewed
+ * when the factors were trained, held out ones included, are kept in the same
+ * CSR form as ReviewGraphSnapshot so they are never recommended back. The model is
+ * written to and read from a file in the same layout, so the service can serve
+ * what the trainer computed offline.
+ */
+public class LatentFactors {
+	private static final int MAGIC = 0x414c5331; // "ALS1"
+
+	private final String[] userIds;
+	private final String[] productIds;
+	private final Map<String, Integer> userIndex;
+	private final int factors;
+	private final float mean;
+	private final float[] userFactors;
+	private final float[] productFactors;
+	private final int[] reviewedOffsets;
+	private final int[] reviewedProducts;
+	private final double trainRmse;
+	private final double holdoutRmse;
+	private final long builtAt;
+
+	public LatentFactors(String[] userIds, String[] productIds, int factors, float mean,
+			float[] userFactors, float[] productFactors, int[] reviewedOffsets, int[] reviewedProducts,
+			double trainRmse, double holdoutRmse, long builtAt) {
+		super();
+		this.userIds = userIds;
+		this.productIds = productIds;
+		this.factors = factors;
+		this.mean = mean;
+		this.userFactors = userFactors;
+		this.productFactors = productFactors;
+		this.reviewedOffsets = reviewedOffsets;
+		this.reviewedProducts = reviewedProducts;
+		this.trainRmse = trainRmse;
+		this.holdoutRmse = holdoutRmse;
+		this.builtAt = builtAt;
+		this.userIndex = new HashMap<String, Integer>(userIds.length * 2);
+		for (int u = 0; u < userIds.length; u++)
+			userIndex.put(userIds[u], u);
+	}
+
+	/**
+	 * @param user dense user id
+	 * @param product dense product id
+	 * @return the predicted rating
+	 */
+	public double predict(int user, int product) {
+		return mean + dot(user, product);
+	}
+
+	/**
+	 * The products of highest predicted rating the user had not reviewed,
+	 * scoring every product
+	 * @param userId
+	 * @param maxResults
+	 * @return the recommendation, or null if the user is not in the model
+	 */
+	public Recommendation recommend(String userId, int maxResults) {
+		Integer user = userIndex.get(userId);
+		if (user == null)
+			return null;
+		int from = reviewedOffsets[user];
+		int to = reviewedOffsets[user + 1];
+		Set<String> reviewed = new HashSet<String>();
+		for (int i = from; i < to; i++)
+			reviewed.add(productIds[reviewedProducts[i]]);
+		Recommendation rec = new Recommendation(userId, reviewed);
+
+		TopK ranking = new TopK(maxResults);
+		for (int p = 0; p < productIds.length; p++) {
+			if (Arrays.binarySearch(reviewedProducts, from, to, p) >= 0)
+				continue;
+			ranking.offer(p, mean + dot(user, p));
+		}
+		ranking.sort();
+		Set<String> recommended = new LinkedHashSet<String>();
+		List<RankedProduct> ranked = new ArrayList<RankedProduct>(ranking.size());
+		for (int r = 0; r < ranking.size(); r++) {
+			String productId = productIds[ranking.id(r)];
+			recommended.add(productId);
+			ranked.add(new RankedProduct(productId, ranking.score(r)));
+		}
+		rec.setRecommendedProducts(recommended);
+		rec.setRankedProducts(ranked);
+		return rec;
+	}
+
+	private double dot(int user, int product) {
+		int u = user * factors;
+		int p = product * factors;
+		float sum = 0f;
+		for (int k = 0; k < factors; k++)
+			sum += userFactors[u + k] * productFactors[p + k];
+		return sum;
+	}
+
+	/**
+	 * @param userId
+	 * @return the dense id of the user, or -1 if the user is not in the model
+	 */
+	public int userIndex(String userId) {
+		Integer index = userIndex.get(userId);
+		return index == null ? -1 : index;
+	}
+
+	public int userCount() {
+		return userIds.length;
+	}
+
+	public int productCount() {
+		return productIds.length;
+	}
+
+	public int getFactors() {
+		return factors;
+	}
+
+	public float getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return the factors of user u at u * factors
+	 */
+	public float[] userFactors() {
+		return userFactors;
+	}
+
+	/**
+	 * @return the factors of product p at p * factors
+	 */
+	public float[] productFactors() {
+		return productFactors;
+	}
+
+	public double getTrainRmse() {
+		return trainRmse;
+	}
+
+	/**
+	 * @return the RMSE over the reviews held out of training, NaN if none were
+	 */
+	public double getHoldoutRmse() {
+		return holdoutRmse;
+	}
+
+	/**
+	 * @return when the snapshot it was trained on was taken, so reviews
+	 *         added since are not in the model
+	 */
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	/**
+	 * An estimate of the heap used by the model, in bytes, counting the ids
+	 * like ReviewGraphSnapshot does
+	 */
+	public long memoryFootprint() {
+		long bytes = 4L * (userFactors.length + productFactors.length + reviewedOffsets.length + reviewedProducts.length)
+				+ 4L * (userIds.length + productIds.length);
+		for (String id : userIds)
+			bytes += 40 + 2L * id.length();
+		for (String id : productIds)
+			bytes += 40 + 2L * id.length();
+		return bytes + 48L * userIds.length;
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeLong(builtAt);
+			out.writeInt(userIds.length);
+			out.writeInt(productIds.length);
+			out.writeInt(factors);
+			out.writeInt(reviewedProducts.length);
+			out.writeFloat(mean);
+			out.writeDouble(trainRmse);
+			out.writeDouble(holdoutRmse);
+			for (String id : userIds)
+				out.writeUTF(id);
+			for (String id : productIds)
+				out.writeUTF(id);
+			for (float value : userFactors)
+				out.writeFloat(value);
+			for (float value : productFactors)
+				out.writeFloat(value);
+			for (int offset : reviewedOffsets)
+				out.writeInt(offset);
+			for (int product : reviewedProducts)
+				out.writeInt(product);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static LatentFactors read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		try {
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a latent factor model: " + file);
+			long builtAt = in.readLong();
+			int userCount = in.readInt();
+			int productCount = in.readInt();
+			int factors = in.readInt();
+			int reviewCount = in.readInt();
+			float mean = in.readFloat();
+			double trainRmse = in.readDouble();
+			double holdoutRmse = in.readDouble();
+			String[] userIds = new String[userCount];
+			for (int u = 0; u < userCount; u++)
+				userIds[u] = in.readUTF();
+			String[] productIds = new String[productCount];
+			for (int p = 0; p < productCount; p++)
+				productIds[p] = in.readUTF();
+			float[] userFactors = new float[userCount * factors];
+			for (int i = 0; i < userFactors.length; i++)
+				userFactors[i] = in.readFloat();
+			float[] productFactors = new float[productCount * factors];
+			for (int i = 0; i < productFactors.length; i++)
+				productFactors[i] = in.readFloat();
+			int[] reviewedOffsets = new int[userCount + 1];
+			for (int u = 0; u <= userCount; u++)
+				reviewedOffsets[u] = in.readInt();
+			int[] reviewedProducts = new int[reviewCount];
+			for (int i = 0; i < reviewCount; i++)
+				reviewedProducts[i] = in.readInt();
+			return new LatentFactors(userIds, productIds, factors, mean, userFactors, productFactors,
+					reviewedOffsets, reviewedProducts, trainRmse, holdoutRmse, builtAt);
+		} finally {
+			in.close();
+		}
+	}
+}
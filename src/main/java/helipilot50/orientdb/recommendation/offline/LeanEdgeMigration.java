@@ -0,0 +1,190 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+/**
+ * Moves the text of the reviews of a database loaded before createReview kept
+ * the edges lean: every property of a "reviewed" edge that is not one of
+ * FineFoodsService.EDGE_PROPERTIES goes to a ReviewText record the edge links
+ * to, and the ids the vertices already hold are dropped. Edges already lean
+ * are left as they are, so the migration can be run again after a failure.
+ *
+ * It reports the edges a sample of recommendations reads, and the bytes of
+ * those edges before and after; with -m it only measures, writing nothing.
+ */
+public class LeanEdgeMigration {
+	private static final Logger log = LoggerFactory.getLogger(LeanEdgeMigration.class);
+
+	public static void main(String[] args) throws ParseException {
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("s", "sample", true, "Users to recommend for, to count the edges read, default: 100");
+		options.addOption("m", "measure", false, "Measure only, do not migrate.");
+		options.addOption("u", "usage", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		int sample = Integer.parseInt(cl.getOptionValue("s", "100"));
+		boolean write = !cl.hasOption("m");
+		log.info("Database: " + db);
+
+		OrientGraphFactory factory = new OrientGraphFactory(db);
+		try {
+			OrientGraphNoTx graph = factory.getNoTx();
+			try {
+				SchemaManager.ensureSchema(graph);
+				double edgesPerRecommendation = edgesPerRecommendation(graph, sample);
+				Footprint footprint = migrate(graph, write);
+				log.info(footprint.toString());
+				log.info(String.format("A recommendation reads %.0f edges, %.0f bytes before and %.0f bytes after%s",
+						edgesPerRecommendation, edgesPerRecommendation * footprint.bytesPerEdgeBefore(),
+						edgesPerRecommendation * footprint.bytesPerEdgeAfter(), write ? "" : " migrating"));
+			} finally {
+				graph.shutdown();
+			}
+		} finally {
+			factory.close();
+		}
+	}
+
+	/**
+	 * @param graph
+	 * @param users how many users to recommend for, the first ones of the class
+	 * @return the edges read per recommendation
+	 */
+	static double edgesPerRecommendation(OrientBaseGraph graph, int users) {
+		List<String> userIds = new ArrayList<String>(users);
+		for (Vertex vUser : graph.getVerticesOfClass(Constants.USER_CLASS)) {
+			if (userIds.size() == users)
+				break;
+			userIds.add((String) vUser.getProperty(Constants.USER_ID));
+		}
+		if (userIds.isEmpty())
+			return 0d;
+		FineFoodsService service = new FineFoodsService(graph);
+		Recommender recommender = new Recommender(service);
+		for (String userId : userIds)
+			recommender.recommend(userId);
+		return (double) service.getEdgesRead() / userIds.size();
+	}
+
+	/**
+	 * Move the text off every "reviewed" edge
+	 * @param graph a non transactional graph, each edge is saved on its own
+	 * @param write false to only measure what the edges would shrink to
+	 * @return the edges and their bytes, before and after
+	 */
+	static Footprint migrate(OrientBaseGraph graph, boolean write) {
+		long start = System.currentTimeMillis();
+		Footprint footprint = new Footprint();
+		if (graph.getEdgeType(Constants.EDGE_REVIEWED) == null)
+			return footprint;
+		for (Edge edge : graph.getEdgesOfClass(Constants.EDGE_REVIEWED)) {
+			ODocument record = ((OrientEdge) edge).getRecord();
+			if (record == null)
+				continue;
+			footprint.edges++;
+			footprint.bytesBefore += record.toStream().length;
+			ODocument text = null;
+			List<String> moved = new ArrayList<String>();
+			for (String field : record.fieldNames()) {
+				if (field.equals(OrientBaseGraph.CONNECTION_OUT) || field.equals(OrientBaseGraph.CONNECTION_IN)
+						|| field.equals(Constants.REVIEW_TEXT) || FineFoodsService.EDGE_PROPERTIES.contains(field))
+					continue;
+				moved.add(field);
+				Object value = record.field(field);
+				if (FineFoodsService.VERTEX_PROPERTIES.contains(field) || value == null)
+					continue;
+				if (text == null)
+					text = new ODocument(Constants.REVIEW_TEXT_CLASS);
+				text.field(field, value);
+			}
+			if (moved.isEmpty()) {
+				footprint.bytesAfter += record.toStream().length;
+				continue;
+			}
+			footprint.migrated++;
+			/*
+			 * measuring only, a copy linking to any record
+			 * is as long as the edge would become
+			 */
+			ODocument lean = write ? record : record.copy();
+			for (String field : moved)
+				lean.removeField(field);
+			if (text != null) {
+				if (write)
+					graph.getRawGraph().save(text);
+				lean.field(Constants.REVIEW_TEXT, write ? text.getIdentity() : record.getIdentity());
+			}
+			if (write)
+				lean.save();
+			footprint.bytesAfter += lean.toStream().length;
+			if (footprint.edges % 100000 == 0)
+				log.info(String.format("%d edges read, %d migrated", footprint.edges, footprint.migrated));
+		}
+		footprint.millis = System.currentTimeMillis() - start;
+		return footprint;
+	}
+
+	static class Footprint {
+		long edges;
+		long migrated;
+		long bytesBefore;
+		long bytesAfter;
+		long millis;
+
+		double bytesPerEdgeBefore() {
+			return edges == 0 ? 0d : (double) bytesBefore / edges;
+		}
+
+		double bytesPerEdgeAfter() {
+			return edges == 0 ? 0d : (double) bytesAfter / edges;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d of %d edges migrated in %d ms, %.1f bytes per edge before and %.1f after",
+					migrated, edges, millis, bytesPerEdgeBefore(), bytesPerEdgeAfter());
+		}
+	}
+
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = LeanEdgeMigration.class.getName() + " [<options>]";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+}
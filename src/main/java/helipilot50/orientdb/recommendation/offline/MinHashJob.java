@@ -0,0 +1,82 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.lsh.MinHashIndex;
+import helipilot50.orientdb.recommendation.lsh.RecallEvaluation;
+import helipilot50.orientdb.recommendation.lsh.RecallReport;
+
+/**
+ * Builds the MinHash index of a database in parallel, as the service does at
+ * startup, and reports its recall against exact Jaccard similarity, to choose
+ * recommendation.lsh.bands, .rows and .maxCandidates before deploying them.
+ */
+public class MinHashJob {
+	private static final Logger log = LoggerFactory.getLogger(MinHashJob.class);
+
+	public static void main(String[] args) throws ParseException {
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("b", "bands", true, "Bands, default: 32");
+		options.addOption("r", "rows", true, "Rows per band, default: 2");
+		options.addOption("c", "candidates", true, "Candidates per user, default: 500");
+		options.addOption("s", "sample", true, "Users to evaluate, default: 200");
+		options.addOption("k", "k", true, "Most similar co-reviewers to look for, default: 20");
+		options.addOption("p", "parallelism", true, "Worker threads, default: number of cores");
+		options.addOption("u", "usage", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		int bands = Integer.parseInt(cl.getOptionValue("b", "32"));
+		int rows = Integer.parseInt(cl.getOptionValue("r", "2"));
+		int candidates = Integer.parseInt(cl.getOptionValue("c", "500"));
+		int sample = Integer.parseInt(cl.getOptionValue("s", "200"));
+		int k = Integer.parseInt(cl.getOptionValue("k", "20"));
+		int parallelism = Integer.parseInt(cl.getOptionValue("p", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		log.info("Database: " + db);
+
+		OrientGraphFactory factory = new OrientGraphFactory(db);
+		try {
+			OrientGraphNoTx graph = factory.getNoTx();
+			try {
+				MinHashIndex index = MinHashIndex.rebuild(graph, bands, rows, 1, parallelism);
+				RecallReport report = RecallEvaluation.evaluate(index, new FineFoodsService(graph), sample, k, candidates, 1);
+				log.info(report.toString());
+			} finally {
+				graph.shutdown();
+			}
+		} finally {
+			factory.close();
+		}
+	}
+
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = MinHashJob.class.getName() + " [<options>]";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+}
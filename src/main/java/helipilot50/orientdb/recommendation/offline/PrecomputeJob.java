@@ -0,0 +1,373 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.common.concur.ONeedRetryException;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.HubPolicy;
+import helipilot50.orientdb.recommendation.IdDictionary;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+/**
+ * Computes the recommendations of every user ahead of time, with the same
+ * Recommender the service uses, for the service to serve while they are fresh.
+ *
+ * The users are split into partitions by their key, and the partitions computed
+ * on parallelism threads, each with its own graph. The recommendations of a
+ * partition are written either as PrecomputedRecommendations part files or as
+ * "recommended" edges, one transaction per user. Each partition completed is
+ * appended to a checkpoint file in the output directory, so a run that was
+ * interrupted resumes with the partitions it had not completed; the checkpoint
+ * is removed once all are. A partition in which a user failed is written but not
+ * checkpointed, so the next run computes it again.
+ */
+public class PrecomputeJob {
+	private static final Logger log = LoggerFactory.getLogger(PrecomputeJob.class);
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_RETRIES = 10;
+	public static final String DEFAULT_DIRECTORY = "data/precomputed";
+	public static final int DEFAULT_PARTITIONS = 64;
+
+	private final OrientGraphFactory factory;
+	private final File directory;
+	private final boolean edges;
+	private final int partitions;
+	private final int parallelism;
+	private final int neighbours;
+	private final int maxResults;
+	private final HubPolicy hubPolicy;
+	/*
+	 * shared by the partitions, so each product vertex is
+	 * read once for its id rather than once per reviewer
+	 */
+	private final IdDictionary dictionary = new IdDictionary();
+
+	/**
+	 * @param factory
+	 * @param directory of the part files and the checkpoint
+	 * @param edges true to write "recommended" edges instead of part files
+	 * @param partitions
+	 * @param parallelism
+	 * @param neighbours
+	 * @param maxResults
+	 * @param hubPolicy
+	 */
+	public PrecomputeJob(OrientGraphFactory factory, File directory, boolean edges, int partitions, int parallelism,
+			int neighbours, int maxResults, HubPolicy hubPolicy) {
+		super();
+		this.factory = factory;
+		this.directory = directory;
+		this.edges = edges;
+		this.partitions = partitions;
+		this.parallelism = parallelism;
+		this.neighbours = neighbours;
+		this.maxResults = maxResults;
+		this.hubPolicy = hubPolicy;
+	}
+
+	public static void main(String[] args) throws ParseException, IOException {
+		Options options = new Options();
+		options.addOption("db", "database", true, "Database string: " + Constants.DEFAULT_DB);
+		options.addOption("o", "output", true, "Directory of the part files and the checkpoint, default: " + DEFAULT_DIRECTORY);
+		options.addOption("e", "edges", false, "Write \"recommended\" edges instead of part files.");
+		options.addOption("n", "partitions", true, "Partitions of the users, default: " + DEFAULT_PARTITIONS);
+		options.addOption("p", "parallelism", true, "Worker threads, default: number of cores");
+		options.addOption("k", "neighbours", true, "Most similar users to recommend from, default: " + Recommender.DEFAULT_NEIGHBOURS);
+		options.addOption("r", "results", true, "Products to recommend per user, default: " + Recommender.DEFAULT_MAX_RESULTS);
+		options.addOption("hp", "hubPolicy", true, "keep, skip or sample the reviewers of hub products, default: sample");
+		options.addOption("ht", "hubThreshold", true, "Reviews that make a product a hub, default: 1000");
+		options.addOption("hs", "hubSampleSize", true, "Reviewers sampled of a hub product, default: 100");
+		options.addOption("f", "fresh", false, "Ignore the checkpoint of an interrupted run.");
+		options.addOption("u", "usage", false, "Print usage.");
+
+		CommandLineParser parser = new PosixParser();
+		CommandLine cl = parser.parse(options, args, false);
+
+		if (cl.hasOption("u")) {
+			logUsage(options);
+			return;
+		}
+		String db = cl.getOptionValue("db", Constants.DEFAULT_DB);
+		File directory = new File(cl.getOptionValue("o", DEFAULT_DIRECTORY));
+		int partitions = Integer.parseInt(cl.getOptionValue("n", String.valueOf(DEFAULT_PARTITIONS)));
+		int parallelism = Integer.parseInt(cl.getOptionValue("p", String.valueOf(Runtime.getRuntime().availableProcessors())));
+		int neighbours = Integer.parseInt(cl.getOptionValue("k", String.valueOf(Recommender.DEFAULT_NEIGHBOURS)));
+		int maxResults = Integer.parseInt(cl.getOptionValue("r", String.valueOf(Recommender.DEFAULT_MAX_RESULTS)));
+		HubPolicy hubPolicy = HubPolicy.parse(cl.getOptionValue("hp", "sample"),
+				Integer.parseInt(cl.getOptionValue("ht", "1000")), Integer.parseInt(cl.getOptionValue("hs", "100")));
+		log.info("Database: " + db);
+
+		OrientGraphFactory factory = new OrientGraphFactory(db);
+		try {
+			factory.setupPool(1, parallelism + 1);
+			new PrecomputeJob(factory, directory, cl.hasOption("e"), partitions, parallelism, neighbours, maxResults, hubPolicy)
+					.run(cl.hasOption("f"));
+		} finally {
+			factory.close();
+		}
+	}
+
+	/**
+	 * @param fresh true to compute every partition, even those a previous run
+	 *        checkpointed
+	 * @return true if every partition was completed
+	 * @throws IOException
+	 */
+	public boolean run(boolean fresh) throws IOException {
+		long start = System.currentTimeMillis();
+		directory.mkdirs();
+		Checkpoint checkpoint = Checkpoint.open(new File(directory, "checkpoint"),
+				String.format("partitions %d %s", partitions, edges ? "edges" : "files"), fresh);
+		try {
+			if (!computeAll(checkpoint, start))
+				return false;
+		} finally {
+			checkpoint.close();
+		}
+		checkpoint.delete();
+		return true;
+	}
+
+	private boolean computeAll(Checkpoint checkpoint, long start) throws IOException {
+		List<List<String>> users = users();
+		ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		final AtomicInteger completed = new AtomicInteger(checkpoint.doneCount());
+		try {
+			for (int p = 0; p < partitions; p++) {
+				if (!checkpoint.isDone(p))
+					results.add(workers.submit(new Partition(p, users.get(p), checkpoint, completed)));
+			}
+		} finally {
+			workers.shutdown();
+		}
+		int computed = 0;
+		int failed = 0;
+		for (Future<Integer> result : results) {
+			try {
+				computed += result.get();
+			} catch (ExecutionException e) {
+				log.error("A partition failed", e.getCause());
+				failed++;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		log.info(String.format("Recommended for %d users in %d partitions in %d ms, %d partitions were checkpointed, %d failed",
+				computed, results.size() - failed, System.currentTimeMillis() - start, partitions - results.size(), failed));
+		if (failed > 0) {
+			log.warn("Run again to resume with the partitions not completed");
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * the recommendation of one user, a hook for tests
+	 */
+	Recommendation recommend(Recommender recommender, FineFoodsService service, String userId) {
+		return recommender.recommend(service.findUserById(userId));
+	}
+
+	/*
+	 * the ids of the users by partition
+	 */
+	private List<List<String>> users() {
+		List<List<String>> users = new ArrayList<List<String>>(partitions);
+		for (int p = 0; p < partitions; p++)
+			users.add(new ArrayList<String>());
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			SchemaManager.ensureSchema(graph);
+			dictionary.load(graph);
+			for (Vertex vUser : graph.getVerticesOfClass(Constants.USER_CLASS)) {
+				int p = (FineFoodsService.userKey((OIdentifiable) vUser) & Integer.MAX_VALUE) % partitions;
+				users.get(p).add((String) vUser.getProperty(Constants.USER_ID));
+			}
+		} finally {
+			graph.shutdown();
+		}
+		return users;
+	}
+
+	private class Partition implements Callable<Integer> {
+		private final int partition;
+		private final List<String> userIds;
+		private final Checkpoint checkpoint;
+		private final AtomicInteger completed;
+
+		Partition(int partition, List<String> userIds, Checkpoint checkpoint, AtomicInteger completed) {
+			this.partition = partition;
+			this.userIds = userIds;
+			this.checkpoint = checkpoint;
+			this.completed = completed;
+		}
+
+		@Override
+		public Integer call() throws IOException {
+			long computedAt = System.currentTimeMillis();
+			OrientBaseGraph graph = edges ? factory.getTx() : factory.getNoTx();
+			int failed = 0;
+			try {
+				FineFoodsService service = new FineFoodsService(graph);
+				service.setIdDictionary(dictionary);
+				Recommender recommender = new Recommender(service, neighbours, maxResults, hubPolicy);
+				List<Recommendation> recommendations = new ArrayList<Recommendation>(userIds.size());
+				for (String userId : userIds) {
+					try {
+						Recommendation rec = recommend(recommender, service, userId);
+						if (edges)
+							save((OrientGraph) graph, service, rec, computedAt);
+						else
+							recommendations.add(rec);
+					} catch (RuntimeException e) {
+						log.warn("Cannot recommend for " + userId, e);
+						failed++;
+					}
+				}
+				if (!edges)
+					PrecomputedRecommendations.writePart(directory, partition, recommendations, computedAt);
+			} finally {
+				graph.shutdown();
+			}
+			if (failed > 0)
+				throw new IllegalStateException(String.format("Partition %d: %d of %d users failed, not checkpointed",
+						partition, failed, userIds.size()));
+			checkpoint.done(partition);
+			log.info(String.format("Partition %d: %d users in %d ms, %d of %d partitions done",
+					partition, userIds.size(), System.currentTimeMillis() - computedAt,
+					completed.incrementAndGet(), partitions));
+			return userIds.size();
+		}
+
+		/*
+		 * partitions share the products, so a commit that loses
+		 * the race for a product's edges is retried
+		 */
+		private void save(OrientGraph graph, FineFoodsService service, Recommendation rec, long computedAt) {
+			for (int attempt = 1; ; attempt++) {
+				try {
+					service.saveRecommendation(service.findUserById(rec.getUserId()), rec, computedAt);
+					graph.commit();
+					return;
+				} catch (RuntimeException e) {
+					graph.rollback();
+					if (!(e instanceof ONeedRetryException) || attempt == MAX_RETRIES)
+						throw e;
+				}
+			}
+		}
+	}
+
+	/*
+	 * the partitions done, a line each appended and synced
+	 * as they complete, after a header naming the run
+	 */
+	static class Checkpoint {
+		private final File file;
+		private final Set<Integer> done;
+		private final FileOutputStream out;
+
+		private Checkpoint(File file, Set<Integer> done, FileOutputStream out) {
+			this.file = file;
+			this.done = done;
+			this.out = out;
+		}
+
+		static Checkpoint open(File file, String header, boolean fresh) throws IOException {
+			Set<Integer> done = new HashSet<Integer>();
+			if (!fresh && file.exists()) {
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+				try {
+					String line = in.readLine();
+					if (header.equals(line)) {
+						while ((line = in.readLine()) != null) {
+							if (line.startsWith("done "))
+								done.add(Integer.parseInt(line.substring(5).trim()));
+						}
+						log.info(String.format("Resuming from %s, %d partitions done", file, done.size()));
+					} else
+						log.info(String.format("Checkpoint %s is of another run (%s), starting afresh", file, line));
+				} finally {
+					in.close();
+				}
+			}
+			FileOutputStream out = new FileOutputStream(file, !done.isEmpty());
+			if (done.isEmpty()) {
+				out.write((header + "\n").getBytes(UTF8));
+				out.getFD().sync();
+			}
+			return new Checkpoint(file, done, out);
+		}
+
+		synchronized boolean isDone(int partition) {
+			return done.contains(partition);
+		}
+
+		synchronized int doneCount() {
+			return done.size();
+		}
+
+		synchronized void done(int partition) throws IOException {
+			out.write(("done " + partition + "\n").getBytes(UTF8));
+			out.getFD().sync();
+			done.add(partition);
+		}
+
+		synchronized void close() throws IOException {
+			out.close();
+		}
+
+		void delete() throws IOException {
+			if (!file.delete())
+				throw new IOException("Cannot remove the checkpoint " + file);
+		}
+	}
+
+	private static void logUsage(Options options) {
+		HelpFormatter formatter = new HelpFormatter();
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter(sw);
+		String syntax = PrecomputeJob.class.getName() + " [<options>]";
+		formatter.printHelp(pw, 100, syntax, "options:", options, 0, 2, null);
+		log.info(sw.toString());
+	}
+}
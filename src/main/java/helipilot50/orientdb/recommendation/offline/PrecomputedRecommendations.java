@@ -0,0 +1,266 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+
+/**
+ * The recommendations PrecomputeJob computed for every user, read from the part
+ * files it writes to a directory, one per partition of the users.
+ *
+ * A part file names each product once, in a dictionary the records refer to by
+ * index. In memory, the reviewed products of user u are the entries
+ * reviewedOffsets[u] until reviewedOffsets[u+1] of reviewed, and its ranked
+ * products those of rankedOffsets[u] until rankedOffsets[u+1] of ranked/scores,
+ * best first, all indexes into productIds.
+ */
+public class PrecomputedRecommendations {
+	private static final int MAGIC = 0x50524531; // "PRE1"
+	private static final String PREFIX = "part-";
+	private static final String SUFFIX = ".rec";
+
+	private final String[] userIds;
+	private final Map<String, Integer> userIndex;
+	private final long[] computedAt;
+	private final String[] productIds;
+	private final int[] reviewedOffsets;
+	private final int[] reviewed;
+	private final int[] rankedOffsets;
+	private final int[] ranked;
+	private final float[] scores;
+
+	private PrecomputedRecommendations(String[] userIds, long[] computedAt, String[] productIds,
+			int[] reviewedOffsets, int[] reviewed, int[] rankedOffsets, int[] ranked, float[] scores) {
+		super();
+		this.userIds = userIds;
+		this.computedAt = computedAt;
+		this.productIds = productIds;
+		this.reviewedOffsets = reviewedOffsets;
+		this.reviewed = reviewed;
+		this.rankedOffsets = rankedOffsets;
+		this.ranked = ranked;
+		this.scores = scores;
+		this.userIndex = new HashMap<String, Integer>(userIds.length * 2);
+		for (int u = 0; u < userIds.length; u++)
+			userIndex.put(userIds[u], u);
+	}
+
+	/**
+	 * @param userId
+	 * @param notBefore the oldest computation time to accept
+	 * @return the recommendation, or null if the user's is missing or older
+	 */
+	public Recommendation recommend(String userId, long notBefore) {
+		Integer u = userIndex.get(userId);
+		if (u == null || computedAt[u] < notBefore)
+			return null;
+		Set<String> reviewedIds = new HashSet<String>();
+		for (int i = reviewedOffsets[u]; i < reviewedOffsets[u + 1]; i++)
+			reviewedIds.add(productIds[reviewed[i]]);
+		Recommendation rec = new Recommendation(userId, reviewedIds);
+		Set<String> recommended = new LinkedHashSet<String>();
+		List<RankedProduct> rankedProducts = new ArrayList<RankedProduct>(rankedOffsets[u + 1] - rankedOffsets[u]);
+		for (int i = rankedOffsets[u]; i < rankedOffsets[u + 1]; i++) {
+			recommended.add(productIds[ranked[i]]);
+			rankedProducts.add(new RankedProduct(productIds[ranked[i]], scores[i]));
+		}
+		rec.setRecommendedProducts(recommended);
+		rec.setRankedProducts(rankedProducts);
+		return rec;
+	}
+
+	public int userCount() {
+		return userIds.length;
+	}
+
+	/**
+	 * @return the time the oldest of the recommendations was computed
+	 */
+	public long oldest() {
+		long oldest = Long.MAX_VALUE;
+		for (long at : computedAt)
+			oldest = Math.min(oldest, at);
+		return oldest;
+	}
+
+	/**
+	 * An estimate of the heap used by the recommendations, in bytes, counting
+	 * the ids like ReviewGraphSnapshot does
+	 */
+	public long memoryFootprint() {
+		long bytes = 8L * computedAt.length + 4L * (reviewedOffsets.length + reviewed.length
+				+ rankedOffsets.length + ranked.length + scores.length) + 4L * (userIds.length + productIds.length);
+		for (String id : userIds)
+			bytes += 40 + 2L * id.length();
+		for (String id : productIds)
+			bytes += 40 + 2L * id.length();
+		return bytes + 48L * userIds.length;
+	}
+
+	static File partFile(File directory, int partition) {
+		return new File(directory, String.format("%s%05d%s", PREFIX, partition, SUFFIX));
+	}
+
+	/**
+	 * Write the recommendations of a partition of the users, replacing the
+	 * part file of that partition once complete
+	 * @param directory
+	 * @param partition
+	 * @param recommendations
+	 * @param computedAt
+	 * @throws IOException
+	 */
+	public static void writePart(File directory, int partition, List<Recommendation> recommendations, long computedAt) throws IOException {
+		Map<String, Integer> products = new LinkedHashMap<String, Integer>();
+		for (Recommendation rec : recommendations) {
+			for (String productId : rec.getReviewedProducts())
+				index(products, productId);
+			for (RankedProduct product : rec.getRankedProducts())
+				index(products, product.getProductId());
+		}
+		File file = partFile(directory, partition);
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(partition);
+			out.writeLong(computedAt);
+			out.writeInt(products.size());
+			for (String productId : products.keySet())
+				out.writeUTF(productId);
+			out.writeInt(recommendations.size());
+			for (Recommendation rec : recommendations) {
+				out.writeUTF(rec.getUserId());
+				out.writeInt(rec.getReviewedProducts().size());
+				for (String productId : rec.getReviewedProducts())
+					out.writeInt(products.get(productId));
+				out.writeInt(rec.getRankedProducts().size());
+				for (RankedProduct product : rec.getRankedProducts()) {
+					out.writeInt(products.get(product.getProductId()));
+					out.writeFloat((float) product.getScore());
+				}
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static int index(Map<String, Integer> products, String productId) {
+		Integer index = products.get(productId);
+		if (index == null) {
+			index = products.size();
+			products.put(productId, index);
+		}
+		return index;
+	}
+
+	/**
+	 * @param directory
+	 * @return the recommendations of all the part files in the directory, the
+	 *         latest of a user that is in more than one
+	 * @throws IOException
+	 */
+	public static PrecomputedRecommendations read(File directory) throws IOException {
+		File[] parts = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (parts == null)
+			throw new IOException("No precomputed recommendations in " + directory);
+		Arrays.sort(parts);
+		Map<String, Integer> products = new LinkedHashMap<String, Integer>();
+		Map<String, Integer> users = new HashMap<String, Integer>();
+		List<String> userIds = new ArrayList<String>();
+		long[] computedAt = new long[1024];
+		int[][] reviewedOf = new int[1024][];
+		int[][] rankedOf = new int[1024][];
+		float[][] scoresOf = new float[1024][];
+		for (File part : parts) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part), 1 << 16));
+			try {
+				if (in.readInt() != MAGIC)
+					throw new IOException("Not precomputed recommendations: " + part);
+				in.readInt();
+				long partComputedAt = in.readLong();
+				int[] global = new int[in.readInt()];
+				for (int p = 0; p < global.length; p++)
+					global[p] = index(products, in.readUTF());
+				int count = in.readInt();
+				for (int r = 0; r < count; r++) {
+					String userId = in.readUTF();
+					int[] reviewed = new int[in.readInt()];
+					for (int i = 0; i < reviewed.length; i++)
+						reviewed[i] = global[in.readInt()];
+					int[] ranked = new int[in.readInt()];
+					float[] scores = new float[ranked.length];
+					for (int i = 0; i < ranked.length; i++) {
+						ranked[i] = global[in.readInt()];
+						scores[i] = in.readFloat();
+					}
+					Integer u = users.get(userId);
+					if (u == null) {
+						u = userIds.size();
+						users.put(userId, u);
+						userIds.add(userId);
+						if (u == computedAt.length) {
+							computedAt = Arrays.copyOf(computedAt, u * 2);
+							reviewedOf = Arrays.copyOf(reviewedOf, u * 2);
+							rankedOf = Arrays.copyOf(rankedOf, u * 2);
+							scoresOf = Arrays.copyOf(scoresOf, u * 2);
+						}
+					} else if (computedAt[u] > partComputedAt)
+						continue;
+					computedAt[u] = partComputedAt;
+					reviewedOf[u] = reviewed;
+					rankedOf[u] = ranked;
+					scoresOf[u] = scores;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		/*
+		 * flatten the rows into CSR
+		 */
+		int userCount = userIds.size();
+		int[] reviewedOffsets = new int[userCount + 1];
+		int[] rankedOffsets = new int[userCount + 1];
+		for (int u = 0; u < userCount; u++) {
+			reviewedOffsets[u + 1] = reviewedOffsets[u] + reviewedOf[u].length;
+			rankedOffsets[u + 1] = rankedOffsets[u] + rankedOf[u].length;
+		}
+		int[] reviewed = new int[reviewedOffsets[userCount]];
+		int[] ranked = new int[rankedOffsets[userCount]];
+		float[] scores = new float[rankedOffsets[userCount]];
+		for (int u = 0; u < userCount; u++) {
+			System.arraycopy(reviewedOf[u], 0, reviewed, reviewedOffsets[u], reviewedOf[u].length);
+			System.arraycopy(rankedOf[u], 0, ranked, rankedOffsets[u], rankedOf[u].length);
+			System.arraycopy(scoresOf[u], 0, scores, rankedOffsets[u], scoresOf[u].length);
+		}
+		return new PrecomputedRecommendations(userIds.toArray(new String[userCount]), Arrays.copyOf(computedAt, userCount),
+				products.keySet().toArray(new String[products.size()]), reviewedOffsets, reviewed, rankedOffsets, ranked, scores);
+	}
+}
@@ -0,0 +1,158 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.cooccurrence.CoOccurrenceIndex;
+import helipilot50.orientdb.recommendation.cooccurrence.ConsistencyReport;
+
+/**
+ * Keeps a CoOccurrenceIndex current with the reviews added through this service,
+ * when recommendation.cooccurrence.enabled is true.
+ *
+ * The index is rebuilt from the graph at startup and compacted every
+ * recommendation.cooccurrence.compactMinutes. Reviews added before the first
+ * rebuild finishes, or by another process, are only counted by the next rebuild;
+ * check() tells how far the index has drifted from one.
+ */
+@Component
+public class CoOccurrenceManager implements ReviewListener {
+	private static final Logger log = LoggerFactory.getLogger(CoOccurrenceManager.class);
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Value("${recommendation.cooccurrence.enabled:false}")
+	boolean enabled;
+
+	@Value("${recommendation.cooccurrence.compactMinutes:10}")
+	long compactMinutes;
+
+	private volatile CoOccurrenceIndex index;
+	private ScheduledExecutorService maintenance;
+
+	@PostConstruct
+	public void start() {
+		if (!enabled)
+			return;
+		maintenance = Executors.newSingleThreadScheduledExecutor();
+		maintenance.execute(new Runnable() {
+			@Override
+			public void run() {
+				rebuild();
+			}
+		});
+		if (compactMinutes > 0) {
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					compact();
+				}
+			}, compactMinutes, compactMinutes, TimeUnit.MINUTES);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (maintenance != null)
+			maintenance.shutdownNow();
+	}
+
+	/**
+	 * @return the index, or null before the first rebuild
+	 */
+	public CoOccurrenceIndex current() {
+		return index;
+	}
+
+	@Override
+	public void reviewCreated(Vertex vUser, Vertex vProduct) {
+		CoOccurrenceIndex current = index;
+		if (current == null)
+			return;
+		/*
+		 * the user's ratings after the review, and whether
+		 * the product was among them before
+		 */
+		int product = FineFoodsService.productKey((OIdentifiable) vProduct);
+		int reviewsOfProduct = 0;
+		SparseVector.Builder ratings = new SparseVector.Builder();
+		for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+			int key = FineFoodsService.productKey(((OrientEdge) review).getInVertex());
+			Number score = review.getProperty("score");
+			if (score != null)
+				ratings.add(key, score.floatValue());
+			if (key == product)
+				reviewsOfProduct++;
+		}
+		current.reviewAdded(FineFoodsService.userKey((OIdentifiable) vUser), product, ratings.build(), reviewsOfProduct > 1);
+	}
+
+	public void rebuild() {
+		OrientGraphNoTx graph = sessions.acquire(TimeUnit.MINUTES.toMillis(1));
+		try {
+			index = CoOccurrenceIndex.rebuild(graph);
+		} catch (RuntimeException e) {
+			log.error("Co-occurrence rebuild failed", e);
+		} finally {
+			sessions.release(graph);
+		}
+	}
+
+	/**
+	 * @return the number of products changed since the last compaction,
+	 *         -1 before the first rebuild or on failure
+	 */
+	public int compact() {
+		CoOccurrenceIndex current = index;
+		if (current == null)
+			return -1;
+		try {
+			return current.compact();
+		} catch (RuntimeException e) {
+			log.error("Co-occurrence compaction failed", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Compare the index with a full rebuild from the graph
+	 * @return the differences, or null before the first rebuild
+	 */
+	public ConsistencyReport check() {
+		CoOccurrenceIndex current = index;
+		if (current == null)
+			return null;
+		long start = System.currentTimeMillis();
+		OrientGraphNoTx graph = sessions.acquire(TimeUnit.MINUTES.toMillis(1));
+		try {
+			ConsistencyReport report = current.check(CoOccurrenceIndex.rebuild(graph));
+			report.setCheckMillis(System.currentTimeMillis() - start);
+			log.info("Co-occurrence check: " + report);
+			return report;
+		} finally {
+			sessions.release(graph);
+		}
+	}
+}
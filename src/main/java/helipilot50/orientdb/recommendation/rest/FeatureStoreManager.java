@@ -0,0 +1,93 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import helipilot50.orientdb.recommendation.offline.FeatureStoreJob;
+import helipilot50.orientdb.recommendation.store.FeatureStore;
+
+/**
+ * Maps the FeatureStore FeatureStoreJob writes to recommendation.features.file,
+ * when recommendation.features.enabled is true, at startup and on demand.
+ *
+ * A reload maps the file again and swaps the new version in for the requests
+ * that follow; those still reading the previous version finish on it, and its
+ * mapping is released once nothing refers to it. An older version than the one
+ * served is refused.
+ */
+@Component
+public class FeatureStoreManager {
+	private static final Logger log = LoggerFactory.getLogger(FeatureStoreManager.class);
+
+	@Value("${recommendation.features.enabled:false}")
+	boolean enabled;
+
+	@Value("${recommendation.features.file:" + FeatureStoreJob.DEFAULT_FILE + "}")
+	String storeFile;
+
+	/*
+	 * reads the whole file once per load, off the heap
+	 */
+	@Value("${recommendation.features.verify:true}")
+	boolean verify;
+
+	private final AtomicReference<FeatureStore> store = new AtomicReference<FeatureStore>();
+
+	@PostConstruct
+	public void init() {
+		if (!enabled)
+			return;
+		if (new File(storeFile).exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				log.error("Cannot map the feature store " + storeFile, e);
+			}
+		} else
+			log.info("No feature store at " + storeFile + ", run " + FeatureStoreJob.class.getSimpleName());
+	}
+
+	/**
+	 * @return the store, or null if none is mapped
+	 */
+	public FeatureStore current() {
+		return store.get();
+	}
+
+	/**
+	 * Map the store again, after the job has rewritten it
+	 * @return the version served, -1 when the store is not
+	 * @throws IOException
+	 */
+	public long reload() throws IOException {
+		if (!enabled)
+			return -1;
+		return load().getVersion();
+	}
+
+	private FeatureStore load() throws IOException {
+		long start = System.currentTimeMillis();
+		FeatureStore loaded = FeatureStore.open(new File(storeFile), verify);
+		FeatureStore previous;
+		do {
+			previous = store.get();
+			if (previous != null && previous.getVersion() > loaded.getVersion()) {
+				log.warn(String.format("Keeping feature store version %d, %s holds the older %d",
+						previous.getVersion(), storeFile, loaded.getVersion()));
+				return previous;
+			}
+		} while (!store.compareAndSet(previous, loaded));
+		log.info(String.format("Mapped feature store version %d of %d users, %d products, %d factors and %d neighbours, %d MB, from %s in %d ms",
+				loaded.getVersion(), loaded.userCount(), loaded.productCount(), loaded.getFactors(), loaded.getNeighbours(),
+				loaded.fileSize() >> 20, storeFile, System.currentTimeMillis() - start));
+		return loaded;
+	}
+}
@@ -0,0 +1,193 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+/**
+ * Hands out graph sessions from the pool of the OrientGraphFactory, at most
+ * recommendation.graph.pool.max at a time.
+ *
+ * A session is held from acquire() until release(), which must be called in a
+ * finally block. When every session is in use, acquire() waits up to
+ * recommendation.graph.pool.waitMillis and then fails with
+ * RecommendationUnavailable rather than queue without bound. At startup
+ * recommendation.graph.pool.min sessions are opened and returned, so the first
+ * requests find them open.
+ *
+ * The factory's pool keeps one session per thread and gives it back to the same
+ * thread if it acquires again before releasing, so a thread must not hold two.
+ */
+@Component
+public class GraphSessionPool implements PublicMetrics {
+	private static final Logger log = LoggerFactory.getLogger(GraphSessionPool.class);
+
+	@Autowired
+	OrientGraphFactory graphFactory;
+
+	@Autowired
+	RecommendationMetrics metrics;
+
+	@Value("${recommendation.graph.pool.min:4}")
+	int minSize;
+
+	@Value("${recommendation.graph.pool.max:32}")
+	int maxSize;
+
+	@Value("${recommendation.graph.pool.waitMillis:500}")
+	long waitMillis;
+
+	private Semaphore permits;
+
+	@PostConstruct
+	public void start() {
+		minSize = Math.min(minSize, maxSize);
+		graphFactory.setupPool(minSize, maxSize);
+		permits = new Semaphore(maxSize, true);
+		warmUp();
+	}
+
+	/**
+	 * @return a session, waiting at most recommendation.graph.pool.waitMillis
+	 * @throws RecommendationUnavailable if none was free in time
+	 */
+	public OrientGraphNoTx acquire() {
+		return acquire(waitMillis);
+	}
+
+	/**
+	 * @param waitMillis how long to wait for a free session
+	 * @return a session
+	 * @throws RecommendationUnavailable if none was free in time
+	 */
+	public OrientGraphNoTx acquire(long waitMillis) {
+		permit(waitMillis);
+		try {
+			OrientGraphNoTx graph = graphFactory.getNoTx();
+			metrics.increment("graph.pool.acquired");
+			return graph;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param waitMillis how long to wait for a free session
+	 * @return a transactional session, from the same pool
+	 * @throws RecommendationUnavailable if none was free in time
+	 */
+	public OrientGraph acquireTx(long waitMillis) {
+		permit(waitMillis);
+		try {
+			OrientGraph graph = graphFactory.getTx();
+			metrics.increment("graph.pool.acquired");
+			return graph;
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	private void permit(long waitMillis) {
+		long start = System.nanoTime();
+		boolean acquired;
+		try {
+			acquired = permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RecommendationUnavailable("Interrupted waiting for a graph session");
+		}
+		metrics.time("graph.pool.wait", start);
+		if (!acquired) {
+			metrics.increment("graph.pool.timeouts");
+			throw new RecommendationUnavailable(String.format("No graph session free in %d ms", waitMillis));
+		}
+	}
+
+	/**
+	 * Give back a session from acquire() or acquireTx()
+	 * @param graph
+	 */
+	public void release(OrientBaseGraph graph) {
+		try {
+			graph.shutdown();
+		} finally {
+			permits.release();
+		}
+	}
+
+	public int inUse() {
+		return maxSize - permits.availablePermits();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Integer>("graph.pool.max", maxSize));
+		metrics.add(new Metric<Integer>("graph.pool.inUse", inUse()));
+		metrics.add(new Metric<Double>("graph.pool.utilisation", (double) inUse() / maxSize));
+		metrics.add(new Metric<Integer>("graph.pool.waiting", permits.getQueueLength()));
+		metrics.add(new Metric<Integer>("graph.pool.created", graphFactory.getCreatedInstancesInPool()));
+		metrics.add(new Metric<Integer>("graph.pool.idle", graphFactory.getAvailableInstancesInPool()));
+		return metrics;
+	}
+
+	/*
+	 * the pool opens a session per thread, so open min of
+	 * them at once from as many threads
+	 */
+	private void warmUp() {
+		long start = System.currentTimeMillis();
+		final CountDownLatch opened = new CountDownLatch(minSize);
+		final CountDownLatch done = new CountDownLatch(minSize);
+		for (int i = 0; i < minSize; i++) {
+			Thread warmer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						OrientGraphNoTx graph = acquire();
+						try {
+							opened.countDown();
+							opened.await(10, TimeUnit.SECONDS);
+						} finally {
+							release(graph);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} catch (RuntimeException e) {
+						log.warn("Cannot open a graph session to warm up", e);
+						opened.countDown();
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "graph-pool-warm-up-" + i);
+			warmer.start();
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		log.info(String.format("Graph session pool of %d to %d, %d sessions opened in %d ms",
+				minSize, maxSize, graphFactory.getCreatedInstancesInPool(), System.currentTimeMillis() - start));
+	}
+}
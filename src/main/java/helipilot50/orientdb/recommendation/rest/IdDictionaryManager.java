@@ -0,0 +1,76 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.IdDictionary;
+
+/**
+ * Holds the dictionary of userIds and productIds by key that the services of
+ * the requests share, loaded at startup when recommendation.dictionary.enabled
+ * is true. It then grows with the ids the services read from the graph.
+ */
+@Component
+public class IdDictionaryManager implements PublicMetrics {
+	private static final Logger log = LoggerFactory.getLogger(IdDictionaryManager.class);
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Value("${recommendation.dictionary.enabled:true}")
+	boolean enabled;
+
+	private volatile IdDictionary current;
+
+	@PostConstruct
+	public void start() {
+		if (!enabled)
+			return;
+		long start = System.currentTimeMillis();
+		OrientGraphNoTx graph = sessions.acquire();
+		try {
+			IdDictionary dictionary = new IdDictionary();
+			long ids = dictionary.load(graph);
+			current = dictionary;
+			log.info(String.format("Id dictionary: %d users and %d products, %d ids loaded in %d ms",
+					dictionary.userCount(), dictionary.productCount(), ids, System.currentTimeMillis() - start));
+		} catch (RuntimeException e) {
+			/*
+			 * without it products are decoded from their vertices
+			 */
+			log.error("Cannot load the id dictionary", e);
+		} finally {
+			sessions.release(graph);
+		}
+	}
+
+	/**
+	 * @return the dictionary to give the services, or null when there is none
+	 */
+	public IdDictionary current() {
+		return current;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		IdDictionary dictionary = current;
+		if (dictionary == null)
+			return metrics;
+		metrics.add(new Metric<Integer>("dictionary.users", dictionary.userCount()));
+		metrics.add(new Metric<Integer>("dictionary.products", dictionary.productCount()));
+		return metrics;
+	}
+}
@@ -0,0 +1,17 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The reviews do not fit in the ingest queue; none of them were taken.
+ * Answered with 429, so clients back off and send them again.
+ */
+@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+public class IngestQueueFull extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public IngestQueueFull(String message) {
+		super(message);
+	}
+}
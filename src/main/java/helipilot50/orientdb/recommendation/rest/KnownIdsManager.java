@@ -0,0 +1,154 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.orientechnologies.orient.core.index.OIndex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.KnownIds;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+/**
+ * Holds the Bloom filters of the userIds and productIds in the graph, that the
+ * services of the requests and the review ingester share. Off by default: set
+ * recommendation.knownIds.enabled to load them at startup.
+ *
+ * Users and products another process writes, DataLoad or BulkImporter or
+ * another node, are not in the filters, and are not found until the filters
+ * are rebuilt: every recommendation.knownIds.reloadMinutes if that is set, and
+ * on demand. New filters replace the current ones once they are loaded.
+ *
+ * Each filter is sized for recommendation.knownIds.capacity ids, or twice the
+ * ids in the graph if that is more, at recommendation.knownIds.falsePositiveRate.
+ * Between rebuilds ids are only added, so the filters grow fuller and let more
+ * unknown ids through to the graph, which the knownIds.*.falsePositiveRate
+ * gauges show; a rebuild sizes them again.
+ */
+@Component
+public class KnownIdsManager implements PublicMetrics {
+	private static final Logger log = LoggerFactory.getLogger(KnownIdsManager.class);
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Value("${recommendation.knownIds.enabled:false}")
+	boolean enabled;
+
+	@Value("${recommendation.knownIds.capacity:1000000}")
+	long capacity;
+
+	@Value("${recommendation.knownIds.falsePositiveRate:0.01}")
+	double falsePositiveRate;
+
+	@Value("${recommendation.knownIds.reloadMinutes:60}")
+	long reloadMinutes;
+
+	private volatile KnownIds current;
+	private final AtomicBoolean loading = new AtomicBoolean();
+	private ScheduledExecutorService loader;
+
+	@PostConstruct
+	public void start() {
+		if (!enabled)
+			return;
+		reload();
+		if (reloadMinutes > 0) {
+			loader = Executors.newSingleThreadScheduledExecutor();
+			loader.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reload();
+				}
+			}, reloadMinutes, reloadMinutes, TimeUnit.MINUTES);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (loader != null)
+			loader.shutdownNow();
+	}
+
+	/**
+	 * Build the filters again from the graph, on the calling thread, keeping
+	 * the current ones if that fails
+	 * @return the number of ids loaded, -1 if the filters are disabled or a
+	 *         rebuild was already running
+	 */
+	public long reload() {
+		if (!enabled || !loading.compareAndSet(false, true))
+			return -1;
+		try {
+			long start = System.currentTimeMillis();
+			OrientGraphNoTx graph = sessions.acquire(TimeUnit.MINUTES.toMillis(1));
+			try {
+				long users = keys(graph, Constants.USER_CLASS, Constants.USER_ID);
+				long products = keys(graph, Constants.PRODUCT_CLASS, Constants.PRODUCT_ID);
+				KnownIds knownIds = new KnownIds(Math.max(capacity, 2 * users), Math.max(capacity, 2 * products),
+						falsePositiveRate);
+				/*
+				 * ids created while the new filters load are added
+				 * to them too
+				 */
+				KnownIds previous = current;
+				if (previous != null)
+					previous.replaceWith(knownIds);
+				long ids = knownIds.load(graph);
+				current = knownIds;
+				log.info(String.format("Known ids: %d users and %d products, %d ids loaded in %d ms",
+						users, products, ids, System.currentTimeMillis() - start));
+				return ids;
+			} finally {
+				sessions.release(graph);
+			}
+		} catch (RuntimeException e) {
+			log.error("Cannot load the known ids, keeping the previous filters", e);
+			return -1;
+		} finally {
+			loading.set(false);
+		}
+	}
+
+	private static long keys(OrientGraphNoTx graph, String className, String property) {
+		OIndex<?> index = graph.getRawGraph().getMetadata().getIndexManager()
+				.getIndex(SchemaManager.indexName(className, property));
+		return index == null ? 0 : index.getKeySize();
+	}
+
+	/**
+	 * @return the filters to give the services, or null when there are none
+	 */
+	public KnownIds current() {
+		return current;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		KnownIds knownIds = current;
+		if (knownIds == null)
+			return metrics;
+		metrics.add(new Metric<Long>("knownIds.users.rejected", knownIds.getUsersRejected()));
+		metrics.add(new Metric<Long>("knownIds.products.rejected", knownIds.getProductsRejected()));
+		metrics.add(new Metric<Double>("knownIds.users.falsePositiveRate", knownIds.getUsers().falsePositiveRate()));
+		metrics.add(new Metric<Double>("knownIds.products.falsePositiveRate", knownIds.getProducts().falsePositiveRate()));
+		return metrics;
+	}
+}
@@ -0,0 +1,75 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import helipilot50.orientdb.recommendation.offline.AlsTrainer;
+import helipilot50.orientdb.recommendation.offline.LatentFactors;
+
+/**
+ * Holds the LatentFactors AlsTrainer writes to recommendation.factors.file, when
+ * recommendation.factors.enabled is true, loaded at startup and on demand.
+ * Recommendations for the users in it are then answered from the factors.
+ */
+@Component
+public class LatentFactorStore {
+	private static final Logger log = LoggerFactory.getLogger(LatentFactorStore.class);
+
+	@Value("${recommendation.factors.enabled:false}")
+	boolean enabled;
+
+	@Value("${recommendation.factors.file:" + AlsTrainer.DEFAULT_FILE + "}")
+	String modelFile;
+
+	private final AtomicReference<LatentFactors> model = new AtomicReference<LatentFactors>();
+
+	@PostConstruct
+	public void init() {
+		if (!enabled)
+			return;
+		if (new File(modelFile).exists()) {
+			try {
+				load();
+			} catch (IOException e) {
+				log.error("Cannot load the latent factors from " + modelFile, e);
+			}
+		} else
+			log.info("No latent factors at " + modelFile + ", run " + AlsTrainer.class.getSimpleName());
+	}
+
+	/**
+	 * @return the model, or null if none is loaded
+	 */
+	public LatentFactors current() {
+		return model.get();
+	}
+
+	/**
+	 * Load the model again, after the trainer has rewritten it
+	 * @return the number of users in the model, -1 when the factors are not served
+	 * @throws IOException
+	 */
+	public int reload() throws IOException {
+		if (!enabled)
+			return -1;
+		return load().userCount();
+	}
+
+	private LatentFactors load() throws IOException {
+		long start = System.currentTimeMillis();
+		LatentFactors loaded = LatentFactors.read(new File(modelFile));
+		model.set(loaded);
+		log.info(String.format("Loaded %d factors of %d users and %d products from %s in %d ms, hold-out RMSE %.4f",
+				loaded.getFactors(), loaded.userCount(), loaded.productCount(), modelFile,
+				System.currentTimeMillis() - start, loaded.getHoldoutRmse()));
+		return loaded;
+	}
+}
@@ -0,0 +1,144 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.lsh.MinHashIndex;
+import helipilot50.orientdb.recommendation.lsh.RecallEvaluation;
+import helipilot50.orientdb.recommendation.lsh.RecallReport;
+
+/**
+ * Keeps a MinHashIndex of the users current with the reviews added through this
+ * service, when recommendation.lsh.enabled is true.
+ *
+ * The index is rebuilt from the graph at startup, on
+ * recommendation.lsh.threads threads. Reviews added before the rebuild
+ * finishes, or by another process, are only signed by the next rebuild.
+ */
+@Component
+public class MinHashManager implements ReviewListener {
+	private static final Logger log = LoggerFactory.getLogger(MinHashManager.class);
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Value("${recommendation.lsh.enabled:false}")
+	boolean enabled;
+
+	/*
+	 * a pair of Jaccard 0.2 shares a bucket with
+	 * probability 0.73, one of 0.05 with 0.08
+	 */
+	@Value("${recommendation.lsh.bands:32}")
+	int bands;
+
+	@Value("${recommendation.lsh.rows:2}")
+	int rows;
+
+	@Value("${recommendation.lsh.seed:1}")
+	long seed;
+
+	/*
+	 * 0 for one per core
+	 */
+	@Value("${recommendation.lsh.threads:0}")
+	int threads;
+
+	@Value("${recommendation.lsh.maxCandidates:500}")
+	int maxCandidates;
+
+	private volatile MinHashIndex index;
+	private ExecutorService maintenance;
+
+	@PostConstruct
+	public void start() {
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		if (!enabled)
+			return;
+		maintenance = Executors.newSingleThreadExecutor();
+		maintenance.execute(new Runnable() {
+			@Override
+			public void run() {
+				rebuild();
+			}
+		});
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (maintenance != null)
+			maintenance.shutdown();
+	}
+
+	/**
+	 * @return the index, or null before the first rebuild
+	 */
+	public MinHashIndex current() {
+		return index;
+	}
+
+	public int getMaxCandidates() {
+		return maxCandidates;
+	}
+
+	@Override
+	public void reviewCreated(Vertex vUser, Vertex vProduct) {
+		MinHashIndex current = index;
+		if (current != null)
+			current.reviewAdded(FineFoodsService.userKey((OIdentifiable) vUser), FineFoodsService.productKey((OIdentifiable) vProduct));
+	}
+
+	/**
+	 * @return the number of users indexed, -1 on failure
+	 */
+	public int rebuild() {
+		OrientGraphNoTx graph = sessions.acquire(TimeUnit.MINUTES.toMillis(1));
+		try {
+			index = MinHashIndex.rebuild(graph, bands, rows, seed, threads);
+			return index.userCount();
+		} catch (RuntimeException e) {
+			log.error("MinHash rebuild failed", e);
+			return -1;
+		} finally {
+			sessions.release(graph);
+		}
+	}
+
+	/**
+	 * Compare the candidates of a sample of users with their most similar
+	 * co-reviewers, which walks the graph for each
+	 * @param users
+	 * @param k
+	 * @return the recall, or null before the first rebuild
+	 */
+	public RecallReport evaluate(int users, int k) {
+		MinHashIndex current = index;
+		if (current == null)
+			return null;
+		OrientGraphNoTx graph = sessions.acquire(TimeUnit.MINUTES.toMillis(1));
+		try {
+			RecallReport report = RecallEvaluation.evaluate(current, new FineFoodsService(graph), users, k, maxCandidates, seed);
+			log.info("MinHash evaluation: " + report);
+			return report;
+		} finally {
+			sessions.release(graph);
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.offline.PrecomputeJob;
+import helipilot50.orientdb.recommendation.offline.PrecomputedRecommendations;
+
+/**
+ * Serves the recommendations PrecomputeJob materialised, from its part files in
+ * recommendation.precomputed.directory or from the "recommended" edges, as
+ * recommendation.precomputed.source says: none, files or edges.
+ *
+ * A recommendation is fresh for recommendation.precomputed.maxAgeMinutes after
+ * it was computed, unless the user added a review through this service since,
+ * see RecentReviews.
+ * The part files are read at startup and on demand.
+ */
+@Component
+public class PrecomputedRecommendationStore {
+	private static final Logger log = LoggerFactory.getLogger(PrecomputedRecommendationStore.class);
+
+	enum Source { NONE, FILES, EDGES }
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Autowired
+	RecentReviews recent;
+
+	@Value("${recommendation.precomputed.source:none}")
+	String source;
+
+	@Value("${recommendation.precomputed.directory:" + PrecomputeJob.DEFAULT_DIRECTORY + "}")
+	String directory;
+
+	@Value("${recommendation.precomputed.maxAgeMinutes:1440}")
+	long maxAgeMinutes;
+
+	private Source mode = Source.NONE;
+	private final AtomicReference<PrecomputedRecommendations> files = new AtomicReference<PrecomputedRecommendations>();
+
+	@PostConstruct
+	public void init() {
+		mode = Source.valueOf(source.trim().toUpperCase());
+		if (mode != Source.FILES)
+			return;
+		if (new File(directory).isDirectory()) {
+			try {
+				load();
+			} catch (IOException e) {
+				log.error("Cannot read the precomputed recommendations in " + directory, e);
+			}
+		} else
+			log.info("No precomputed recommendations in " + directory + ", run " + PrecomputeJob.class.getSimpleName());
+	}
+
+	/**
+	 * @param userId
+	 * @return the user's precomputed recommendation, or null if there is none
+	 *         or it is not fresh
+	 */
+	public Recommendation get(String userId) {
+		if (mode != Source.EDGES)
+			return get(userId, null);
+		OrientGraphNoTx graph = sessions.acquire();
+		try {
+			return get(userId, new FineFoodsService(graph));
+		} finally {
+			sessions.release(graph);
+		}
+	}
+
+	/**
+	 * @param userId
+	 * @param service to read the edges with
+	 * @return the user's precomputed recommendation, or null if there is none
+	 *         or it is not fresh
+	 */
+	public Recommendation get(String userId, FineFoodsService service) {
+		if (mode == Source.NONE)
+			return null;
+		long notBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(maxAgeMinutes);
+		notBefore = Math.max(notBefore, recent.reviewedAt(userId));
+		if (mode == Source.FILES) {
+			PrecomputedRecommendations current = files.get();
+			return current == null ? null : current.recommend(userId, notBefore);
+		}
+		Vertex vUser = service.lookupUserById(userId);
+		return vUser == null ? null : service.materialisedRecommendation(vUser, notBefore);
+	}
+
+	/**
+	 * Read the part files again, after the job has rewritten them
+	 * @return the number of users with a recommendation, -1 when they are not
+	 *         served from files
+	 * @throws IOException
+	 */
+	public int reload() throws IOException {
+		if (mode != Source.FILES)
+			return -1;
+		return load().userCount();
+	}
+
+	private PrecomputedRecommendations load() throws IOException {
+		long start = System.currentTimeMillis();
+		PrecomputedRecommendations loaded = PrecomputedRecommendations.read(new File(directory));
+		files.set(loaded);
+		log.info(String.format("Read the precomputed recommendations of %d users, the oldest computed at %tc, from %s in %d ms, %d bytes",
+				loaded.userCount(), loaded.oldest(), directory, System.currentTimeMillis() - start, loaded.memoryFootprint()));
+		return loaded;
+	}
+}
@@ -1,25 +1,69 @@
 package helipilot50.orientdb.recommendation.rest;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.context.request.async.DeferredResult;
 
-import com.tinkerpop.blueprints.Vertex;
-import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
 
-import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.CandidateSource;
 import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.HubPolicy;
+import helipilot50.orientdb.recommendation.KnownIds;
+import helipilot50.orientdb.recommendation.MemoizedFineFoodsService;
 import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.ReviewMemo;
+import helipilot50.orientdb.recommendation.ServiceSessions;
+import helipilot50.orientdb.recommendation.UserNotFound;
+import helipilot50.orientdb.recommendation.cooccurrence.CoOccurrenceIndex;
+import helipilot50.orientdb.recommendation.cooccurrence.ConsistencyReport;
+import helipilot50.orientdb.recommendation.lsh.MinHashIndex;
+import helipilot50.orientdb.recommendation.lsh.RecallReport;
+import helipilot50.orientdb.recommendation.offline.LatentFactors;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+import helipilot50.orientdb.recommendation.store.FeatureStore;
+import helipilot50.orientdb.recommendation.util.SingleFlight;
 
 
 @Controller
@@ -27,95 +71,691 @@ public class RESTController {
 	private static Logger log = LoggerFactory.getLogger(RESTController.class);
 
 	@Autowired
-	OrientGraphFactory  graphFactory;
+	GraphSessionPool sessions;
+
+	@Autowired
+	SnapshotManager snapshots;
 
+	@Autowired
+	RecommendationCache cache;
+
+	@Autowired
+	CoOccurrenceManager coOccurrence;
+
+	@Autowired
+	MinHashManager minHash;
+
+	@Autowired
+	LatentFactorStore factors;
+
+	@Autowired
+	FeatureStoreManager features;
+
+	@Autowired
+	PrecomputedRecommendationStore precomputed;
+
+	@Autowired
+	RecentReviews recent;
+
+	@Autowired
+	ReviewIngester ingester;
+
+	@Autowired(required = false)
+	KnownIdsManager knownIds;
+
+	@Autowired(required = false)
+	IdDictionaryManager dictionary;
+
+	@Autowired
+	RecommendationMetrics metrics;
+
+	@Autowired(required = false)
+	List<ReviewListener> reviewListeners;
+
+	@Value("${recommendation.neighbours:" + Recommender.DEFAULT_NEIGHBOURS + "}")
+	int neighbours;
+
+	@Value("${recommendation.maxResults:" + Recommender.DEFAULT_MAX_RESULTS + "}")
+	int maxResults;
+
+	/*
+	 * keep, skip or sample the reviewers of products
+	 * with more than threshold reviews
+	 */
+	@Value("${recommendation.hubs.policy:sample}")
+	String hubMode;
+
+	@Value("${recommendation.hubs.threshold:1000}")
+	int hubThreshold;
+
+	@Value("${recommendation.hubs.sampleSize:100}")
+	int hubSampleSize;
+
+	HubPolicy hubPolicy;
+
+	/*
+	 * graph or lsh, unless a request asks for the other
+	 */
+	@Value("${recommendation.candidates:graph}")
+	String candidates;
+
+	CandidateSource candidateSource;
+
+	/*
+	 * workers shared by all batch requests, 0 for one per core
+	 */
+	@Value("${recommendation.batch.threads:0}")
+	int batchThreads;
+
+	@Value("${recommendation.batch.maxUsers:10000}")
+	int batchMaxUsers;
+
+	private ExecutorService batchExecutor;
+
+	/*
+	 * recommendations run on a bounded executor, off the servlet
+	 * threads, unless async is false
+	 */
+	@Value("${recommendation.async.enabled:true}")
+	boolean async;
+
+	@Value("${recommendation.async.threads:0}")
+	int asyncThreads;
+
+	@Value("${recommendation.async.queueSize:100}")
+	int asyncQueueSize;
+
+	/*
+	 * latency budget of a recommendation, 0 for none
+	 */
+	@Value("${recommendation.deadlineMillis:2000}")
+	long deadlineMillis;
+
+	/*
+	 * the candidates of one recommendation are scored on a pool
+	 * shared by all requests once there are parallelThreshold of
+	 * them, 0 for never; threads 0 for one per core, as many
+	 * as leave most of the graph session pool to the workers
+	 */
+	@Value("${recommendation.scoring.threads:0}")
+	int scoringThreads;
+
+	@Value("${recommendation.scoring.parallelThreshold:2000}")
+	int parallelThreshold;
+
+	private ForkJoinPool scoringPool;
+	private final ServiceSessions scoringSessions = new ServiceSessions() {
+		@Override
+		public FineFoodsService acquire() {
+			try {
+				return newService(sessions.acquire(0));
+			} catch (RecommendationUnavailable e) {
+				return null;
+			}
+		}
+
+		@Override
+		public void release(FineFoodsService service) {
+			sessions.release(service.getGraph());
+		}
+	};
+
+	private ExecutorService recommendExecutor;
+	private final SingleFlight<String, Recommendation> inFlight = new SingleFlight<String, Recommendation>();
+	private static final TypeReference<Map<String, Object>> REVIEW_TYPE = new TypeReference<Map<String, Object>>() {};
+	private final ObjectMapper reviewMapper = new ObjectMapper();
+	private final ObjectWriter batchWriter = new ObjectMapper()
+			.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false)
+			.writer();
+
+	@PostConstruct
+	public void init() {
+		hubPolicy = HubPolicy.parse(hubMode, hubThreshold, hubSampleSize);
+		log.info("Hub products: " + hubPolicy);
+		candidateSource = CandidateSource.parse(candidates);
+		if (batchThreads <= 0)
+			batchThreads = Runtime.getRuntime().availableProcessors();
+		batchExecutor = Executors.newFixedThreadPool(batchThreads);
+		/*
+		 * twice the cores, a worker spends much of its time waiting on
+		 * storage, but no more than the graph sessions left by the scoring
+		 * threads; a full queue rejects new work at once
+		 */
+		int cores = Runtime.getRuntime().availableProcessors();
+		if (parallelThreshold > 0 && scoringThreads <= 0)
+			scoringThreads = Math.max(1, Math.min(cores, sessions.maxSize / 3));
+		if (asyncThreads <= 0)
+			asyncThreads = Math.max(1, Math.min(2 * cores, sessions.maxSize - (parallelThreshold > 0 ? scoringThreads : 0)));
+		checkSessions();
+		recommendExecutor = new ThreadPoolExecutor(asyncThreads, asyncThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(asyncQueueSize));
+		log.info(String.format("Recommendations %s, %d threads, queue %d, deadline %d ms",
+				async ? "async" : "sync", asyncThreads, asyncQueueSize, deadlineMillis));
+		if (parallelThreshold > 0) {
+			scoringPool = new ForkJoinPool(scoringThreads);
+			log.info(String.format("Scoring %d candidates or more on %d threads", parallelThreshold, scoringThreads));
+		}
+	}
+
+	/*
+	 * every recommendation worker and every scoring thread may hold a
+	 * graph session at once, one per thread, so the pool must have as many;
+	 * threads left to the default are sized to fit, and with recommendations
+	 * on the servlet threads one session is kept for them at least
+	 */
+	private void checkSessions() {
+		int needed = (async ? asyncThreads : 1) + (parallelThreshold > 0 ? scoringThreads : 0);
+		if (needed > sessions.maxSize)
+			throw new IllegalStateException(String.format(
+					"recommendation.graph.pool.max is %d, below the %d sessions of %d recommendation and %d scoring threads",
+					sessions.maxSize, needed, async ? asyncThreads : 1, parallelThreshold > 0 ? scoringThreads : 0));
+	}
+
+	/*
+	 * not shutdownNow: an interrupt closes the file
+	 * channels of a plocal database
+	 */
+	@PreDestroy
+	public void stop() {
+		batchExecutor.shutdown();
+		recommendExecutor.shutdown();
+		if (scoringPool != null)
+			scoringPool.shutdown();
+	}
 
 
 	/**
 	 * get a recommendation for a specific user
+	 *
+	 * Unless cached, the recommendation is computed on the recommendation
+	 * executor, not on the servlet thread, and ranked from the neighbours found
+	 * within recommendation.deadlineMillis, marked partial if that cut it short.
+	 * When the executor's queue is full, or the recommendation is not ready in
+	 * twice the deadline, the answer is 503. Requests for a user whose
+	 * recommendation is being computed wait for it and share it, a batch's
+	 * included.
+	 *
+	 * Users in the latent factor model, when it is served, are answered from
+	 * it whatever the candidates. Only recommendations from
+	 * recommendation.candidates are cached, and only those from the graph are
+	 * served from the snapshot.
 	 * @param The user ID for a User
+	 * @param candidates graph, lsh or cooccurrence, recommendation.candidates if not given
 	 * @return
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	@RequestMapping(value="/finefoods/recommendation/{userId}", method=RequestMethod.GET)
-	public @ResponseBody Recommendation getRecommendationFor(@PathVariable("userId") String userId) throws Exception {
+	public @ResponseBody DeferredResult<Recommendation> getRecommendationFor(@PathVariable("userId") final String userId,
+			@RequestParam(value="candidates", required=false) String candidates) throws Exception {
+		final long start = System.nanoTime();
+		final CandidateSource source = candidates != null ? CandidateSource.parse(candidates) : candidateSource;
+		metrics.increment("recommendation.requests");
+		final long deadline = deadlineMillis > 0 ? System.currentTimeMillis() + deadlineMillis : Long.MAX_VALUE;
+		final DeferredResult<Recommendation> result = deadlineMillis > 0
+				? new DeferredResult<Recommendation>(deadlineMillis * 2)
+				: new DeferredResult<Recommendation>();
+		if (!mightBeUser(userId))
+			throw new UserNotFound(userId);
+		Recommendation rec = source == candidateSource ? cache.get(userId) : null;
+		if (rec != null) {
+			result.setResult(rec);
+			metrics.time("recommendation.cached", start);
+			return result;
+		}
+		if (!async) {
+			result.setResult(recommendAndCache(userId, source, deadline));
+			metrics.time("recommendation.total", start);
+			return result;
+		}
+		result.onTimeout(new Runnable() {
+			@Override
+			public void run() {
+				metrics.increment("recommendation.timedOut");
+				result.setErrorResult(new RecommendationUnavailable(String.format(
+						"No recommendation for %s in %d ms", userId, deadlineMillis * 2)));
+			}
+		});
+		try {
+			recommendExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					/*
+					 * do not start what the client no longer waits for
+					 */
+					if (result.isSetOrExpired())
+						return;
+					metrics.time("recommendation.queued", start);
+					if (System.currentTimeMillis() > deadline) {
+						metrics.increment("recommendation.expiredInQueue");
+						result.setErrorResult(new RecommendationUnavailable(String.format(
+								"Queued past the deadline for %s", userId)));
+						return;
+					}
+					try {
+						result.setResult(recommendAndCache(userId, source, deadline));
+						metrics.time("recommendation.total", start);
+					} catch (RuntimeException e) {
+						metrics.increment("recommendation.errors");
+						result.setErrorResult(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			metrics.increment("recommendation.rejected");
+			log.warn("Rejected a recommendation for " + userId + ", queue full");
+			throw new RecommendationUnavailable("Too many recommendations in progress");
+		}
+		return result;
+	}
+
+	/*
+	 * a partial recommendation is not cached, the next
+	 * request may have the time to complete it
+	 */
+	private Recommendation recommendAndCache(final String userId, final CandidateSource source, final long deadline) {
+		return coalesce(userId, source, new Callable<Recommendation>() {
+			@Override
+			public Recommendation call() {
+				long generation = cache.generation();
+				Recommendation rec = recommend(userId, source, deadline);
+				if (rec.isPartial())
+					metrics.increment("recommendation.partial");
+				else if (source == candidateSource)
+					cache.put(rec, generation);
+				return rec;
+			}
+		});
+	}
+
+	/*
+	 * concurrent requests for the same user and candidates share one
+	 * computation; those that waited for another's are counted coalesced
+	 */
+	private Recommendation coalesce(String userId, CandidateSource source, final Callable<Recommendation> computation) {
+		final boolean[] computed = new boolean[1];
+		Recommendation rec = inFlight.execute(userId + "/" + source, new Callable<Recommendation>() {
+			@Override
+			public Recommendation call() throws Exception {
+				computed[0] = true;
+				return computation.call();
+			}
+		});
+		if (!computed[0])
+			metrics.increment("recommendation.coalesced");
+		return rec;
+	}
+
+	private Recommendation recommend(String userId, CandidateSource source, long deadline) {
 		log.debug("Finding recomendations for " + userId);
-		OrientGraphNoTx graph = graphFactory.getNoTx();
-		FineFoodsService service = new FineFoodsService(graph);
-		/*
-		 * find user
-		 */
-		Vertex vUser = service.findUserById(userId);
-		/*
-		 * build a vector list of Reviews for User
-		 */
-		List<Double> thisUserReviewVector = service.makeVectorForUser(vUser);
+		Recommendation rec = recommendFromFactors(userId);
+		if (rec != null)
+			return rec;
+		rec = source == CandidateSource.GRAPH ? precomputed.get(userId) : null;
+		if (rec != null) {
+			metrics.increment("recommendation.fromPrecomputed");
+			return rec;
+		}
+		rec = source == CandidateSource.GRAPH ? recommendFromSnapshot(userId) : null;
+		if (rec != null) {
+			metrics.increment("recommendation.fromSnapshot");
+			return rec;
+		}
+		OrientGraphNoTx graph = sessions.acquire();
+		try {
+			Recommender recommender = newRecommender(newService(graph), source);
+			/*
+			 * single requests only, a batch is parallel across its users already
+			 */
+			recommender.setParallelScoring(scoringPool, parallelThreshold, scoringSessions);
+			rec = recommender.recommend(userId, deadline);
+			log.debug("Found these recomendations: " + rec.getRankedProducts());
+			return rec;
+		} finally {
+			sessions.release(graph);
+		}
+	}
 
-		Recommendation rec = new Recommendation(userId, productListAsString(service.productsForUser(vUser)));
+	/*
+	 * null without a model, for users added since it was trained or
+	 * that reviewed since, the mapped feature store answering before
+	 * the loaded factors
+	 */
+	private Recommendation recommendFromFactors(String userId) {
+		FeatureStore store = features.current();
+		LatentFactors model = factors.current();
+		if ((store == null || store.getFactors() == 0) && model == null)
+			return null;
+		long start = System.nanoTime();
+		Recommendation rec = null;
+		if (store != null && !stale(userId, store.getVersion()))
+			rec = store.recommend(userId, maxResults);
+		if (rec == null && model != null && !stale(userId, model.getBuiltAt()))
+			rec = model.recommend(userId, maxResults);
+		if (rec != null)
+			metrics.time("recommendation.fromFactors", start);
+		return rec;
+	}
 
-		Vertex bestMatchedUser = null;
-		List<Vertex> bestMatchedList = null;
-		double bestScore = 0;
-		/*
-		 * for each Review from this User, iterate
-		 * through the other User that also reviewed
-		 * the food 
-		 */
-		List<Vertex> otherUsers = service.similarUsers(vUser);
-		for (Vertex similarUser : otherUsers){
-			if (!similarUser.equals(userId)) {
-				// find user with the highest similarity
+	/*
+	 * whether the user reviewed since an answer was computed
+	 */
+	private boolean stale(String userId, long computedAt) {
+		if (!recent.reviewedSince(userId, computedAt))
+			return false;
+		metrics.increment("recommendation.reviewedSince");
+		return true;
+	}
 
-				List<Double> similarUserVector = service.makeVectorForUser(similarUser);
+	/*
+	 * serve from memory, null without a snapshot or for users
+	 * added or that reviewed since the snapshot was built
+	 */
+	private Recommendation recommendFromSnapshot(String userId) {
+		ReviewGraphSnapshot snapshot = snapshots.current();
+		if (snapshot == null || stale(userId, snapshot.getBuiltAt()))
+			return null;
+		return snapshot.recommend(userId, neighbours, maxResults, hubPolicy);
+	}
 
-				double score = easySimilarity(thisUserReviewVector, similarUserVector);
+	/**
+	 * Recommendations for many users at once, streamed back as one JSON
+	 * object per line in the order they are ready: a Recommendation, or a
+	 * RecommendationError for a user that has none.
+	 *
+	 * The users are shared out among recommendation.batch.threads workers,
+	 * each with its own graph, that read the reviewers of each product and the
+	 * ratings of each user once for the whole batch.
+	 * @param userIds at most recommendation.batch.maxUsers
+	 * @param response
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@RequestMapping(value="/finefoods/recommendations", method=RequestMethod.POST)
+	public void getRecommendationsFor(@RequestBody List<String> userIds, HttpServletResponse response) throws IOException, InterruptedException {
+		if (userIds.size() > batchMaxUsers)
+			throw new IllegalArgumentException(String.format("%d users in a batch, at most %d", userIds.size(), batchMaxUsers));
+		long start = System.nanoTime();
+		Batch batch = new Batch(userIds);
+		int workers = Math.min(batchThreads, userIds.size());
+		for (int w = 0; w < workers; w++)
+			batchExecutor.execute(batch);
 
-				if (score > bestScore){
+		response.setContentType("application/x-ndjson");
+		response.setCharacterEncoding("UTF-8");
+		OutputStream out = response.getOutputStream();
+		try {
+			for (int i = 0; i < userIds.size(); i++) {
+				Object result = batch.results.take();
+				batchWriter.writeValue(out, result);
+				out.write('\n');
+				/*
+				 * flush whatever is ready before waiting for more
+				 */
+				if (batch.results.isEmpty())
+					out.flush();
+			}
+		} catch (IOException e) {
+			batch.cancel();
+			throw e;
+		}
+		metrics.add("recommendation.batch.users", userIds.size());
+		metrics.add("recommendation.batch.sharedReads", batch.memo.getShared());
+		metrics.time("recommendation.batch.total", start);
+		log.info(String.format("Batch of %d users in %d ms on %d workers, reads: %s",
+				userIds.size(), (System.nanoTime() - start) / 1000000, workers, batch.memo));
+	}
 
-					bestScore = score;
-					bestMatchedUser = similarUser;
-					bestMatchedList = service.productsForUser(similarUser);
-				}
+	/*
+	 * the state of one batch, run by each of its workers until
+	 * every user is taken
+	 */
+	private class Batch implements Runnable {
+		final List<String> userIds;
+		final ReviewMemo memo = new ReviewMemo(hubPolicy);
+		final AtomicInteger next = new AtomicInteger();
+		final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+
+		Batch(List<String> userIds) {
+			this.userIds = userIds;
+		}
+
+		void cancel() {
+			next.set(userIds.size());
+		}
+
+		@Override
+		public void run() {
+			OrientGraphNoTx graph;
+			try {
+				graph = sessions.acquire();
+			} catch (RuntimeException e) {
+				/*
+				 * every user gets a result, or the request waits forever
+				 */
+				log.error("Cannot open the graph for a batch", e);
+				for (int i = next.getAndIncrement(); i < userIds.size(); i = next.getAndIncrement())
+					results.add(new RecommendationError(userIds.get(i), e.toString()));
+				return;
+			}
+			try {
+				MemoizedFineFoodsService service = new MemoizedFineFoodsService(graph, memo);
+				if (reviewListeners != null)
+					service.setReviewListeners(reviewListeners);
+				service.setMetrics(metrics.detailed());
+				service.setKnownIds(knownIds != null ? knownIds.current() : null);
+				service.setIdDictionary(dictionary != null ? dictionary.current() : null);
+				Recommender recommender = newRecommender(service, candidateSource);
+				for (int i = next.getAndIncrement(); i < userIds.size(); i = next.getAndIncrement())
+					results.add(recommend(userIds.get(i), service, recommender));
+			} finally {
+				sessions.release(graph);
+			}
+		}
+
+		private Object recommend(final String userId, final FineFoodsService service, final Recommender recommender) {
+			if (!mightBeUser(userId))
+				return new RecommendationError(userId, new UserNotFound(userId).getMessage());
+			try {
+				Recommendation cached = cache.get(userId);
+				if (cached != null)
+					return cached;
+				return coalesce(userId, candidateSource, new Callable<Recommendation>() {
+					@Override
+					public Recommendation call() {
+						long generation = cache.generation();
+						Recommendation rec = recommendFromFactors(userId);
+						if (rec == null && candidateSource == CandidateSource.GRAPH)
+							rec = precomputed.get(userId, service);
+						if (rec == null && candidateSource == CandidateSource.GRAPH)
+							rec = recommendFromSnapshot(userId);
+						if (rec == null)
+							rec = recommender.recommend(userId);
+						cache.put(rec, generation);
+						return rec;
+					}
+				});
+			} catch (UserNotFound e) {
+				return new RecommendationError(userId, e.getMessage());
+			} catch (RuntimeException e) {
+				log.error("Cannot recommend for " + userId, e);
+				return new RecommendationError(userId, e.toString());
 			}
 		}
-		log.debug("Best customer: " + bestMatchedUser);
-		log.debug("Best score: " + bestScore);
-		// return the best matched user's purchases as the recommendation
-		Set<String> recommendedProducts = productListAsString(bestMatchedList);
+	}
 
 
-		log.debug("Found these recomendations: " + recommendedProducts);
-		
-		rec.setRecommendedProducts(recommendedProducts);
-		return rec;
+	/**
+	 * Add reviews, written to the graph in the background in micro batches;
+	 * answered with 202 once they are queued, or 429 if the queue has no room
+	 * for them all, when none are taken. A review sent again is skipped.
+	 * @param reviews a review or an array of them, each with a userId, a
+	 *        productId and the properties of the review, e.g. score and time
+	 * @return the number of reviews queued
+	 */
+	@RequestMapping(value="/finefoods/reviews", method=RequestMethod.POST)
+	@ResponseStatus(HttpStatus.ACCEPTED)
+	public @ResponseBody int addReviews(@RequestBody JsonNode reviews) {
+		List<Map<String, Object>> submitted = new ArrayList<Map<String, Object>>();
+		for (JsonNode review : reviews.isArray() ? reviews : Collections.singletonList(reviews)) {
+			if (!review.isObject())
+				throw new IllegalArgumentException("A review is a JSON object");
+			Map<String, Object> properties = reviewMapper.convertValue(review, REVIEW_TYPE);
+			submitted.add(properties);
+		}
+		return ingester.submit(submitted);
 	}
 
+	/**
+	 * The state of the in-memory snapshot of the review graph
+	 * @return
+	 */
+	@RequestMapping(value="/finefoods/snapshot", method=RequestMethod.GET)
+	public @ResponseBody SnapshotStatus getSnapshotStatus() {
+		return snapshots.status();
+	}
 
 	/**
-	 * This is a very rudimentary algorithm using Cosine similarity
-	 * @param thisUserVector
-	 * @param similarUserVector
+	 * Rebuild the in-memory snapshot of the review graph in the background
+	 * and serve recommendations from it once it is built
 	 * @return
 	 */
-	public double easySimilarity(List<Double> thisUserVector, List<Double> similarUserVector){
-		/*
-		 * this is the place where you can create clever
-		 * similarity score.
-		 * 
-		 * This algorithm simple returns how many reviews these users have in common.
-		 * 
-		 * You could use any similarity algorithm you wish
-		 */
+	@RequestMapping(value="/finefoods/snapshot/reload", method=RequestMethod.POST)
+	public @ResponseBody SnapshotStatus reloadSnapshot() {
+		snapshots.reloadAsync();
+		return snapshots.status();
+	}
+
+	/**
+	 * Compare the incrementally kept co-occurrence with a full rebuild,
+	 * which walks the whole graph
+	 * @return the differences, or nothing when the co-occurrence is not kept
+	 */
+	@RequestMapping(value="/finefoods/cooccurrence/check", method=RequestMethod.GET)
+	public @ResponseBody ConsistencyReport checkCoOccurrence() {
+		return coOccurrence.check();
+	}
+
+	/**
+	 * Fold the co-occurrence changes since the last compaction into its base
+	 * @return the number of products changed, -1 when the co-occurrence is not kept
+	 */
+	@RequestMapping(value="/finefoods/cooccurrence/compact", method=RequestMethod.POST)
+	public @ResponseBody int compactCoOccurrence() {
+		return coOccurrence.compact();
+	}
+
+	/**
+	 * Sign every user in the graph again, for the MinHash candidates
+	 * @return the number of users signed, -1 when the signatures are not kept
+	 */
+	@RequestMapping(value="/finefoods/lsh/rebuild", method=RequestMethod.POST)
+	public @ResponseBody int rebuildMinHash() {
+		return minHash.current() != null ? minHash.rebuild() : -1;
+	}
+
+	/**
+	 * The recall of the MinHash candidates of a sample of users against their
+	 * co-reviewers of highest Jaccard similarity, which walks the graph for each
+	 * @param users how many users to sample
+	 * @param k how many of the most similar co-reviewers to look for
+	 * @return the recall, or nothing when the signatures are not kept
+	 */
+	@RequestMapping(value="/finefoods/lsh/evaluate", method=RequestMethod.GET)
+	public @ResponseBody RecallReport evaluateMinHash(@RequestParam(value="users", defaultValue="100") int users,
+			@RequestParam(value="k", defaultValue="20") int k) {
+		return minHash.evaluate(users, k);
+	}
+
+	/**
+	 * Load the latent factors again, after AlsTrainer has rewritten them
+	 * @return the number of users in the model, -1 when the factors are not served
+	 * @throws IOException
+	 */
+	@RequestMapping(value="/finefoods/factors/reload", method=RequestMethod.POST)
+	public @ResponseBody int reloadFactors() throws IOException {
+		int users = factors.reload();
+		cache.invalidateAll();
+		return users;
+	}
+
+	/**
+	 * Map the feature store again, after FeatureStoreJob has rewritten it
+	 * @return the version served, -1 when the store is not
+	 * @throws IOException
+	 */
+	@RequestMapping(value="/finefoods/features/reload", method=RequestMethod.POST)
+	public @ResponseBody long reloadFeatures() throws IOException {
+		long version = features.reload();
+		cache.invalidateAll();
+		return version;
+	}
+
+	/**
+	 * Read the precomputed recommendations again, after PrecomputeJob has
+	 * rewritten them
+	 * @return the number of users with a recommendation, -1 when they are not
+	 *         served from files
+	 * @throws IOException
+	 */
+	@RequestMapping(value="/finefoods/precomputed/reload", method=RequestMethod.POST)
+	public @ResponseBody int reloadPrecomputed() throws IOException {
+		int users = precomputed.reload();
+		cache.invalidateAll();
+		return users;
+	}
+
+	/**
+	 * Build the Bloom filters of the known ids again, after another process
+	 * has added users or products
+	 * @return the number of ids loaded, -1 if the filters are disabled or
+	 *         being rebuilt
+	 */
+	@RequestMapping(value="/finefoods/knownids/reload", method=RequestMethod.POST)
+	public @ResponseBody long reloadKnownIds() {
+		return knownIds != null ? knownIds.reload() : -1;
+	}
 
-		return CosineSimilarity.cosineSimilarity(thisUserVector, similarUserVector);
+	private FineFoodsService newService(OrientBaseGraph graph) {
+		FineFoodsService service = new FineFoodsService(graph);
+		if (reviewListeners != null)
+			service.setReviewListeners(reviewListeners);
+		service.setMetrics(metrics.detailed());
+		service.setKnownIds(knownIds != null ? knownIds.current() : null);
+		service.setIdDictionary(dictionary != null ? dictionary.current() : null);
+		return service;
 	}
 
-	private Set<String> productListAsString(List<Vertex> productList){
-		Set<String> theList = new HashSet<String>();
-		for (Vertex prod : productList){
-			theList.add((String) prod.getProperty(Constants.PRODUCT_ID));
+	/*
+	 * false for a user the graph does not have, answered
+	 * before the cache, the queue or a graph session
+	 */
+	private boolean mightBeUser(String userId) {
+		KnownIds known = knownIds != null ? knownIds.current() : null;
+		if (known == null || known.mightBeUser(userId))
+			return true;
+		metrics.increment("recommendation.unknownUsers");
+		return false;
+	}
+
+	/*
+	 * from the graph while there is no MinHash or co-occurrence index
+	 */
+	private Recommender newRecommender(FineFoodsService service, CandidateSource source) {
+		Recommender recommender = new Recommender(service, neighbours, maxResults, hubPolicy);
+		recommender.setMetrics(metrics.detailed());
+		if (source == CandidateSource.LSH) {
+			MinHashIndex index = minHash.current();
+			if (index != null)
+				recommender.setCandidateIndex(index, minHash.getMaxCandidates());
+			else
+				metrics.increment("recommendation.lshUnavailable");
+		} else if (source == CandidateSource.COOCCURRENCE) {
+			CoOccurrenceIndex index = coOccurrence.current();
+			if (index != null)
+				recommender.setCoOccurrence(index);
+			else
+				metrics.increment("recommendation.coOccurrenceUnavailable");
 		}
-		return theList;
+		return recommender;
 	}
 }
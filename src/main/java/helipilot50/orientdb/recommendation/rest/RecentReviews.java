@@ -0,0 +1,116 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.tinkerpop.blueprints.Vertex;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.ReviewListener;
+
+/**
+ * When each user last added a review through this service, since startup.
+ *
+ * Whatever is computed ahead of a request, a precomputed recommendation, a
+ * snapshot or a trained model, does not know the reviews added after it was
+ * computed, so it is not served to a user that reviewed since; the request
+ * falls through to the graph instead. Reviews written by another process are
+ * not seen here.
+ *
+ * Reviews older than recommendation.recentReviews.maxAgeMinutes are dropped,
+ * at most once a minute, so the map holds only the users that reviewed within
+ * that time. Once some are dropped, any user may have reviewed before the
+ * oldest time kept, so whatever was computed before it is served to nobody.
+ */
+@Component
+public class RecentReviews implements ReviewListener, PublicMetrics {
+	private static final long PRUNE_MILLIS = 60000;
+
+	private final long maxAgeMillis;
+	private final ConcurrentMap<String, Long> reviewedAt = new ConcurrentHashMap<String, Long>();
+	/*
+	 * the oldest time still kept, and when the map was last pruned
+	 */
+	private volatile long keptSince;
+	private final AtomicLong prunedAt = new AtomicLong();
+
+	@Autowired
+	public RecentReviews(@Value("${recommendation.recentReviews.maxAgeMinutes:10080}") long maxAgeMinutes) {
+		super();
+		this.maxAgeMillis = TimeUnit.MINUTES.toMillis(maxAgeMinutes);
+	}
+
+	@Override
+	public void reviewCreated(Vertex vUser, Vertex vProduct) {
+		long now = now();
+		reviewedAt.put((String) vUser.getProperty(Constants.USER_ID), now);
+		long last = prunedAt.get();
+		if (now - last >= PRUNE_MILLIS && prunedAt.compareAndSet(last, now))
+			prune(now - maxAgeMillis);
+	}
+
+	/**
+	 * @param userId
+	 * @return when the user last added a review, or the oldest time kept if
+	 *         the user may have reviewed before it, 0 if neither
+	 */
+	public long reviewedAt(String userId) {
+		Long reviewed = reviewedAt.get(userId);
+		return reviewed == null ? keptSince : Math.max(reviewed, keptSince);
+	}
+
+	/**
+	 * @param userId
+	 * @param computedAt when an answer for the user was computed
+	 * @return true if the user added a review since, or may have, so the
+	 *         answer is stale
+	 */
+	public boolean reviewedSince(String userId, long computedAt) {
+		return reviewedAt(userId) >= computedAt;
+	}
+
+	/**
+	 * Drop the reviews added before a time
+	 * @param before
+	 * @return the number of users dropped
+	 */
+	int prune(long before) {
+		keptSince = Math.max(keptSince, before);
+		int pruned = 0;
+		for (Map.Entry<String, Long> entry : reviewedAt.entrySet()) {
+			/*
+			 * not if the user reviewed again meanwhile
+			 */
+			if (entry.getValue() < before && reviewedAt.remove(entry.getKey(), entry.getValue()))
+				pruned++;
+		}
+		return pruned;
+	}
+
+	public int size() {
+		return reviewedAt.size();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Integer>("recentReviews.users", reviewedAt.size()));
+		metrics.add(new Metric<Long>("recentReviews.keptSince", keptSince));
+		return metrics;
+	}
+
+	long now() {
+		return System.currentTimeMillis();
+	}
+}
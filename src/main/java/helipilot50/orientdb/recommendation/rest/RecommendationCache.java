@@ -0,0 +1,272 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.IdDictionary;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.ReviewListener;
+
+/**
+ * Recently served recommendations, by userId.
+ *
+ * Holds at most recommendation.cache.maxSize entries, evicting the least recently
+ * used, and drops entries older than recommendation.cache.ttlSeconds. A maxSize of
+ * 0 turns the cache off.
+ *
+ * A recommendation depends on the ratings of the user and of every user that
+ * shares a product with them, so a new review by a user invalidates that user and
+ * every cached user that reviewed one of that user's products, including the one
+ * just reviewed. Reviews written by another process are not seen here; the TTL
+ * bounds how long those can be served stale.
+ *
+ * A recommendation computed while such a review came in may be stale too, so it
+ * is not cached if its user, or one of the products its user reviewed, was
+ * invalidated after the computation began; one computed across other users'
+ * reviews is.
+ */
+@Component
+public class RecommendationCache implements ReviewListener, PublicMetrics {
+
+	private final int maxSize;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, Entry> entries;
+	/*
+	 * productId -> cached users that reviewed it
+	 */
+	private final Map<String, Set<String>> byProduct = new HashMap<String, Set<String>>();
+	/*
+	 * bumped by every invalidation; the generation each user and
+	 * product was last invalidated in, and the generation before
+	 * which nothing is cached once those are cleared
+	 */
+	private static final int MAX_STAMPS = 100000;
+	private long generation;
+	private final Map<String, Long> invalidatedUsers = new HashMap<String, Long>();
+	private final Map<String, Long> invalidatedProducts = new HashMap<String, Long>();
+	private long stampedSince;
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+
+	@Autowired(required = false)
+	IdDictionaryManager dictionary;
+
+	@Autowired
+	public RecommendationCache(@Value("${recommendation.cache.maxSize:10000}") int maxSize,
+			@Value("${recommendation.cache.ttlSeconds:600}") long ttlSeconds) {
+		super();
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlSeconds * 1000;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * @param userId
+	 * @return the cached recommendation, or null
+	 */
+	public synchronized Recommendation get(String userId) {
+		Entry entry = entries.get(userId);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+		if (now() - entry.created > ttlMillis) {
+			remove(userId);
+			expirations++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.recommendation;
+	}
+
+	/**
+	 * The generation to pass to put for a recommendation computed from now on
+	 * @return
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * Cache a recommendation, unless its user or a product its user reviewed
+	 * was invalidated since generation was read, as it may have been computed
+	 * from stale ratings
+	 * @param recommendation
+	 * @param generation
+	 * @return true if it was cached
+	 */
+	public synchronized boolean put(Recommendation recommendation, long generation) {
+		if (maxSize <= 0 || invalidatedSince(recommendation, generation))
+			return false;
+		String userId = recommendation.getUserId();
+		remove(userId);
+		entries.put(userId, new Entry(recommendation, now()));
+		for (String productId : recommendation.getReviewedProducts())
+			usersOf(productId).add(userId);
+		while (entries.size() > maxSize) {
+			remove(entries.keySet().iterator().next());
+			evictions++;
+		}
+		return true;
+	}
+
+	/*
+	 * the user's products decoded from the keys of the edges' in
+	 * vertices, loading only those the dictionary does not hold
+	 */
+	@Override
+	public void reviewCreated(Vertex vUser, Vertex vProduct) {
+		IdDictionary ids = dictionary != null ? dictionary.current() : null;
+		List<String> productIds = new ArrayList<String>();
+		for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+			String productId = ids != null
+					? ids.productId(FineFoodsService.productKey(((OrientEdge) review).getInVertex())) : null;
+			productIds.add(productId != null ? productId : (String) review.getVertex(Direction.IN).getProperty(Constants.PRODUCT_ID));
+		}
+		productIds.add((String) vProduct.getProperty(Constants.PRODUCT_ID));
+		invalidate((String) vUser.getProperty(Constants.USER_ID), productIds);
+	}
+
+	/**
+	 * Drop the recommendations that a change to the ratings of a user can alter
+	 * @param userId the user whose ratings changed
+	 * @param productIds the products that user has reviewed
+	 */
+	public synchronized void invalidate(String userId, Collection<String> productIds) {
+		generation++;
+		if (invalidatedUsers.size() + invalidatedProducts.size() + productIds.size() >= MAX_STAMPS) {
+			invalidatedUsers.clear();
+			invalidatedProducts.clear();
+			stampedSince = generation - 1;
+		}
+		invalidatedUsers.put(userId, generation);
+		for (String productId : productIds)
+			invalidatedProducts.put(productId, generation);
+		Set<String> stale = new HashSet<String>();
+		stale.add(userId);
+		for (String productId : productIds) {
+			Set<String> users = byProduct.get(productId);
+			if (users != null)
+				stale.addAll(users);
+		}
+		for (String staleUser : stale) {
+			if (remove(staleUser))
+				invalidations++;
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		invalidatedUsers.clear();
+		invalidatedProducts.clear();
+		stampedSince = generation;
+		invalidations += entries.size();
+		entries.clear();
+		byProduct.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	@Override
+	public synchronized Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		metrics.add(new Metric<Long>("recommendation.cache.hits", hits));
+		metrics.add(new Metric<Long>("recommendation.cache.misses", misses));
+		metrics.add(new Metric<Long>("recommendation.cache.evictions", evictions));
+		metrics.add(new Metric<Long>("recommendation.cache.expirations", expirations));
+		metrics.add(new Metric<Long>("recommendation.cache.invalidations", invalidations));
+		metrics.add(new Metric<Integer>("recommendation.cache.size", entries.size()));
+		return metrics;
+	}
+
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	/*
+	 * whether the user or one of the user's products was invalidated
+	 * after generation, or may have been before the stamps were cleared
+	 */
+	private boolean invalidatedSince(Recommendation recommendation, long generation) {
+		if (generation < stampedSince || invalidatedAfter(invalidatedUsers, recommendation.getUserId(), generation))
+			return true;
+		for (String productId : recommendation.getReviewedProducts()) {
+			if (invalidatedAfter(invalidatedProducts, productId, generation))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean invalidatedAfter(Map<String, Long> stamps, String id, long generation) {
+		Long stamp = stamps.get(id);
+		return stamp != null && stamp > generation;
+	}
+
+	private boolean remove(String userId) {
+		Entry entry = entries.remove(userId);
+		if (entry == null)
+			return false;
+		for (String productId : entry.recommendation.getReviewedProducts()) {
+			Set<String> users = byProduct.get(productId);
+			if (users != null && users.remove(userId) && users.isEmpty())
+				byProduct.remove(productId);
+		}
+		return true;
+	}
+
+	private Set<String> usersOf(String productId) {
+		Set<String> users = byProduct.get(productId);
+		if (users == null) {
+			users = new HashSet<String>();
+			byProduct.put(productId, users);
+		}
+		return users;
+	}
+
+	private static class Entry {
+		final Recommendation recommendation;
+		final long created;
+
+		Entry(Recommendation recommendation, long created) {
+			this.recommendation = recommendation;
+			this.created = created;
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package helipilot50.orientdb.recommendation.rest;
+
+/**
+ * Why a user of a batch got no recommendation
+ */
+public class RecommendationError {
+	String userId;
+	String error;
+
+	public RecommendationError(String userId, String error) {
+		super();
+		this.userId = userId;
+		this.error = error;
+	}
+
+	public String getUserId() {
+		return userId;
+	}
+
+	public String getError() {
+		return error;
+	}
+}
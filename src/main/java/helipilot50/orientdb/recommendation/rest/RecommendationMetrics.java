@@ -0,0 +1,88 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import helipilot50.orientdb.recommendation.metrics.Histogram;
+import helipilot50.orientdb.recommendation.metrics.Metrics;
+
+/**
+ * The timers, histograms and counters of the recommendation path, published on
+ * the actuator's /metrics.
+ *
+ * Every timer and histogram is published as name.count and name.mean since the
+ * start, and name.p50, .p95, .p99 and .max over the last
+ * recommendation.metrics.windowSeconds; timers in milliseconds. With
+ * recommendation.metrics.detailed false only the request totals are kept, not the
+ * stages of a recommendation and the FineFoodsService operations.
+ */
+@Component
+public class RecommendationMetrics extends Metrics implements PublicMetrics {
+
+	@Value("${recommendation.metrics.detailed:true}")
+	boolean detailed;
+
+	@Value("${recommendation.metrics.windowSeconds:60}")
+	long windowSeconds;
+
+	private ScheduledExecutorService rotation;
+
+	@PostConstruct
+	public void start() {
+		rotation = Executors.newSingleThreadScheduledExecutor();
+		rotation.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				rotate();
+			}
+		}, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		rotation.shutdownNow();
+	}
+
+	/**
+	 * @return these metrics if the stages and operations are to be
+	 *         recorded, else null
+	 */
+	public Metrics detailed() {
+		return detailed ? this : null;
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> metrics = new ArrayList<Metric<?>>();
+		for (Map.Entry<String, Histogram> timer : getTimers().entrySet())
+			add(metrics, timer.getKey(), timer.getValue(), 1e-6);
+		for (Map.Entry<String, Histogram> histogram : getHistograms().entrySet())
+			add(metrics, histogram.getKey(), histogram.getValue(), 1d);
+		for (Map.Entry<String, AtomicLong> counter : getCounters().entrySet())
+			metrics.add(new Metric<Long>(counter.getKey(), counter.getValue().get()));
+		return metrics;
+	}
+
+	private static void add(Collection<Metric<?>> metrics, String name, Histogram histogram, double scale) {
+		long count = histogram.count();
+		metrics.add(new Metric<Long>(name + ".count", count));
+		metrics.add(new Metric<Double>(name + ".mean", count == 0 ? 0d : scale * histogram.sum() / count));
+		metrics.add(new Metric<Double>(name + ".p50", scale * histogram.percentile(0.50)));
+		metrics.add(new Metric<Double>(name + ".p95", scale * histogram.percentile(0.95)));
+		metrics.add(new Metric<Double>(name + ".p99", scale * histogram.percentile(0.99)));
+		metrics.add(new Metric<Double>(name + ".max", scale * histogram.windowMax()));
+	}
+}
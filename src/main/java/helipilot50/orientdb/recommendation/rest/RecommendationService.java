@@ -22,8 +22,10 @@ import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
 
 import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
 
 import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.SchemaManager;
 
 
 @Configuration
@@ -39,6 +41,13 @@ public class RecommendationService {
 		if (dbURL == null || dbURL.isEmpty())
 			dbURL = Constants.DEFAULT_DB;
 		OrientGraphFactory factory = new OrientGraphFactory(dbURL);
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			SchemaManager.ensureSchema(graph);
+			SchemaManager.verifyIndexes(graph);
+		} finally {
+			graph.shutdown();
+		}
 		return factory;
 	}
 
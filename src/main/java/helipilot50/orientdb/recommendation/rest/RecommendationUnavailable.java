@@ -0,0 +1,17 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * No recommendation now: too much work in progress, or none found in time.
+ * Answered with 503, so clients back off and retry.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class RecommendationUnavailable extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public RecommendationUnavailable(String message) {
+		super(message);
+	}
+}
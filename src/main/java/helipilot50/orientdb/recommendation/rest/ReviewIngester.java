@@ -0,0 +1,453 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import com.orientechnologies.common.concur.ONeedRetryException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.ReviewListener;
+
+/**
+ * Takes reviews sent to the service and writes them to the graph in micro
+ * batches, one transaction per batch.
+ *
+ * Reviews are routed to one of recommendation.ingest.writers writer threads by
+ * userId, so a User vertex is only ever created by one writer. A writer takes
+ * what has queued up, at most recommendation.ingest.batchSize reviews and at
+ * most one per user, holding the others of a user over to the next batch. At
+ * most recommendation.ingest.queueSize reviews are taken and not yet written;
+ * a submission that does not fit is refused whole.
+ *
+ * Like BulkImporter, products missing from the graph are created and committed
+ * on their own, under a lock striped by productId, and the RIDs of the users
+ * and products seen are kept so each is looked up once. A review the user
+ * already has, with the same time and score, is skipped, so a client may send
+ * again whatever it is not sure was taken. The review listeners are told once
+ * a batch has committed, when the new vertices have their RIDs.
+ *
+ * A review answered with 202 is written at least once. A batch that fails on a
+ * concurrent update is retried, and queued again if it still fails. A batch
+ * that fails otherwise is written a review at a time; a review that fails on
+ * its own is logged to the ReviewIngester.deadLetters logger and counted in
+ * ingest.deadLetters rather than written.
+ */
+@Component
+public class ReviewIngester implements PublicMetrics {
+	private static final Logger log = LoggerFactory.getLogger(ReviewIngester.class);
+	/*
+	 * the reviews that cannot be written, one per line, to be
+	 * routed to a file of their own and sent again once fixed
+	 */
+	private static final Logger deadLetters = LoggerFactory.getLogger(ReviewIngester.class.getName() + ".deadLetters");
+	private static final int MAX_RETRIES = 10;
+	private static final long SESSION_WAIT_MILLIS = 5000;
+	private static final long POLL_MILLIS = 100;
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Autowired
+	RecommendationMetrics metrics;
+
+	@Autowired(required = false)
+	List<ReviewListener> reviewListeners;
+
+	@Autowired(required = false)
+	KnownIdsManager knownIds;
+
+	@Autowired(required = false)
+	IdDictionaryManager dictionary;
+
+	@Value("${recommendation.ingest.writers:2}")
+	int writers;
+
+	@Value("${recommendation.ingest.queueSize:10000}")
+	int queueSize;
+
+	@Value("${recommendation.ingest.batchSize:200}")
+	int batchSize;
+
+	private final ConcurrentMap<String, ORID> userRids = new ConcurrentHashMap<String, ORID>();
+	private final ConcurrentMap<String, ORID> productRids = new ConcurrentHashMap<String, ORID>();
+	private final Object[] productLocks = new Object[64];
+	private final List<BlockingQueue<Pending>> queues = new ArrayList<BlockingQueue<Pending>>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private Semaphore capacity;
+	private volatile boolean running;
+
+	@PostConstruct
+	public void start() {
+		for (int i = 0; i < productLocks.length; i++)
+			productLocks[i] = new Object();
+		writers = Math.max(writers, 1);
+		capacity = new Semaphore(queueSize);
+		running = true;
+		for (int i = 0; i < writers; i++) {
+			BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+			Thread thread = new Thread(new Writer(queue), "review-ingest-" + i);
+			queues.add(queue);
+			threads.add(thread);
+			thread.start();
+		}
+		log.info(String.format("Review ingest: %d writers, batches of %d, queue of %d", writers, batchSize, queueSize));
+	}
+
+	/*
+	 * write what was taken before stopping, so a review
+	 * answered with 202 is not lost on a clean shutdown
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		running = false;
+		for (Thread thread : threads)
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+		log.info(String.format("Review ingest stopped, %d reviews not written", queued()));
+	}
+
+	/**
+	 * Queue reviews to be written
+	 * @param reviews each with a userId and a productId, and the other
+	 *        properties createReview stores
+	 * @return the number of reviews queued, all of them
+	 * @throws IllegalArgumentException if a review has no userId or productId
+	 * @throws IngestQueueFull if they do not all fit in the queue
+	 */
+	public int submit(List<Map<String, Object>> reviews) {
+		for (Map<String, Object> review : reviews) {
+			if (!(review.get(Constants.USER_ID) instanceof String) || !(review.get(Constants.PRODUCT_ID) instanceof String))
+				throw new IllegalArgumentException("A review needs a " + Constants.USER_ID + " and a " + Constants.PRODUCT_ID);
+		}
+		if (!running)
+			throw new RecommendationUnavailable("Review ingest is stopping");
+		if (!capacity.tryAcquire(reviews.size())) {
+			metrics.add("ingest.rejected", reviews.size());
+			throw new IngestQueueFull(String.format("No room for %d reviews, %d queued", reviews.size(), queued()));
+		}
+		long now = System.nanoTime();
+		for (Map<String, Object> review : reviews) {
+			String userId = (String) review.get(Constants.USER_ID);
+			queues.get((userId.hashCode() & Integer.MAX_VALUE) % queues.size()).add(new Pending(review, now));
+		}
+		metrics.add("ingest.accepted", reviews.size());
+		return reviews.size();
+	}
+
+	/**
+	 * @return the reviews taken and not yet written
+	 */
+	public int queued() {
+		return queueSize - capacity.availablePermits();
+	}
+
+	@Override
+	public Collection<Metric<?>> metrics() {
+		Collection<Metric<?>> published = new ArrayList<Metric<?>>();
+		published.add(new Metric<Integer>("ingest.queued", queued()));
+		published.add(new Metric<Double>("ingest.throughput",
+				(double) metrics.timer("ingest.latency").windowCount() / metrics.windowSeconds));
+		return published;
+	}
+
+	/*
+	 * a review and when it was taken
+	 */
+	private static class Pending {
+		final Map<String, Object> review;
+		final long taken;
+
+		Pending(Map<String, Object> review, long taken) {
+			this.review = review;
+			this.taken = taken;
+		}
+
+		String userId() {
+			return (String) review.get(Constants.USER_ID);
+		}
+	}
+
+	/*
+	 * records the reviews createReview adds, for the
+	 * listeners to be told once they are committed
+	 */
+	private static class Created implements ReviewListener {
+		final List<Vertex[]> reviews = new ArrayList<Vertex[]>();
+
+		@Override
+		public void reviewCreated(Vertex vUser, Vertex vProduct) {
+			reviews.add(new Vertex[] { vUser, vProduct });
+		}
+	}
+
+	/**
+	 * Writes the reviews of its share of the users, a batch per transaction
+	 */
+	private class Writer implements Runnable {
+		private final BlockingQueue<Pending> queue;
+		/*
+		 * reviews of users already in the batch being taken
+		 */
+		private List<Pending> heldOver = new ArrayList<Pending>();
+
+		Writer(BlockingQueue<Pending> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			List<Pending> batch = new ArrayList<Pending>(batchSize);
+			try {
+				while (take(batch)) {
+					write(batch);
+					batch.clear();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/*
+		 * the next batch, the reviews held over first, without waiting
+		 * if there are any; false once stopped with nothing left
+		 */
+		private boolean take(List<Pending> batch) throws InterruptedException {
+			Set<String> users = new HashSet<String>();
+			List<Pending> candidates = heldOver;
+			heldOver = new ArrayList<Pending>();
+			add(batch, users, candidates);
+			if (batch.size() < batchSize) {
+				candidates = new ArrayList<Pending>();
+				queue.drainTo(candidates, batchSize - batch.size());
+				add(batch, users, candidates);
+			}
+			while (batch.isEmpty()) {
+				Pending first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (!running && queue.isEmpty())
+						return false;
+					continue;
+				}
+				candidates = new ArrayList<Pending>();
+				candidates.add(first);
+				queue.drainTo(candidates, batchSize - 1);
+				add(batch, users, candidates);
+			}
+			return true;
+		}
+
+		private void add(List<Pending> batch, Set<String> users, List<Pending> candidates) {
+			for (Pending pending : candidates) {
+				if (batch.size() < batchSize && users.add(pending.userId()))
+					batch.add(pending);
+				else
+					heldOver.add(pending);
+			}
+		}
+
+		private void write(List<Pending> batch) {
+			if (batch.isEmpty())
+				return;
+			OrientGraph graph;
+			try {
+				graph = sessions.acquireTx(SESSION_WAIT_MILLIS);
+			} catch (RecommendationUnavailable e) {
+				/*
+				 * keep the batch, ahead of the reviews held over
+				 */
+				log.warn("No graph session to write reviews, retrying: " + e.getMessage());
+				heldOver.addAll(0, batch);
+				return;
+			}
+			List<Pending> requeued = new ArrayList<Pending>();
+			try {
+				write(graph, batch, requeued);
+			} finally {
+				sessions.release(graph);
+				capacity.release(batch.size() - requeued.size());
+			}
+			if (requeued.isEmpty())
+				return;
+			if (!running) {
+				/*
+				 * stopping, with no one to write them later
+				 */
+				log.error(String.format("Stopping with %d reviews not written", requeued.size()));
+				metrics.add("ingest.failed", requeued.size());
+				capacity.release(requeued.size());
+				return;
+			}
+			heldOver.addAll(0, requeued);
+			metrics.add("ingest.requeued", requeued.size());
+			try {
+				Thread.sleep(POLL_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/*
+		 * a batch that fails on more concurrent updates than it retries is
+		 * queued again whole; one that fails otherwise is written a review
+		 * at a time, so only the review at fault is set aside
+		 */
+		private void write(OrientGraph graph, List<Pending> batch, List<Pending> requeued) {
+			try {
+				commit(graph, batch);
+			} catch (ONeedRetryException e) {
+				log.warn(String.format("Still conflicting after %d attempts, queueing %d reviews again",
+						MAX_RETRIES, batch.size()), e);
+				requeued.addAll(batch);
+			} catch (RuntimeException e) {
+				if (batch.size() == 1) {
+					deadLetter(batch.get(0), e);
+					return;
+				}
+				log.warn(String.format("Failed to write a batch of %d reviews, writing them one at a time",
+						batch.size()), e);
+				for (Pending pending : batch)
+					write(graph, Collections.singletonList(pending), requeued);
+			}
+		}
+
+		private void deadLetter(Pending pending, RuntimeException e) {
+			deadLetters.error(String.format("Cannot write the review %s: %s", pending.review, e));
+			log.error("Cannot write a review by " + pending.userId(), e);
+			metrics.increment("ingest.deadLetters");
+		}
+
+		/*
+		 * the batch in one transaction, retried on a concurrent update;
+		 * throws what failed the last attempt
+		 */
+		private void commit(OrientGraph graph, List<Pending> batch) {
+			long start = System.nanoTime();
+			for (int attempt = 1; ; attempt++) {
+				Created created = new Created();
+				FineFoodsService service = new FineFoodsService(graph);
+				service.setReviewListeners(Collections.<ReviewListener> singletonList(created));
+				service.setMetrics(metrics.detailed());
+				if (knownIds != null)
+					service.setKnownIds(knownIds.current());
+				if (dictionary != null)
+					service.setIdDictionary(dictionary.current());
+				Map<String, Vertex> pendingUsers = new HashMap<String, Vertex>();
+				try {
+					Map<String, ORID> products = products(graph, service, batch);
+					int duplicates = 0;
+					for (Pending pending : batch) {
+						Map<String, Object> review = pending.review;
+						Vertex vUser = user(graph, service, pendingUsers, pending.userId(), (String) review.get(Constants.PROFILE_NAME));
+						Vertex vProduct = graph.getVertex(products.get(review.get(Constants.PRODUCT_ID)));
+						if (!pendingUsers.containsKey(pending.userId()) && service.hasReview(vUser, vProduct, review)) {
+							duplicates++;
+							continue;
+						}
+						service.createReview(vUser, vProduct, review);
+					}
+					graph.commit();
+					for (Map.Entry<String, Vertex> entry : pendingUsers.entrySet())
+						userRids.put(entry.getKey(), (ORID) entry.getValue().getId());
+					tell(created);
+					long now = System.nanoTime();
+					for (Pending pending : batch)
+						metrics.timer("ingest.latency").record(now - pending.taken);
+					metrics.time("ingest.batch", start);
+					metrics.record("ingest.batchSize", batch.size());
+					metrics.add("ingest.written", batch.size() - duplicates);
+					metrics.add("ingest.duplicates", duplicates);
+					return;
+				} catch (RuntimeException e) {
+					graph.rollback();
+					if (!(e instanceof ONeedRetryException) || attempt == MAX_RETRIES)
+						throw e;
+					metrics.increment("ingest.retries");
+				}
+			}
+		}
+
+		/*
+		 * the RIDs of the products of the batch, committing
+		 * each one that is missing before the batch begins
+		 */
+		private Map<String, ORID> products(OrientGraph graph, FineFoodsService service, List<Pending> batch) {
+			Map<String, ORID> products = new HashMap<String, ORID>();
+			for (Pending pending : batch) {
+				String productId = (String) pending.review.get(Constants.PRODUCT_ID);
+				ORID rid = productRids.get(productId);
+				if (rid == null) {
+					synchronized (productLocks[(productId.hashCode() & Integer.MAX_VALUE) % productLocks.length]) {
+						rid = productRids.get(productId);
+						if (rid == null) {
+							Vertex vProduct = service.lookupProduct(productId);
+							if (vProduct == null) {
+								vProduct = service.createProduct(productId);
+								graph.commit();
+							}
+							rid = (ORID) vProduct.getId();
+							productRids.put(productId, rid);
+						}
+					}
+				}
+				products.put(productId, rid);
+			}
+			return products;
+		}
+
+		private Vertex user(OrientGraph graph, FineFoodsService service, Map<String, Vertex> pendingUsers,
+				String userId, String profileName) {
+			ORID rid = userRids.get(userId);
+			if (rid != null)
+				return graph.getVertex(rid);
+			Vertex vUser = service.createUser(userId, profileName);
+			if (((ORID) vUser.getId()).isPersistent())
+				userRids.put(userId, (ORID) vUser.getId());
+			else
+				pendingUsers.put(userId, vUser);
+			return vUser;
+		}
+
+		/*
+		 * a listener that fails does not undo what is committed
+		 */
+		private void tell(Created created) {
+			if (reviewListeners == null)
+				return;
+			for (Vertex[] review : created.reviews) {
+				for (ReviewListener listener : reviewListeners) {
+					try {
+						listener.reviewCreated(review[0], review[1]);
+					} catch (RuntimeException e) {
+						log.warn("A review listener failed", e);
+					}
+				}
+			}
+		}
+	}
+}
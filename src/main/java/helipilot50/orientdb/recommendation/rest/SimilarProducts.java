@@ -0,0 +1,27 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.List;
+
+import helipilot50.orientdb.recommendation.RankedProduct;
+
+public class SimilarProducts {
+	String productId;
+	List<RankedProduct> similarProducts;
+
+	public SimilarProducts(String productId, List<RankedProduct> similarProducts) {
+		super();
+		this.productId = productId;
+		this.similarProducts = similarProducts;
+	}
+
+	public String getProductId() {
+		return productId;
+	}
+
+	/**
+	 * @return the products whose ratings are most like this one's, best first
+	 */
+	public List<RankedProduct> getSimilarProducts() {
+		return similarProducts;
+	}
+}
@@ -0,0 +1,99 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import helipilot50.orientdb.recommendation.ProductNotFound;
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.offline.ItemSimilarityJob;
+import helipilot50.orientdb.recommendation.offline.ItemSimilarityTable;
+import helipilot50.orientdb.recommendation.store.FeatureStore;
+
+/**
+ * "People who liked this also liked": serves the table ItemSimilarityJob writes
+ * to recommendation.itemSimilarity.file, loaded at startup and on demand, or
+ * the similar products of the mapped FeatureStore when it holds them.
+ */
+@Controller
+public class SimilarProductsController {
+	private static Logger log = LoggerFactory.getLogger(SimilarProductsController.class);
+
+	@Autowired
+	FeatureStoreManager features;
+
+	@Value("${recommendation.itemSimilarity.file:" + ItemSimilarityJob.DEFAULT_FILE + "}")
+	String tableFile;
+
+	private final AtomicReference<ItemSimilarityTable> table = new AtomicReference<ItemSimilarityTable>();
+
+	@PostConstruct
+	public void init() {
+		if (new File(tableFile).exists())
+			load();
+		else
+			log.info("No item similarity table at " + tableFile + ", run " + ItemSimilarityJob.class.getSimpleName());
+	}
+
+	/**
+	 * The products most similar to a product
+	 * @param productId
+	 * @return
+	 */
+	@RequestMapping(value="/finefoods/similar-products/{productId}", method=RequestMethod.GET)
+	public @ResponseBody SimilarProducts getSimilarProducts(@PathVariable("productId") String productId) {
+		FeatureStore store = features.current();
+		if (store != null && store.getNeighbours() > 0) {
+			List<RankedProduct> similar = store.similarTo(productId);
+			if (similar != null)
+				return new SimilarProducts(productId, similar);
+		}
+		ItemSimilarityTable current = table.get();
+		if (current == null)
+			throw new IllegalStateException("No item similarity table loaded from " + tableFile);
+		List<RankedProduct> similar = current.similarTo(productId);
+		if (similar == null)
+			throw new ProductNotFound(productId);
+		return new SimilarProducts(productId, similar);
+	}
+
+	/**
+	 * Load the table again, after the job has rewritten it
+	 * @return the number of products in the table
+	 * @throws IOException
+	 */
+	@RequestMapping(value="/finefoods/similar-products/reload", method=RequestMethod.POST)
+	public @ResponseBody int reload() throws IOException {
+		return loadTable().productCount();
+	}
+
+	private void load() {
+		try {
+			loadTable();
+		} catch (IOException e) {
+			log.error("Cannot load the item similarity table from " + tableFile, e);
+		}
+	}
+
+	private ItemSimilarityTable loadTable() throws IOException {
+		long start = System.currentTimeMillis();
+		ItemSimilarityTable loaded = ItemSimilarityTable.read(new File(tableFile));
+		table.set(loaded);
+		log.info(String.format("Loaded %d similar product pairs of %d products from %s in %d ms",
+				loaded.pairCount(), loaded.productCount(), tableFile, System.currentTimeMillis() - start));
+		return loaded;
+	}
+}
@@ -0,0 +1,126 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+/**
+ * Holds the in-memory snapshot of the review graph that recommendations are served
+ * from when the snapshot serving mode is on.
+ *
+ * The snapshot is built at startup when recommendation.snapshot.enabled is true,
+ * rebuilt every recommendation.snapshot.reloadMinutes if that is set, and on demand.
+ * A rebuilt snapshot replaces the current one atomically; requests in flight keep
+ * the one they started with. Users that reviewed since the current one was built
+ * are not served from it, see RecentReviews.
+ */
+@Component
+public class SnapshotManager {
+	private static final Logger log = LoggerFactory.getLogger(SnapshotManager.class);
+
+	@Autowired
+	GraphSessionPool sessions;
+
+	@Autowired
+	RecommendationCache cache;
+
+	@Value("${recommendation.snapshot.enabled:false}")
+	boolean enabled;
+
+	@Value("${recommendation.snapshot.reloadMinutes:0}")
+	long reloadMinutes;
+
+	private final AtomicReference<ReviewGraphSnapshot> current = new AtomicReference<ReviewGraphSnapshot>();
+	private final AtomicBoolean loading = new AtomicBoolean();
+	private ScheduledExecutorService loader;
+
+	@PostConstruct
+	public void start() {
+		loader = Executors.newSingleThreadScheduledExecutor();
+		if (!enabled)
+			return;
+		reload();
+		if (reloadMinutes > 0) {
+			loader.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reload();
+				}
+			}, reloadMinutes, reloadMinutes, TimeUnit.MINUTES);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		loader.shutdownNow();
+	}
+
+	/**
+	 * @return the snapshot to serve from, or null when there is none
+	 */
+	public ReviewGraphSnapshot current() {
+		return current.get();
+	}
+
+	/**
+	 * Rebuilds the snapshot on the calling thread
+	 * @return false if a rebuild was already running
+	 */
+	public boolean reload() {
+		if (!loading.compareAndSet(false, true))
+			return false;
+		try {
+			OrientGraphNoTx graph = sessions.acquire(TimeUnit.MINUTES.toMillis(1));
+			try {
+				current.set(ReviewGraphSnapshot.build(graph));
+				/*
+				 * cached recommendations may come from the old snapshot
+				 */
+				cache.invalidateAll();
+			} finally {
+				sessions.release(graph);
+			}
+			return true;
+		} catch (RuntimeException e) {
+			log.error("Snapshot rebuild failed, keeping the previous snapshot", e);
+			return false;
+		} finally {
+			loading.set(false);
+		}
+	}
+
+	/**
+	 * Starts a rebuild in the background
+	 * @return false if a rebuild was already running
+	 */
+	public boolean reloadAsync() {
+		if (loading.get())
+			return false;
+		loader.execute(new Runnable() {
+			@Override
+			public void run() {
+				reload();
+			}
+		});
+		return true;
+	}
+
+	public SnapshotStatus status() {
+		return new SnapshotStatus(current.get(), loading.get());
+	}
+}
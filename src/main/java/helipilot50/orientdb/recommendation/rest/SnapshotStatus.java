@@ -0,0 +1,60 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+public class SnapshotStatus {
+	boolean loaded;
+	boolean loading;
+	int users;
+	int products;
+	int reviews;
+	long memoryBytes;
+	long builtAt;
+	long buildMillis;
+
+	public SnapshotStatus(ReviewGraphSnapshot snapshot, boolean loading) {
+		super();
+		this.loading = loading;
+		if (snapshot != null) {
+			this.loaded = true;
+			this.users = snapshot.userCount();
+			this.products = snapshot.productCount();
+			this.reviews = snapshot.reviewCount();
+			this.memoryBytes = snapshot.memoryFootprint();
+			this.builtAt = snapshot.getBuiltAt();
+			this.buildMillis = snapshot.getBuildMillis();
+		}
+	}
+
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public boolean isLoading() {
+		return loading;
+	}
+
+	public int getUsers() {
+		return users;
+	}
+
+	public int getProducts() {
+		return products;
+	}
+
+	public int getReviews() {
+		return reviews;
+	}
+
+	public long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+}
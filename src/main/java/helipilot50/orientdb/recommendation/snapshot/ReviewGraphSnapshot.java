@@ -0,0 +1,543 @@
+package helipilot50.orientdb.recommendation.snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientBaseGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FanOut;
+import helipilot50.orientdb.recommendation.HubPolicy;
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.util.IntIntHashMap;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * An immutable, in-memory copy of the "reviewed" edges held in compressed sparse
+ * row form in both directions.
+ *
+ * Users and Products are numbered densely from 0. The reviews of user u are the
+ * entries userOffsets[u] until userOffsets[u+1] of userProducts/userScores, sorted
+ * by product; the reviewers of product p are the entries productOffsets[p] until
+ * productOffsets[p+1] of productUsers/productScores, in the order of their first
+ * review of p, the order the live graph reads them in. A user that reviewed the
+ * same product more than once keeps the average score.
+ */
+public class ReviewGraphSnapshot {
+	private static final Logger log = LoggerFactory.getLogger(ReviewGraphSnapshot.class);
+
+	private final String[] userIds;
+	private final String[] productIds;
+	private final Map<String, Integer> userIndex;
+
+	private final int[] userOffsets;
+	private final int[] userProducts;
+	private final float[] userScores;
+	private final double[] userNorms;
+
+	private final int[] productOffsets;
+	private final int[] productUsers;
+	private final float[] productScores;
+	/*
+	 * the reviews of each product, repeated ones included, and where
+	 * among them each reviewer's first is, so a sample of the first
+	 * reviews takes the reviewers the live graph takes
+	 */
+	private final int[] productReviews;
+	private final int[] productFirstReviews;
+
+	private final long builtAt;
+	private final long buildMillis;
+
+	private ReviewGraphSnapshot(String[] userIds, String[] productIds,
+			int[] userOffsets, int[] userProducts, float[] userScores,
+			int[] productOffsets, int[] productUsers, float[] productScores,
+			int[] productReviews, int[] productFirstReviews, long buildMillis) {
+		super();
+		this.userIds = userIds;
+		this.productIds = productIds;
+		this.userOffsets = userOffsets;
+		this.userProducts = userProducts;
+		this.userScores = userScores;
+		this.productOffsets = productOffsets;
+		this.productUsers = productUsers;
+		this.productScores = productScores;
+		this.productReviews = productReviews;
+		this.productFirstReviews = productFirstReviews;
+		this.userIndex = new HashMap<String, Integer>(userIds.length * 2);
+		for (int u = 0; u < userIds.length; u++)
+			userIndex.put(userIds[u], u);
+		this.userNorms = new double[userIds.length];
+		for (int u = 0; u < userIds.length; u++)
+			userNorms[u] = SparseVector.magnitude(userScores, userOffsets[u], userOffsets[u + 1]);
+		/*
+		 * when the graph began to be read, a review added
+		 * while reading may or may not be in the snapshot
+		 */
+		this.builtAt = System.currentTimeMillis() - buildMillis;
+		this.buildMillis = buildMillis;
+	}
+
+	/**
+	 * Reads every User, Product and "reviewed" edge from the graph
+	 * @param graph
+	 * @return the snapshot
+	 */
+	public static ReviewGraphSnapshot build(OrientBaseGraph graph) {
+		long start = System.currentTimeMillis();
+		/*
+		 * number the vertices
+		 */
+		Map<ORID, Integer> userRids = new HashMap<ORID, Integer>();
+		String[] userIds = numberVertices(graph, Constants.USER_CLASS, Constants.USER_ID, userRids);
+		Map<ORID, Integer> productRids = new HashMap<ORID, Integer>();
+		String[] productIds = numberVertices(graph, Constants.PRODUCT_CLASS, Constants.PRODUCT_ID, productRids);
+		/*
+		 * read the edges as (user, product, score) triples, in the
+		 * order they were added like the edges of a vertex
+		 */
+		EdgeList edges = new EdgeList();
+		Iterable<Edge> reviews = graph.getEdgeType(Constants.EDGE_REVIEWED) == null
+				? Collections.<Edge>emptyList() : graph.getEdgesOfClass(Constants.EDGE_REVIEWED);
+		for (Edge edge : reviews) {
+			OrientEdge review = (OrientEdge) edge;
+			Integer user = userRids.get(review.getOutVertex().getIdentity());
+			Integer product = productRids.get(review.getInVertex().getIdentity());
+			Number score = review.getProperty("score");
+			if (user == null || product == null || score == null)
+				continue;
+			edges.add(user, product, score.floatValue());
+		}
+		userRids = null;
+		productRids = null;
+		ReviewGraphSnapshot snapshot = fromEdges(userIds, productIds, edges.users, edges.products, edges.scores, edges.size,
+				System.currentTimeMillis() - start);
+		log.info(String.format("Built snapshot of %d users, %d products and %d reviews in %d ms, %d bytes",
+				snapshot.userCount(), snapshot.productCount(), snapshot.reviewCount(),
+				snapshot.buildMillis, snapshot.memoryFootprint()));
+		return snapshot;
+	}
+
+	/**
+	 * Builds a snapshot from (user, product, score) triples in the order the
+	 * reviews were added
+	 */
+	static ReviewGraphSnapshot fromEdges(String[] userIds, String[] productIds,
+			int[] edgeUsers, int[] edgeProducts, float[] edgeScores, int edgeCount, long buildMillis) {
+		int userCount = userIds.length;
+		int productCount = productIds.length;
+		/*
+		 * bucket the edges by product
+		 */
+		int[] byProductOffsets = offsets(edgeProducts, edgeCount, productCount);
+		int[] byProductUsers = new int[edgeCount];
+		float[] byProductScores = new float[edgeCount];
+		int[] cursor = Arrays.copyOf(byProductOffsets, productCount);
+		for (int e = 0; e < edgeCount; e++) {
+			int at = cursor[edgeProducts[e]]++;
+			byProductUsers[at] = edgeUsers[e];
+			byProductScores[at] = edgeScores[e];
+		}
+		/*
+		 * walking the products in order fills each user row sorted by product
+		 */
+		int[] userOffsets = offsets(edgeUsers, edgeCount, userCount);
+		int[] userProducts = new int[edgeCount];
+		float[] userScores = new float[edgeCount];
+		cursor = Arrays.copyOf(userOffsets, userCount);
+		for (int p = 0; p < productCount; p++) {
+			for (int i = byProductOffsets[p]; i < byProductOffsets[p + 1]; i++) {
+				int at = cursor[byProductUsers[i]]++;
+				userProducts[at] = p;
+				userScores[at] = byProductScores[i];
+			}
+		}
+		/*
+		 * the product rows in the order of the edges, a repeated
+		 * review added to the reviewer's first
+		 */
+		int[] productReviews = new int[productCount];
+		int[] rowOf = new int[userCount];
+		int[] rowProduct = new int[userCount];
+		Arrays.fill(rowProduct, -1);
+		int[] productOffsets = new int[productCount + 1];
+		int[] productUsers = new int[edgeCount];
+		float[] productScores = new float[edgeCount];
+		int[] productFirstReviews = new int[edgeCount];
+		int[] repeats = new int[edgeCount];
+		int row = 0;
+		for (int p = 0; p < productCount; p++) {
+			productOffsets[p] = row;
+			productReviews[p] = byProductOffsets[p + 1] - byProductOffsets[p];
+			for (int i = byProductOffsets[p]; i < byProductOffsets[p + 1]; i++) {
+				int user = byProductUsers[i];
+				if (rowProduct[user] == p) {
+					productScores[rowOf[user]] += byProductScores[i];
+					repeats[rowOf[user]]++;
+					continue;
+				}
+				rowProduct[user] = p;
+				rowOf[user] = row;
+				productUsers[row] = user;
+				productScores[row] = byProductScores[i];
+				productFirstReviews[row] = i - byProductOffsets[p];
+				repeats[row] = 1;
+				row++;
+			}
+		}
+		productOffsets[productCount] = row;
+		for (int i = 0; i < row; i++)
+			productScores[i] /= repeats[i];
+		repeats = null;
+		rowOf = null;
+		rowProduct = null;
+		if (row < edgeCount) {
+			productUsers = Arrays.copyOf(productUsers, row);
+			productScores = Arrays.copyOf(productScores, row);
+			productFirstReviews = Arrays.copyOf(productFirstReviews, row);
+		}
+		byProductUsers = null;
+		byProductScores = null;
+		/*
+		 * collapse repeated reviews of a product to their average score
+		 */
+		int out = 0;
+		for (int u = 0; u < userCount; u++) {
+			int from = userOffsets[u];
+			int to = userOffsets[u + 1];
+			userOffsets[u] = out;
+			int i = from;
+			while (i < to) {
+				int product = userProducts[i];
+				float sum = userScores[i];
+				int count = 1;
+				i++;
+				while (i < to && userProducts[i] == product) {
+					sum += userScores[i];
+					count++;
+					i++;
+				}
+				userProducts[out] = product;
+				userScores[out] = sum / count;
+				out++;
+			}
+		}
+		userOffsets[userCount] = out;
+		if (out < edgeCount) {
+			userProducts = Arrays.copyOf(userProducts, out);
+			userScores = Arrays.copyOf(userScores, out);
+		}
+		return new ReviewGraphSnapshot(userIds, productIds, userOffsets, userProducts, userScores,
+				productOffsets, productUsers, productScores, productReviews, productFirstReviews, buildMillis);
+	}
+
+	public int userCount() {
+		return userIds.length;
+	}
+
+	public int productCount() {
+		return productIds.length;
+	}
+
+	public int reviewCount() {
+		return userProducts.length;
+	}
+
+	/**
+	 * @param userId
+	 * @return the dense id of the user, or -1 if the user is not in the snapshot
+	 */
+	public int userIndex(String userId) {
+		Integer index = userIndex.get(userId);
+		return index == null ? -1 : index;
+	}
+
+	public String userId(int user) {
+		return userIds[user];
+	}
+
+	public String productId(int product) {
+		return productIds[product];
+	}
+
+	public int[] userOffsets() {
+		return userOffsets;
+	}
+
+	public int[] userProducts() {
+		return userProducts;
+	}
+
+	public float[] userScores() {
+		return userScores;
+	}
+
+	public double userNorm(int user) {
+		return userNorms[user];
+	}
+
+	public int[] productOffsets() {
+		return productOffsets;
+	}
+
+	public int[] productUsers() {
+		return productUsers;
+	}
+
+	public float[] productScores() {
+		return productScores;
+	}
+
+	/**
+	 * @param user dense user id
+	 * @return a view on the user's row, keyed by dense product id
+	 */
+	public SparseVector vectorForUser(int user) {
+		return new SparseVector(userProducts, userScores, userOffsets[user],
+				userOffsets[user + 1] - userOffsets[user], userNorms[user]);
+	}
+
+	/**
+	 * Cosine similarity of two users' rows, without allocating
+	 */
+	public double similarity(int user, int other) {
+		if (userNorms[user] == 0d || userNorms[other] == 0d)
+			return 0d;
+		double dp = SparseVector.dot(userProducts, userScores, userOffsets[user], userOffsets[user + 1],
+				userProducts, userScores, userOffsets[other], userOffsets[other + 1]);
+		return dp / (userNorms[user] * userNorms[other]);
+	}
+
+	public Recommendation recommend(String userId) {
+		return recommend(userId, Recommender.DEFAULT_NEIGHBOURS, Recommender.DEFAULT_MAX_RESULTS, HubPolicy.KEEP_ALL);
+	}
+
+	/**
+	 * The same recommendation as Recommender makes from the live graph,
+	 * answered from memory
+	 * @param userId
+	 * @param neighbours how many of the most similar users to recommend from
+	 * @param maxResults how many products to recommend at most
+	 * @param hubPolicy which reviewers of hub products are candidates, a
+	 *        sample is the reviewers of the first reviews as in the graph
+	 * @return the recommendation, or null if the user is not in the snapshot
+	 */
+	public Recommendation recommend(String userId, int neighbours, int maxResults, HubPolicy hubPolicy) {
+		int user = userIndex(userId);
+		if (user < 0)
+			return null;
+		Recommendation rec = new Recommendation(userId, productsAsString(user));
+		/*
+		 * the distinct co-reviewers of the user's products, each
+		 * scored once unless they reviewed nothing else
+		 */
+		IntIntHashMap overlap = new IntIntHashMap();
+		FanOut fanOut = new FanOut();
+		for (int i = userOffsets[user]; i < userOffsets[user + 1]; i++) {
+			int product = userProducts[i];
+			int reviewCount = productReviews[product];
+			int toRead = hubPolicy.reviewersToRead(reviewCount);
+			for (int j = productOffsets[product]; j < productOffsets[product + 1] && productFirstReviews[j] < toRead; j++) {
+				if (productUsers[j] != user)
+					overlap.addTo(productUsers[j], 1);
+			}
+			fanOut.product(reviewCount, toRead, hubPolicy.isHub(reviewCount));
+		}
+		fanOut.setCandidates(overlap.size());
+		rec.setFanOut(fanOut);
+		TopK nearest = new TopK(neighbours);
+		for (int candidate : overlap.keys()) {
+			if (!reviewedOthers(candidate, user))
+				continue;
+			double similarity = similarity(user, candidate);
+			if (similarity > 0)
+				nearest.offer(candidate, similarity);
+		}
+		nearest.sort();
+		/*
+		 * similarity weighted votes for the products the user has not reviewed
+		 */
+		IntIntHashMap productSlots = new IntIntHashMap();
+		int[] products = new int[16];
+		double[] votes = new double[16];
+		int productCount = 0;
+		for (int n = 0; n < nearest.size(); n++) {
+			int neighbour = nearest.id(n);
+			double similarity = nearest.score(n);
+			for (int i = userOffsets[neighbour]; i < userOffsets[neighbour + 1]; i++) {
+				int product = userProducts[i];
+				if (Arrays.binarySearch(userProducts, userOffsets[user], userOffsets[user + 1], product) >= 0)
+					continue;
+				int slot = productSlots.putIfAbsent(product, productCount);
+				if (slot == productCount) {
+					if (slot == products.length) {
+						products = Arrays.copyOf(products, slot * 2);
+						votes = Arrays.copyOf(votes, slot * 2);
+					}
+					products[productCount++] = product;
+				}
+				votes[slot] += similarity * userScores[i];
+			}
+		}
+		/*
+		 * ranked by dense product id, which follows the product key,
+		 * so ties go to the older product as in Recommender
+		 */
+		TopK ranking = new TopK(maxResults);
+		for (int slot = 0; slot < productCount; slot++)
+			ranking.offer(products[slot], votes[slot]);
+		ranking.sort();
+
+		Set<String> recommended = new LinkedHashSet<String>();
+		List<RankedProduct> ranked = new ArrayList<RankedProduct>(ranking.size());
+		for (int r = 0; r < ranking.size(); r++) {
+			String productId = productIds[ranking.id(r)];
+			recommended.add(productId);
+			ranked.add(new RankedProduct(productId, ranking.score(r)));
+		}
+		rec.setRecommendedProducts(recommended);
+		rec.setRankedProducts(ranked);
+		return rec;
+	}
+
+	/*
+	 * true if user reviewed a product other did not
+	 */
+	private boolean reviewedOthers(int user, int other) {
+		int j = userOffsets[other];
+		int otherEnd = userOffsets[other + 1];
+		for (int i = userOffsets[user]; i < userOffsets[user + 1]; i++) {
+			while (j < otherEnd && userProducts[j] < userProducts[i])
+				j++;
+			if (j == otherEnd || userProducts[j] != userProducts[i])
+				return true;
+		}
+		return false;
+	}
+
+	private Set<String> productsAsString(int user) {
+		Set<String> theList = new HashSet<String>();
+		for (int i = userOffsets[user]; i < userOffsets[user + 1]; i++)
+			theList.add(productIds[userProducts[i]]);
+		return theList;
+	}
+
+	/**
+	 * An estimate of the heap used by the snapshot, in bytes
+	 */
+	public long memoryFootprint() {
+		return csrBytes() + dictionaryBytes();
+	}
+
+	public long csrBytes() {
+		return 4L * (userOffsets.length + userProducts.length + userScores.length
+				+ productOffsets.length + productUsers.length + productScores.length
+				+ productReviews.length + productFirstReviews.length)
+				+ 8L * userNorms.length;
+	}
+
+	/*
+	 * the id strings, the arrays holding them and the userId index:
+	 * about 40 bytes of String overhead plus 2 bytes a character, and
+	 * 48 bytes per HashMap entry and boxed index
+	 */
+	public long dictionaryBytes() {
+		long bytes = 4L * (userIds.length + productIds.length);
+		for (String id : userIds)
+			bytes += 40 + 2L * id.length();
+		for (String id : productIds)
+			bytes += 40 + 2L * id.length();
+		return bytes + 48L * userIds.length + 4L * userIds.length * 2;
+	}
+
+	/**
+	 * @return when the snapshot began reading the graph; reviews added since
+	 *         are not in it, or not all of them
+	 */
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	public long getBuildMillis() {
+		return buildMillis;
+	}
+
+	/*
+	 * numbered in the order of their keys, the cluster positions, so
+	 * that ordering by number breaks ties as the live graph does by key
+	 */
+	private static String[] numberVertices(OrientBaseGraph graph, String className, String idProperty, Map<ORID, Integer> rids) {
+		if (graph.getVertexType(className) == null)
+			return new String[0];
+		ORID[] found = new ORID[1024];
+		String[] ids = new String[1024];
+		int count = 0;
+		for (Vertex vertex : graph.getVerticesOfClass(className)) {
+			if (count == ids.length) {
+				found = Arrays.copyOf(found, count * 2);
+				ids = Arrays.copyOf(ids, count * 2);
+			}
+			found[count] = (ORID) vertex.getId();
+			ids[count++] = vertex.getProperty(idProperty);
+		}
+		long[] order = new long[count];
+		for (int i = 0; i < count; i++)
+			order[i] = found[i].getClusterPosition() << 32 | i;
+		Arrays.sort(order);
+		String[] numbered = new String[count];
+		for (int n = 0; n < count; n++) {
+			int i = (int) (order[n] & 0xffffffffL);
+			rids.put(found[i], n);
+			numbered[n] = ids[i];
+		}
+		return numbered;
+	}
+
+	private static int[] offsets(int[] keys, int size, int keyCount) {
+		int[] offsets = new int[keyCount + 1];
+		for (int i = 0; i < size; i++)
+			offsets[keys[i] + 1]++;
+		for (int k = 0; k < keyCount; k++)
+			offsets[k + 1] += offsets[k];
+		return offsets;
+	}
+
+	/*
+	 * growable (user, product, score) triples
+	 */
+	private static class EdgeList {
+		int[] users = new int[1024];
+		int[] products = new int[1024];
+		float[] scores = new float[1024];
+		int size;
+
+		void add(int user, int product, float score) {
+			if (size == users.length) {
+				users = Arrays.copyOf(users, size * 2);
+				products = Arrays.copyOf(products, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+			}
+			users[size] = user;
+			products[size] = product;
+			scores[size] = score;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,344 @@
+package helipilot50.orientdb.recommendation.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+/**
+ * The per user and per product features computed offline, memory-mapped
+ * read-only from a file FeatureStoreWriter wrote, so opening it reads only the
+ * header and the heap holds none of it.
+ *
+ * Users and products are numbered densely from 0 and have fixed-width records:
+ * a user's holds the position and count of its ratings, its norm and its
+ * latent factors; a product's holds its latent factors and its most similar
+ * products. The ratings of all users follow, sorted by user then product, as
+ * (product, score) pairs. The user and product ids are found in open addressing
+ * hash tables within the file. Everything after the header is covered by a
+ * CRC32 the header holds, which open verifies if asked to.
+ */
+public class FeatureStore {
+	static final int MAGIC = 0x46535431; // "FST1"
+	static final int FORMAT_VERSION = 1;
+	static final int HEADER_BYTES = 128;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final MappedFile file;
+	private final long version;
+	private final int userCount;
+	private final int productCount;
+	private final int factors;
+	private final int neighbours;
+	private final float mean;
+	private final long reviewCount;
+	private final Dictionary users;
+	private final Dictionary products;
+	private final long userRecords;
+	private final long productRecords;
+	private final long ratings;
+	private final int userWidth;
+	private final int productWidth;
+
+	private FeatureStore(MappedFile file) throws IOException {
+		this.file = file;
+		if (file.size() < HEADER_BYTES || file.getInt(0) != MAGIC)
+			throw new IOException("Not a feature store: " + file.getFile());
+		if (file.getInt(4) != FORMAT_VERSION)
+			throw new IOException(String.format("Feature store %s is of format %d, not %d", file.getFile(), file.getInt(4), FORMAT_VERSION));
+		version = file.getLong(8);
+		userCount = file.getInt(16);
+		productCount = file.getInt(20);
+		factors = file.getInt(24);
+		neighbours = file.getInt(28);
+		mean = file.getFloat(32);
+		reviewCount = file.getLong(40);
+		users = new Dictionary(file, file.getLong(48), userCount);
+		products = new Dictionary(file, file.getLong(56), productCount);
+		userRecords = file.getLong(64);
+		productRecords = file.getLong(72);
+		ratings = file.getLong(80);
+		userWidth = userWidth(factors);
+		productWidth = productWidth(factors, neighbours);
+		if (ratings + 8 * reviewCount != file.size())
+			throw new IOException("Truncated feature store: " + file.getFile());
+	}
+
+	/**
+	 * @param file
+	 * @param verify whether to check the checksum, which reads the whole file
+	 * @return the store mapped from the file
+	 * @throws IOException if the file is not a feature store of this format, or
+	 *         does not match its checksum
+	 */
+	public static FeatureStore open(File file, boolean verify) throws IOException {
+		FeatureStore store = new FeatureStore(MappedFile.map(file));
+		if (verify && !store.verify())
+			throw new IOException("Feature store does not match its checksum: " + file);
+		return store;
+	}
+
+	/**
+	 * @return whether the content matches the checksum in the header
+	 */
+	public boolean verify() {
+		return file.checksum(HEADER_BYTES) == file.getLong(88);
+	}
+
+	static int userWidth(int factors) {
+		return 16 + 4 * factors;
+	}
+
+	static int productWidth(int factors, int neighbours) {
+		return 4 * factors + 8 * neighbours;
+	}
+
+	/**
+	 * @param userId
+	 * @return the dense id of the user, or -1 if the user is not in the store
+	 */
+	public int userIndex(String userId) {
+		return users.indexOf(userId);
+	}
+
+	/**
+	 * @param productId
+	 * @return the dense id of the product, or -1 if the product is not in the store
+	 */
+	public int productIndex(String productId) {
+		return products.indexOf(productId);
+	}
+
+	public String userId(int user) {
+		return users.id(user);
+	}
+
+	public String productId(int product) {
+		return products.id(product);
+	}
+
+	/**
+	 * @param user dense user id
+	 * @return a copy of the user's ratings, keyed by dense product id
+	 */
+	public SparseVector vectorForUser(int user) {
+		long record = userRecords + (long) user * userWidth;
+		long from = file.getLong(record);
+		int count = file.getInt(record + 8);
+		int[] ids = new int[count];
+		float[] scores = new float[count];
+		for (int i = 0; i < count; i++) {
+			long pair = ratings + 8 * (from + i);
+			ids[i] = file.getInt(pair);
+			scores[i] = file.getFloat(pair + 4);
+		}
+		return new SparseVector(ids, scores, 0, count, userNorm(user));
+	}
+
+	public double userNorm(int user) {
+		return file.getFloat(userRecords + (long) user * userWidth + 12);
+	}
+
+	/**
+	 * @param user dense user id
+	 * @param product dense product id
+	 * @return the rating predicted by the factors
+	 */
+	public double predict(int user, int product) {
+		return mean + dot(userFactors(user), product);
+	}
+
+	/**
+	 * The products of highest predicted rating the user had not reviewed,
+	 * scoring every product like LatentFactors
+	 * @param userId
+	 * @param maxResults
+	 * @return the recommendation, or null if the user is not in the store or
+	 *         the store holds no factors
+	 */
+	public Recommendation recommend(String userId, int maxResults) {
+		int user = factors == 0 ? -1 : userIndex(userId);
+		if (user < 0)
+			return null;
+		float[] mine = userFactors(user);
+		SparseVector reviewed = vectorForUser(user);
+		Set<String> reviewedIds = new HashSet<String>();
+		for (int i = 0; i < reviewed.size(); i++)
+			reviewedIds.add(productId(reviewed.id(i)));
+		Recommendation rec = new Recommendation(userId, reviewedIds);
+
+		TopK ranking = new TopK(maxResults);
+		int next = 0;
+		for (int p = 0; p < productCount; p++) {
+			if (next < reviewed.size() && reviewed.id(next) == p) {
+				next++;
+				continue;
+			}
+			ranking.offer(p, mean + dot(mine, p));
+		}
+		ranking.sort();
+		Set<String> recommended = new LinkedHashSet<String>();
+		List<RankedProduct> ranked = new ArrayList<RankedProduct>(ranking.size());
+		for (int r = 0; r < ranking.size(); r++) {
+			String productId = productId(ranking.id(r));
+			recommended.add(productId);
+			ranked.add(new RankedProduct(productId, ranking.score(r)));
+		}
+		rec.setRecommendedProducts(recommended);
+		rec.setRankedProducts(ranked);
+		return rec;
+	}
+
+	/**
+	 * @param productId
+	 * @return the most similar products, best first, or null if the product
+	 *         is not in the store
+	 */
+	public List<RankedProduct> similarTo(String productId) {
+		int product = productIndex(productId);
+		if (product < 0)
+			return null;
+		long record = productRecords + (long) product * productWidth + 4 * factors;
+		List<RankedProduct> similar = new ArrayList<RankedProduct>(neighbours);
+		for (int i = 0; i < neighbours; i++) {
+			int neighbour = file.getInt(record + 8 * i);
+			if (neighbour < 0)
+				break;
+			similar.add(new RankedProduct(productId(neighbour), file.getFloat(record + 8 * i + 4)));
+		}
+		return similar;
+	}
+
+	private float[] userFactors(int user) {
+		long record = userRecords + (long) user * userWidth + 16;
+		float[] values = new float[factors];
+		for (int k = 0; k < factors; k++)
+			values[k] = file.getFloat(record + 4 * k);
+		return values;
+	}
+
+	private double dot(float[] user, int product) {
+		long record = productRecords + (long) product * productWidth;
+		float sum = 0f;
+		for (int k = 0; k < factors; k++)
+			sum += user[k] * file.getFloat(record + 4 * k);
+		return sum;
+	}
+
+	public int userCount() {
+		return userCount;
+	}
+
+	public int productCount() {
+		return productCount;
+	}
+
+	public long reviewCount() {
+		return reviewCount;
+	}
+
+	public int getFactors() {
+		return factors;
+	}
+
+	/**
+	 * @return the most similar products kept per product, 0 if none are
+	 */
+	public int getNeighbours() {
+		return neighbours;
+	}
+
+	public float getMean() {
+		return mean;
+	}
+
+	/**
+	 * @return the time the snapshot the store was written from was taken,
+	 *         which orders its versions; reviews added since are not in it
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public long fileSize() {
+		return file.size();
+	}
+
+	public File getFile() {
+		return file.getFile();
+	}
+
+	/*
+	 * FNV-1a over the UTF-8 bytes of an id
+	 */
+	static int hash(byte[] bytes) {
+		int h = 0x811c9dc5;
+		for (byte b : bytes)
+			h = (h ^ (b & 0xff)) * 0x01000193;
+		return h;
+	}
+
+	/**
+	 * A hash table from the ids to their dense ids, slots of them holding the
+	 * dense id plus 1 or 0 when free, followed by count + 1 offsets into the
+	 * UTF-8 bytes of the ids in dense id order
+	 */
+	private static class Dictionary {
+		private final MappedFile file;
+		private final int count;
+		private final int mask;
+		private final long table;
+		private final long offsets;
+		private final long bytes;
+
+		Dictionary(MappedFile file, long position, int count) {
+			this.file = file;
+			this.count = count;
+			int slots = file.getInt(position);
+			this.mask = slots - 1;
+			this.table = position + 4;
+			this.offsets = table + 4L * slots;
+			this.bytes = offsets + 8L * (count + 1);
+		}
+
+		int indexOf(String id) {
+			byte[] key = id.getBytes(UTF8);
+			for (int slot = hash(key) & mask;; slot = (slot + 1) & mask) {
+				int entry = file.getInt(table + 4L * slot);
+				if (entry == 0)
+					return -1;
+				if (matches(entry - 1, key))
+					return entry - 1;
+			}
+		}
+
+		private boolean matches(int index, byte[] key) {
+			long from = file.getLong(offsets + 8L * index);
+			if (file.getLong(offsets + 8L * (index + 1)) - from != key.length)
+				return false;
+			for (int i = 0; i < key.length; i++) {
+				if (file.get(bytes + from + i) != key[i])
+					return false;
+			}
+			return true;
+		}
+
+		String id(int index) {
+			if (index < 0 || index >= count)
+				throw new IndexOutOfBoundsException(String.valueOf(index));
+			long from = file.getLong(offsets + 8L * index);
+			byte[] id = new byte[(int) (file.getLong(offsets + 8L * (index + 1)) - from)];
+			file.get(bytes + from, id, id.length);
+			return new String(id, UTF8);
+		}
+	}
+}
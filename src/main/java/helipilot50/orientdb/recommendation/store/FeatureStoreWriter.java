@@ -0,0 +1,185 @@
+package helipilot50.orientdb.recommendation.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import helipilot50.orientdb.recommendation.offline.ItemSimilarityTable;
+import helipilot50.orientdb.recommendation.offline.LatentFactors;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+/**
+ * Writes the ratings of a snapshot, with the latent factors and similar
+ * products computed from it, as a FeatureStore.
+ *
+ * The store is written next to its file and renamed over it once complete, so a
+ * service mapping the file sees either the previous version or this one; a
+ * mapping of the previous version stays valid until it is dropped.
+ */
+public class FeatureStoreWriter {
+	private static final Logger log = LoggerFactory.getLogger(FeatureStoreWriter.class);
+
+	/**
+	 * @param file
+	 * @param snapshot
+	 * @param factors trained on the snapshot, or null for none
+	 * @param similar computed from the snapshot, or null for none
+	 * @return the version written
+	 * @throws IOException
+	 */
+	public static long write(File file, ReviewGraphSnapshot snapshot, LatentFactors factors, ItemSimilarityTable similar) throws IOException {
+		long start = System.currentTimeMillis();
+		int userCount = snapshot.userCount();
+		int productCount = snapshot.productCount();
+		int factorCount = factors == null ? 0 : factors.getFactors();
+		if (factors != null && (factors.userCount() != userCount || factors.productCount() != productCount))
+			throw new IllegalArgumentException("The latent factors were not trained on this snapshot");
+		if (similar != null && similar.productCount() != productCount)
+			throw new IllegalArgumentException("The similar products were not computed from this snapshot");
+		int neighbours = 0;
+		if (similar != null) {
+			for (int p = 0; p < productCount; p++)
+				neighbours = Math.max(neighbours, similar.offset(p + 1) - similar.offset(p));
+		}
+		byte[][] userIds = new byte[userCount][];
+		for (int u = 0; u < userCount; u++)
+			userIds[u] = idBytes(snapshot.userId(u));
+		byte[][] productIds = new byte[productCount][];
+		for (int p = 0; p < productCount; p++)
+			productIds[p] = idBytes(snapshot.productId(p));
+		int[] userOffsets = snapshot.userOffsets();
+		int[] userProducts = snapshot.userProducts();
+		float[] userScores = snapshot.userScores();
+		long reviewCount = snapshot.reviewCount();
+
+		long userDictionary = FeatureStore.HEADER_BYTES;
+		long productDictionary = userDictionary + dictionaryBytes(userIds);
+		long userRecords = productDictionary + dictionaryBytes(productIds);
+		long productRecords = userRecords + (long) userCount * FeatureStore.userWidth(factorCount);
+		long ratings = productRecords + (long) productCount * FeatureStore.productWidth(factorCount, neighbours);
+		/*
+		 * when the reviews were read, which a later snapshot follows
+		 */
+		long version = snapshot.getBuiltAt();
+
+		File tmp = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		FileOutputStream fos = new FileOutputStream(tmp);
+		fos.write(new byte[FeatureStore.HEADER_BYTES]);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fos, crc), 1 << 16));
+		try {
+			writeDictionary(out, userIds);
+			writeDictionary(out, productIds);
+			for (int u = 0; u < userCount; u++) {
+				out.writeLong(userOffsets[u]);
+				out.writeInt(userOffsets[u + 1] - userOffsets[u]);
+				out.writeFloat((float) snapshot.userNorm(u));
+				for (int k = 0; k < factorCount; k++)
+					out.writeFloat(factors.userFactors()[u * factorCount + k]);
+			}
+			for (int p = 0; p < productCount; p++) {
+				for (int k = 0; k < factorCount; k++)
+					out.writeFloat(factors.productFactors()[p * factorCount + k]);
+				int written = 0;
+				if (similar != null) {
+					for (int i = similar.offset(p); i < similar.offset(p + 1); i++, written++) {
+						out.writeInt(similar.neighbour(i));
+						out.writeFloat(similar.score(i));
+					}
+				}
+				for (; written < neighbours; written++) {
+					out.writeInt(-1);
+					out.writeFloat(0f);
+				}
+			}
+			for (int i = 0; i < reviewCount; i++) {
+				out.writeInt(userProducts[i]);
+				out.writeFloat(userScores[i]);
+			}
+		} finally {
+			out.close();
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.writeInt(FeatureStore.MAGIC);
+			raf.writeInt(FeatureStore.FORMAT_VERSION);
+			raf.writeLong(version);
+			raf.writeInt(userCount);
+			raf.writeInt(productCount);
+			raf.writeInt(factorCount);
+			raf.writeInt(neighbours);
+			raf.writeFloat(factors == null ? 0f : factors.getMean());
+			raf.writeInt(0);
+			raf.writeLong(reviewCount);
+			raf.writeLong(userDictionary);
+			raf.writeLong(productDictionary);
+			raf.writeLong(userRecords);
+			raf.writeLong(productRecords);
+			raf.writeLong(ratings);
+			raf.writeLong(crc.getValue());
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		log.info(String.format("Wrote feature store version %d of %d users, %d products, %d reviews, %d factors and %d neighbours, %d MB, to %s in %d ms",
+				version, userCount, productCount, reviewCount, factorCount, neighbours, file.length() >> 20, file,
+				System.currentTimeMillis() - start));
+		return version;
+	}
+
+	private static byte[] idBytes(String id) {
+		byte[] bytes = id.getBytes(FeatureStore.UTF8);
+		if (bytes.length > MappedFile.OVERLAP)
+			throw new IllegalArgumentException("Id too long for a feature store: " + id);
+		return bytes;
+	}
+
+	/*
+	 * twice as many slots as ids, at least
+	 */
+	private static int slots(int count) {
+		return Integer.highestOneBit(Math.max(1, count * 2 - 1)) << 1;
+	}
+
+	private static long dictionaryBytes(byte[][] ids) {
+		long bytes = 4 + 4L * slots(ids.length) + 8L * (ids.length + 1);
+		for (byte[] id : ids)
+			bytes += id.length;
+		return bytes;
+	}
+
+	private static void writeDictionary(DataOutputStream out, byte[][] ids) throws IOException {
+		int slots = slots(ids.length);
+		int mask = slots - 1;
+		int[] table = new int[slots];
+		for (int i = 0; i < ids.length; i++) {
+			int slot = FeatureStore.hash(ids[i]) & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
+		out.writeInt(slots);
+		for (int entry : table)
+			out.writeInt(entry);
+		long offset = 0;
+		out.writeLong(offset);
+		for (byte[] id : ids) {
+			offset += id.length;
+			out.writeLong(offset);
+		}
+		for (byte[] id : ids)
+			out.write(id);
+	}
+}
@@ -0,0 +1,104 @@
+package helipilot50.orientdb.recommendation.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A file mapped read-only in segments, as a single buffer can address no more
+ * than 2 GB. Consecutive segments overlap by OVERLAP bytes, so any read of at
+ * most that length starting in a segment ends in it too.
+ *
+ * The reads are absolute and never move a buffer's position, so any number of
+ * threads may share the file. The mapping lives outside the heap until the
+ * segments are garbage collected.
+ */
+final class MappedFile {
+	static final int SEGMENT = 1 << 30;
+	static final int OVERLAP = 1 << 16;
+
+	private final File file;
+	private final long size;
+	private final MappedByteBuffer[] segments;
+
+	private MappedFile(File file, long size, MappedByteBuffer[] segments) {
+		this.file = file;
+		this.size = size;
+		this.segments = segments;
+	}
+
+	static MappedFile map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			int count = (int) Math.max(1, (size + SEGMENT - 1) / SEGMENT);
+			MappedByteBuffer[] segments = new MappedByteBuffer[count];
+			for (int s = 0; s < count; s++) {
+				long position = (long) s * SEGMENT;
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min((long) SEGMENT + OVERLAP, size - position));
+			}
+			/*
+			 * the mapping outlives the channel
+			 */
+			return new MappedFile(file, size, segments);
+		} finally {
+			raf.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long size() {
+		return size;
+	}
+
+	int getInt(long position) {
+		return segments[(int) (position / SEGMENT)].getInt((int) (position % SEGMENT));
+	}
+
+	long getLong(long position) {
+		return segments[(int) (position / SEGMENT)].getLong((int) (position % SEGMENT));
+	}
+
+	float getFloat(long position) {
+		return segments[(int) (position / SEGMENT)].getFloat((int) (position % SEGMENT));
+	}
+
+	byte get(long position) {
+		return segments[(int) (position / SEGMENT)].get((int) (position % SEGMENT));
+	}
+
+	/**
+	 * @param position
+	 * @param dst
+	 * @param length at most OVERLAP
+	 */
+	void get(long position, byte[] dst, int length) {
+		ByteBuffer segment = segments[(int) (position / SEGMENT)].duplicate();
+		segment.position((int) (position % SEGMENT));
+		segment.get(dst, 0, length);
+	}
+
+	/**
+	 * @param from
+	 * @return the CRC32 of the bytes from a position to the end of the file
+	 */
+	long checksum(long from) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[OVERLAP];
+		for (long position = from; position < size; position += chunk.length) {
+			int length = (int) Math.min(chunk.length, size - position);
+			get(position, chunk, length);
+			crc.update(chunk, 0, length);
+		}
+		return crc.getValue();
+	}
+}
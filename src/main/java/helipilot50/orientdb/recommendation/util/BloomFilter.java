@@ -0,0 +1,119 @@
+package helipilot50.orientdb.recommendation.util;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of strings: mightContain is false only for a string never put,
+ * and true for one that was not with about the false positive rate it was sized
+ * for, rising as more strings than expected are put.
+ *
+ * Bits are set with compareAndSet, so threads may put and test at once without
+ * locking; a string is in the filter once put returns.
+ */
+public final class BloomFilter {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final AtomicLongArray bits;
+	private final long bitCount;
+	private final int hashes;
+
+	/**
+	 * @param expectedSize the number of strings to hold at falsePositiveRate
+	 * @param falsePositiveRate between 0 and 1, e.g. 0.01
+	 */
+	public BloomFilter(long expectedSize, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+		expectedSize = Math.max(1, expectedSize);
+		long optimalBits = (long) Math.ceil(-expectedSize * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+		int words = (int) Math.min(Integer.MAX_VALUE, (Math.max(64, optimalBits) + 63) / 64);
+		bits = new AtomicLongArray(words);
+		bitCount = 64L * words;
+		hashes = Math.max(1, (int) Math.round((double) bitCount / expectedSize * Math.log(2)));
+	}
+
+	/**
+	 * @param value
+	 * @return true if a bit was set, false if the value, or values with
+	 *         the same bits, were put before
+	 */
+	public boolean put(String value) {
+		long hash = hash(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		boolean changed = false;
+		for (int i = 1; i <= hashes; i++)
+			changed |= set(index(h1 + i * h2));
+		return changed;
+	}
+
+	/**
+	 * @param value
+	 * @return false if the value was never put
+	 */
+	public boolean mightContain(String value) {
+		long hash = hash(value);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32);
+		for (int i = 1; i <= hashes; i++) {
+			long index = index(h1 + i * h2);
+			if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public long bitSize() {
+		return bitCount;
+	}
+
+	public int hashCount() {
+		return hashes;
+	}
+
+	/**
+	 * @return the false positive rate for the bits set now, which counts
+	 *         every word so is not for the lookup path
+	 */
+	public double falsePositiveRate() {
+		long set = 0;
+		for (int i = 0; i < bits.length(); i++)
+			set += Long.bitCount(bits.get(i));
+		return Math.pow((double) set / bitCount, hashes);
+	}
+
+	private long index(int combined) {
+		return (combined & Integer.MAX_VALUE) % bitCount;
+	}
+
+	private boolean set(long index) {
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		for (;;) {
+			long current = bits.get(word);
+			if ((current & mask) != 0)
+				return false;
+			if (bits.compareAndSet(word, current, current | mask))
+				return true;
+		}
+	}
+
+	/*
+	 * 64 bit FNV-1a of the UTF-8 bytes, mixed with the
+	 * MurmurHash3 finalizer so both halves spread
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : value.getBytes(UTF8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
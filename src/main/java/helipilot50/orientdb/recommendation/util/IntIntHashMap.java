@@ -0,0 +1,165 @@
+package helipilot50.orientdb.recommendation.util;
+
+import java.util.Arrays;
+
+/**
+ * An int to int hash map with open addressing and linear probing, so counting
+ * by key does not box or allocate an entry per key.
+ *
+ * Integer.MIN_VALUE marks a free slot and cannot be used as a key.
+ */
+public final class IntIntHashMap {
+	private static final int FREE = Integer.MIN_VALUE;
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+	private int resizeAt;
+
+	public IntIntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * @param expectedSize the number of keys to hold without resizing
+	 */
+	public IntIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(int key) {
+		return keys[slot(key)] != FREE;
+	}
+
+	/**
+	 * @param key
+	 * @param missing returned when the key is not in the map
+	 * @return
+	 */
+	public int get(int key, int missing) {
+		int slot = slot(key);
+		return keys[slot] == FREE ? missing : values[slot];
+	}
+
+	/**
+	 * @param key
+	 * @param value
+	 * @return the previous value, or Integer.MIN_VALUE
+	 */
+	public int put(int key, int value) {
+		int slot = slot(key);
+		if (keys[slot] != FREE) {
+			int previous = values[slot];
+			values[slot] = value;
+			return previous;
+		}
+		insert(slot, key, value);
+		return FREE;
+	}
+
+	/**
+	 * Adds delta to the value of key, which starts from 0
+	 * @param key
+	 * @param delta
+	 * @return the new value
+	 */
+	public int addTo(int key, int delta) {
+		int slot = slot(key);
+		if (keys[slot] != FREE)
+			return values[slot] += delta;
+		insert(slot, key, delta);
+		return delta;
+	}
+
+	/**
+	 * The value of key, or value after storing it when key is new, as a
+	 * dictionary from sparse keys to dense ids would use it
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public int putIfAbsent(int key, int value) {
+		int slot = slot(key);
+		if (keys[slot] != FREE)
+			return values[slot];
+		insert(slot, key, value);
+		return value;
+	}
+
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		size = 0;
+	}
+
+	/**
+	 * @return the keys, in no particular order
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int key : keys) {
+			if (key != FREE)
+				result[n++] = key;
+		}
+		return result;
+	}
+
+	private void insert(int slot, int key, int value) {
+		if (key == FREE)
+			throw new IllegalArgumentException("Integer.MIN_VALUE cannot be a key");
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeAt)
+			rehash();
+	}
+
+	/*
+	 * the slot holding key, or the free slot it would go in
+	 */
+	private int slot(int key) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (keys[slot] != FREE && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	private void rehash() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		values = new int[capacity];
+		Arrays.fill(keys, FREE);
+		resizeAt = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/*
+	 * cluster positions and dense ids are sequential,
+	 * spread them over the table
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
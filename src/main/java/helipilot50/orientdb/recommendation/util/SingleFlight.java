@@ -0,0 +1,93 @@
+package helipilot50.orientdb.recommendation.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs one computation per key at a time: a caller asking for a key that is
+ * already being computed waits for that computation and gets its result, or
+ * its exception, instead of starting another.
+ *
+ * Nothing is kept once a computation completes, so a caller arriving after it
+ * computes again; caching the result is up to the caller.
+ */
+public final class SingleFlight<K, V> {
+	private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+	private final AtomicLong computed = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * @param key
+	 * @param computation run on the calling thread unless one for the key is
+	 *            in flight
+	 * @return the result of the computation in flight for the key
+	 */
+	public V execute(K key, Callable<V> computation) {
+		FutureTask<V> task = new FutureTask<V>(computation);
+		FutureTask<V> running = inFlight.putIfAbsent(key, task);
+		if (running != null) {
+			shared.incrementAndGet();
+			return await(running);
+		}
+		computed.incrementAndGet();
+		try {
+			task.run();
+		} finally {
+			inFlight.remove(key, task);
+		}
+		return await(task);
+	}
+
+	/**
+	 * @return the keys being computed
+	 */
+	public int inFlight() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the computations run
+	 */
+	public long getComputed() {
+		return computed.get();
+	}
+
+	/**
+	 * @return the callers that shared a computation in flight instead of
+	 *         running their own
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+
+	private static <V> V await(FutureTask<V> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					/*
+					 * the computation runs on another caller's
+					 * thread and completes regardless
+					 */
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IllegalStateException(cause);
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
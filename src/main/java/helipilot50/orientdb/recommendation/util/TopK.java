@@ -0,0 +1,121 @@
+package helipilot50.orientdb.recommendation.util;
+
+/**
+ * Keeps the k highest scored ids offered to it in a bounded min-heap, so
+ * ranking n candidates costs O(n log k) time and O(k) space.
+ *
+ * Of two equal scores the smaller id ranks higher, so the result does not
+ * depend on the order the candidates were offered in.
+ */
+public final class TopK {
+	private final int k;
+	private final int[] ids;
+	private final double[] scores;
+	private int size;
+	private boolean sorted;
+
+	public TopK(int k) {
+		if (k <= 0)
+			throw new IllegalArgumentException("k must be positive: " + k);
+		this.k = k;
+		this.ids = new int[k];
+		this.scores = new double[k];
+	}
+
+	/**
+	 * @param id
+	 * @param score
+	 * @return true if the id is now one of the top k
+	 */
+	public boolean offer(int id, double score) {
+		if (sorted)
+			throw new IllegalStateException("TopK was already sorted");
+		if (size < k) {
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		if (!before(id, score, ids[0], scores[0]))
+			return false;
+		ids[0] = id;
+		scores[0] = score;
+		siftDown(0, size);
+		return true;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Sorts the heap in place, highest score first; no more offers after this
+	 * @return this
+	 */
+	public TopK sort() {
+		if (!sorted) {
+			for (int end = size - 1; end > 0; end--) {
+				swap(0, end);
+				siftDown(0, end);
+			}
+			sorted = true;
+		}
+		return this;
+	}
+
+	/**
+	 * @param i rank, after sort
+	 * @return
+	 */
+	public int id(int i) {
+		return ids[i];
+	}
+
+	/**
+	 * @param i rank, after sort
+	 * @return
+	 */
+	public double score(int i) {
+		return scores[i];
+	}
+
+	/*
+	 * true if a ranks above b
+	 */
+	private static boolean before(int a, double aScore, int b, double bScore) {
+		return aScore > bScore || (aScore == bScore && a < b);
+	}
+
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(ids[parent], scores[parent], ids[i], scores[i]))
+				return;
+			swap(i, parent);
+			i = parent;
+		}
+	}
+
+	private void siftDown(int i, int end) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= end)
+				return;
+			if (child + 1 < end && before(ids[child], scores[child], ids[child + 1], scores[child + 1]))
+				child++;
+			if (!before(ids[i], scores[i], ids[child], scores[child]))
+				return;
+			swap(i, child);
+			i = child;
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i];
+		ids[i] = ids[j];
+		ids[j] = id;
+		double score = scores[i];
+		scores[i] = scores[j];
+		scores[j] = score;
+	}
+}
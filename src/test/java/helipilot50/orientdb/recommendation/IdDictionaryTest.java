@@ -0,0 +1,161 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+public class IdDictionaryTest {
+	/*
+	 * more users than a cursor batch and than the first array
+	 */
+	private static final int USERS = 1100;
+
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:idDictionaryTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+		for (int i = 0; i < USERS; i++)
+			service.createUser("U" + i, "name " + i);
+		for (int i = 0; i < 5; i++)
+			service.createProduct("P" + i);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void loadsEveryKeyFromTheIndexes() {
+		IdDictionary dictionary = new IdDictionary();
+		Assert.assertEquals(USERS + 5, dictionary.load(graph));
+		Assert.assertEquals(USERS, dictionary.userCount());
+		Assert.assertEquals(5, dictionary.productCount());
+		for (int i = 0; i < USERS; i++) {
+			int userKey = FineFoodsService.userKey((OIdentifiable) service.findUserById("U" + i));
+			Assert.assertEquals(userKey, dictionary.userKey("U" + i));
+			Assert.assertEquals("U" + i, dictionary.userId(userKey));
+		}
+		for (int i = 0; i < 5; i++) {
+			int productKey = FineFoodsService.productKey((OIdentifiable) service.findProduct("P" + i));
+			Assert.assertEquals(productKey, dictionary.productKey("P" + i));
+			Assert.assertEquals("P" + i, dictionary.productId(productKey));
+		}
+		Assert.assertEquals(-1, dictionary.userKey("U" + USERS));
+		Assert.assertNull(dictionary.userId(-1));
+		Assert.assertNull(dictionary.productId(USERS * 10));
+	}
+
+	@Test
+	public void growsPastTheLargestKey() {
+		IdDictionary dictionary = new IdDictionary();
+		dictionary.addProduct(3, "P3");
+		dictionary.addProduct(5000, "P5000");
+		dictionary.addProduct(2047, "P2047");
+		Assert.assertEquals("P3", dictionary.productId(3));
+		Assert.assertEquals("P5000", dictionary.productId(5000));
+		Assert.assertEquals("P2047", dictionary.productId(2047));
+		Assert.assertEquals(5000, dictionary.productKey("P5000"));
+		Assert.assertNull(dictionary.productId(4999));
+		Assert.assertNull(dictionary.productId(5001));
+		Assert.assertEquals(3, dictionary.productCount());
+	}
+
+	@Test
+	public void failsWithoutTheIndexes() {
+		OrientGraphFactory empty = new OrientGraphFactory("memory:idDictionaryTestEmpty" + System.nanoTime());
+		OrientGraphNoTx emptyGraph = empty.getNoTx();
+		try {
+			new IdDictionary().load(emptyGraph);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains(Constants.USER_CLASS));
+		} finally {
+			emptyGraph.drop();
+			empty.close();
+		}
+	}
+
+	@Test
+	public void holdsProductIdsAsKeys() {
+		IdDictionary dictionary = new IdDictionary();
+		dictionary.addProduct(2, "P2");
+		dictionary.addProduct(7, "P7");
+		dictionary.addProduct(11, "P11");
+		IdDictionary.ProductIds productIds = dictionary.productIds(new int[] { 2, 7, 11 });
+		Assert.assertEquals(3, productIds.size());
+		Assert.assertTrue(productIds.contains("P7"));
+		Assert.assertFalse(productIds.contains("P8"));
+		Assert.assertFalse("known to the dictionary, not in the set", dictionary.productIds(new int[] { 2 }).contains("P7"));
+		Assert.assertFalse(productIds.contains(7));
+		Assert.assertFalse(productIds.contains(null));
+		Assert.assertEquals(Arrays.asList("P2", "P7", "P11"), new ArrayList<String>(productIds));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("P11", "P2", "P7")), productIds);
+
+		Iterator<String> iterator = productIds.iterator();
+		iterator.next();
+		try {
+			iterator.remove();
+			Assert.fail();
+		} catch (UnsupportedOperationException e) {
+			Assert.assertEquals(3, productIds.size());
+		}
+		try {
+			dictionary.productIds(new int[] { 2, 8 });
+			Assert.fail();
+		} catch (IllegalArgumentException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("8"));
+		}
+	}
+
+	@Test
+	public void findsUsersByTheirRid() {
+		IdDictionary dictionary = new IdDictionary();
+		dictionary.load(graph);
+		FineFoodsService decoding = new FineFoodsService(graph);
+		decoding.setIdDictionary(dictionary);
+		Object rid = service.findUserById("U5").getId();
+
+		/*
+		 * once out of the index, only the dictionary finds the user
+		 */
+		graph.getRawGraph().getMetadata().getIndexManager()
+				.getIndex(SchemaManager.indexName(Constants.USER_CLASS, Constants.USER_ID)).remove("U5");
+		Assert.assertNull(service.lookupUserById("U5"));
+		Assert.assertEquals(rid, decoding.findUserById("U5").getId());
+
+		/*
+		 * a user created after the load is found by the index, then
+		 * added to the dictionary
+		 */
+		Vertex vLate = service.createUser("late", null);
+		Assert.assertEquals(-1, dictionary.userKey("late"));
+		Assert.assertEquals(vLate.getId(), decoding.findUserById("late").getId());
+		Assert.assertEquals(FineFoodsService.userKey((OIdentifiable) vLate), dictionary.userKey("late"));
+
+		/*
+		 * a key whose vertex is gone falls back to the index
+		 */
+		graph.removeVertex(service.findUserById("U6"));
+		Assert.assertTrue(dictionary.userKey("U6") >= 0);
+		Assert.assertNull(decoding.lookupUserById("U6"));
+	}
+}
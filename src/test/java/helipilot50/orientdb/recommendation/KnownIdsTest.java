@@ -0,0 +1,83 @@
+package helipilot50.orientdb.recommendation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+public class KnownIdsTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:knownIdsTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void answersUnknownIdsWithoutTheGraph() {
+		FineFoodsService service = new FineFoodsService(graph);
+		service.createUser("A1", "jane");
+		service.createProduct("B1");
+		KnownIds knownIds = new KnownIds(100, 100, 0.01);
+		Assert.assertTrue(knownIds.mightBeUser("nobody"));
+		Assert.assertEquals(2, knownIds.load(graph));
+		service.setKnownIds(knownIds);
+
+		Assert.assertNotNull(service.lookupUserById("A1"));
+		Assert.assertNull(service.lookupUserById("nobody"));
+		Assert.assertNull(service.lookupProduct("nothing"));
+		Assert.assertEquals(1, knownIds.getUsersRejected());
+		Assert.assertEquals(1, knownIds.getProductsRejected());
+
+		/*
+		 * what a service creates is known at once
+		 */
+		Assert.assertFalse(knownIds.mightBeUser("A2"));
+		service.createUser("A2", null);
+		service.createProduct("B2");
+		Assert.assertNotNull(service.findUserById("A2"));
+		Assert.assertNotNull(service.findProduct("B2"));
+	}
+
+	@Test
+	public void passesIdsOnToTheFiltersReplacingThem() {
+		KnownIds old = new KnownIds(100, 100, 0.01);
+		old.load(graph);
+		FineFoodsService service = new FineFoodsService(graph);
+		service.setKnownIds(old);
+		KnownIds rebuilt = new KnownIds(100, 100, 0.01);
+		old.replaceWith(rebuilt);
+		rebuilt.load(graph);
+		/*
+		 * created by a service still holding the old filters
+		 */
+		service.createUser("A3", null);
+		service.createProduct("B3");
+		Assert.assertTrue(rebuilt.mightBeUser("A3"));
+		Assert.assertTrue(rebuilt.mightBeProduct("B3"));
+		Assert.assertFalse(rebuilt.mightBeUser("nobody"));
+	}
+
+	@Test
+	public void notFoundHasNoStackTrace() {
+		try {
+			new FineFoodsService(graph).findUserById("nobody");
+			Assert.fail();
+		} catch (UserNotFound e) {
+			Assert.assertEquals(0, e.getStackTrace().length);
+			Assert.assertEquals("nobody", e.getCustomerID());
+		}
+	}
+}
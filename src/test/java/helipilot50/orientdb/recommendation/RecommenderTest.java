@@ -0,0 +1,243 @@
+package helipilot50.orientdb.recommendation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.cooccurrence.CoOccurrenceIndex;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+public class RecommenderTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:recommenderTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+		review("U1", "P1", 5.0);
+		review("U1", "P2", 4.0);
+		review("U2", "P1", 5.0);
+		review("U2", "P2", 4.0);
+		review("U2", "P3", 5.0);
+		review("U3", "P2", 1.0);
+		review("U3", "P4", 2.0);
+		review("U3", "P4", 4.0);
+		review("U4", "P5", 5.0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	private void review(String userId, String productId, double score) {
+		Vertex vUser = service.createUser(userId, userId.toLowerCase());
+		Vertex vProduct = service.createProduct(productId);
+		Map<String, Object> review = new HashMap<String, Object>();
+		review.put("score", score);
+		service.createReview(vUser, vProduct, review);
+	}
+
+	@Test
+	public void coReviewersAreDistinctAndExcludeTheUser() {
+		CoReviewers coReviewers = service.coReviewers(service.findUserById("U2"));
+		Assert.assertEquals(2, coReviewers.size());
+		Map<String, Integer> overlap = new HashMap<String, Integer>();
+		for (int i = 0; i < coReviewers.size(); i++)
+			overlap.put((String) service.getVertex(coReviewers.user(i)).getProperty(Constants.USER_ID), coReviewers.overlap(i));
+		Assert.assertEquals(Integer.valueOf(2), overlap.get("U1"));
+		Assert.assertEquals(Integer.valueOf(1), overlap.get("U3"));
+		Assert.assertEquals(2, service.similarUsers(service.findUserById("U2")).size());
+	}
+
+	@Test
+	public void decodesProductsFromTheDictionary() {
+		IdDictionary dictionary = new IdDictionary();
+		Assert.assertEquals(9, dictionary.load(graph));
+		FineFoodsService decoding = new FineFoodsService(graph);
+		decoding.setIdDictionary(dictionary);
+		int userKey = dictionary.userKey("U2");
+		Assert.assertEquals("U2", dictionary.userId(userKey));
+		Assert.assertEquals(service.findUserById("U2").getId(), decoding.findUserById("U2").getId());
+		for (String userId : Arrays.asList("U1", "U2", "U3", "U4")) {
+			long loadedBefore = service.getVerticesLoaded();
+			Recommendation fromVertices = new Recommender(service).recommend(userId);
+			long loadedFromVertices = service.getVerticesLoaded() - loadedBefore;
+			loadedBefore = decoding.getVerticesLoaded();
+			Recommendation decoded = new Recommender(decoding).recommend(userId);
+			Assert.assertTrue(decoding.getVerticesLoaded() - loadedBefore < loadedFromVertices);
+			Assert.assertTrue(decoded.getReviewedProducts() instanceof IdDictionary.ProductIds);
+			Assert.assertEquals(fromVertices.getReviewedProducts(), decoded.getReviewedProducts());
+			Assert.assertEquals(new ArrayList<String>(fromVertices.getRecommendedProducts()),
+					new ArrayList<String>(decoded.getRecommendedProducts()));
+		}
+		Assert.assertTrue(new Recommender(decoding).recommend("U3").getReviewedProducts().contains("P4"));
+		Assert.assertFalse(new Recommender(decoding).recommend("U3").getReviewedProducts().contains("P1"));
+	}
+
+	@Test
+	public void ranksLikeTheSnapshot() {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		for (String userId : Arrays.asList("U1", "U2", "U3", "U4")) {
+			Recommendation live = new Recommender(service).recommend(userId);
+			Recommendation memory = snapshot.recommend(userId);
+			Assert.assertEquals(memory.getReviewedProducts(), live.getReviewedProducts());
+			Assert.assertEquals(new ArrayList<String>(memory.getRecommendedProducts()), new ArrayList<String>(live.getRecommendedProducts()));
+			for (int i = 0; i < live.getRankedProducts().size(); i++)
+				Assert.assertEquals(memory.getRankedProducts().get(i).getScore(), live.getRankedProducts().get(i).getScore(), 1e-6);
+		}
+		List<RankedProduct> ranked = new Recommender(service).recommend("U1").getRankedProducts();
+		Assert.assertEquals("P3", ranked.get(0).getProductId());
+		Assert.assertEquals("P4", ranked.get(1).getProductId());
+		Assert.assertTrue(new Recommender(service).recommend("U4").getRankedProducts().isEmpty());
+	}
+
+	@Test
+	public void cutsHubProducts() {
+		Assert.assertEquals(3, service.reviewCount(service.findProduct("P2")));
+		Assert.assertEquals(2, service.reviewCount(service.findProduct("P4")));
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+
+		HubPolicy skip = new HubPolicy(HubPolicy.Mode.SKIP, 2, 0);
+		Recommendation live = new Recommender(service, 20, 100, skip).recommend("U1");
+		Recommendation memory = snapshot.recommend("U1", 20, 100, skip);
+		for (Recommendation rec : Arrays.asList(live, memory)) {
+			Assert.assertEquals(2, rec.getFanOut().getProducts());
+			Assert.assertEquals(1, rec.getFanOut().getHubProducts());
+			Assert.assertEquals(2, rec.getFanOut().getReviewsRead());
+			Assert.assertEquals(3, rec.getFanOut().getReviewsCut());
+			Assert.assertEquals(1, rec.getFanOut().getCandidates());
+			Assert.assertEquals(Arrays.asList("P3"), new ArrayList<String>(rec.getRecommendedProducts()));
+		}
+
+		HubPolicy sample = new HubPolicy(HubPolicy.Mode.SAMPLE, 2, 2);
+		live = new Recommender(service, 20, 100, sample).recommend("U3");
+		Assert.assertEquals(4, live.getFanOut().getReviewsRead());
+		Assert.assertEquals(1, live.getFanOut().getReviewsCut());
+		Assert.assertEquals(live.getFanOut().getReviewsCut(), snapshot.recommend("U3", 20, 100, sample).getFanOut().getReviewsCut());
+	}
+
+	@Test
+	public void memoReadsOnceAndRanksTheSame() {
+		ReviewMemo memo = new ReviewMemo(HubPolicy.KEEP_ALL);
+		Recommender memoized = new Recommender(new MemoizedFineFoodsService(graph, memo),
+				Recommender.DEFAULT_NEIGHBOURS, Recommender.DEFAULT_MAX_RESULTS, HubPolicy.KEEP_ALL);
+		for (String userId : Arrays.asList("U1", "U2", "U3", "U4", "U1", "U2")) {
+			Recommendation plain = new Recommender(service).recommend(userId);
+			Recommendation shared = memoized.recommend(userId);
+			Assert.assertEquals(plain.getReviewedProducts(), shared.getReviewedProducts());
+			Assert.assertEquals(new ArrayList<String>(plain.getRecommendedProducts()), new ArrayList<String>(shared.getRecommendedProducts()));
+		}
+		/*
+		 * five products, four users
+		 */
+		Assert.assertEquals(9, memo.getMisses());
+		Assert.assertTrue(memo.getHits() > memo.getMisses());
+	}
+
+	@Test
+	public void scoresInParallelLikeOnOneThread() throws Exception {
+		Random random = new Random(3);
+		for (int u = 10; u < 400; u++) {
+			for (int p = 1; p <= 30; p++) {
+				if (random.nextInt(4) == 0)
+					review("U" + u, "P" + p, 1 + random.nextInt(5));
+			}
+		}
+		final List<FineFoodsService> released = new ArrayList<FineFoodsService>();
+		ServiceSessions sessions = new ServiceSessions() {
+			@Override
+			public FineFoodsService acquire() {
+				return new FineFoodsService(factory.getNoTx());
+			}
+
+			@Override
+			public synchronized void release(FineFoodsService service) {
+				service.getGraph().shutdown();
+				released.add(service);
+			}
+		};
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Recommender parallel = new Recommender(service);
+			parallel.setParallelScoring(pool, 1, sessions);
+			for (String userId : Arrays.asList("U1", "U10", "U77", "U250")) {
+				Recommendation expected = new Recommender(service).recommend(userId);
+				Recommendation actual = parallel.recommend(userId);
+				Assert.assertTrue(expected.getFanOut().getCandidates() > 128);
+				Assert.assertEquals(expected.getRankedProducts().size(), actual.getRankedProducts().size());
+				for (int i = 0; i < expected.getRankedProducts().size(); i++) {
+					Assert.assertEquals(expected.getRankedProducts().get(i).getProductId(), actual.getRankedProducts().get(i).getProductId());
+					Assert.assertEquals(expected.getRankedProducts().get(i).getScore(), actual.getRankedProducts().get(i).getScore(), 0d);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		Assert.assertFalse(released.isEmpty());
+	}
+
+	@Test
+	public void ranksNewReviewsFromTheCoOccurrences() {
+		CoOccurrenceIndex index = CoOccurrenceIndex.rebuild(graph);
+		Recommender recommender = new Recommender(service);
+		recommender.setCoOccurrence(index);
+		List<RankedProduct> ranked = recommender.recommend("U1").getRankedProducts();
+		Assert.assertEquals(2, ranked.size());
+		Assert.assertEquals("P3", ranked.get(0).getProductId());
+		Assert.assertEquals("P4", ranked.get(1).getProductId());
+
+		/*
+		 * counted as CoOccurrenceManager does, without a rebuild
+		 */
+		for (String productId : Arrays.asList("P2", "P5")) {
+			review("U5", productId, 5.0);
+			Vertex vUser = service.findUserById("U5");
+			index.reviewAdded(FineFoodsService.userKey((OIdentifiable) vUser),
+					FineFoodsService.productKey((OIdentifiable) service.findProduct(productId)),
+					service.makeVectorForUser(vUser), false);
+		}
+		ranked = recommender.recommend("U1").getRankedProducts();
+		Assert.assertEquals(3, ranked.size());
+		Assert.assertEquals("P3", ranked.get(0).getProductId());
+		Assert.assertEquals("P4", ranked.get(1).getProductId());
+		Assert.assertEquals("P5", ranked.get(2).getProductId());
+		Assert.assertEquals(ranked.get(1).getScore(), ranked.get(2).getScore(), 1e-9);
+		Assert.assertEquals("P2", recommender.recommend("U4").getRankedProducts().get(0).getProductId());
+	}
+
+		@Test
+	public void stopsAtTheDeadline() {
+		Recommendation late = new Recommender(service).recommend("U1", 0L);
+		Assert.assertTrue(late.isPartial());
+		Assert.assertTrue(late.getRankedProducts().isEmpty());
+		Assert.assertEquals(2, late.getReviewedProducts().size());
+		Recommendation inTime = new Recommender(service).recommend("U1", System.currentTimeMillis() + 60000);
+		Assert.assertFalse(inTime.isPartial());
+		Assert.assertEquals("P3", inTime.getRankedProducts().get(0).getProductId());
+	}
+
+	@Test(expected = UserNotFound.class)
+	public void unknownUser() {
+		new Recommender(service).recommend("nobody");
+	}
+}
@@ -0,0 +1,68 @@
+package helipilot50.orientdb.recommendation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+public class SchemaManagerTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:schemaTest" + System.nanoTime());
+		graph = factory.getNoTx();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void createsIndexedSchemaIdempotently() {
+		Assert.assertFalse(SchemaManager.verifyIndexes(graph));
+		SchemaManager.ensureSchema(graph);
+		SchemaManager.ensureSchema(graph);
+		Assert.assertTrue(SchemaManager.verifyIndexes(graph));
+		Assert.assertNotNull(graph.getEdgeType(Constants.EDGE_REVIEWED));
+	}
+
+	@Test
+	public void lookupsUseTheIndexes() {
+		SchemaManager.ensureSchema(graph);
+		FineFoodsService service = new FineFoodsService(graph);
+		Vertex vUser = service.createUser("A1", "jane");
+		Assert.assertEquals(vUser.getId(), service.createUser("A1", "jane").getId());
+		Assert.assertEquals(vUser.getId(), service.findUserByProfileName("jane").getId());
+		Vertex vProduct = service.createProduct("B1");
+		Assert.assertEquals(vProduct.getId(), service.findProduct("B1").getId());
+		Assert.assertEquals(1L, graph.getRawGraph().getMetadata().getIndexManager()
+				.getIndex(SchemaManager.indexName(Constants.USER_CLASS, Constants.USER_ID)).getSize());
+	}
+
+	@Test
+	public void refusesASecondCluster() {
+		SchemaManager.ensureSchema(graph);
+		int cluster = graph.getRawGraph().addCluster("product_2");
+		graph.getVertexType(Constants.PRODUCT_CLASS).addClusterId(cluster);
+		try {
+			SchemaManager.ensureSchema(graph);
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains(Constants.PRODUCT_CLASS));
+		}
+	}
+
+	@Test(expected = UserNotFound.class)
+	public void missingUser() {
+		SchemaManager.ensureSchema(graph);
+		new FineFoodsService(graph).findUserById("nobody");
+	}
+}
@@ -102,7 +102,7 @@ public class ServiceTest {
 		Vertex vUser = service.findUserById(TARGET_USER_ID);
 		Assert.assertNotNull(vUser);
 		System.out.println(vUser + " - " + vUser.getProperty(Constants.USER_ID));
-		List<Double> vector = service.makeVectorForUser(vUser);
+		SparseVector vector = service.makeVectorForUser(vUser);
 		System.out.println("\tVector: " + vector);
 	}
 }
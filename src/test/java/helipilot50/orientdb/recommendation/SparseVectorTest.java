@@ -0,0 +1,59 @@
+package helipilot50.orientdb.recommendation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import helipilot50.orientdb.recommendation.rest.CosineSimilarity;
+
+public class SparseVectorTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void sortsAndCollapsesDuplicates() {
+		SparseVector vector = new SparseVector.Builder()
+				.add(30, 5f)
+				.add(10, 1f)
+				.add(20, 2f)
+				.add(10, 3f)
+				.build();
+		Assert.assertEquals(3, vector.size());
+		Assert.assertEquals(10, vector.id(0));
+		Assert.assertEquals(20, vector.id(1));
+		Assert.assertEquals(30, vector.id(2));
+		Assert.assertEquals(2f, vector.scoreOf(10), 0f);
+		Assert.assertEquals(0f, vector.scoreOf(15), 0f);
+		Assert.assertTrue(vector.contains(30));
+		Assert.assertFalse(vector.contains(31));
+		Assert.assertEquals(Math.sqrt(4 + 4 + 25), vector.magnitude(), DELTA);
+	}
+
+	@Test
+	public void dotProductMatchesByProduct() {
+		SparseVector a = new SparseVector.Builder().add(1, 5f).add(2, 4f).add(7, 1f).build();
+		SparseVector b = new SparseVector.Builder().add(7, 2f).add(3, 5f).add(1, 3f).build();
+		Assert.assertEquals(5 * 3 + 1 * 2, CosineSimilarity.dotProduct(a, b), DELTA);
+		Assert.assertEquals(CosineSimilarity.dotProduct(a, b), CosineSimilarity.dotProduct(b, a), DELTA);
+		double expected = 17 / (Math.sqrt(25 + 16 + 1) * Math.sqrt(4 + 25 + 9));
+		Assert.assertEquals(expected, CosineSimilarity.cosineSimilarity(a, b), DELTA);
+	}
+
+	@Test
+	public void dotProductProbesLongVector() {
+		SparseVector.Builder longBuilder = new SparseVector.Builder();
+		for (int i = 0; i < 1000; i++)
+			longBuilder.add(i * 2, 1f);
+		SparseVector longVector = longBuilder.build();
+		SparseVector shortVector = new SparseVector.Builder().add(4, 2f).add(5, 3f).add(1998, 4f).build();
+		Assert.assertEquals(6d, longVector.dot(shortVector), DELTA);
+		Assert.assertEquals(6d, shortVector.dot(longVector), DELTA);
+	}
+
+	@Test
+	public void identicalVectorsAreFullySimilar() {
+		SparseVector a = new SparseVector.Builder().add(9, 4f).add(3, 2f).build();
+		SparseVector b = new SparseVector.Builder().add(3, 2f).add(9, 4f).build();
+		Assert.assertEquals(1d, a.cosine(b), DELTA);
+		Assert.assertEquals(0d, a.cosine(SparseVector.EMPTY), DELTA);
+	}
+}
@@ -0,0 +1,113 @@
+package helipilot50.orientdb.recommendation.cooccurrence;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class CoOccurrenceIndexTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:coOccurrenceTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	private void review(String userId, String productId, double score) {
+		Vertex vUser = service.createUser(userId, userId);
+		Map<String, Object> review = new HashMap<String, Object>();
+		review.put("score", score);
+		service.createReview(vUser, service.createProduct(productId), review);
+	}
+
+	private int productKey(String productId) {
+		return FineFoodsService.productKey((OIdentifiable) service.createProduct(productId));
+	}
+
+	/*
+	 * what CoOccurrenceManager does on a new review
+	 */
+	private void listenWith(final CoOccurrenceIndex index) {
+		service.setReviewListeners(Collections.<ReviewListener> singletonList(new ReviewListener() {
+			@Override
+			public void reviewCreated(Vertex vUser, Vertex vProduct) {
+				int product = FineFoodsService.productKey((OIdentifiable) vProduct);
+				int reviewsOfProduct = 0;
+				for (Edge review : vUser.getEdges(Direction.OUT, Constants.EDGE_REVIEWED)) {
+					if (FineFoodsService.productKey(((OrientEdge) review).getInVertex()) == product)
+						reviewsOfProduct++;
+				}
+				index.reviewAdded(FineFoodsService.userKey((OIdentifiable) vUser), product,
+						service.makeVectorForUser(vUser), reviewsOfProduct > 1);
+			}
+		}));
+	}
+
+	@Test
+	public void countsPairsOnce() throws Exception {
+		review("A", "P1", 5);
+		review("A", "P2", 4);
+		review("B", "P1", 3);
+		CoOccurrenceIndex index = CoOccurrenceIndex.rebuild(graph);
+		listenWith(index);
+		review("B", "P2", 1);
+		review("B", "P2", 2);
+
+		Assert.assertEquals(2, index.count(productKey("P1"), productKey("P2")));
+		Assert.assertEquals(2, index.count(productKey("P2"), productKey("P1")));
+		Assert.assertEquals(0, index.count(productKey("P1"), productKey("P1")));
+		Assert.assertTrue(index.check(CoOccurrenceIndex.rebuild(graph)).isConsistent());
+	}
+
+	@Test
+	public void staysConsistentAcrossCompactions() throws Exception {
+		Random random = new Random(11);
+		for (int i = 0; i < 200; i++)
+			review("U" + random.nextInt(30), "P" + random.nextInt(20), 1 + random.nextInt(5));
+		CoOccurrenceIndex index = CoOccurrenceIndex.rebuild(graph);
+		listenWith(index);
+		for (int i = 0; i < 300; i++) {
+			review("U" + random.nextInt(40), "P" + random.nextInt(25), 1 + random.nextInt(5));
+			if (i == 150)
+				Assert.assertTrue(index.compact() > 0);
+		}
+		Assert.assertTrue(index.pendingProducts() > 0);
+		ConsistencyReport report = index.check(CoOccurrenceIndex.rebuild(graph));
+		Assert.assertTrue(report.toString(), report.isConsistent());
+
+		index.compact();
+		Assert.assertEquals(0, index.pendingProducts());
+		report = index.check(CoOccurrenceIndex.rebuild(graph));
+		Assert.assertTrue(report.toString(), report.isConsistent());
+		Assert.assertTrue(report.getPairsChecked() > 0);
+	}
+}
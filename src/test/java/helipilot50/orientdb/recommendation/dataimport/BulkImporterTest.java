@@ -0,0 +1,120 @@
+package helipilot50.orientdb.recommendation.dataimport;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orientechnologies.common.concur.ONeedRetryException;
+import com.tinkerpop.blueprints.impls.orient.OrientGraph;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+
+public class BulkImporterTest {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private OrientGraphFactory factory;
+	private File first;
+	private File second;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:bulkImporterTest" + System.nanoTime());
+		first = file(0, 40);
+		second = file(40, 20);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		first.delete();
+		second.delete();
+		OrientGraphNoTx graph = factory.getNoTx();
+		graph.drop();
+		factory.close();
+	}
+
+	/*
+	 * reviews by 12 users of 5 products, so the writers
+	 * share products and the users have several reviews
+	 */
+	private static File file(int from, int count) throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < from + count; i++) {
+			sb.append("product/productId: B00000000" + (i % 5) + "\n"
+					+ "review/userId: A00000000" + (10 + i % 12) + "\n"
+					+ "review/profileName: name " + (i % 12) + "\n"
+					+ "review/helpfulness: 0/0\n"
+					+ "review/score: " + (i % 5 + 1) + ".0\n"
+					+ "review/time: " + (1300000000L + i) + "\n"
+					+ "review/summary: summary " + i + "\n"
+					+ "review/text: text " + i + "\n\n");
+		}
+		File file = File.createTempFile("reviews", ".txt");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(sb.toString().getBytes(LATIN1));
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private long reviewCount() {
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			return graph.countEdges(Constants.EDGE_REVIEWED);
+		} finally {
+			graph.shutdown();
+		}
+	}
+
+	@Test
+	public void writesInBatchesAndRetriesConflicts() throws Exception {
+		final AtomicInteger commits = new AtomicInteger();
+		/*
+		 * every third commit fails as on a concurrent update
+		 */
+		BulkImporter importer = new BulkImporter(factory, 2, 4) {
+			@Override
+			void commit(OrientGraph graph) {
+				if (commits.incrementAndGet() % 3 == 0)
+					throw new ONeedRetryException("conflict") {
+						private static final long serialVersionUID = 1L;
+					};
+				super.commit(graph);
+			}
+		};
+		Assert.assertEquals(60, importer.importFiles(Arrays.asList(first, second)));
+		Assert.assertEquals(0, importer.getFailed());
+		Assert.assertTrue(importer.getRetries() > 0);
+		Assert.assertTrue("commits " + commits, commits.get() >= 60 / 4 + importer.getRetries());
+		Assert.assertEquals(60, reviewCount());
+
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			FineFoodsService service = new FineFoodsService(graph);
+			Assert.assertEquals(5, service.makeVectorForUser(service.findUserById("A0000000010")).size());
+			Assert.assertEquals(12, graph.countVertices(Constants.USER_CLASS));
+			Assert.assertEquals(5, graph.countVertices(Constants.PRODUCT_CLASS));
+		} finally {
+			graph.shutdown();
+		}
+	}
+
+	@Test
+	public void stopsAtTheLimitOfEachFile() throws Exception {
+		BulkImporter importer = new BulkImporter(factory, 3, 2);
+		Assert.assertEquals(14, importer.importFiles(Arrays.asList(first, second), 7));
+		Assert.assertEquals(14, reviewCount());
+	}
+}
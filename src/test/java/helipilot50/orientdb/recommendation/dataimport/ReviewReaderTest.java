@@ -0,0 +1,122 @@
+package helipilot50.orientdb.recommendation.dataimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ReviewReaderTest {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+	private static String review(int i, String text) {
+		return "product/productId: B00000000" + (i % 10) + "\n"
+				+ "review/userId: A0000000000" + i + "\n"
+				+ "review/profileName: name " + i + "\n"
+				+ "review/helpfulness: " + i + "/" + (i + 2) + "\n"
+				+ "review/score: " + (i % 5 + 1) + ".0\n"
+				+ "review/time: " + (1300000000L + i) + "\n"
+				+ "review/summary: summary " + i + "\n"
+				+ "review/text: " + text + "\n";
+	}
+
+	private static String reviews(int count) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			sb.append(review(i, "Text " + i + ": with a colon in it")).append('\n');
+		return sb.toString();
+	}
+
+	private static List<ReviewRecord> readAll(ReviewReader reader) throws Exception {
+		List<ReviewRecord> records = new ArrayList<ReviewRecord>();
+		try {
+			while (reader.next())
+				records.add(reader.current().copy());
+		} finally {
+			reader.close();
+		}
+		return records;
+	}
+
+	@Test
+	public void parsesTypedFields() throws Exception {
+		ReviewReader reader = ReviewReader.fromStream(new ByteArrayInputStream(reviews(3).getBytes(LATIN1)));
+		List<ReviewRecord> records = readAll(reader);
+		Assert.assertEquals(3, records.size());
+		ReviewRecord second = records.get(1);
+		Assert.assertEquals("B000000001", second.getProductId());
+		Assert.assertEquals("A00000000001", second.getUserId());
+		Assert.assertEquals("name 1", second.getProfileName());
+		Assert.assertEquals(1, second.getHelpful());
+		Assert.assertEquals(3, second.getHelpfulTotal());
+		Assert.assertEquals(2.0, second.getScore(), 0);
+		Assert.assertEquals(1300000001L, second.getTime());
+		Assert.assertEquals("summary 1", second.getSummary());
+		Assert.assertEquals("Text 1: with a colon in it", second.getText());
+
+		Map<String, Object> map = second.toMap();
+		Assert.assertEquals(Double.valueOf(2.0), map.get("score"));
+		Assert.assertEquals(Long.valueOf(1300000001L), map.get("time"));
+		Assert.assertEquals("1/3", map.get("helpfulness"));
+	}
+
+	@Test
+	public void handlesCrLfAndMissingTrailingBlankLine() throws Exception {
+		String input = "\r\n" + review(7, "last").replace("\n", "\r\n").trim();
+		List<ReviewRecord> records = readAll(ReviewReader.fromStream(new ByteArrayInputStream(input.getBytes(LATIN1))));
+		Assert.assertEquals(1, records.size());
+		Assert.assertEquals("last", records.get(0).getText());
+		Assert.assertEquals("A00000000007", records.get(0).getUserId());
+	}
+
+	@Test
+	public void readsGzipAcrossBufferRefills() throws Exception {
+		File file = File.createTempFile("reviews", ".txt.gz");
+		file.deleteOnExit();
+		OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		out.write(reviews(2000).getBytes(LATIN1));
+		out.close();
+		final List<String> users = new ArrayList<String>();
+		ReviewReader reader = ReviewReader.open(file);
+		try {
+			reader.forEach(new ReviewHandler() {
+				@Override
+				public void review(ReviewRecord review) {
+					users.add(review.getUserId());
+				}
+			});
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals(2000, users.size());
+		Assert.assertEquals("A00000000001999", users.get(1999));
+	}
+
+	@Test
+	public void remapsSmallMappedWindows() throws Exception {
+		File file = File.createTempFile("reviews", ".txt");
+		file.deleteOnExit();
+		OutputStream out = new FileOutputStream(file);
+		out.write(reviews(500).getBytes(LATIN1));
+		out.close();
+		List<ReviewRecord> records = readAll(new ReviewReader(new ReviewReader.MappedSource(file, 100), LATIN1));
+		Assert.assertEquals(500, records.size());
+		for (int i = 0; i < records.size(); i++) {
+			Assert.assertEquals("A0000000000" + i, records.get(i).getUserId());
+			Assert.assertEquals("Text " + i + ": with a colon in it", records.get(i).getText());
+		}
+	}
+
+	@Test
+	public void emptyInput() throws Exception {
+		Assert.assertTrue(readAll(ReviewReader.fromStream(new ByteArrayInputStream(new ByteArrayOutputStream().toByteArray()))).isEmpty());
+	}
+}
@@ -0,0 +1,107 @@
+package helipilot50.orientdb.recommendation.lsh;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.SchemaManager;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.util.TopK;
+
+public class MinHashIndexTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:minHashTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	private void review(String userId, String productId) {
+		Vertex vUser = service.createUser(userId, userId);
+		Map<String, Object> review = new HashMap<String, Object>();
+		review.put("score", 5);
+		service.createReview(vUser, service.createProduct(productId), review);
+	}
+
+	private int userKey(String userId) {
+		return FineFoodsService.userKey((OIdentifiable) service.findUserById(userId));
+	}
+
+	@Test
+	public void signsReviewsLikeARebuild() throws Exception {
+		Random random = new Random(5);
+		for (int i = 0; i < 200; i++)
+			review("U" + random.nextInt(30), "P" + random.nextInt(40));
+		final MinHashIndex index = MinHashIndex.rebuild(graph, 16, 2, 1, 2);
+		service.setReviewListeners(Collections.<ReviewListener> singletonList(new ReviewListener() {
+			@Override
+			public void reviewCreated(Vertex vUser, Vertex vProduct) {
+				index.reviewAdded(FineFoodsService.userKey((OIdentifiable) vUser), FineFoodsService.productKey((OIdentifiable) vProduct));
+			}
+		}));
+		for (int i = 0; i < 200; i++)
+			review("U" + random.nextInt(40), "P" + random.nextInt(50));
+
+		MinHashIndex rebuilt = MinHashIndex.rebuild(graph, 16, 2, 1, 2);
+		Assert.assertEquals(rebuilt.userCount(), index.userCount());
+		for (int user : rebuilt.userKeys())
+			Assert.assertArrayEquals(rebuilt.signatureOf(user), index.signatureOf(user));
+		for (int user : rebuilt.userKeys()) {
+			TopK expected = rebuilt.candidates(user, SparseVector.EMPTY, 100);
+			TopK actual = index.candidates(user, SparseVector.EMPTY, 100);
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++)
+				Assert.assertEquals(expected.id(i), actual.id(i));
+		}
+	}
+
+	@Test
+	public void findsTheUsersThatShareTheMostProducts() throws Exception {
+		for (int p = 0; p < 10; p++) {
+			review("A", "P" + p);
+			review("Twin", "P" + p);
+			if (p < 5)
+				review("Half", "P" + p);
+		}
+		review("Stranger", "P0");
+		review("Stranger", "Q1");
+		review("Stranger", "Q2");
+		review("Stranger", "Q3");
+		MinHashIndex index = MinHashIndex.rebuild(graph, 32, 2, 1, 1);
+
+		TopK candidates = index.candidates(userKey("A"), SparseVector.EMPTY, 2);
+		Assert.assertEquals(2, candidates.size());
+		Assert.assertEquals(userKey("Twin"), candidates.id(0));
+		Assert.assertEquals(32d, candidates.score(0), 0d);
+		Assert.assertEquals(userKey("Half"), candidates.id(1));
+		Assert.assertEquals(1d, index.estimatedJaccard(userKey("A"), userKey("Twin")), 0d);
+
+		RecallReport report = RecallEvaluation.evaluate(index, service, 10, 2, 2, 1);
+		Assert.assertEquals(4, report.getUsersEvaluated());
+		Assert.assertTrue(report.toString(), report.getRecall() > 0.5);
+	}
+}
@@ -0,0 +1,38 @@
+package helipilot50.orientdb.recommendation.metrics;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HistogramTest {
+
+	@Test
+	public void bucketsHoldTheirValues() {
+		for (long value : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE / 3 }) {
+			int bucket = Histogram.bucket(value);
+			Assert.assertTrue(value + " above its bucket", value <= Histogram.upperBound(bucket));
+			if (bucket > 0)
+				Assert.assertTrue(value + " below its bucket", value > Histogram.upperBound(bucket - 1));
+		}
+	}
+
+	@Test
+	public void percentilesOfTheLastWindow() {
+		Histogram histogram = new Histogram();
+		Random random = new Random(5);
+		for (int i = 0; i < 100000; i++)
+			histogram.record(1 + random.nextInt(1000000));
+		Assert.assertEquals(0, histogram.percentile(0.5));
+		histogram.rotate();
+		Assert.assertEquals(100000, histogram.windowCount());
+		Assert.assertEquals(500000, histogram.percentile(0.5), 500000 / 8);
+		Assert.assertEquals(990000, histogram.percentile(0.99), 990000 / 8);
+		Assert.assertTrue(histogram.percentile(1.0) <= histogram.windowMax());
+
+		histogram.record(42);
+		histogram.rotate();
+		Assert.assertEquals(42, histogram.percentile(0.99));
+		Assert.assertEquals(100001, histogram.count());
+	}
+}
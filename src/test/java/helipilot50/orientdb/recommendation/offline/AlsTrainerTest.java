@@ -0,0 +1,124 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.SchemaManager;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+public class AlsTrainerTest {
+	private static final int USERS = 60;
+	private static final int PRODUCTS = 30;
+
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private double sum;
+	private int count;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:alsTrainerTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		FineFoodsService service = new FineFoodsService(graph);
+		/*
+		 * ratings of rank 2 plus noise, about half of them known
+		 */
+		Random random = new Random(3);
+		double[][] users = new double[USERS][2];
+		double[][] products = new double[PRODUCTS][2];
+		for (double[] factors : users) {
+			factors[0] = random.nextGaussian();
+			factors[1] = random.nextGaussian();
+		}
+		for (double[] factors : products) {
+			factors[0] = random.nextGaussian();
+			factors[1] = random.nextGaussian();
+		}
+		for (int u = 0; u < USERS; u++) {
+			Vertex vUser = service.createUser("U" + u, "u" + u);
+			for (int p = 0; p < PRODUCTS; p++) {
+				if (random.nextBoolean())
+					continue;
+				double score = 3 + users[u][0] * products[p][0] + users[u][1] * products[p][1] + 0.1 * random.nextGaussian();
+				sum += score;
+				count++;
+				Map<String, Object> review = new HashMap<String, Object>();
+				review.put("score", score);
+				service.createReview(vUser, service.createProduct("P" + p), review);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void predictsHeldOutRatings() throws Exception {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		AlsTrainer trainer = new AlsTrainer(4, 10, 0.05, 0.1, 1, 3);
+		LatentFactors model = trainer.run(snapshot);
+		/*
+		 * far better than the mean of the ratings, whose error
+		 * is their spread
+		 */
+		double mean = sum / count;
+		double spread = 0;
+		int[] offsets = snapshot.userOffsets();
+		float[] scores = snapshot.userScores();
+		for (int i = 0; i < offsets[snapshot.userCount()]; i++)
+			spread += (scores[i] - mean) * (scores[i] - mean);
+		spread = Math.sqrt(spread / count);
+		Assert.assertTrue(model.getHoldoutRmse() + " vs " + spread, model.getHoldoutRmse() < spread / 2);
+		Assert.assertTrue(model.getTrainRmse() < model.getHoldoutRmse());
+		Assert.assertEquals(snapshot.getBuiltAt(), model.getBuiltAt());
+
+		File file = File.createTempFile("latent-factors", ".bin");
+		file.deleteOnExit();
+		model.write(file);
+		LatentFactors read = LatentFactors.read(file);
+		Assert.assertEquals(model.getHoldoutRmse(), read.getHoldoutRmse(), 0d);
+		int user = read.userIndex("U7");
+		for (int p = 0; p < PRODUCTS; p++)
+			Assert.assertEquals(model.predict(user, p), read.predict(user, p), 0d);
+
+		Recommendation rec = read.recommend("U7", 5);
+		Assert.assertEquals(5, rec.getRankedProducts().size());
+		double previous = Double.MAX_VALUE;
+		for (RankedProduct product : rec.getRankedProducts()) {
+			Assert.assertFalse(rec.getReviewedProducts().contains(product.getProductId()));
+			Assert.assertTrue(product.getScore() <= previous);
+			previous = product.getScore();
+		}
+		Assert.assertNull(read.recommend("nobody", 5));
+	}
+
+	@Test
+	public void solvesByCholesky() throws Exception {
+		/*
+		 * the lower triangle of [[4, 2], [2, 3]]
+		 */
+		double[] a = { 4, 0, 2, 3 };
+		double[] b = { 2, 1 };
+		AlsTrainer.choleskySolve(a, b, 2);
+		Assert.assertEquals(0.5, b[0], 1e-12);
+		Assert.assertEquals(0, b[1], 1e-12);
+	}
+}
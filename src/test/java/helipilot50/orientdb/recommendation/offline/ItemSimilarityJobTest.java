@@ -0,0 +1,105 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.SchemaManager;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+public class ItemSimilarityJobTest {
+	private static final int USERS = 40;
+	private static final int PRODUCTS = 25;
+
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private float[][] ratings = new float[PRODUCTS][USERS];
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:itemSimilarityTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		FineFoodsService service = new FineFoodsService(graph);
+		Random random = new Random(7);
+		for (int u = 0; u < USERS; u++) {
+			Vertex vUser = service.createUser("U" + u, "u" + u);
+			for (int p = 0; p < PRODUCTS; p++) {
+				if (random.nextInt(4) != 0)
+					continue;
+				ratings[p][u] = 1 + random.nextInt(5);
+				Map<String, Object> review = new HashMap<String, Object>();
+				review.put("score", (double) ratings[p][u]);
+				service.createReview(vUser, service.createProduct("P" + p), review);
+			}
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	private double cosine(int p, int q) {
+		double dot = 0, np = 0, nq = 0;
+		for (int u = 0; u < USERS; u++) {
+			dot += ratings[p][u] * ratings[q][u];
+			np += ratings[p][u] * ratings[p][u];
+			nq += ratings[q][u] * ratings[q][u];
+		}
+		return dot / Math.sqrt(np * nq);
+	}
+
+	@Test
+	public void matchesBruteForce() throws Exception {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		ItemSimilarityTable table = new ItemSimilarityJob(5, 3).run(snapshot);
+		File file = File.createTempFile("item-similarity", ".bin");
+		file.deleteOnExit();
+		table.write(file);
+		ItemSimilarityTable read = ItemSimilarityTable.read(file);
+		Assert.assertEquals(table.pairCount(), read.pairCount());
+
+		for (int p = 0; p < PRODUCTS; p++) {
+			List<RankedProduct> similar = read.similarTo("P" + p);
+			if (similar == null)
+				continue;
+			Assert.assertTrue(similar.size() <= 5);
+			double previous = Double.MAX_VALUE;
+			for (RankedProduct product : similar) {
+				int q = Integer.parseInt(product.getProductId().substring(1));
+				Assert.assertNotEquals(p, q);
+				Assert.assertEquals(cosine(p, q), product.getScore(), 1e-5);
+				Assert.assertTrue(product.getScore() <= previous);
+				previous = product.getScore();
+			}
+			/*
+			 * nothing left out scores higher than the last kept
+			 */
+			if (similar.size() == 5) {
+				for (int q = 0; q < PRODUCTS; q++) {
+					boolean kept = false;
+					for (RankedProduct product : similar)
+						kept |= product.getProductId().equals("P" + q);
+					if (q != p && !kept)
+						Assert.assertTrue(cosine(p, q) <= previous + 1e-6);
+				}
+			}
+		}
+		Assert.assertNull(read.similarTo("nothing"));
+	}
+}
@@ -0,0 +1,96 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class LeanEdgeMigrationTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:leanEdgeMigrationTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	private Map<String, Object> review(String userId, String productId) {
+		Map<String, Object> review = new HashMap<String, Object>();
+		review.put(Constants.USER_ID, userId);
+		review.put(Constants.PRODUCT_ID, productId);
+		review.put(Constants.PROFILE_NAME, "profile of " + userId);
+		review.put("score", 4.0);
+		review.put("time", 1300000000L);
+		review.put("helpfulness", "1/2");
+		review.put("summary", "Good");
+		review.put("text", "A long text about " + productId);
+		return review;
+	}
+
+	@Test
+	public void keepsTheTextOffNewEdges() throws Exception {
+		Vertex vUser = service.createUser("U1", "profile of U1");
+		Edge edge = service.createReview(vUser, service.createProduct("P1"), review("U1", "P1"));
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("score", "time", "helpfulness", Constants.REVIEW_TEXT)),
+				edge.getPropertyKeys());
+		Map<String, Object> text = service.reviewText(edge);
+		Assert.assertEquals(2, text.size());
+		Assert.assertEquals("Good", text.get("summary"));
+		Assert.assertEquals("A long text about P1", text.get("text"));
+	}
+
+	@Test
+	public void migratesFatEdges() throws Exception {
+		for (int u = 0; u < 3; u++) {
+			Vertex vUser = service.createUser("U" + u, "profile of U" + u);
+			for (int p = 0; p < 4; p++) {
+				Edge edge = graph.addEdge(null, vUser, service.createProduct("P" + p), Constants.EDGE_REVIEWED);
+				for (Map.Entry<String, Object> entry : review("U" + u, "P" + p).entrySet())
+					edge.setProperty(entry.getKey(), entry.getValue());
+			}
+		}
+		Edge fat = graph.getEdgesOfClass(Constants.EDGE_REVIEWED).iterator().next();
+		Assert.assertEquals(2, service.reviewText(fat).size());
+
+		LeanEdgeMigration.Footprint measured = LeanEdgeMigration.migrate(graph, false);
+		Assert.assertEquals(12, measured.migrated);
+		Assert.assertTrue(graph.getEdgesOfClass(Constants.EDGE_REVIEWED).iterator().next().getPropertyKeys().contains("text"));
+
+		LeanEdgeMigration.Footprint migrated = LeanEdgeMigration.migrate(graph, true);
+		Assert.assertEquals(12, migrated.edges);
+		Assert.assertEquals(12, migrated.migrated);
+		Assert.assertTrue(migrated.bytesAfter < migrated.bytesBefore);
+		Assert.assertTrue(measured.bytesAfter < measured.bytesBefore);
+		for (Edge edge : graph.getEdgesOfClass(Constants.EDGE_REVIEWED)) {
+			Assert.assertFalse(edge.getPropertyKeys().contains("text"));
+			Assert.assertFalse(edge.getPropertyKeys().contains(Constants.USER_ID));
+			Assert.assertEquals(4.0, ((Number) edge.getProperty("score")).doubleValue(), 0d);
+			Assert.assertEquals("Good", service.reviewText(edge).get("summary"));
+		}
+		Assert.assertEquals(0, LeanEdgeMigration.migrate(graph, true).migrated);
+	}
+}
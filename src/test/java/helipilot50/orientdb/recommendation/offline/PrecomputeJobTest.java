@@ -0,0 +1,171 @@
+package helipilot50.orientdb.recommendation.offline;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.HubPolicy;
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class PrecomputeJobTest {
+	private static final int USERS = 30;
+	private static final int PRODUCTS = 15;
+
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:precomputeJobTest" + System.nanoTime());
+		factory.setupPool(1, 4);
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+		Random random = new Random(5);
+		for (int u = 0; u < USERS; u++) {
+			Vertex vUser = service.createUser("U" + u, "u" + u);
+			for (int p = 0; p < PRODUCTS; p++) {
+				if (random.nextInt(3) != 0)
+					continue;
+				Map<String, Object> review = new HashMap<String, Object>();
+				review.put("score", (double) (1 + random.nextInt(5)));
+				service.createReview(vUser, service.createProduct("P" + p), review);
+			}
+		}
+		directory = Files.createTempDirectory("precomputed").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+		graph.drop();
+		factory.close();
+	}
+
+	private PrecomputeJob job(boolean edges) {
+		return new PrecomputeJob(factory, directory, edges, 4, 2, 5, 10, HubPolicy.KEEP_ALL);
+	}
+
+	private void assertSame(Recommendation expected, Recommendation actual) {
+		Assert.assertNotNull(actual);
+		Assert.assertEquals(expected.getReviewedProducts(), actual.getReviewedProducts());
+		Assert.assertEquals(expected.getRankedProducts().size(), actual.getRankedProducts().size());
+		for (int i = 0; i < expected.getRankedProducts().size(); i++) {
+			Assert.assertEquals(expected.getRankedProducts().get(i).getProductId(), actual.getRankedProducts().get(i).getProductId());
+			Assert.assertEquals(expected.getRankedProducts().get(i).getScore(), actual.getRankedProducts().get(i).getScore(), 1e-5);
+		}
+	}
+
+	@Test
+	public void writesPartFilesAndResumes() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(job(false).run(false));
+		Assert.assertFalse(new File(directory, "checkpoint").exists());
+		PrecomputedRecommendations precomputed = PrecomputedRecommendations.read(directory);
+		Assert.assertEquals(USERS, precomputed.userCount());
+		Recommender recommender = new Recommender(service, 5, 10, HubPolicy.KEEP_ALL);
+		for (int u = 0; u < USERS; u++)
+			assertSame(recommender.recommend("U" + u), precomputed.recommend("U" + u, start));
+		Assert.assertNull(precomputed.recommend("U0", System.currentTimeMillis() + 1));
+		Assert.assertNull(precomputed.recommend("nobody", 0));
+
+		/*
+		 * an interrupted run that had completed all but partition 2
+		 */
+		for (File file : directory.listFiles())
+			file.delete();
+		FileOutputStream checkpoint = new FileOutputStream(new File(directory, "checkpoint"));
+		checkpoint.write("partitions 4 files\ndone 0\ndone 1\ndone 3\n".getBytes("UTF-8"));
+		checkpoint.close();
+		Assert.assertTrue(job(false).run(false));
+		Assert.assertEquals(1, directory.listFiles().length);
+		Assert.assertTrue(PrecomputedRecommendations.partFile(directory, 2).exists());
+	}
+
+	@Test
+	public void retriesPartitionsWithFailedUsers() throws Exception {
+		PrecomputeJob failing = new PrecomputeJob(factory, directory, false, 4, 2, 5, 10, HubPolicy.KEEP_ALL) {
+			@Override
+			Recommendation recommend(Recommender recommender, FineFoodsService service, String userId) {
+				if (userId.equals("U7"))
+					throw new IllegalStateException("storage unavailable");
+				return super.recommend(recommender, service, userId);
+			}
+		};
+		Assert.assertFalse(failing.run(false));
+		String checkpoint = new String(Files.readAllBytes(new File(directory, "checkpoint").toPath()), "UTF-8");
+		Assert.assertEquals(3, checkpoint.split("\n").length - 1);
+		Assert.assertNull(PrecomputedRecommendations.read(directory).recommend("U7", 0));
+
+		/*
+		 * the next run computes that partition again
+		 */
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(job(false).run(false));
+		PrecomputedRecommendations precomputed = PrecomputedRecommendations.read(directory);
+		Assert.assertEquals(USERS, precomputed.userCount());
+		assertSame(new Recommender(service, 5, 10, HubPolicy.KEEP_ALL).recommend("U7"), precomputed.recommend("U7", start));
+	}
+
+	@Test
+	public void writesEdges() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(job(true).run(false));
+		Recommender recommender = new Recommender(service, 5, 10, HubPolicy.KEEP_ALL);
+		for (int u = 0; u < USERS; u++) {
+			Vertex vUser = service.findUserById("U" + u);
+			assertSame(recommender.recommend(vUser), service.materialisedRecommendation(vUser, start));
+		}
+		Assert.assertNull(service.materialisedRecommendation(service.findUserById("U0"), System.currentTimeMillis() + 1));
+		/*
+		 * a second run replaces the edges
+		 */
+		Assert.assertTrue(job(true).run(false));
+		Vertex vUser = service.findUserById("U1");
+		assertSame(recommender.recommend(vUser), service.materialisedRecommendation(vUser, start));
+	}
+
+	@Test
+	public void readsRanksWithGaps() throws Exception {
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(job(true).run(false));
+		Vertex vUser = service.findUserById("U1");
+		List<String> expected = new ArrayList<String>(
+				new Recommender(service, 5, 10, HubPolicy.KEEP_ALL).recommend(vUser).getRecommendedProducts());
+		Assert.assertTrue(expected.size() > 2);
+		for (Edge recommended : vUser.getEdges(Direction.OUT, Constants.EDGE_RECOMMENDED)) {
+			if (((Number) recommended.getProperty("rank")).intValue() == 1)
+				recommended.remove();
+		}
+		expected.remove(1);
+		List<String> found = new ArrayList<String>();
+		for (RankedProduct product : service.materialisedRecommendation(vUser, start).getRankedProducts())
+			found.add(product.getProductId());
+		Assert.assertEquals(expected, found);
+	}
+}
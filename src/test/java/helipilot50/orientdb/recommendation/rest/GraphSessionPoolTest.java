@@ -0,0 +1,96 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+public class GraphSessionPoolTest {
+	private OrientGraphFactory factory;
+	private GraphSessionPool sessions;
+	private volatile boolean failing;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:graphSessionPoolTest" + System.nanoTime()) {
+			@Override
+			public OrientGraphNoTx getNoTx() {
+				if (failing)
+					throw new IllegalStateException("storage unavailable");
+				return super.getNoTx();
+			}
+		};
+		RecommendationMetrics metrics = new RecommendationMetrics();
+		metrics.detailed = false;
+		metrics.windowSeconds = 60;
+		sessions = new GraphSessionPool();
+		sessions.graphFactory = factory;
+		sessions.metrics = metrics;
+		sessions.minSize = 1;
+		sessions.maxSize = 1;
+		sessions.waitMillis = 200;
+		sessions.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		failing = false;
+		OrientGraphNoTx graph = factory.getNoTx();
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void waitsThenGivesUp() {
+		OrientGraphNoTx graph = sessions.acquire();
+		try {
+			Assert.assertEquals(1, sessions.inUse());
+			long start = System.currentTimeMillis();
+			try {
+				sessions.acquire();
+				Assert.fail();
+			} catch (RecommendationUnavailable e) {
+				Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+			}
+		} finally {
+			sessions.release(graph);
+		}
+		Assert.assertEquals(0, sessions.inUse());
+		sessions.release(sessions.acquire());
+	}
+
+	@Test
+	public void failsFastWithoutWaiting() {
+		OrientGraphNoTx graph = sessions.acquire();
+		try {
+			long start = System.currentTimeMillis();
+			try {
+				sessions.acquire(0);
+				Assert.fail();
+			} catch (RecommendationUnavailable e) {
+				Assert.assertTrue(System.currentTimeMillis() - start < 200);
+			}
+		} finally {
+			sessions.release(graph);
+		}
+	}
+
+	@Test
+	public void releasesThePermitWhenTheSessionCannotOpen() {
+		failing = true;
+		try {
+			sessions.acquire();
+			Assert.fail();
+		} catch (IllegalStateException e) {
+			Assert.assertEquals(0, sessions.inUse());
+		}
+		failing = false;
+		/*
+		 * the only permit is free again
+		 */
+		sessions.release(sessions.acquire(0));
+	}
+}
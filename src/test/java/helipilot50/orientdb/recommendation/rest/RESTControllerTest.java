@@ -0,0 +1,413 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+/**
+ * RESTController wired by hand like Spring would, over a memory graph of 200
+ * users that each reviewed about a third of 20 products.
+ */
+public class RESTControllerTest {
+	private OrientGraphFactory factory;
+	private RESTController controller;
+	private Thread holder;
+	private boolean started;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:restControllerTest" + System.nanoTime());
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			SchemaManager.ensureSchema(graph);
+			FineFoodsService service = new FineFoodsService(graph);
+			Random random = new Random(5);
+			for (int u = 0; u < 200; u++) {
+				Vertex vUser = service.createUser("U" + u, null);
+				for (int p = 0; p < 20; p++) {
+					if (random.nextInt(3) == 0) {
+						Map<String, Object> review = new HashMap<String, Object>();
+						review.put("score", 1d + random.nextInt(5));
+						service.createReview(vUser, service.createProduct("P" + p), review);
+					}
+				}
+			}
+		} finally {
+			graph.shutdown();
+		}
+
+		controller = new RESTController();
+		controller.metrics = new RecommendationMetrics();
+		controller.metrics.detailed = true;
+		controller.metrics.windowSeconds = 60;
+		controller.sessions = new GraphSessionPool();
+		controller.sessions.graphFactory = factory;
+		controller.sessions.metrics = controller.metrics;
+		controller.sessions.minSize = 1;
+		controller.sessions.maxSize = 8;
+		controller.sessions.waitMillis = 200;
+		controller.snapshots = new SnapshotManager();
+		controller.cache = new RecommendationCache(100, 600);
+		controller.coOccurrence = new CoOccurrenceManager();
+		controller.minHash = new MinHashManager();
+		controller.factors = new LatentFactorStore();
+		controller.features = new FeatureStoreManager();
+		controller.recent = new RecentReviews(60);
+		controller.precomputed = new PrecomputedRecommendationStore();
+		controller.precomputed.recent = controller.recent;
+		controller.ingester = new ReviewIngester();
+		controller.neighbours = Recommender.DEFAULT_NEIGHBOURS;
+		controller.maxResults = Recommender.DEFAULT_MAX_RESULTS;
+		controller.hubMode = "keep";
+		controller.hubThreshold = 1000;
+		controller.hubSampleSize = 100;
+		controller.candidates = "graph";
+		controller.batchThreads = 2;
+		controller.batchMaxUsers = 100;
+		controller.async = false;
+		controller.asyncThreads = 2;
+		controller.asyncQueueSize = 10;
+		controller.deadlineMillis = 0;
+		controller.parallelThreshold = 0;
+		controller.scoringThreads = 0;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (holder != null)
+			holder.interrupt();
+		if (started)
+			controller.stop();
+		OrientGraphNoTx graph = factory.getNoTx();
+		graph.drop();
+		factory.close();
+	}
+
+	private void start() {
+		controller.sessions.start();
+		controller.init();
+		started = true;
+	}
+
+	/*
+	 * the recommendation of one thread with no pool, no cache and no deadline
+	 */
+	private Recommendation expected(String userId) {
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			return new Recommender(new FineFoodsService(graph)).recommend(userId);
+		} finally {
+			graph.shutdown();
+		}
+	}
+
+	private static void assertSameRanking(Recommendation expected, Recommendation actual) {
+		Assert.assertEquals(expected.getUserId(), actual.getUserId());
+		Assert.assertEquals(expected.getRankedProducts().size(), actual.getRankedProducts().size());
+		for (int i = 0; i < expected.getRankedProducts().size(); i++) {
+			Assert.assertEquals(expected.getRankedProducts().get(i).getProductId(), actual.getRankedProducts().get(i).getProductId());
+			Assert.assertEquals(expected.getRankedProducts().get(i).getScore(), actual.getRankedProducts().get(i).getScore(), 1e-9);
+		}
+	}
+
+	/*
+	 * take a session from the pool on another thread until interrupted
+	 */
+	private void hold() throws InterruptedException {
+		final CountDownLatch held = new CountDownLatch(1);
+		holder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				OrientGraphNoTx graph = controller.sessions.acquire();
+				try {
+					held.countDown();
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					/*
+					 * done holding
+					 */
+				} finally {
+					controller.sessions.release(graph);
+				}
+			}
+		}, "session-holder");
+		holder.start();
+		Assert.assertTrue(held.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void scoresOnTheCallerWhenThePoolIsFull() throws Exception {
+		controller.sessions.maxSize = 2;
+		controller.parallelThreshold = 1;
+		controller.scoringThreads = 1;
+		start();
+		hold();
+		Assert.assertEquals(1, controller.sessions.inUse());
+		/*
+		 * the request takes the last session, the scoring thread finds none
+		 */
+		for (String userId : new String[] { "U1", "U2", "U3", "U4", "U5" }) {
+			Recommendation rec = (Recommendation) controller.getRecommendationFor(userId, null).getResult();
+			assertSameRanking(expected(userId), rec);
+		}
+		Assert.assertTrue(controller.metrics.counter("recommendation.scoring.deferred").get() > 0);
+	}
+
+	@Test
+	public void sizesDefaultThreadsToThePool() {
+		controller.sessions.maxSize = 3;
+		controller.async = true;
+		controller.asyncThreads = 0;
+		controller.parallelThreshold = 1;
+		controller.scoringThreads = 0;
+		start();
+		Assert.assertEquals(1, controller.scoringThreads);
+		Assert.assertTrue(controller.asyncThreads + controller.scoringThreads <= 3);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void refusesMoreThreadsThanSessions() {
+		controller.sessions.maxSize = 4;
+		controller.async = true;
+		controller.asyncThreads = 4;
+		controller.parallelThreshold = 1;
+		controller.scoringThreads = 2;
+		start();
+	}
+
+	/*
+	 * the lines of a batch response by userId
+	 */
+	private Map<String, JsonNode> batch(List<String> userIds) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		controller.getRecommendationsFor(userIds, response);
+		Assert.assertEquals("application/x-ndjson", response.getContentType().split(";")[0]);
+		String[] lines = response.getContentAsString().split("\n");
+		Assert.assertEquals(userIds.size(), lines.length);
+		ObjectMapper mapper = new ObjectMapper();
+		Map<String, JsonNode> results = new HashMap<String, JsonNode>();
+		for (String line : lines) {
+			JsonNode result = mapper.readTree(line);
+			results.put(result.get("userId").asText(), result);
+		}
+		return results;
+	}
+
+	private static List<String> productIds(JsonNode result) {
+		List<String> productIds = new ArrayList<String>();
+		for (JsonNode product : result.get("rankedProducts"))
+			productIds.add(product.get("productId").asText());
+		return productIds;
+	}
+
+	private static List<String> productIds(Recommendation rec) {
+		List<String> productIds = new ArrayList<String>();
+		for (int i = 0; i < rec.getRankedProducts().size(); i++)
+			productIds.add(rec.getRankedProducts().get(i).getProductId());
+		return productIds;
+	}
+
+	@Test
+	public void streamsARecommendationOrAnErrorPerUser() throws Exception {
+		start();
+		Map<String, JsonNode> results = batch(Arrays.asList("U1", "U2", "nobody", "U3"));
+		for (String userId : Arrays.asList("U1", "U2", "U3")) {
+			Assert.assertNull(results.get(userId).get("error"));
+			Assert.assertEquals(productIds(expected(userId)), productIds(results.get(userId)));
+		}
+		Assert.assertTrue(results.get("nobody").get("error").asText().contains("nobody"));
+		Assert.assertEquals(4, controller.metrics.counter("recommendation.batch.users").get());
+	}
+
+	@Test
+	public void sharesReadsAcrossTheWorkersOfABatch() throws Exception {
+		controller.batchThreads = 4;
+		controller.batchMaxUsers = 200;
+		start();
+		List<String> userIds = new ArrayList<String>();
+		for (int u = 0; u < 200; u++)
+			userIds.add("U" + u);
+		Map<String, JsonNode> results = batch(userIds);
+		Assert.assertEquals(productIds(expected("U150")), productIds(results.get("U150")));
+		/*
+		 * the reviewers of each product and the ratings of each
+		 * user read once for the batch, whichever worker read them
+		 */
+		Assert.assertEquals(20, controller.metrics.timer("finefoods.reviewersOf").count());
+		Assert.assertEquals(200, controller.metrics.timer("finefoods.makeVectorForUser").count());
+	}
+
+	@Test
+	public void answersEveryUserWithoutAGraphSession() throws Exception {
+		controller.sessions.maxSize = 1;
+		start();
+		hold();
+		Map<String, JsonNode> results = batch(Arrays.asList("U1", "U2", "U3"));
+		for (JsonNode result : results.values())
+			Assert.assertTrue(result.get("error").asText().contains("No graph session"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesBatchesOverTheLimit() throws Exception {
+		controller.batchMaxUsers = 2;
+		start();
+		controller.getRecommendationsFor(Arrays.asList("U1", "U2", "U3"), new MockHttpServletResponse());
+	}
+
+	/*
+	 * one recommendation worker, which the held session can block
+	 */
+	private void startAsync(int queueSize, long deadlineMillis) {
+		controller.sessions.maxSize = 1;
+		controller.sessions.waitMillis = 10000;
+		controller.async = true;
+		controller.asyncThreads = 1;
+		controller.asyncQueueSize = queueSize;
+		controller.deadlineMillis = deadlineMillis;
+		start();
+	}
+
+	private void release() throws InterruptedException {
+		holder.interrupt();
+		holder.join();
+		holder = null;
+	}
+
+	private void awaitCount(String timer, long count) throws InterruptedException {
+		long until = System.currentTimeMillis() + 10000;
+		while (controller.metrics.timer(timer).count() < count && System.currentTimeMillis() < until)
+			Thread.sleep(5);
+		Assert.assertEquals(count, controller.metrics.timer(timer).count());
+	}
+
+	private static Object await(DeferredResult<?> result) throws InterruptedException {
+		long until = System.currentTimeMillis() + 10000;
+		while (!result.hasResult() && System.currentTimeMillis() < until)
+			Thread.sleep(5);
+		Assert.assertTrue(result.hasResult());
+		return result.getResult();
+	}
+
+	@Test
+	public void answers503WhenTheDeadlinePasses() throws Exception {
+		startAsync(10, 100);
+		hold();
+		MockMvc mvc = MockMvcBuilders.standaloneSetup(controller).build();
+		MvcResult pending = mvc.perform(MockMvcRequestBuilders.get("/finefoods/recommendation/U1"))
+				.andExpect(MockMvcResultMatchers.request().asyncStarted())
+				.andReturn();
+		/*
+		 * what the container does twice the deadline later
+		 */
+		MockAsyncContext context = (MockAsyncContext) pending.getRequest().getAsyncContext();
+		for (AsyncListener listener : context.getListeners())
+			listener.onTimeout(new AsyncEvent(context));
+		mvc.perform(MockMvcRequestBuilders.asyncDispatch(pending))
+				.andExpect(MockMvcResultMatchers.status().isServiceUnavailable());
+		Assert.assertEquals(1, controller.metrics.counter("recommendation.timedOut").get());
+		release();
+		awaitCount("recommendation.total", 1);
+	}
+
+	@Test
+	public void rejectsWhenTheQueueIsFullAndCachesWhatCompletes() throws Exception {
+		startAsync(1, 0);
+		hold();
+		DeferredResult<Recommendation> running = controller.getRecommendationFor("U1", null);
+		awaitCount("recommendation.queued", 1);
+		DeferredResult<Recommendation> queued = controller.getRecommendationFor("U2", null);
+		try {
+			controller.getRecommendationFor("U3", null);
+			Assert.fail();
+		} catch (RecommendationUnavailable e) {
+			Assert.assertEquals(1, controller.metrics.counter("recommendation.rejected").get());
+		}
+		release();
+		Assert.assertEquals(productIds(expected("U1")), productIds((Recommendation) await(running)));
+		Assert.assertEquals(productIds(expected("U2")), productIds((Recommendation) await(queued)));
+		Assert.assertNotNull(controller.cache.get("U1"));
+		Assert.assertNotNull(controller.cache.get("U2"));
+	}
+
+	@Test
+	public void dropsWhatExpiresInTheQueueAndDoesNotCachePartialResults() throws Exception {
+		startAsync(10, 100);
+		hold();
+		DeferredResult<Recommendation> running = controller.getRecommendationFor("U1", null);
+		awaitCount("recommendation.queued", 1);
+		DeferredResult<Recommendation> queued = controller.getRecommendationFor("U2", null);
+		Thread.sleep(150);
+		release();
+		/*
+		 * U1 is ranked from the little found past its deadline
+		 */
+		Recommendation partial = (Recommendation) await(running);
+		Assert.assertTrue(partial.isPartial());
+		Assert.assertNull(controller.cache.get("U1"));
+		Assert.assertEquals(1, controller.metrics.counter("recommendation.partial").get());
+		Object expired = await(queued);
+		Assert.assertTrue(expired instanceof RecommendationUnavailable);
+		Assert.assertEquals(1, controller.metrics.counter("recommendation.expiredInQueue").get());
+		Assert.assertNull(controller.cache.get("U2"));
+	}
+
+	private Map<String, Number> published() {
+		Map<String, Number> published = new HashMap<String, Number>();
+		for (Metric<?> metric : controller.metrics.metrics())
+			published.put(metric.getName(), metric.getValue());
+		return published;
+	}
+
+	@Test
+	public void timesTheStagesOnlyWhenDetailed() throws Exception {
+		start();
+		controller.getRecommendationFor("U1", null);
+		Map<String, Number> published = published();
+		for (String name : new String[] { "recommendation.total", "recommendation.stage.userLookup",
+				"recommendation.stage.candidates", "recommendation.stage.scoring", "recommendation.stage.ranking",
+				"recommendation.vertices", "finefoods.findUserById", "finefoods.reviewersOf" })
+			Assert.assertTrue(name, published.containsKey(name + ".count") && published.get(name + ".count").longValue() > 0);
+		Assert.assertEquals(1L, published.get("recommendation.requests"));
+
+		controller.metrics.detailed = false;
+		controller.getRecommendationFor("U2", null);
+		published = published();
+		Assert.assertEquals(2L, published.get("recommendation.total.count"));
+		Assert.assertEquals(1L, published.get("recommendation.stage.scoring.count"));
+		Assert.assertEquals(1L, published.get("recommendation.vertices.count"));
+		Assert.assertEquals(1L, published.get("finefoods.findUserById.count"));
+	}
+}
@@ -0,0 +1,58 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class RecentReviewsTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:recentReviewsTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void dropsOldReviewsAndDistrustsWhatIsOlder() {
+		final long[] clock = { 1000000 };
+		RecentReviews recent = new RecentReviews(10) {
+			@Override
+			long now() {
+				return clock[0];
+			}
+		};
+		recent.reviewCreated(service.createUser("A1", null), null);
+		Assert.assertTrue(recent.reviewedSince("A1", 999999));
+		Assert.assertFalse(recent.reviewedSince("A1", 1000001));
+		Assert.assertFalse(recent.reviewedSince("A2", 500000));
+
+		/*
+		 * eleven minutes on, the next review drops the first
+		 */
+		clock[0] += 11 * 60000;
+		recent.reviewCreated(service.createUser("A2", null), null);
+		Assert.assertEquals(1, recent.size());
+		Assert.assertTrue(recent.reviewedSince("A2", clock[0]));
+		Assert.assertFalse(recent.reviewedSince("A1", clock[0] - 60000));
+		Assert.assertTrue("may have reviewed before the oldest time kept", recent.reviewedSince("A1", 1000001));
+		Assert.assertTrue(recent.reviewedSince("A3", 999999));
+	}
+}
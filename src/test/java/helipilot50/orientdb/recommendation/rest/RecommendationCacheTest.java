@@ -0,0 +1,147 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class RecommendationCacheTest {
+
+	private static Recommendation rec(String userId, String... reviewed) {
+		return new Recommendation(userId, new HashSet<String>(Arrays.asList(reviewed)), new HashSet<String>());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		RecommendationCache cache = new RecommendationCache(2, 600);
+		cache.put(rec("U1", "P1"), cache.generation());
+		cache.put(rec("U2", "P2"), cache.generation());
+		Assert.assertNotNull(cache.get("U1"));
+		cache.put(rec("U3", "P3"), cache.generation());
+		Assert.assertNull(cache.get("U2"));
+		Assert.assertNotNull(cache.get("U1"));
+		Assert.assertNotNull(cache.get("U3"));
+		Assert.assertEquals(1, cache.getEvictions());
+		Assert.assertEquals(3, cache.getHits());
+		Assert.assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void expiresAfterTtl() {
+		final long[] clock = { 0 };
+		RecommendationCache cache = new RecommendationCache(10, 1) {
+			@Override
+			long now() {
+				return clock[0];
+			}
+		};
+		cache.put(rec("U1", "P1"), cache.generation());
+		clock[0] = 1000;
+		Assert.assertNotNull(cache.get("U1"));
+		clock[0] = 1001;
+		Assert.assertNull(cache.get("U1"));
+		Assert.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void invalidatesUsersSharingAProduct() {
+		RecommendationCache cache = new RecommendationCache(10, 600);
+		cache.put(rec("U1", "P1", "P2"), cache.generation());
+		cache.put(rec("U2", "P2"), cache.generation());
+		cache.put(rec("U3", "P3"), cache.generation());
+		cache.put(rec("U4", "P4"), cache.generation());
+		long before = cache.generation();
+		/*
+		 * U4 reviews P3, and has reviewed P4 before
+		 */
+		cache.invalidate("U4", Arrays.asList("P4", "P3"));
+		Assert.assertNull(cache.get("U4"));
+		Assert.assertNull(cache.get("U3"));
+		Assert.assertNotNull(cache.get("U1"));
+		Assert.assertNotNull(cache.get("U2"));
+
+		/*
+		 * computed before the invalidation, so not cached
+		 */
+		Assert.assertFalse(cache.put(rec("U3", "P3"), before));
+		Assert.assertNull(cache.get("U3"));
+	}
+
+	@Test
+	public void cachesAcrossReviewsOfOtherProducts() {
+		RecommendationCache cache = new RecommendationCache(10, 600);
+		long generation = cache.generation();
+		/*
+		 * while U1 and U2 are computed, U3 reviews P3 and U4 reviews P2
+		 */
+		cache.invalidate("U3", Arrays.asList("P3"));
+		cache.invalidate("U4", Arrays.asList("P4", "P2"));
+		Assert.assertTrue(cache.put(rec("U1", "P1"), generation));
+		Assert.assertNotNull(cache.get("U1"));
+		Assert.assertFalse(cache.put(rec("U2", "P1", "P2"), generation));
+		Assert.assertFalse(cache.put(rec("U3", "P1"), generation));
+		Assert.assertNull(cache.get("U2"));
+
+		/*
+		 * after everything is dropped nothing computed before is cached
+		 */
+		generation = cache.generation();
+		cache.invalidateAll();
+		Assert.assertFalse(cache.put(rec("U1", "P1"), generation));
+		Assert.assertTrue(cache.put(rec("U1", "P1"), cache.generation()));
+	}
+
+	@Test
+	public void decodesReviewedProductsFromTheDictionary() throws Exception {
+		OrientGraphFactory factory = new OrientGraphFactory("memory:recommendationCacheTest" + System.nanoTime());
+		OrientGraphNoTx graph = factory.getNoTx();
+		try {
+			SchemaManager.ensureSchema(graph);
+			FineFoodsService service = new FineFoodsService(graph);
+			Map<String, Object> review = new HashMap<String, Object>();
+			review.put("score", 5.0);
+			Vertex vUser = service.createUser("U1", null);
+			Vertex vProduct = service.createProduct("P1");
+			service.createReview(vUser, vProduct, review);
+			RecommendationMetrics metrics = new RecommendationMetrics();
+			IdDictionaryManager dictionary = new IdDictionaryManager();
+			dictionary.enabled = true;
+			dictionary.sessions = new GraphSessionPool();
+			dictionary.sessions.graphFactory = factory;
+			dictionary.sessions.metrics = metrics;
+			dictionary.sessions.minSize = 1;
+			dictionary.sessions.maxSize = 1;
+			dictionary.sessions.waitMillis = 500;
+			dictionary.sessions.start();
+			dictionary.start();
+
+			RecommendationCache cache = new RecommendationCache(10, 600);
+			cache.dictionary = dictionary;
+			cache.put(rec("U2", "P1"), cache.generation());
+			/*
+			 * read from the vertex, the id would no longer match
+			 */
+			vProduct.setProperty(Constants.PRODUCT_ID, "renamed");
+			service.setReviewListeners(Collections.<ReviewListener> singletonList(cache));
+			service.createReview(vUser, service.createProduct("P2"), review);
+			Assert.assertNull(cache.get("U2"));
+		} finally {
+			graph.drop();
+			factory.close();
+		}
+	}
+}
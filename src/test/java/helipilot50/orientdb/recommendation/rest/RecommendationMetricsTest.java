@@ -0,0 +1,67 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+public class RecommendationMetricsTest {
+
+	private static Map<String, Number> published(RecommendationMetrics metrics) {
+		Map<String, Number> published = new HashMap<String, Number>();
+		for (Metric<?> metric : metrics.metrics())
+			published.put(metric.getName(), metric.getValue());
+		return published;
+	}
+
+	@Test
+	public void publishesTimersInMillisecondsOverTheLastWindow() {
+		RecommendationMetrics metrics = new RecommendationMetrics();
+		/*
+		 * 1 to 100 ms
+		 */
+		for (int i = 1; i <= 100; i++)
+			metrics.timer("recommendation.total").record(i * 1000000L);
+		metrics.record("recommendation.vertices", 5);
+		metrics.increment("recommendation.requests");
+		metrics.add("recommendation.requests", 2);
+
+		Map<String, Number> published = published(metrics);
+		Assert.assertEquals(100L, published.get("recommendation.total.count"));
+		Assert.assertEquals(50.5, published.get("recommendation.total.mean").doubleValue(), 1e-9);
+		Assert.assertEquals(0d, published.get("recommendation.total.p50").doubleValue(), 0d);
+		Assert.assertEquals(3L, published.get("recommendation.requests"));
+
+		metrics.rotate();
+		published = published(metrics);
+		Assert.assertEquals(50, published.get("recommendation.total.p50").doubleValue(), 50 / 8d);
+		Assert.assertEquals(95, published.get("recommendation.total.p95").doubleValue(), 95 / 8d);
+		Assert.assertEquals(99, published.get("recommendation.total.p99").doubleValue(), 99 / 8d);
+		Assert.assertEquals(100, published.get("recommendation.total.max").doubleValue(), 0d);
+		Assert.assertTrue(published.get("recommendation.total.p95").doubleValue() <= published.get("recommendation.total.p99").doubleValue());
+		/*
+		 * histograms of counts are not scaled
+		 */
+		Assert.assertEquals(5d, published.get("recommendation.vertices.p50").doubleValue(), 0d);
+		Assert.assertEquals(1L, published.get("recommendation.vertices.count"));
+
+		/*
+		 * an empty window, while the counts add up from the start
+		 */
+		metrics.rotate();
+		published = published(metrics);
+		Assert.assertEquals(0d, published.get("recommendation.total.p99").doubleValue(), 0d);
+		Assert.assertEquals(100L, published.get("recommendation.total.count"));
+	}
+
+	@Test
+	public void detailedOnlyIfAsked() {
+		RecommendationMetrics metrics = new RecommendationMetrics();
+		metrics.detailed = true;
+		Assert.assertSame(metrics, metrics.detailed());
+		metrics.detailed = false;
+		Assert.assertNull(metrics.detailed());
+	}
+}
@@ -0,0 +1,164 @@
+package helipilot50.orientdb.recommendation.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.Constants;
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.ReviewListener;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class ReviewIngesterTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private ReviewIngester ingester;
+	private final List<String> told = Collections.synchronizedList(new ArrayList<String>());
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:reviewIngesterTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		RecommendationMetrics metrics = new RecommendationMetrics();
+		metrics.detailed = false;
+		metrics.windowSeconds = 60;
+		ingester = new ReviewIngester();
+		ingester.metrics = metrics;
+		ingester.sessions = new GraphSessionPool();
+		ingester.sessions.graphFactory = factory;
+		ingester.sessions.metrics = metrics;
+		ingester.sessions.minSize = 1;
+		ingester.sessions.maxSize = 4;
+		ingester.sessions.waitMillis = 500;
+		ingester.sessions.start();
+		ingester.reviewListeners = Arrays.<ReviewListener> asList(new ReviewListener() {
+			@Override
+			public void reviewCreated(Vertex vUser, Vertex vProduct) {
+				Assert.assertTrue(((ORID) vUser.getId()).isPersistent());
+				told.add(vUser.getProperty(Constants.USER_ID) + "/" + vProduct.getProperty(Constants.PRODUCT_ID));
+			}
+		});
+		ingester.writers = 2;
+		ingester.queueSize = 10;
+		ingester.batchSize = 4;
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		ingester.stop();
+		graph.drop();
+		factory.close();
+	}
+
+	private static Map<String, Object> review(String userId, String productId, double score, long time) {
+		Map<String, Object> review = new HashMap<String, Object>();
+		review.put(Constants.USER_ID, userId);
+		review.put(Constants.PRODUCT_ID, productId);
+		review.put("score", score);
+		review.put("time", time);
+		review.put("summary", "About " + productId);
+		return review;
+	}
+
+	private void awaitWritten() throws InterruptedException {
+		for (int i = 0; i < 500 && ingester.queued() > 0; i++)
+			Thread.sleep(10);
+		Assert.assertEquals(0, ingester.queued());
+	}
+
+	private int reviews(String userId) {
+		FineFoodsService service = new FineFoodsService(graph);
+		return service.productsForUser(service.findUserById(userId)).size();
+	}
+
+	@Test
+	public void writesOnceAndTellsAfterCommit() throws Exception {
+		ingester.start();
+		Assert.assertEquals(5, ingester.submit(Arrays.asList(
+				review("U1", "P1", 5.0, 1000L),
+				review("U1", "P2", 4.0, 1001L),
+				review("U1", "P3", 3.0, 1002L),
+				review("U2", "P1", 2.0, 1003L),
+				review("U3", "P2", 1.0, 1004L))));
+		awaitWritten();
+		/*
+		 * sent again, and once more in a later review of the same product
+		 */
+		ingester.submit(Arrays.asList(review("U1", "P1", 5.0, 1000L), review("U1", "P1", 4.0, 2000L)));
+		awaitWritten();
+		Assert.assertEquals(4, reviews("U1"));
+		Assert.assertEquals(1, reviews("U2"));
+		Assert.assertEquals(6, told.size());
+		Assert.assertEquals(Arrays.asList("U1/P1", "U1/P2", "U1/P3", "U1/P1"), userTold("U1"));
+		Assert.assertEquals(6, ingester.metrics.counter("ingest.written").get());
+		Assert.assertEquals(1, ingester.metrics.counter("ingest.duplicates").get());
+		Assert.assertEquals(7, ingester.metrics.timer("ingest.latency").count());
+	}
+
+	private List<String> userTold(String userId) {
+		List<String> reviews = new ArrayList<String>();
+		for (String review : told) {
+			if (review.startsWith(userId + "/"))
+				reviews.add(review);
+		}
+		return reviews;
+	}
+
+	@Test
+	public void refusesWhatDoesNotFit() throws Exception {
+		ingester.start();
+		List<Map<String, Object>> reviews = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 11; i++)
+			reviews.add(review("U" + i, "P1", 5.0, 1000L));
+		try {
+			ingester.submit(reviews);
+			Assert.fail();
+		} catch (IngestQueueFull e) {
+			Assert.assertEquals(0, ingester.queued());
+		}
+		Assert.assertEquals(11, ingester.metrics.counter("ingest.rejected").get());
+		Assert.assertEquals(10, ingester.submit(reviews.subList(0, 10)));
+		awaitWritten();
+		Assert.assertEquals(10, new FineFoodsService(graph).reviewCount(new FineFoodsService(graph).findProduct("P1")));
+	}
+
+	@Test
+	public void setsAsideOnlyTheReviewThatFails() throws Exception {
+		/*
+		 * one writer, so the three are one batch
+		 */
+		ingester.writers = 1;
+		ingester.start();
+		Map<String, Object> bad = review("U2", "P2", 3.0, 1001L);
+		bad.put("helpfulness", new Object());
+		ingester.submit(Arrays.asList(review("U1", "P1", 5.0, 1000L), bad, review("U3", "P3", 1.0, 1002L)));
+		awaitWritten();
+		Assert.assertEquals(1, reviews("U1"));
+		Assert.assertEquals(1, reviews("U3"));
+		Assert.assertEquals(2, ingester.metrics.counter("ingest.written").get());
+		Assert.assertEquals(1, ingester.metrics.counter("ingest.deadLetters").get());
+		Assert.assertEquals(Arrays.asList("U1/P1"), userTold("U1"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void needsTheIds() throws Exception {
+		ingester.start();
+		Map<String, Object> review = review("U1", "P1", 5.0, 1000L);
+		review.remove(Constants.PRODUCT_ID);
+		ingester.submit(Collections.singletonList(review));
+	}
+}
@@ -0,0 +1,145 @@
+package helipilot50.orientdb.recommendation.snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.HubPolicy;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.Recommender;
+import helipilot50.orientdb.recommendation.SchemaManager;
+
+public class ReviewGraphSnapshotTest {
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private FineFoodsService service;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:snapshotTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		service = new FineFoodsService(graph);
+		review("U1", "P1", 5.0);
+		review("U1", "P2", 4.0);
+		review("U2", "P1", 5.0);
+		review("U2", "P2", 4.0);
+		review("U2", "P3", 5.0);
+		review("U3", "P2", 1.0);
+		review("U3", "P4", 2.0);
+		review("U3", "P4", 4.0);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	private void review(String userId, String productId, double score) {
+		Vertex vUser = service.createUser(userId, userId.toLowerCase());
+		Vertex vProduct = service.createProduct(productId);
+		Map<String, Object> review = new HashMap<String, Object>();
+		review.put("score", score);
+		service.createReview(vUser, vProduct, review);
+	}
+
+	@Test
+	public void buildsBothDirections() {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		Assert.assertEquals(3, snapshot.userCount());
+		Assert.assertEquals(4, snapshot.productCount());
+		Assert.assertEquals(7, snapshot.reviewCount());
+
+		int u3 = snapshot.userIndex("U3");
+		Assert.assertEquals(2, snapshot.vectorForUser(u3).size());
+		Assert.assertEquals(3f, snapshot.vectorForUser(u3).score(1), 0f);
+
+		/*
+		 * P2 in the order it was reviewed, P4 once with the average
+		 */
+		int[] offsets = snapshot.productOffsets();
+		List<String> productIds = Arrays.asList(snapshot.productId(0), snapshot.productId(1), snapshot.productId(2), snapshot.productId(3));
+		int p2 = productIds.indexOf("P2");
+		Assert.assertEquals(3, offsets[p2 + 1] - offsets[p2]);
+		for (int i = 0; i < 3; i++)
+			Assert.assertEquals("U" + (i + 1), snapshot.userId(snapshot.productUsers()[offsets[p2] + i]));
+		int p4 = productIds.indexOf("P4");
+		Assert.assertEquals(1, offsets[p4 + 1] - offsets[p4]);
+		Assert.assertEquals(3f, snapshot.productScores()[offsets[p4]], 0f);
+		Assert.assertTrue(snapshot.memoryFootprint() > snapshot.csrBytes());
+		Assert.assertEquals(-1, snapshot.userIndex("nobody"));
+	}
+
+	@Test
+	public void ranksProductsOfSimilarUsers() {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		Recommendation rec = snapshot.recommend("U1");
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("P1", "P2")), rec.getReviewedProducts());
+		Assert.assertEquals(Arrays.asList("P3", "P4"), new ArrayList<String>(rec.getRecommendedProducts()));
+		double u2 = 41 / (Math.sqrt(41) * Math.sqrt(66));
+		double u3 = 4 / (Math.sqrt(41) * Math.sqrt(10));
+		Assert.assertEquals(u2 * 5, rec.getRankedProducts().get(0).getScore(), 1e-6);
+		Assert.assertEquals(u3 * 3, rec.getRankedProducts().get(1).getScore(), 1e-6);
+
+		Assert.assertEquals(Arrays.asList("P3"), new ArrayList<String>(snapshot.recommend("U1", 1, 10, HubPolicy.KEEP_ALL).getRecommendedProducts()));
+		Assert.assertEquals(1, snapshot.recommend("U1", 20, 1, HubPolicy.KEEP_ALL).getRankedProducts().size());
+		Assert.assertNull(snapshot.recommend("nobody"));
+	}
+
+	@Test
+	public void breaksTiesLikeTheLiveGraph() {
+		/*
+		 * Q2 is older than Q3 but first seen after it, through the
+		 * second of two equally similar neighbours
+		 */
+		service.createProduct("Q2");
+		review("T", "Q1", 5.0);
+		review("A", "Q1", 5.0);
+		review("A", "Q3", 2.0);
+		review("B", "Q1", 5.0);
+		review("B", "Q2", 2.0);
+		Recommendation memory = ReviewGraphSnapshot.build(graph).recommend("T");
+		Recommendation live = new Recommender(service).recommend("T");
+		Assert.assertEquals(Arrays.asList("Q2", "Q3"), new ArrayList<String>(memory.getRecommendedProducts()));
+		Assert.assertEquals(memory.getRankedProducts().get(0).getScore(), memory.getRankedProducts().get(1).getScore(), 0d);
+		Assert.assertEquals(new ArrayList<String>(live.getRecommendedProducts()), new ArrayList<String>(memory.getRecommendedProducts()));
+	}
+
+	@Test
+	public void samplesHubsLikeTheLiveGraph() {
+		/*
+		 * H is reviewed by T, then by the users in the reverse of their
+		 * order, Z9 twice, so the first four reviews are by T, Z9 and Z8
+		 */
+		for (int u = 0; u < 10; u++)
+			service.createUser("Z" + u, null);
+		review("T", "H", 5.0);
+		review("Z9", "H", 4.0);
+		for (int u = 9; u >= 0; u--) {
+			review("Z" + u, "H", 1 + u % 5);
+			review("Z" + u, "R" + u, 5.0);
+		}
+		HubPolicy sample = HubPolicy.parse("sample", 5, 4);
+		Recommendation memory = ReviewGraphSnapshot.build(graph).recommend("T", 20, 100, sample);
+		Recommendation live = new Recommender(service, 20, 100, sample).recommend("T");
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("R9", "R8")), memory.getRecommendedProducts());
+		Assert.assertEquals(new ArrayList<String>(live.getRecommendedProducts()), new ArrayList<String>(memory.getRecommendedProducts()));
+		for (int i = 0; i < live.getRankedProducts().size(); i++)
+			Assert.assertEquals(live.getRankedProducts().get(i).getScore(), memory.getRankedProducts().get(i).getScore(), 1e-6);
+		Assert.assertEquals(live.getFanOut().getCandidates(), memory.getFanOut().getCandidates());
+	}
+}
@@ -0,0 +1,138 @@
+package helipilot50.orientdb.recommendation.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+
+import helipilot50.orientdb.recommendation.FineFoodsService;
+import helipilot50.orientdb.recommendation.RankedProduct;
+import helipilot50.orientdb.recommendation.Recommendation;
+import helipilot50.orientdb.recommendation.SchemaManager;
+import helipilot50.orientdb.recommendation.SparseVector;
+import helipilot50.orientdb.recommendation.offline.AlsTrainer;
+import helipilot50.orientdb.recommendation.offline.ItemSimilarityJob;
+import helipilot50.orientdb.recommendation.offline.ItemSimilarityTable;
+import helipilot50.orientdb.recommendation.offline.LatentFactors;
+import helipilot50.orientdb.recommendation.snapshot.ReviewGraphSnapshot;
+
+public class FeatureStoreTest {
+	private static final int USERS = 40;
+	private static final int PRODUCTS = 25;
+
+	private OrientGraphFactory factory;
+	private OrientGraphNoTx graph;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		factory = new OrientGraphFactory("memory:featureStoreTest" + System.nanoTime());
+		graph = factory.getNoTx();
+		SchemaManager.ensureSchema(graph);
+		FineFoodsService service = new FineFoodsService(graph);
+		Random random = new Random(11);
+		for (int u = 0; u < USERS; u++) {
+			Vertex vUser = service.createUser("U" + u, "u" + u);
+			for (int p = 0; p < PRODUCTS; p++) {
+				if (random.nextInt(3) != 0)
+					continue;
+				Map<String, Object> review = new HashMap<String, Object>();
+				review.put("score", (double) (1 + random.nextInt(5)));
+				service.createReview(vUser, service.createProduct("P" + p), review);
+			}
+		}
+		file = File.createTempFile("features", ".fst");
+		file.deleteOnExit();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		graph.drop();
+		factory.close();
+	}
+
+	@Test
+	public void mapsWhatWasWritten() throws Exception {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		LatentFactors model = new AlsTrainer(3, 5, 0.1, 0, 1, 2).run(snapshot);
+		ItemSimilarityTable table = new ItemSimilarityJob(5, 2).run(snapshot);
+		long version = FeatureStoreWriter.write(file, snapshot, model, table);
+
+		FeatureStore store = FeatureStore.open(file, true);
+		Assert.assertEquals(version, store.getVersion());
+		Assert.assertEquals(snapshot.userCount(), store.userCount());
+		Assert.assertEquals(snapshot.productCount(), store.productCount());
+		Assert.assertEquals(snapshot.reviewCount(), store.reviewCount());
+		Assert.assertEquals(-1, store.userIndex("nobody"));
+		Assert.assertEquals(-1, store.productIndex("nothing"));
+		for (int u = 0; u < snapshot.userCount(); u++) {
+			Assert.assertEquals(u, store.userIndex(snapshot.userId(u)));
+			Assert.assertEquals(snapshot.userId(u), store.userId(u));
+			SparseVector expected = snapshot.vectorForUser(u);
+			SparseVector actual = store.vectorForUser(u);
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertEquals(expected.id(i), actual.id(i));
+				Assert.assertEquals(expected.score(i), actual.score(i), 0f);
+			}
+			Assert.assertEquals(expected.magnitude(), actual.magnitude(), 1e-5);
+			for (int p = 0; p < snapshot.productCount(); p++)
+				Assert.assertEquals(model.predict(u, p), store.predict(u, p), 1e-5);
+		}
+		for (int p = 0; p < snapshot.productCount(); p++) {
+			String productId = snapshot.productId(p);
+			Assert.assertEquals(p, store.productIndex(productId));
+			List<RankedProduct> expected = table.similarTo(productId);
+			List<RankedProduct> actual = store.similarTo(productId);
+			Assert.assertEquals(expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				Assert.assertEquals(expected.get(i).getProductId(), actual.get(i).getProductId());
+				Assert.assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 0d);
+			}
+		}
+		Recommendation expected = model.recommend("U3", 5);
+		Recommendation actual = store.recommend("U3", 5);
+		Assert.assertEquals(expected.getReviewedProducts(), actual.getReviewedProducts());
+		Assert.assertEquals(expected.getRecommendedProducts(), actual.getRecommendedProducts());
+		Assert.assertNull(store.recommend("nobody", 5));
+	}
+
+	@Test
+	public void refusesACorruptStore() throws Exception {
+		ReviewGraphSnapshot snapshot = ReviewGraphSnapshot.build(graph);
+		FeatureStoreWriter.write(file, snapshot, null, null);
+		FeatureStore store = FeatureStore.open(file, true);
+		Assert.assertEquals(0, store.getFactors());
+		Assert.assertNull(store.recommend("U3", 5));
+		Assert.assertEquals(0, store.similarTo(snapshot.productId(0)).size());
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(raf.length() - 1);
+			int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last ^ 1);
+		} finally {
+			raf.close();
+		}
+		Assert.assertFalse(FeatureStore.open(file, false).verify());
+		try {
+			FeatureStore.open(file, true);
+			Assert.fail("Opened a corrupt store");
+		} catch (IOException e) {
+			/* expected */
+		}
+	}
+}
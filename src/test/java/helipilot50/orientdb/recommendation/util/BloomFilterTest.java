@@ -0,0 +1,45 @@
+package helipilot50.orientdb.recommendation.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+	@Test
+	public void hasNoFalseNegativesAndFewFalsePositives() {
+		BloomFilter filter = new BloomFilter(10000, 0.01);
+		for (int i = 0; i < 10000; i++)
+			filter.put("A" + i);
+		for (int i = 0; i < 10000; i++)
+			Assert.assertTrue(filter.mightContain("A" + i));
+		int falsePositives = 0;
+		for (int i = 0; i < 100000; i++) {
+			if (filter.mightContain("B" + i))
+				falsePositives++;
+		}
+		Assert.assertTrue("false positives " + falsePositives, falsePositives < 2000);
+		Assert.assertEquals(0.01, filter.falsePositiveRate(), 0.01);
+		Assert.assertFalse(filter.put("A1"));
+	}
+
+	@Test
+	public void keepsWhatThreadsPutAtOnce() throws Exception {
+		final BloomFilter filter = new BloomFilter(1000, 0.01);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = offset; i < 4000; i += 4)
+						filter.put("U" + i);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		for (int i = 0; i < 4000; i++)
+			Assert.assertTrue(filter.mightContain("U" + i));
+	}
+}
@@ -0,0 +1,28 @@
+package helipilot50.orientdb.recommendation.util;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IntIntHashMapTest {
+
+	@Test
+	public void countsThroughResizes() {
+		Random random = new Random(42);
+		IntIntHashMap counts = new IntIntHashMap();
+		int[] expected = new int[1000];
+		for (int i = 0; i < 100000; i++) {
+			int key = random.nextInt(1000);
+			counts.addTo(key * 7919, 1);
+			expected[key]++;
+		}
+		Assert.assertEquals(1000, counts.size());
+		for (int key = 0; key < 1000; key++)
+			Assert.assertEquals(expected[key], counts.get(key * 7919, -1));
+		Assert.assertEquals(-1, counts.get(1, -1));
+		Assert.assertEquals(5, counts.putIfAbsent(-3, 5));
+		Assert.assertEquals(5, counts.putIfAbsent(-3, 6));
+		Assert.assertEquals(1001, counts.keys().length);
+	}
+}
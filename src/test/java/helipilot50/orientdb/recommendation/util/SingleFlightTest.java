@@ -0,0 +1,79 @@
+package helipilot50.orientdb.recommendation.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	@Test
+	public void sharesTheComputationInFlight() throws Exception {
+		final SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>();
+		final AtomicInteger runs = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Callable<Integer> slow = new Callable<Integer>() {
+			@Override
+			public Integer call() throws Exception {
+				runs.incrementAndGet();
+				started.countDown();
+				release.await();
+				return 42;
+			}
+		};
+		ExecutorService callers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+			results.add(callers.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					return flights.execute("U1", slow);
+				}
+			}));
+			started.await();
+			for (int i = 0; i < 3; i++) {
+				results.add(callers.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() {
+						return flights.execute("U1", slow);
+					}
+				}));
+			}
+			while (flights.getShared() < 3)
+				Thread.sleep(1);
+			release.countDown();
+			for (Future<Integer> result : results)
+				Assert.assertEquals(42, result.get(10, TimeUnit.SECONDS).intValue());
+		} finally {
+			callers.shutdown();
+		}
+		Assert.assertEquals(1, runs.get());
+		Assert.assertEquals(1, flights.getComputed());
+		Assert.assertEquals(0, flights.inFlight());
+
+		/*
+		 * nothing is kept once it completes
+		 */
+		Assert.assertEquals(42, flights.execute("U1", slow).intValue());
+		Assert.assertEquals(2, runs.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rethrowsTheFailure() {
+		new SingleFlight<String, Integer>().execute("U1", new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				throw new IllegalArgumentException("no such user");
+			}
+		});
+	}
+}
@@ -0,0 +1,21 @@
+package helipilot50.orientdb.recommendation.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TopKTest {
+
+	@Test
+	public void keepsTheHighestScores() {
+		TopK top = new TopK(3);
+		double[] scores = { 0.5, 0.1, 0.9, 0.3, 0.7, 0.9 };
+		for (int id = 0; id < scores.length; id++)
+			top.offer(id, scores[id]);
+		top.sort();
+		Assert.assertEquals(3, top.size());
+		Assert.assertEquals(2, top.id(0));
+		Assert.assertEquals(5, top.id(1));
+		Assert.assertEquals(4, top.id(2));
+		Assert.assertEquals(0.7, top.score(2), 0);
+	}
+}